@@ -0,0 +1,26 @@
+#!/bin/bash
+# Runs diffxml with the given arguments on a diffxml server started with
+# diffxml-server.sh, avoiding JVM start up. Output and exit status are as
+# for diffxml.sh. Set DIFFXML_PORT if the server isn't on the default port.
+
+port=${DIFFXML_PORT:-8765}
+headers=$(mktemp) || exit 2
+trap 'rm -f "$headers"' EXIT
+
+{
+  printf '%s\0' "$PWD"
+  if [[ $# -gt 0 ]]; then
+    printf '%s\0' "$@"
+  fi
+} | curl -sS -N -D "$headers" --data-binary @- \
+    -H 'Content-Type: application/octet-stream' \
+    "http://127.0.0.1:${port}/diff" || exit 2
+
+status=$(grep -i '^x-diffxml-exit:' "$headers" | tr -dc '0-9')
+errors=$(grep -i '^x-diffxml-error:' "$headers" | sed 's/^[^:]*: *//' | tr -d '\r')
+
+if [[ -n "$errors" ]]; then
+  printf '%b' "${errors//%/\\x}" >&2
+fi
+
+exit ${status:-2}
@@ -0,0 +1,13 @@
+#!/bin/bash
+# This script will set up the java classpath with the required libraries
+# then start a diffxml server with the given arguments.
+# Use diffxml-client.sh and patchxml-client.sh to send it requests.
+
+#First find out where we are relative to the user dir
+callPath=${0%/*}
+
+if [[ -n "${callPath}" ]]; then
+  callPath=${callPath}/
+fi
+
+java -cp ${callPath}build:${callPath}lib/diffxml.jar org.diffxml.server.DiffServer "$@"
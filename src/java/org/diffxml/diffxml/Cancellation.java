@@ -0,0 +1,113 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+/**
+ * A token used to cancel diffs and patches that are in progress.
+ *
+ * The long loops of the diff and patch call checkpoint(), which throws a 
+ * CancelledException once the token is cancelled or the thread is 
+ * interrupted, so abandoned work stops soon after. A token may have a 
+ * parent, in which case cancelling the parent cancels it too.
+ *
+ * @author Adrian Mouat
+ */
+public final class Cancellation {
+
+    /** The token this one is cancelled with, or null. **/
+    private final Cancellation mParent;
+
+    /** Whether cancel() has been called. **/
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Creates a token that isn't cancelled.
+     */
+    public Cancellation() {
+        this(null);
+    }
+
+    /**
+     * Creates a token that is also cancelled when its parent is.
+     *
+     * @param parent The parent token, or null
+     */
+    public Cancellation(final Cancellation parent) {
+        mParent = parent;
+    }
+
+    /**
+     * Cancels the work using this token.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Checks whether this token or its parent has been cancelled.
+     *
+     * @return True if cancelled
+     */
+    public boolean isCancelled() {
+        return mCancelled || (mParent != null && mParent.isCancelled());
+    }
+
+    /**
+     * Stops the work if this token is cancelled or the thread interrupted.
+     *
+     * @throws CancelledException If the work should stop
+     */
+    public void check() {
+
+        checkInterrupted();
+        if (isCancelled()) {
+            throw new CancelledException("Cancelled");
+        }
+    }
+
+    /**
+     * Stops a diff if the token in the current options is cancelled or the
+     * thread interrupted.
+     *
+     * @throws CancelledException If the diff should stop
+     */
+    public static void checkpoint() {
+
+        Cancellation token = DiffFactory.getCancellation();
+        if (token == null) {
+            checkInterrupted();
+        } else {
+            token.check();
+        }
+    }
+
+    /**
+     * Stops the work if the thread is interrupted.
+     *
+     * The interrupt status is left set, so callers further up see it too.
+     *
+     * @throws CancelledException If the thread is interrupted
+     */
+    private static void checkInterrupted() {
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancelledException("Interrupted");
+        }
+    }
+}
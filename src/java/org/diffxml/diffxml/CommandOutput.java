@@ -0,0 +1,52 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import java.io.PrintStream;
+
+/**
+ * Standard output of a diffxml or patchxml run.
+ *
+ * The stream is only opened once the exit status is known, which allows
+ * the status to be sent ahead of the output, e.g. by the diff server.
+ *
+ * @author    Adrian Mouat
+ */
+
+public interface CommandOutput {
+
+    /**
+     * Output to System.out.
+     */
+    CommandOutput STDOUT = new CommandOutput() {
+        public PrintStream open(final int status) {
+            return System.out;
+        }
+    };
+
+    /**
+     * Gets the stream for standard output.
+     *
+     * May be called more than once, always with the same status.
+     *
+     * @param status The exit status of the run
+     * @return The stream to write output to
+     */
+    PrintStream open(final int status);
+}
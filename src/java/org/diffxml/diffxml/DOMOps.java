@@ -21,18 +21,11 @@ package org.diffxml.diffxml;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
 
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -48,10 +41,16 @@ import org.xml.sax.SAXException;
 public final class DOMOps {
 
     /**
-     * Factory used in outputting XML.
+     * Serializers used in outputting XML, one per thread as they hold
+     * buffers and are not thread safe.
      */
-    private static final TransformerFactory TRANSFORMER_FACTORY =
-        TransformerFactory.newInstance();
+    private static final ThreadLocal<DOMSerializer> SERIALIZER =
+        new ThreadLocal<DOMSerializer>() {
+            @Override
+            protected DOMSerializer initialValue() {
+                return new DOMSerializer();
+            }
+        };
 
     /**
      * Private constructor.
@@ -59,12 +58,28 @@ public final class DOMOps {
     private DOMOps() {
         //Shouldn't be instantiated
     }
+
+    /**
+     * Gets the serializer for the current thread.
+     *
+     * @param indented Whether to indent the output
+     * @param declaration Whether to output the XML declaration
+     * @return The configured serializer
+     */
+    private static DOMSerializer getSerializer(final boolean indented,
+            final boolean declaration) {
+
+        DOMSerializer serializer = SERIALIZER.get();
+        serializer.setIndent(indented);
+        serializer.setXMLDeclaration(declaration);
+        return serializer;
+    }
     
     /**
      * Writes given XML document to given stream.
      *
      * Uses UTF8 encoding, preserves spaces.
-     * Adds XML declaration with standalone set to "yes".
+     * Adds XML declaration.
      * 
      * @param doc DOM document to output
      * @param os  Stream to output to
@@ -79,34 +94,14 @@ public final class DOMOps {
             throw new IllegalArgumentException("Null document");
         }
     
-        try {
-            final Transformer transformer = 
-                DOMOps.TRANSFORMER_FACTORY.newTransformer();
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty(OutputKeys.STANDALONE, "yes");
-            
-            if (indented) {
-                transformer.setOutputProperty(OutputKeys.INDENT, "yes");    
-            } else {
-                transformer.setOutputProperty(OutputKeys.INDENT, "no");
-            }
-            
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.transform(new DOMSource(doc),
-                    new StreamResult(os));
-    
-        } catch (TransformerConfigurationException e1) {
-            throw new IOException("Failed to configure serializer", e1);
-        } catch (TransformerException e) {
-            throw new IOException("Failed to serialize document", e);
-        }
+        getSerializer(indented, true).serialize(doc, os);
     }
 
     /**
      * Writes given XML document to given stream.
      *
      * Uses UTF8 encoding, no indentation, preserves spaces.
-     * Adds XML declaration with standalone set to "yes".
+     * Adds XML declaration.
      * 
      * @param doc DOM document to output
      * @param os  Stream to output to
@@ -121,7 +116,7 @@ public final class DOMOps {
      * Writes given XML document to given stream.
      *
      * Uses UTF8 encoding, indentation, preserves spaces.
-     * Adds XML declaration with standalone set to "yes".
+     * Adds XML declaration.
      * 
      * @param doc DOM document to output
      * @param os  Stream to output to
@@ -150,23 +145,26 @@ public final class DOMOps {
             throw new IllegalArgumentException("Null node");
         }
     
-        try {
-            final Transformer transformer = 
-                DOMOps.TRANSFORMER_FACTORY.newTransformer();
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty(OutputKeys.STANDALONE, "no");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, 
-                    "yes");
-            transformer.setOutputProperty(OutputKeys.INDENT, "no");
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.transform(new DOMSource(node),
-                    new StreamResult(os));
-    
-        } catch (TransformerConfigurationException e1) {
-            throw new IOException("Failed to configure serializer", e1);
-        } catch (TransformerException e) {
-            throw new IOException("Failed to serialize document", e);
+        getSerializer(false, false).serialize(node, os);
+    }
+
+    /**
+     * Writes given XML Node to given writer.
+     *
+     * No indentation, preserves spaces. Omits the XML declaration.
+     * 
+     * @param node Node to output
+     * @param w  Writer to output to
+     * @throws IOException If an error occurs with serialization
+     */
+    public static void outputXML(final Node node, final Writer w) 
+    throws IOException {
+        
+        if (node == null) {
+            throw new IllegalArgumentException("Null node");
         }
+    
+        getSerializer(false, false).serialize(node, w);
     }
 
     /**
@@ -178,14 +176,14 @@ public final class DOMOps {
      */
     public static String getNodeAsStringDeep(final Node n) {
 
-        ByteArrayOutputStream os = new ByteArrayOutputStream(); 
+        StringWriter sw = new StringWriter(); 
         try {
-            DOMOps.outputXML(n, os);
+            DOMOps.outputXML(n, sw);
         } catch (IOException e) {
             throw new IllegalArgumentException(
                     "An error occured when serializing the node", e);
         }
-        return os.toString();
+        return sw.toString();
     }
 
     /**
@@ -197,15 +195,7 @@ public final class DOMOps {
      */
     public static String getNodeAsString(final Node n) {
 
-        Node out = n.cloneNode(false);
-        ByteArrayOutputStream os = new ByteArrayOutputStream(); 
-        try {
-            DOMOps.outputXML(out, os);
-        } catch (IOException e) {
-            throw new IllegalArgumentException(
-                    "An error occured when serializing the node", e);
-        }
-        return os.toString();
+        return getNodeAsStringDeep(n.cloneNode(false));
     }
     
     /**
@@ -263,8 +253,21 @@ public final class DOMOps {
      *            The parser to be set up
      */
     public static void initParser(final DocumentBuilderFactory parserFactory) {
+        initParser(parserFactory, DiffFactory.isResolveEntities());
+    }
+
+    /**
+     * Sets various features on the DOM Parser.
+     *  
+     * @param parserFactory
+     *            The parser to be set up
+     * @param resolveEntities
+     *            Whether entity references should be expanded
+     */
+    public static void initParser(final DocumentBuilderFactory parserFactory,
+            final boolean resolveEntities) {
     
-        if (!DiffFactory.isResolveEntities()) {
+        if (!resolveEntities) {
             parserFactory.setExpandEntityReferences(false);
         }
     
@@ -286,27 +289,19 @@ public final class DOMOps {
     /**
      * Reads a file into an XML document.
      * 
-     * Note configuration of parser as in initParser.
+     * Note configuration of parser as in initParser. Uses a pooled parser.
      * 
      * @param f The file to be read into an XML document
      * @return The DOM Document representing the file
      */
     public static Document getDocument(final File f) {
 
-        DocumentBuilderFactory fac = DocumentBuilderFactory.newInstance();
-        DOMOps.initParser(fac);
-
-        DocumentBuilder parser = null;
+        Document doc = null;
         try {
-            parser = fac.newDocumentBuilder();
+            doc = ParserPool.getInstance().parse(f);
         } catch (ParserConfigurationException e) {
             //Nothing we can do if this fails :(
             throw new IllegalArgumentException("Failed to configure parser");
-        }
-
-        Document doc = null;
-        try {
-            doc = parser.parse(f);
         } catch (SAXException e) {
             throw new IllegalArgumentException("Failed to parse document", e);
         } catch (IOException e) {
@@ -0,0 +1,694 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes DOM nodes, including DUL deltas, as XML.
+ *
+ * Replaces the JAXP identity transform, which has a large setup cost per
+ * call. Output is always UTF-8. Characters are collected in a reusable
+ * buffer and encoded in blocks, so an instance should be reused where
+ * possible; instances are not thread safe.
+ *
+ * Document type nodes are not output. Namespace declarations are added for
+ * elements and attributes whose namespace is not already in scope.
+ *
+ * @author Adrian Mouat
+ */
+public final class DOMSerializer {
+
+    /** Size of the character and byte buffers. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Amount of indentation per level. */
+    private static final String INDENT = "    ";
+
+    /** Namespace of xmlns attributes. */
+    private static final String XMLNS_NS = "http://www.w3.org/2000/xmlns/";
+
+    /** Namespace of the xml prefix. */
+    private static final String XML_NS =
+        "http://www.w3.org/XML/1998/namespace";
+
+    /** Buffer of characters waiting to be written. */
+    private final char[] mChars = new char[BUFFER_SIZE];
+
+    /** Number of characters in mChars. */
+    private int mCharCount;
+
+    /** Buffer used when encoding to a stream. */
+    private final ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_SIZE * 4);
+
+    /** Encoder used when writing to a stream. */
+    private final CharsetEncoder mEncoder =
+        StandardCharsets.UTF_8.newEncoder();
+
+    /**
+     * Namespace bindings in scope, stored as prefix, uri pairs.
+     * The empty string is used for the default namespace.
+     */
+    private final List<String> mBindings = new ArrayList<String>();
+
+    /** Stream being written to, or null if writing to mWriter. */
+    private OutputStream mStream;
+
+    /** Writer being written to, or null if writing to mStream. */
+    private Writer mWriter;
+
+    /** Whether element only content should be indented. */
+    private boolean mIndent = false;
+
+    /** Whether the XML declaration is written for documents. */
+    private boolean mDeclaration = true;
+
+    /**
+     * Sets whether element only content is indented.
+     *
+     * Elements containing text are never indented, as that would change
+     * their content.
+     *
+     * @param indent True to indent output
+     */
+    public void setIndent(final boolean indent) {
+        mIndent = indent;
+    }
+
+    /**
+     * Sets whether the XML declaration is written when serializing a
+     * Document.
+     *
+     * @param declaration True to write the declaration
+     */
+    public void setXMLDeclaration(final boolean declaration) {
+        mDeclaration = declaration;
+    }
+
+    /**
+     * Writes the node and its descendants to the stream as UTF-8.
+     *
+     * The stream is flushed but not closed.
+     *
+     * @param n The node to write
+     * @param os The stream to write to
+     * @throws IOException If the stream can't be written to
+     */
+    public void serialize(final Node n, final OutputStream os)
+    throws IOException {
+
+        mStream = os;
+        mWriter = null;
+        try {
+            write(n);
+            flushChars(true);
+            os.flush();
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Writes the node and its descendants to the writer.
+     *
+     * The writer is flushed but not closed. The declaration, if written,
+     * states UTF-8; it is up to the caller to encode accordingly.
+     *
+     * @param n The node to write
+     * @param w The writer to write to
+     * @throws IOException If the writer can't be written to
+     */
+    public void serialize(final Node n, final Writer w) throws IOException {
+
+        mStream = null;
+        mWriter = w;
+        try {
+            write(n);
+            flushChars(true);
+            w.flush();
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Clears per-call state so the instance can be reused.
+     */
+    private void reset() {
+
+        mStream = null;
+        mWriter = null;
+        mCharCount = 0;
+        mBindings.clear();
+        mEncoder.reset();
+        mBytes.clear();
+    }
+
+    /**
+     * Writes any node.
+     *
+     * @param n The node to write
+     * @throws IOException If the output can't be written to
+     */
+    private void write(final Node n) throws IOException {
+
+        switch (n.getNodeType()) {
+            case Node.DOCUMENT_NODE:
+                writeDocument((Document) n);
+                break;
+            case Node.ELEMENT_NODE:
+                writeElement(n, 0);
+                break;
+            case Node.ATTRIBUTE_NODE:
+                append(n.getNodeName());
+                append("=\"");
+                appendEscaped(n.getNodeValue(), true);
+                append('"');
+                break;
+            case Node.DOCUMENT_FRAGMENT_NODE:
+                for (Node k = n.getFirstChild(); k != null;
+                        k = k.getNextSibling()) {
+                    write(k);
+                }
+                break;
+            default:
+                writeLeaf(n);
+        }
+    }
+
+    /**
+     * Writes a document, with declaration if required.
+     *
+     * @param doc The document to write
+     * @throws IOException If the output can't be written to
+     */
+    private void writeDocument(final Document doc) throws IOException {
+
+        if (mDeclaration) {
+            append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"");
+            if (doc.getXmlStandalone()) {
+                append("yes");
+            } else {
+                append("no");
+            }
+            append("\"?>");
+            if (mIndent) {
+                append('\n');
+            }
+        }
+
+        for (Node k = doc.getFirstChild(); k != null; k = k.getNextSibling()) {
+            if (k.getNodeType() == Node.ELEMENT_NODE) {
+                writeElement(k, 0);
+            } else if (k.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+                writeLeaf(k);
+            } else {
+                continue;
+            }
+            if (mIndent) {
+                append('\n');
+            }
+        }
+    }
+
+    /**
+     * Writes an element and its descendants.
+     *
+     * @param el The element to write
+     * @param depth The indentation depth of the element
+     * @throws IOException If the output can't be written to
+     */
+    private void writeElement(final Node el, final int depth)
+    throws IOException {
+
+        int scope = mBindings.size();
+        String name = el.getNodeName();
+        append('<');
+        append(name);
+
+        NamedNodeMap attrs = el.getAttributes();
+        int numAttrs = attrs.getLength();
+
+        //Explicit declarations come into scope first
+        for (int i = 0; i < numAttrs; i++) {
+            Node a = attrs.item(i);
+            if (XMLNS_NS.equals(a.getNamespaceURI())) {
+                if (a.getPrefix() == null) {
+                    bind("", a.getNodeValue());
+                } else {
+                    bind(a.getLocalName(), a.getNodeValue());
+                }
+            }
+        }
+
+        declareIfNeeded(el.getNamespaceURI(), el.getPrefix());
+
+        //Namespaced attributes without a prefix are given one, as an
+        //unprefixed attribute is in no namespace
+        String[] prefixes = new String[numAttrs];
+        for (int i = 0; i < numAttrs; i++) {
+            Node a = attrs.item(i);
+            String uri = a.getNamespaceURI();
+            if (uri == null || uri.length() == 0 || XMLNS_NS.equals(uri)) {
+                continue;
+            }
+            if (a.getPrefix() != null) {
+                declareIfNeeded(uri, a.getPrefix());
+            } else if (!XML_NS.equals(uri)) {
+                prefixes[i] = getAttributePrefix(uri);
+            }
+        }
+
+        //Namespace declarations are written before other attributes
+        for (int i = 0; i < numAttrs; i++) {
+            Attr a = (Attr) attrs.item(i);
+            if (XMLNS_NS.equals(a.getNamespaceURI())) {
+                writeAttribute(a, null);
+            }
+        }
+        for (int i = 0; i < numAttrs; i++) {
+            Attr a = (Attr) attrs.item(i);
+            if (!XMLNS_NS.equals(a.getNamespaceURI())) {
+                writeAttribute(a, prefixes[i]);
+            }
+        }
+
+        Node first = el.getFirstChild();
+        if (first == null) {
+            append("/>");
+        } else {
+            append('>');
+            boolean indent = mIndent && isElementOnly(el);
+            for (Node k = first; k != null; k = k.getNextSibling()) {
+                if (indent) {
+                    newLine(depth + 1);
+                }
+                if (k.getNodeType() == Node.ELEMENT_NODE) {
+                    writeElement(k, depth + 1);
+                } else {
+                    writeLeaf(k);
+                }
+            }
+            if (indent) {
+                newLine(depth);
+            }
+            append("</");
+            append(name);
+            append('>');
+        }
+
+        while (mBindings.size() > scope) {
+            mBindings.remove(mBindings.size() - 1);
+        }
+    }
+
+    /**
+     * Writes an attribute of an element.
+     *
+     * @param a The attribute to write
+     * @param prefix The prefix given to the attribute, or null to write 
+     *               its name as it is
+     * @throws IOException If the output can't be written to
+     */
+    private void writeAttribute(final Attr a, final String prefix) 
+    throws IOException {
+
+        append(' ');
+        if (prefix != null) {
+            append(prefix);
+            append(':');
+            append(a.getLocalName());
+        } else {
+            append(a.getNodeName());
+        }
+        append("=\"");
+        appendEscaped(a.getNodeValue(), true);
+        append('"');
+    }
+
+    /**
+     * Writes a node that is not an element, document or attribute.
+     *
+     * @param n The node to write
+     * @throws IOException If the output can't be written to
+     */
+    private void writeLeaf(final Node n) throws IOException {
+
+        switch (n.getNodeType()) {
+            case Node.TEXT_NODE:
+                appendEscaped(n.getNodeValue(), false);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                append("<![CDATA[");
+                String data = n.getNodeValue();
+                int start = 0;
+                int end;
+                while ((end = data.indexOf("]]>", start)) != -1) {
+                    append(data, start, end + 2);
+                    append("]]><![CDATA[");
+                    start = end + 2;
+                }
+                append(data, start, data.length());
+                append("]]>");
+                break;
+            case Node.COMMENT_NODE:
+                append("<!--");
+                append(n.getNodeValue());
+                append("-->");
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                append("<?");
+                append(n.getNodeName());
+                String pi = n.getNodeValue();
+                if (pi != null && pi.length() > 0) {
+                    append(' ');
+                    append(pi);
+                }
+                append("?>");
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                append('&');
+                append(n.getNodeName());
+                append(';');
+                break;
+            default:
+                //Doctypes, entities and notations aren't output
+                break;
+        }
+    }
+
+    /**
+     * Checks whether an element has only element, comment and processing
+     * instruction children, and can therefore be safely indented.
+     *
+     * @param el The element to check
+     * @return True if the element has no text content of its own
+     */
+    private static boolean isElementOnly(final Node el) {
+
+        for (Node k = el.getFirstChild(); k != null; k = k.getNextSibling()) {
+            short type = k.getNodeType();
+            if (type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE
+                    || type == Node.ENTITY_REFERENCE_NODE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets a prefix for a namespaced attribute that has none.
+     *
+     * A prefix in scope for the namespace is used if there is one, 
+     * otherwise one of ns0, ns1, ... that isn't in scope is declared, as
+     * the JAXP serializer did.
+     *
+     * @param uri The namespace of the attribute
+     * @return The prefix
+     * @throws IOException If the output can't be written to
+     */
+    private String getAttributePrefix(final String uri) throws IOException {
+
+        for (int i = mBindings.size() - 2; i >= 0; i -= 2) {
+            String p = mBindings.get(i);
+            if (p.length() > 0 && uri.equals(mBindings.get(i + 1))
+                    && uri.equals(lookup(p))) {
+                return p;
+            }
+        }
+
+        int n = 0;
+        while (lookup("ns" + n) != null) {
+            n++;
+        }
+        String p = "ns" + n;
+        declareIfNeeded(uri, p);
+        return p;
+    }
+
+    /**
+     * Adds a namespace declaration if the given prefix is not already bound
+     * to the namespace.
+     *
+     * Null namespaces are not undeclared, matching the previous JAXP output.
+     *
+     * @param uri The namespace URI, may be null
+     * @param prefix The prefix, null for the default namespace
+     * @throws IOException If the output can't be written to
+     */
+    private void declareIfNeeded(final String uri, final String prefix)
+    throws IOException {
+
+        if (uri == null || uri.length() == 0 || XML_NS.equals(uri)) {
+            return;
+        }
+
+        String p;
+        if (prefix == null) {
+            p = "";
+        } else {
+            p = prefix;
+        }
+
+        if (!uri.equals(lookup(p))) {
+            bind(p, uri);
+            if (p.length() == 0) {
+                append(" xmlns=\"");
+            } else {
+                append(" xmlns:");
+                append(p);
+                append("=\"");
+            }
+            appendEscaped(uri, true);
+            append('"');
+        }
+    }
+
+    /**
+     * Brings a namespace binding into scope.
+     *
+     * @param prefix The prefix, empty for the default namespace
+     * @param uri The namespace URI
+     */
+    private void bind(final String prefix, final String uri) {
+        mBindings.add(prefix);
+        mBindings.add(uri);
+    }
+
+    /**
+     * Finds the namespace currently bound to a prefix.
+     *
+     * @param prefix The prefix, empty for the default namespace
+     * @return The bound namespace or null if none
+     */
+    private String lookup(final String prefix) {
+
+        for (int i = mBindings.size() - 2; i >= 0; i -= 2) {
+            if (mBindings.get(i).equals(prefix)) {
+                return mBindings.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts a new, indented line.
+     *
+     * @param depth The indentation depth
+     * @throws IOException If the output can't be written to
+     */
+    private void newLine(final int depth) throws IOException {
+
+        append('\n');
+        for (int i = 0; i < depth; i++) {
+            append(INDENT);
+        }
+    }
+
+    /**
+     * Appends text, escaping markup characters.
+     *
+     * @param s The text to append, may be null
+     * @param attr True if the text is an attribute value
+     * @throws IOException If the output can't be written to
+     */
+    private void appendEscaped(final String s, final boolean attr)
+    throws IOException {
+
+        if (s == null) {
+            return;
+        }
+
+        int len = s.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            String rep;
+            char c = s.charAt(i);
+            switch (c) {
+                case '&':
+                    rep = "&amp;";
+                    break;
+                case '<':
+                    rep = "&lt;";
+                    break;
+                case '>':
+                    rep = "&gt;";
+                    break;
+                case '\r':
+                    rep = "&#13;";
+                    break;
+                case '"':
+                    rep = attr ? "&quot;" : null;
+                    break;
+                case '\n':
+                    rep = attr ? "&#10;" : null;
+                    break;
+                case '\t':
+                    rep = attr ? "&#9;" : null;
+                    break;
+                default:
+                    rep = null;
+            }
+            if (rep != null) {
+                append(s, start, i);
+                append(rep);
+                start = i + 1;
+            }
+        }
+        append(s, start, len);
+    }
+
+    /**
+     * Appends a single character to the buffer.
+     *
+     * @param c The character
+     * @throws IOException If the output can't be written to
+     */
+    private void append(final char c) throws IOException {
+
+        if (mCharCount == mChars.length) {
+            flushChars(false);
+        }
+        mChars[mCharCount++] = c;
+    }
+
+    /**
+     * Appends a string to the buffer.
+     *
+     * @param s The string
+     * @throws IOException If the output can't be written to
+     */
+    private void append(final String s) throws IOException {
+        append(s, 0, s.length());
+    }
+
+    /**
+     * Appends part of a string to the buffer.
+     *
+     * @param s The string
+     * @param start Index of the first character to append
+     * @param end Index after the last character to append
+     * @throws IOException If the output can't be written to
+     */
+    private void append(final String s, final int start, final int end)
+    throws IOException {
+
+        int pos = start;
+        while (pos < end) {
+            if (mCharCount == mChars.length) {
+                flushChars(false);
+            }
+            int n = Math.min(end - pos, mChars.length - mCharCount);
+            s.getChars(pos, pos + n, mChars, mCharCount);
+            mCharCount += n;
+            pos += n;
+        }
+    }
+
+    /**
+     * Writes buffered characters to the output.
+     *
+     * When encoding to a stream, a trailing high surrogate is kept back
+     * unless this is the final flush, so pairs are never split.
+     *
+     * @param last True if no more characters will follow
+     * @throws IOException If the output can't be written to
+     */
+    private void flushChars(final boolean last) throws IOException {
+
+        if (mWriter != null) {
+            mWriter.write(mChars, 0, mCharCount);
+            mCharCount = 0;
+            return;
+        }
+
+        int len = mCharCount;
+        if (!last && len > 0 && Character.isHighSurrogate(mChars[len - 1])) {
+            len--;
+        }
+
+        CharBuffer in = CharBuffer.wrap(mChars, 0, len);
+        CoderResult res;
+        do {
+            res = mEncoder.encode(in, mBytes, last);
+            writeBytes();
+        } while (res.isOverflow());
+        if (last) {
+            while (mEncoder.flush(mBytes).isOverflow()) {
+                writeBytes();
+            }
+            writeBytes();
+            mEncoder.reset();
+        }
+        if (res.isError()) {
+            throw new IOException("Failed to encode output: " + res);
+        }
+
+        //Keep back anything the encoder didn't consume
+        int left = mCharCount - in.position();
+        System.arraycopy(mChars, in.position(), mChars, 0, left);
+        mCharCount = left;
+    }
+
+    /**
+     * Writes the encoded bytes to the stream.
+     *
+     * @throws IOException If the stream can't be written to
+     */
+    private void writeBytes() throws IOException {
+
+        mBytes.flip();
+        mStream.write(mBytes.array(), mBytes.arrayOffset(), mBytes.limit());
+        mBytes.clear();
+    }
+}
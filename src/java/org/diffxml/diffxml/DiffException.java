@@ -32,6 +32,15 @@ public class DiffException extends Exception {
      */
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Constructor.
+     * 
+     * @param s Description of error
+     */
+    public DiffException(final String s) {
+        super(s);
+    }
+
     /**
      * Constructor.
      * 
@@ -19,6 +19,9 @@ limitations under the License.
 
 package org.diffxml.diffxml;
 
+import java.io.PrintStream;
+import java.util.List;
+
 import org.diffxml.diffxml.fmes.Fmes;
 
 
@@ -28,116 +31,76 @@ import org.diffxml.diffxml.fmes.Fmes;
  * @author 	Adrian Mouat
  */
 public final class DiffFactory {
-    /*
-     * TODO: Make state fixed for each diff instance. Currently 
-     * changes to options affect in-process diffs.
-     */
-
-    /**
-     * Report only if files differ.
-     * Default off.
-     */
-    private static boolean mBrief = false;
-
-    /**
-     * Provide debug output.
-     * Default false.
-     */
-    private static boolean mDebug = false;
-
-    /**
-     * Ignore all whitespace.
-     * Default off.
-     */
-    private static boolean mIgnoreAllWhitespace = false;
-
-    /**
-     * Ignore leading whitespace.
-     * Default off.
-     */
-    private static boolean mIgnoreLeadingWhitespace = false;
-
-    /**
-     * Ignore whitespace only nodes.
-     * Default off.
-     */
-    private static boolean mIgnoreWhitespaceNodes = false;
-
-    /**
-     * Ignore changes in case only.
-     * Default off.
-     */
-    private static boolean mIgnoreCase = false;
-
-    /**
-     * Ignore comments.
-     * Default off.
-     */
-    private static boolean mIgnoreComments = false;
-
-    /**
-     * Ignore processing instructions.
-     * Default off.
-     */
-    private static boolean mIgnoreProcessingInstructions = false;
 
     /**
-     * Output tagnames rather than node numbers.
-     * Default off.
+     * Default options, used by diffs without options of their own.
+     *
+     * Never modified once published; setters replace it with a changed copy
+     * so that diffs on other threads always see a consistent set.
      */
-    private static boolean mUseTagnames = false;
+    private static volatile DiffOptions sDefaults = new DiffOptions();
 
     /**
-     * Output reverse patching context.
-     * Default off.
+     * Lock for changes to the defaults.
      */
-    private static boolean mReversePatch = false;
+    private static final Object DEFAULTS_LOCK = new Object();
 
     /**
-     * Whether or not to output context nodes.
-     * Default off.
+     * Options of the diff running on the current thread, if it has its own.
      */
-    private static boolean mContext = false;
+    private static final ThreadLocal<DiffOptions> CURRENT =
+        new ThreadLocal<DiffOptions>();
 
     /**
-     * Amount of sibling context.
-     * Default 2.
+     * Private constructor - shouldn't be called.
      */
-    private static int mSiblingContext = 2;
+    private DiffFactory() {
+        //Shouldn't be called
+    }
 
     /**
-     * Amount of parent context.
-     * Default 1.
+     * Gets the options in effect on the current thread.
+     *
+     * These are the options of the running diff if it was created with its
+     * own options, otherwise the defaults.
+     * 
+     * @return The current options
      */
-    private static int mParentContext = 1;
+    public static DiffOptions getOptions() {
 
-    /**
-     * Amount of parent sibling context.
-     * Default 0.
-     */
-    private static int mParentSiblingContext = 0;
+        DiffOptions opts = CURRENT.get();
+        if (opts == null) {
+            opts = sDefaults;
+        }
+        return opts;
+    }
 
     /**
-     * Algorithm to use.
-     * Default FMES.
+     * Gets a copy of the default options, as changed by the setters here.
+     * 
+     * @return A copy of the default options
      */
-    private static boolean mFMES = true;
+    public static DiffOptions copyDefaults() {
+        return new DiffOptions(sDefaults);
+    }
 
     /**
-     * Use DUL output format.
-     * No other format currently supported.
-     * default on.
+     * Sets the options in effect on the current thread.
+     *
+     * Used by diff engines while running a diff with its own options.
+     * 
+     * @param opts The options to use, or null to revert to the defaults
+     * @return The options previously set on this thread, or null if none
      */
-    private static boolean mDUL = true;
-
-    /** Resolving of entities. */
-    private static boolean mResolveEntities = true;
+    public static DiffOptions setCurrentOptions(final DiffOptions opts) {
 
-    /**
-     * Private constructor - shouldn't be called.
-     */
-    private DiffFactory() {
-        //Shouldn't be called
+        DiffOptions previous = CURRENT.get();
+        if (opts == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(opts);
+        }
+        return previous;
     }
 
     /**
@@ -146,7 +109,11 @@ public final class DiffFactory {
      * @param brief Sets brief output
      */
     public static void setBrief(final boolean brief) {
-        mBrief = brief;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setBrief(brief);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -156,7 +123,7 @@ public final class DiffFactory {
      * @return True if brief output is on
      */
     public static boolean isBrief() {
-        return mBrief;
+        return getOptions().isBrief();
     }
 
     /**
@@ -165,7 +132,11 @@ public final class DiffFactory {
      * @param debug Sets debug output
      */
     public static void setDebug(final boolean debug) {
-        mDebug = debug;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setDebug(debug);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -174,7 +145,16 @@ public final class DiffFactory {
      * @return True if debug is on
      */
     public static boolean isDebug() {
-        return mDebug;
+        return getOptions().isDebug();
+    }
+
+    /**
+     * Gets where debug output goes.
+     * 
+     * @return The stream debug output is written to
+     */
+    public static PrintStream getDebugStream() {
+        return getOptions().getDebugStream();
     }
     /**
      * Sets whether any differences in whitespace should be considered.
@@ -182,7 +162,11 @@ public final class DiffFactory {
      * @param ignore If true, whitespace is ignored
      */
     public static void setIgnoreAllWhitespace(final boolean ignore) {
-        mIgnoreAllWhitespace = ignore;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setIgnoreAllWhitespace(ignore);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -191,7 +175,7 @@ public final class DiffFactory {
      * @return True if whitespace is to be ignored
      */
     public static boolean isIgnoreAllWhitespace() {
-        return mIgnoreAllWhitespace;
+        return getOptions().isIgnoreAllWhitespace();
     }
 
     /**
@@ -200,7 +184,11 @@ public final class DiffFactory {
      * @param ignore If true, leading whitespace is ignored
      */
     public static void setIgnoreLeadingWhitespace(final boolean ignore) {
-        mIgnoreLeadingWhitespace = ignore;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setIgnoreLeadingWhitespace(ignore);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -209,7 +197,7 @@ public final class DiffFactory {
      * @return True if leading whitespace is to be ignored
      */
     public static boolean isIgnoreLeadingWhitespace() {
-        return mIgnoreLeadingWhitespace;
+        return getOptions().isIgnoreLeadingWhitespace();
     }
 
     /**
@@ -218,7 +206,11 @@ public final class DiffFactory {
      * @param ignore If true, whitespace only nodes are ignored
      */
     public static void setIgnoreWhitespaceNodes(final boolean ignore) {
-        mIgnoreWhitespaceNodes = ignore;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setIgnoreWhitespaceNodes(ignore);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -227,7 +219,7 @@ public final class DiffFactory {
      * @return True if whitespace only nodes are to be ignored
      */
     public static boolean isIgnoreWhitespaceNodes() {
-        return mIgnoreWhitespaceNodes;
+        return getOptions().isIgnoreWhitespaceNodes();
     }
 
     /**
@@ -236,7 +228,11 @@ public final class DiffFactory {
      * @param ignore If true, case differences are ignored
      */
     public static void setIgnoreCase(final boolean ignore) {
-        mIgnoreCase = ignore;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setIgnoreCase(ignore);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -245,7 +241,7 @@ public final class DiffFactory {
      * @return True if case differences are ignored
      */
     public static boolean isIgnoreCase() {
-        return mIgnoreCase;
+        return getOptions().isIgnoreCase();
     }
 
     /**
@@ -254,7 +250,11 @@ public final class DiffFactory {
      * @param ignore If true, differences in comments are ignored
      */
     public static void setIgnoreComments(final boolean ignore) {
-        mIgnoreComments = ignore;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setIgnoreComments(ignore);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -263,7 +263,7 @@ public final class DiffFactory {
      * @return True if differences in comments are ignored
      */
     public static boolean isIgnoreComments() {
-        return mIgnoreComments;
+        return getOptions().isIgnoreComments();
     }
 
     /**
@@ -273,7 +273,11 @@ public final class DiffFactory {
      *               ignored.
      */
     public static void setIgnoreProcessingInstructions(final boolean ignore) {
-        mIgnoreProcessingInstructions = ignore;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setIgnoreProcessingInstructions(ignore);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -282,7 +286,7 @@ public final class DiffFactory {
      * @return True if differences in processing instructions are ignored
      */
     public static boolean isIgnoreProcessingInstructions() {
-        return mIgnoreProcessingInstructions;
+        return getOptions().isIgnoreProcessingInstructions();
     }
 
     /**
@@ -291,7 +295,11 @@ public final class DiffFactory {
      * @param useTagnames If true, tagnames are output in xpaths
      */
     public static void setUseTagnames(final boolean useTagnames) {
-        mUseTagnames = useTagnames;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setUseTagnames(useTagnames);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -300,7 +308,7 @@ public final class DiffFactory {
      * @return True if differences in processing instructions are ignored
      */
     public static boolean isUseTagnames() {
-        return mUseTagnames;
+        return getOptions().isUseTagnames();
     }
 
     /**
@@ -310,7 +318,11 @@ public final class DiffFactory {
      *               patches
      */
     public static void setReversePatch(final boolean reverse) {
-        mReversePatch = reverse;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setReversePatch(reverse);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -319,7 +331,7 @@ public final class DiffFactory {
      * @return True if extra output for reverse patches is generated
      */
     public static boolean isReversePatch() {
-        return mReversePatch;
+        return getOptions().isReversePatch();
     }
 
     /**
@@ -328,7 +340,11 @@ public final class DiffFactory {
      * @param context If true, context nodes are output.
      */
     public static void setContext(final boolean context) {
-        mContext = context;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setContext(context);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -337,7 +353,7 @@ public final class DiffFactory {
      * @return True if context nodes are output.
      */
     public static boolean isContext() {
-        return mContext;
+        return getOptions().isContext();
     }
     
     /**
@@ -347,11 +363,11 @@ public final class DiffFactory {
      * @param context Number of sibling context nodes.
      */
     public static void setSiblingContext(final int context) {
-        
-        if (context < 0) {
-            throw new IllegalArgumentException("Sibling context must be >= 0");
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setSiblingContext(context);
+            sDefaults = opts;
         }
-        mSiblingContext = context;
     }
     
     /**
@@ -360,7 +376,7 @@ public final class DiffFactory {
      * @return Number of sibling context nodes.
      */
     public static int getSiblingContext() {
-        return mSiblingContext;
+        return getOptions().getSiblingContext();
     }
 
     /**
@@ -370,11 +386,11 @@ public final class DiffFactory {
      * @param context Number of parent context nodes.
      */
     public static void setParentContext(final int context) {
-        
-        if (context < 0) {
-            throw new IllegalArgumentException("Parent context must be >= 0");
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setParentContext(context);
+            sDefaults = opts;
         }
-        mParentContext = context;
     }
     
     /**
@@ -383,7 +399,7 @@ public final class DiffFactory {
      * @return Number of parent and child context nodes.
      */
     public static int getParentContext() {
-        return mParentContext;
+        return getOptions().getParentContext();
     }
 
     /**
@@ -394,12 +410,11 @@ public final class DiffFactory {
      * @param context Number of parent and child sibling context nodes.
      */
     public static void setParentSiblingContext(final int context) {
-        
-        if (context < 0) {
-            throw new IllegalArgumentException(
-                    "ParentSibling context must be >= 0");
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setParentSiblingContext(context);
+            sDefaults = opts;
         }
-        mParentSiblingContext = context;
     }
     
     /**
@@ -408,7 +423,7 @@ public final class DiffFactory {
      * @return Number of parent and child sibling context nodes.
      */
     public static int getParentSiblingContext() {
-        return mParentSiblingContext;
+        return getOptions().getParentSiblingContext();
     }
 
     /**
@@ -417,7 +432,11 @@ public final class DiffFactory {
      * @param useFMES If true, the FMES algorithm is used.
      */
     public static void setFMES(final boolean useFMES) {
-        mFMES = useFMES;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setFMES(useFMES);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -426,7 +445,7 @@ public final class DiffFactory {
      * @return True if the FMES algorithm is used.
      */
     public static boolean isFMES() {
-        return mFMES;
+        return getOptions().isFMES();
     }
 
     /**
@@ -435,7 +454,11 @@ public final class DiffFactory {
      * @param useDUL If true, the DUL output format is used.
      */
     public static void setDUL(final boolean useDUL) {
-        mDUL = useDUL;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setDUL(useDUL);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -444,7 +467,7 @@ public final class DiffFactory {
      * @return True if the DUL output format is used.
      */
     public static boolean isDUL() {
-        return mDUL;
+        return getOptions().isDUL();
     }
 
     /**
@@ -453,7 +476,11 @@ public final class DiffFactory {
      * @param resolve If true, external entities are resolved.
      */
     public static void setResolveEntities(final boolean resolve) {
-        mResolveEntities = resolve;
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setResolveEntities(resolve);
+            sDefaults = opts;
+        }
     }
     
     /**
@@ -462,13 +489,250 @@ public final class DiffFactory {
      * @return True if external entities are resolved.
      */
     public static boolean isResolveEntities() {
-        return mResolveEntities;
+        return getOptions().isResolveEntities();
+    }
+
+    /**
+     * Sets whether the documents given to a diff are left untouched.
+     * 
+     * @param preserve If true, the documents aren't modified
+     */
+    public static void setPreserveOriginal(final boolean preserve) {
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setPreserveOriginal(preserve);
+            sDefaults = opts;
+        }
+    }
+    
+    /**
+     * Gets whether the documents given to a diff are left untouched.
+     * 
+     * @return True if the documents aren't modified
+     */
+    public static boolean isPreserveOriginal() {
+        return getOptions().isPreserveOriginal();
+    }
+
+    /**
+     * Sets whether the children of the document element are differenced 
+     * as independent partitions, in parallel.
+     * 
+     * @param partitioned If true, the diff is partitioned
+     */
+    public static void setPartitioned(final boolean partitioned) {
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setPartitioned(partitioned);
+            sDefaults = opts;
+        }
+    }
+    
+    /**
+     * Gets whether the children of the document element are differenced 
+     * as independent partitions.
+     * 
+     * @return True if the diff is partitioned
+     */
+    public static boolean isPartitioned() {
+        return getOptions().isPartitioned();
+    }
+
+    /**
+     * Sets the attribute identifying the children of the document element
+     * when the diff is partitioned.
+     * 
+     * @param key The attribute name, or null to pair by content and name
+     */
+    public static void setPartitionKey(final String key) {
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setPartitionKey(key);
+            sDefaults = opts;
+        }
+    }
+    
+    /**
+     * Gets the attribute identifying the children of the document element
+     * when the diff is partitioned.
+     * 
+     * @return The attribute name, or null if none
+     */
+    public static String getPartitionKey() {
+        return getOptions().getPartitionKey();
+    }
+
+    /**
+     * Sets whether the nodes at each depth are matched in parallel.
+     * 
+     * @param parallel If true, nodes are matched in parallel
+     */
+    public static void setParallelMatching(final boolean parallel) {
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setParallelMatching(parallel);
+            sDefaults = opts;
+        }
+    }
+    
+    /**
+     * Gets whether the nodes at each depth are matched in parallel.
+     * 
+     * @return True if nodes are matched in parallel
+     */
+    public static boolean isParallelMatching() {
+        return getOptions().isParallelMatching();
+    }
+
+    /**
+     * Sets the attributes identifying elements.
+     * 
+     * @param keys The key attributes
+     */
+    public static void setKeyAttributes(final List<String> keys) {
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setKeyAttributes(keys);
+            sDefaults = opts;
+        }
+    }
+    
+    /**
+     * Gets the attributes identifying elements.
+     * 
+     * @return The key attributes, which can't be modified
+     */
+    public static List<String> getKeyAttributes() {
+        return getOptions().getKeyAttributes();
+    }
+
+    /**
+     * Sets the least similarity of text nodes paired by content.
+     * 
+     * @param threshold The least similarity, from 0 to 1, or 0 to only 
+     *        pair equal text
+     */
+    public static void setTextSimilarity(final double threshold) {
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setTextSimilarity(threshold);
+            sDefaults = opts;
+        }
+    }
+    
+    /**
+     * Gets the least similarity of text nodes paired by content.
+     * 
+     * @return The least similarity, or 0 if only equal text is paired
+     */
+    public static double getTextSimilarity() {
+        return getOptions().getTextSimilarity();
+    }
+
+    /**
+     * Sets patterns for content left out when inputs are parsed.
+     * 
+     * @param patterns The exclusion patterns
+     */
+    public static void setExclusions(final List<String> patterns) {
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setExclusions(patterns);
+            sDefaults = opts;
+        }
+    }
+    
+    /**
+     * Gets the patterns for content left out when inputs are parsed.
+     * 
+     * @return The exclusion patterns, which can't be modified
+     */
+    public static List<String> getExclusions() {
+        return getOptions().getExclusions();
+    }
+
+    /**
+     * Sets the path of the subtree the diff is limited to.
+     * 
+     * @param path The scope path, or null for the whole document
+     */
+    public static void setScope(final String path) {
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setScope(path);
+            sDefaults = opts;
+        }
+    }
+    
+    /**
+     * Gets the path of the subtree the diff is limited to.
+     * 
+     * @return The scope path, or null for the whole document
+     */
+    public static String getScope() {
+        return getOptions().getScope();
+    }
+
+    /**
+     * Sets the work allowed aligning children before the delta is degraded.
+     * 
+     * @param units The units of work, or 0 for no limit
+     */
+    public static void setWorkLimit(final long units) {
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setWorkLimit(units);
+            sDefaults = opts;
+        }
+    }
+    
+    /**
+     * Gets the work allowed aligning children before the delta is degraded.
+     * 
+     * @return The units of work, or 0 for no limit
+     */
+    public static long getWorkLimit() {
+        return getOptions().getWorkLimit();
+    }
+
+    /**
+     * Sets the time allowed for a diff before the delta is degraded.
+     * 
+     * @param millis The time limit in milliseconds, or 0 for no limit
+     */
+    public static void setTimeLimit(final long millis) {
+        synchronized (DEFAULTS_LOCK) {
+            DiffOptions opts = new DiffOptions(sDefaults);
+            opts.setTimeLimit(millis);
+            sDefaults = opts;
+        }
+    }
+    
+    /**
+     * Gets the time allowed for a diff before the delta is degraded.
+     * 
+     * @return The time limit in milliseconds, or 0 for no limit
+     */
+    public static long getTimeLimit() {
+        return getOptions().getTimeLimit();
+    }
+
+    /**
+     * Gets the token used to cancel the current diff.
+     * 
+     * There is no default token, as a token is meant for particular diffs.
+     * 
+     * @return The token, or null for none
+     */
+    public static Cancellation getCancellation() {
+        return getOptions().getCancellation();
     }
     
     /**
      * Creates an instance of the appropriate Diff engine.
      * 
-     * Currently only FMES, may be more in future.
+     * Currently only FMES, may be more in future. The diff uses the default
+     * options at the time it is run.
      * 
      * @return a difference engine meeting implementing the Diff interface
      */
@@ -477,4 +741,18 @@ public final class DiffFactory {
         return new Fmes();
     }
 
+    /**
+     * Creates an instance of the appropriate Diff engine with its own
+     * options.
+     * 
+     * Later changes to the defaults do not affect the returned engine.
+     * 
+     * @param opts The options to use
+     * @return a difference engine meeting implementing the Diff interface
+     */
+    public static Diff createDiff(final DiffOptions opts) {
+        
+        return new Fmes(new DiffOptions(opts));
+    }
+
 }
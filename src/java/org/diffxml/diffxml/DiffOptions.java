@@ -0,0 +1,925 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */      
+
+package org.diffxml.diffxml;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * The options affecting a single diff.
+ *
+ * Options are normally set through DiffFactory, which holds the defaults. A
+ * DiffOptions instance can be passed to DiffFactory.createDiff so that
+ * diffs running at the same time use independent settings.
+ *
+ * @author Adrian Mouat
+ */
+public final class DiffOptions {
+
+    /**
+     * Report only if files differ.
+     * Default off.
+     */
+    private boolean mBrief = false;
+
+    /**
+     * Provide debug output.
+     * Default false.
+     */
+    private boolean mDebug = false;
+
+    /**
+     * Where debug output goes, or null for standard error.
+     * Default null.
+     */
+    private PrintStream mDebugStream = null;
+
+    /**
+     * Ignore all whitespace.
+     * Default off.
+     */
+    private boolean mIgnoreAllWhitespace = false;
+
+    /**
+     * Ignore leading whitespace.
+     * Default off.
+     */
+    private boolean mIgnoreLeadingWhitespace = false;
+
+    /**
+     * Ignore whitespace only nodes.
+     * Default off.
+     */
+    private boolean mIgnoreWhitespaceNodes = false;
+
+    /**
+     * Ignore changes in case only.
+     * Default off.
+     */
+    private boolean mIgnoreCase = false;
+
+    /**
+     * Ignore comments.
+     * Default off.
+     */
+    private boolean mIgnoreComments = false;
+
+    /**
+     * Ignore processing instructions.
+     * Default off.
+     */
+    private boolean mIgnoreProcessingInstructions = false;
+
+    /**
+     * Output tagnames rather than node numbers.
+     * Default off.
+     */
+    private boolean mUseTagnames = false;
+
+    /**
+     * Output reverse patching context.
+     * Default off.
+     */
+    private boolean mReversePatch = false;
+
+    /**
+     * Whether or not to output context nodes.
+     * Default off.
+     */
+    private boolean mContext = false;
+
+    /**
+     * Amount of sibling context.
+     * Default 2.
+     */
+    private int mSiblingContext = 2;
+
+    /**
+     * Amount of parent context.
+     * Default 1.
+     */
+    private int mParentContext = 1;
+
+    /**
+     * Amount of parent sibling context.
+     * Default 0.
+     */
+    private int mParentSiblingContext = 0;
+
+    /**
+     * Algorithm to use.
+     * Default FMES.
+     */
+    private boolean mFMES = true;
+
+    /**
+     * Use DUL output format.
+     * No other format currently supported.
+     * default on.
+     */
+    private boolean mDUL = true;
+
+    /** Resolving of entities. */
+    private boolean mResolveEntities = true;
+
+    /**
+     * Leave the original document untouched when differencing DOMs.
+     * Default off.
+     */
+    private boolean mPreserveOriginal = false;
+
+    /**
+     * Diff the children of the document element as independent partitions.
+     * Default off.
+     */
+    private boolean mPartitioned = false;
+
+    /**
+     * Attribute identifying the children of the document element when 
+     * partitioned, or null.
+     */
+    private String mPartitionKey = null;
+
+    /**
+     * Match the nodes at each depth in parallel. Default off.
+     */
+    private boolean mParallelMatching = false;
+
+    /**
+     * Attributes identifying elements, matched before the general pass.
+     * Default none.
+     */
+    private List<String> mKeyAttributes = Collections.emptyList();
+
+    /**
+     * Least similarity of text nodes paired by content, or 0 to only pair
+     * equal text. Default 0.
+     */
+    private double mTextSimilarity = 0;
+
+    /**
+     * Patterns for content left out when inputs are parsed. Default none.
+     */
+    private List<String> mExclusions = Collections.emptyList();
+
+    /**
+     * Path of the subtree the diff is limited to, or null for the whole
+     * document. Default null.
+     */
+    private String mScope = null;
+
+    /**
+     * Units of work allowed aligning children before the delta is 
+     * degraded, or 0 for no limit. Default 0.
+     */
+    private long mWorkLimit = 0;
+
+    /**
+     * Milliseconds allowed for a diff before the delta is degraded, or 0
+     * for no limit. Default 0.
+     */
+    private long mTimeLimit = 0;
+
+    /**
+     * Token used to cancel diffs run with these options, or null. 
+     * Default null.
+     */
+    private Cancellation mCancellation = null;
+
+    /**
+     * Creates a set of options with the default values.
+     */
+    public DiffOptions() {
+        //Defaults set in field declarations
+    }
+
+    /**
+     * Creates a copy of the given options.
+     *
+     * @param other The options to copy
+     */
+    public DiffOptions(final DiffOptions other) {
+
+        mBrief = other.mBrief;
+        mDebug = other.mDebug;
+        mDebugStream = other.mDebugStream;
+        mIgnoreAllWhitespace = other.mIgnoreAllWhitespace;
+        mIgnoreLeadingWhitespace = other.mIgnoreLeadingWhitespace;
+        mIgnoreWhitespaceNodes = other.mIgnoreWhitespaceNodes;
+        mIgnoreCase = other.mIgnoreCase;
+        mIgnoreComments = other.mIgnoreComments;
+        mIgnoreProcessingInstructions = other.mIgnoreProcessingInstructions;
+        mUseTagnames = other.mUseTagnames;
+        mReversePatch = other.mReversePatch;
+        mContext = other.mContext;
+        mSiblingContext = other.mSiblingContext;
+        mParentContext = other.mParentContext;
+        mParentSiblingContext = other.mParentSiblingContext;
+        mFMES = other.mFMES;
+        mDUL = other.mDUL;
+        mResolveEntities = other.mResolveEntities;
+        mPreserveOriginal = other.mPreserveOriginal;
+        mPartitioned = other.mPartitioned;
+        mPartitionKey = other.mPartitionKey;
+        mParallelMatching = other.mParallelMatching;
+        mKeyAttributes = other.mKeyAttributes;
+        mTextSimilarity = other.mTextSimilarity;
+        mExclusions = other.mExclusions;
+        mScope = other.mScope;
+        mWorkLimit = other.mWorkLimit;
+        mTimeLimit = other.mTimeLimit;
+        mCancellation = other.mCancellation;
+    }
+
+    /**
+     * Only report if files differ, do not output differences.
+     * 
+     * @param brief Sets brief output
+     */
+    public void setBrief(final boolean brief) {
+        mBrief = brief;
+    }
+    
+    /**
+     * If brief mode is on, only reports if files differ, 
+     * does not output differences.
+     * 
+     * @return True if brief output is on
+     */
+    public boolean isBrief() {
+        return mBrief;
+    }
+
+    /**
+     * Output extra debug info.
+     * 
+     * @param debug Sets debug output
+     */
+    public void setDebug(final boolean debug) {
+        mDebug = debug;
+    }
+    
+    /**
+     * If debug mode is on, extra debug info is output.
+     * 
+     * @return True if debug is on
+     */
+    public boolean isDebug() {
+        return mDebug;
+    }
+
+    /**
+     * Sets where debug output goes.
+     * 
+     * @param out The stream, or null for standard error
+     */
+    public void setDebugStream(final PrintStream out) {
+        mDebugStream = out;
+    }
+
+    /**
+     * Gets where debug output goes.
+     * 
+     * @return The stream debug output is written to
+     */
+    public PrintStream getDebugStream() {
+
+        PrintStream out = mDebugStream;
+        if (out == null) {
+            out = System.err;
+        }
+        return out;
+    }
+    /**
+     * Sets whether any differences in whitespace should be considered.
+     * 
+     * @param ignore If true, whitespace is ignored
+     */
+    public void setIgnoreAllWhitespace(final boolean ignore) {
+        mIgnoreAllWhitespace = ignore;
+    }
+    
+    /**
+     * Gets whether any differences in whitespace should be considered.
+     * 
+     * @return True if whitespace is to be ignored
+     */
+    public boolean isIgnoreAllWhitespace() {
+        return mIgnoreAllWhitespace;
+    }
+
+    /**
+     * Sets whether differences in leading whitespace should be considered.
+     * 
+     * @param ignore If true, leading whitespace is ignored
+     */
+    public void setIgnoreLeadingWhitespace(final boolean ignore) {
+        mIgnoreLeadingWhitespace = ignore;
+    }
+    
+    /**
+     * Gets whether differences in leading whitespace should be considered.
+     * 
+     * @return True if leading whitespace is to be ignored
+     */
+    public boolean isIgnoreLeadingWhitespace() {
+        return mIgnoreLeadingWhitespace;
+    }
+
+    /**
+     * Sets whether nodes with only whitespace should be considered.
+     * 
+     * @param ignore If true, whitespace only nodes are ignored
+     */
+    public void setIgnoreWhitespaceNodes(final boolean ignore) {
+        mIgnoreWhitespaceNodes = ignore;
+    }
+    
+    /**
+     * Gets whether nodes with only whitespace should be considered.
+     * 
+     * @return True if whitespace only nodes are to be ignored
+     */
+    public boolean isIgnoreWhitespaceNodes() {
+        return mIgnoreWhitespaceNodes;
+    }
+
+    /**
+     * Sets whether differences in case should be considered.
+     * 
+     * @param ignore If true, case differences are ignored
+     */
+    public void setIgnoreCase(final boolean ignore) {
+        mIgnoreCase = ignore;
+    }
+    
+    /**
+     * Gets whether differences in case should be considered.
+     * 
+     * @return True if case differences are ignored
+     */
+    public boolean isIgnoreCase() {
+        return mIgnoreCase;
+    }
+
+    /**
+     * Sets whether differences in comments should be considered.
+     * 
+     * @param ignore If true, differences in comments are ignored
+     */
+    public void setIgnoreComments(final boolean ignore) {
+        mIgnoreComments = ignore;
+    }
+    
+    /**
+     * Gets whether differences in comments should be considered.
+     * 
+     * @return True if differences in comments are ignored
+     */
+    public boolean isIgnoreComments() {
+        return mIgnoreComments;
+    }
+
+    /**
+     * Sets whether differences in processing instructions should be considered.
+     * 
+     * @param ignore If true, differences in processing instructions are 
+     *               ignored.
+     */
+    public void setIgnoreProcessingInstructions(final boolean ignore) {
+        mIgnoreProcessingInstructions = ignore;
+    }
+    
+    /**
+     * Gets whether differences in processing instructions should be considered.
+     * 
+     * @return True if differences in processing instructions are ignored
+     */
+    public boolean isIgnoreProcessingInstructions() {
+        return mIgnoreProcessingInstructions;
+    }
+
+    /**
+     * Sets whether tagnames should be output instead of node numbers in xpaths.
+     * 
+     * @param useTagnames If true, tagnames are output in xpaths
+     */
+    public void setUseTagnames(final boolean useTagnames) {
+        mUseTagnames = useTagnames;
+    }
+    
+    /**
+     * Gets whether tagnames should be output instead of node numbers in xpaths.
+     * 
+     * @return True if differences in processing instructions are ignored
+     */
+    public boolean isUseTagnames() {
+        return mUseTagnames;
+    }
+
+    /**
+     * If set, adds information needed to reverse patches.
+     * 
+     * @param reverse If true, extra output is generated to allow reversing of
+     *               patches
+     */
+    public void setReversePatch(final boolean reverse) {
+        mReversePatch = reverse;
+    }
+    
+    /**
+     * Gets whether extra output is generated to allow reversing of patches.
+     * 
+     * @return True if extra output for reverse patches is generated
+     */
+    public boolean isReversePatch() {
+        return mReversePatch;
+    }
+
+    /**
+     * If set, adds extra context nodes to output.
+     * 
+     * @param context If true, context nodes are output.
+     */
+    public void setContext(final boolean context) {
+        mContext = context;
+    }
+    
+    /**
+     * Gets whether extra context nodes are added to the output.
+     * 
+     * @return True if context nodes are output.
+     */
+    public boolean isContext() {
+        return mContext;
+    }
+    
+    /**
+     * Sets the number of sibling context nodes used.
+     * These are output to each side of the node. 
+     * 
+     * @param context Number of sibling context nodes.
+     */
+    public void setSiblingContext(final int context) {
+        
+        if (context < 0) {
+            throw new IllegalArgumentException("Sibling context must be >= 0");
+        }
+        mSiblingContext = context;
+    }
+    
+    /**
+     * Gets the number of sibling context nodes used.
+     * 
+     * @return Number of sibling context nodes.
+     */
+    public int getSiblingContext() {
+        return mSiblingContext;
+    }
+
+    /**
+     * Sets the number of parent and child context nodes used.
+     * This number of both parent and child nodes will be output. 
+     * 
+     * @param context Number of parent context nodes.
+     */
+    public void setParentContext(final int context) {
+        
+        if (context < 0) {
+            throw new IllegalArgumentException("Parent context must be >= 0");
+        }
+        mParentContext = context;
+    }
+    
+    /**
+     * Gets the number of parent and child context nodes used.
+     * 
+     * @return Number of parent and child context nodes.
+     */
+    public int getParentContext() {
+        return mParentContext;
+    }
+
+    /**
+     * Sets the number of parent and child sibling context nodes used.
+     * This number of nodes will be output to both sides of parent and child 
+     * nodes. 
+     * 
+     * @param context Number of parent and child sibling context nodes.
+     */
+    public void setParentSiblingContext(final int context) {
+        
+        if (context < 0) {
+            throw new IllegalArgumentException(
+                    "ParentSibling context must be >= 0");
+        }
+        mParentSiblingContext = context;
+    }
+    
+    /**
+     * Gets the number of parent and child sibling context nodes used.
+     * 
+     * @return Number of parent and child sibling context nodes.
+     */
+    public int getParentSiblingContext() {
+        return mParentSiblingContext;
+    }
+
+    /**
+     * Sets whether the FMES algorithm is used.
+     * 
+     * @param useFMES If true, the FMES algorithm is used.
+     */
+    public void setFMES(final boolean useFMES) {
+        mFMES = useFMES;
+    }
+    
+    /**
+     * Gets whether the FMES algorithm is used.
+     * 
+     * @return True if the FMES algorithm is used.
+     */
+    public boolean isFMES() {
+        return mFMES;
+    }
+
+    /**
+     * Sets whether the DUL output format is used.
+     * 
+     * @param useDUL If true, the DUL output format is used.
+     */
+    public void setDUL(final boolean useDUL) {
+        mDUL = useDUL;
+    }
+    
+    /**
+     * Gets whether the DUL output format is used.
+     * 
+     * @return True if the DUL output format is used.
+     */
+    public boolean isDUL() {
+        return mDUL;
+    }
+
+    /**
+     * Sets whether external entities should be resolved.
+     * 
+     * @param resolve If true, external entities are resolved.
+     */
+    public void setResolveEntities(final boolean resolve) {
+        mResolveEntities = resolve;
+    }
+    
+    /**
+     * Gets whether external entities should be resolved.
+     * 
+     * @return True if external entities are resolved.
+     */
+    public boolean isResolveEntities() {
+        return mResolveEntities;
+    }
+
+    /**
+     * Sets whether the documents given to a diff are left untouched.
+     * 
+     * If not set, the original document is edited into the new one as the
+     * delta is made. If set, the edits are kept to one side instead, which
+     * costs a little time but avoids having to clone the original. The 
+     * documents are then taken to be normalized, as they are after parsing.
+     * 
+     * @param preserve If true, the documents aren't modified
+     */
+    public void setPreserveOriginal(final boolean preserve) {
+        mPreserveOriginal = preserve;
+    }
+    
+    /**
+     * Gets whether the documents given to a diff are left untouched.
+     * 
+     * @return True if the documents aren't modified
+     */
+    public boolean isPreserveOriginal() {
+        return mPreserveOriginal;
+    }
+
+    /**
+     * Sets whether the children of the document element are differenced 
+     * as independent partitions, in parallel.
+     * 
+     * Suits record oriented documents with many children of the document
+     * element. The children are paired first, and each pair is then
+     * differenced separately. Nodes are never moved between partitions, so
+     * the delta may be larger than otherwise.
+     * 
+     * @param partitioned If true, the diff is partitioned
+     */
+    public void setPartitioned(final boolean partitioned) {
+        mPartitioned = partitioned;
+    }
+    
+    /**
+     * Gets whether the children of the document element are differenced 
+     * as independent partitions.
+     * 
+     * @return True if the diff is partitioned
+     */
+    public boolean isPartitioned() {
+        return mPartitioned;
+    }
+
+    /**
+     * Sets the attribute identifying the children of the document element
+     * when the diff is partitioned.
+     * 
+     * Children with the same name and key are always paired.
+     * 
+     * @param key The attribute name, or null to pair by content and name
+     */
+    public void setPartitionKey(final String key) {
+        mPartitionKey = key;
+    }
+    
+    /**
+     * Gets the attribute identifying the children of the document element
+     * when the diff is partitioned.
+     * 
+     * @return The attribute name, or null if none
+     */
+    public String getPartitionKey() {
+        return mPartitionKey;
+    }
+
+    /**
+     * Sets whether the nodes at each depth are matched in parallel.
+     * 
+     * The matches are the same either way, but large documents are matched
+     * faster on machines with many cores.
+     * 
+     * @param parallel If true, nodes are matched in parallel
+     */
+    public void setParallelMatching(final boolean parallel) {
+        mParallelMatching = parallel;
+    }
+    
+    /**
+     * Gets whether the nodes at each depth are matched in parallel.
+     * 
+     * @return True if nodes are matched in parallel
+     */
+    public boolean isParallelMatching() {
+        return mParallelMatching;
+    }
+
+    /**
+     * Sets the attributes identifying elements.
+     * 
+     * Elements with the same name and the same value of a key attribute
+     * are matched before any others, even if their other attributes or 
+     * content differ. Each key is either an attribute name, such as id or
+     * xml:id, or element/@attribute to only key elements of that name. If
+     * an element has several keys, the first in the list is used.
+     * 
+     * @param keys The key attributes, none by default
+     */
+    public void setKeyAttributes(final List<String> keys) {
+        mKeyAttributes = Collections.unmodifiableList(
+                new ArrayList<String>(keys));
+    }
+    
+    /**
+     * Gets the attributes identifying elements.
+     * 
+     * @return The key attributes, which can't be modified
+     */
+    public List<String> getKeyAttributes() {
+        return mKeyAttributes;
+    }
+
+    /**
+     * Sets the least similarity of text nodes paired by content.
+     * 
+     * Text nodes left unmatched by the fast match are paired with the most 
+     * similar unmatched text node of the other document, if the Jaccard 
+     * index of their sets of 3-grams is at least the threshold. Edited 
+     * text is then updated rather than deleted and inserted. Candidates are
+     * found through a MinHash index, so very dissimilar nodes aren't 
+     * compared and some similar ones may be missed.
+     * 
+     * @param threshold The least similarity, from 0 to 1, or 0 to only 
+     *        pair equal text
+     */
+    public void setTextSimilarity(final double threshold) {
+
+        if (threshold < 0 || threshold > 1) {
+            throw new IllegalArgumentException(
+                    "Similarity must be between 0 and 1: " + threshold);
+        }
+        mTextSimilarity = threshold;
+    }
+    
+    /**
+     * Gets the least similarity of text nodes paired by content.
+     * 
+     * @return The least similarity, or 0 if only equal text is paired
+     */
+    public double getTextSimilarity() {
+        return mTextSimilarity;
+    }
+
+    /**
+     * Sets patterns for content left out when inputs are parsed.
+     * 
+     * Excluded elements and attributes are dropped while the input files 
+     * are read, so they are never matched or appear in the delta. The 
+     * delta applies to the inputs without the excluded content. See 
+     * Exclusions for the form of the patterns. Documents given to a diff
+     * already parsed aren't filtered.
+     * 
+     * @param patterns The exclusion patterns, none by default
+     * @throws IllegalArgumentException If a pattern isn't valid
+     */
+    public void setExclusions(final List<String> patterns) {
+
+        Exclusions.compile(patterns);
+        mExclusions = Collections.unmodifiableList(
+                new ArrayList<String>(patterns));
+    }
+    
+    /**
+     * Gets the patterns for content left out when inputs are parsed.
+     * 
+     * @return The exclusion patterns, which can't be modified
+     */
+    public List<String> getExclusions() {
+        return mExclusions;
+    }
+
+    /**
+     * Sets the path of the subtree the diff is limited to.
+     * 
+     * Only the element selected by the path in each document, and its 
+     * content, is differenced; see Scope for the form of the path. When 
+     * files are differenced, the rest of each file is skipped as it is 
+     * read. Paths in the delta are absolute, so it applies to the whole 
+     * original document. Prepared documents aren't limited to the scope.
+     * 
+     * @param path The scope path, or null for the whole document
+     * @throws IllegalArgumentException If the path isn't valid
+     */
+    public void setScope(final String path) {
+
+        if (path != null) {
+            Scope.compile(path);
+        }
+        mScope = path;
+    }
+    
+    /**
+     * Gets the path of the subtree the diff is limited to.
+     * 
+     * @return The scope path, or null for the whole document
+     */
+    public String getScope() {
+        return mScope;
+    }
+
+    /**
+     * Sets the work allowed aligning children before the delta is degraded.
+     * 
+     * Work is counted in LCS table cells and sibling positions scanned for
+     * moves. Once the limit is reached, children out of order are deleted 
+     * and inserted rather than moved. The delta is still correct, but may 
+     * be much longer, and is marked as degraded.
+     * 
+     * @param units The units of work, or 0 for no limit
+     * @throws IllegalArgumentException If the limit is negative
+     */
+    public void setWorkLimit(final long units) {
+
+        if (units < 0) {
+            throw new IllegalArgumentException(
+                    "Work limit can't be negative");
+        }
+        mWorkLimit = units;
+    }
+    
+    /**
+     * Gets the work allowed aligning children before the delta is degraded.
+     * 
+     * @return The units of work, or 0 for no limit
+     */
+    public long getWorkLimit() {
+        return mWorkLimit;
+    }
+
+    /**
+     * Sets the time allowed for a diff before the delta is degraded.
+     * 
+     * The time runs from the start of the diff of the parsed documents. 
+     * Once it has passed, the delta is degraded as when the work limit is
+     * reached. The diff isn't stopped, but should finish soon after.
+     * 
+     * @param millis The time limit in milliseconds, or 0 for no limit
+     * @throws IllegalArgumentException If the limit is negative
+     */
+    public void setTimeLimit(final long millis) {
+
+        if (millis < 0) {
+            throw new IllegalArgumentException(
+                    "Time limit can't be negative");
+        }
+        mTimeLimit = millis;
+    }
+    
+    /**
+     * Gets the time allowed for a diff before the delta is degraded.
+     * 
+     * @return The time limit in milliseconds, or 0 for no limit
+     */
+    public long getTimeLimit() {
+        return mTimeLimit;
+    }
+
+    /**
+     * Sets the token used to cancel diffs run with these options.
+     * 
+     * Diffs also stop if their thread is interrupted, with or without a 
+     * token. A stopped diff throws a CancelledException.
+     * 
+     * @param token The token, or null for none
+     */
+    public void setCancellation(final Cancellation token) {
+        mCancellation = token;
+    }
+    
+    /**
+     * Gets the token used to cancel diffs run with these options.
+     * 
+     * @return The token, or null for none
+     */
+    public Cancellation getCancellation() {
+        return mCancellation;
+    }
+
+    /**
+     * Normalizes text according to the whitespace and case options.
+     *
+     * Two pieces of text are considered equal by the diff if and only if
+     * their normalized forms are equal, so text can be normalized once and
+     * compared many times.
+     *
+     * All whitespace is removed if ignoring all whitespace, otherwise 
+     * leading and trailing whitespace is removed if ignoring leading 
+     * whitespace. If ignoring case, each character is folded so that 
+     * characters equal under String.equalsIgnoreCase fold to the same 
+     * character.
+     *
+     * @param text The text to normalize
+     * @return The normalized text
+     */
+    public String normalizeText(final String text) {
+
+        String ret = text;
+        if (mIgnoreAllWhitespace) {
+            StringTokenizer st = new StringTokenizer(ret);
+            StringBuilder sb = new StringBuilder(ret.length());
+            while (st.hasMoreTokens()) {
+                sb.append(st.nextToken());
+            }
+            ret = sb.toString();
+        } else if (mIgnoreLeadingWhitespace) {
+            ret = ret.trim();
+        }
+
+        if (mIgnoreCase) {
+            char[] chars = ret.toCharArray();
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = Character.toLowerCase(
+                        Character.toUpperCase(chars[i]));
+            }
+            ret = new String(chars);
+        }
+
+        return ret;
+    }
+}
@@ -21,6 +21,9 @@ package org.diffxml.diffxml;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.w3c.dom.Document;
 
@@ -39,17 +42,53 @@ public final class DiffXML {
     /** Version number. **/
     private static final String VERSION = "0.96 BETA";
 
+    /** Exit status meaning the files are the same. **/
+    public static final int EXIT_SAME = 0;
+
+    /** Exit status meaning the files differ. **/
+    public static final int EXIT_DIFFER = 1;
+
+    /** Exit status meaning an error occurred. **/
+    public static final int EXIT_ERROR = 2;
+
+    /** Returned by parseArgs if the diff should go ahead. **/
+    private static final int CONTINUE = -1;
+
+    /** Options for this run. **/
+    private final DiffOptions mOptions = DiffFactory.copyDefaults();
+
+    /** Directory relative file names are resolved against, or null. **/
+    private final File mDir;
+
+    /** Where standard output goes. **/
+    private final CommandOutput mOut;
+
+    /** Where error output goes. **/
+    private final PrintStream mErr;
+
     /** First file to be differenced. **/
-    private static File mFile1;
+    private File mFile1;
 
     /** Second file to be differenced. **/
-    private static File mFile2;
+    private File mFile2;
+
+    /** Names of the files as given on the command line. **/
+    private String[] mNames;
 
     /**
-     * Private constructor - shouldn't be called.
+     * Creates a run of diffxml.
+     *
+     * @param dir Directory relative file names are resolved against, or null
+     *            for the current directory
+     * @param out Where standard output goes
+     * @param err Where error output goes
      */
-    private DiffXML() {
-        //Private constructor - shouldn't be called
+    private DiffXML(final File dir, final CommandOutput out,
+            final PrintStream err) {
+
+        mDir = dir;
+        mOut = out;
+        mErr = err;
     }
 
     /**
@@ -58,8 +97,9 @@ public final class DiffXML {
      * Code is based on Sun standard code for handling arguments.
      *
      * @param args    An array of the command line arguments
+     * @return CONTINUE, or the exit status if the program should stop
      */
-    private static void parseArgs(final String[] args) {
+    private int parseArgs(final String[] args) {
         
         int argNo = 0;
         String currentArg;
@@ -79,17 +119,51 @@ public final class DiffXML {
 
             //"wordy" arguments
             if (currentArg.equals("-brief")) {
-                DiffFactory.setBrief(true);
+                mOptions.setBrief(true);
             } else if (currentArg.equals("-debug")) {
-                DiffFactory.setDebug(true);
+                mOptions.setDebug(true);
+                mOptions.setDebugStream(mErr);
             } else if (currentArg.equals("-version")) {
-                printVersionAndExit();
+                return printVersion();
             } else if (currentArg.equals("-help")) {
-                printHelpAndExit();
+                return printHelp();
             } else if (currentArg.equals("-fmes")) {
-                DiffFactory.setFMES(true);
+                mOptions.setFMES(true);
             } else if (currentArg.equals("-dul")) {
-                DiffFactory.setDUL(true);
+                mOptions.setDUL(true);
+            } else if (currentArg.equals("-reverse")) {
+                mOptions.setReversePatch(true);
+            } else if (currentArg.equals("-key")) {
+                if (argNo >= args.length) {
+                    return printUsage();
+                }
+                List<String> keys = new ArrayList<String>(
+                        mOptions.getKeyAttributes());
+                keys.add(args[argNo++]);
+                mOptions.setKeyAttributes(keys);
+            } else if (currentArg.equals("-exclude")) {
+                if (argNo >= args.length) {
+                    return printUsage();
+                }
+                List<String> exclusions = new ArrayList<String>(
+                        mOptions.getExclusions());
+                exclusions.add(args[argNo++]);
+                try {
+                    mOptions.setExclusions(exclusions);
+                } catch (IllegalArgumentException e) {
+                    mErr.println("diffxml: " + e.getMessage());
+                    return printUsage();
+                }
+            } else if (currentArg.equals("-scope")) {
+                if (argNo >= args.length) {
+                    return printUsage();
+                }
+                try {
+                    mOptions.setScope(args[argNo++]);
+                } catch (IllegalArgumentException e) {
+                    mErr.println("diffxml: " + e.getMessage());
+                    return printUsage();
+                }
             } else {
 
                 //(series of) flag arguments
@@ -97,26 +171,26 @@ public final class DiffXML {
                     flag = currentArg.charAt(charNo);
                     switch (flag) {
                         case 'q':
-                            DiffFactory.setBrief(true);
+                            mOptions.setBrief(true);
                             break;
                         case 'V':
-                            printVersionAndExit();
-                            break;
+                            return printVersion();
                         case 'h':
-                            printHelpAndExit();
-                            break;
+                            return printHelp();
                         case 'f':
-                            DiffFactory.setFMES(true);
+                            mOptions.setFMES(true);
                             break;
                         case 'D':
-                            DiffFactory.setDUL(true);
+                            mOptions.setDUL(true);
+                            break;
+                        case 'R':
+                            mOptions.setReversePatch(true);
                             break;
 
                         default:
-                            System.err.println("diffxml: illegal option "
+                            mErr.println("diffxml: illegal option "
                                     + flag);
-                            printUsage();
-                            break;
+                            return printUsage();
                     }
                 }
             }
@@ -124,107 +198,200 @@ public final class DiffXML {
 
         if ((argNo + 2) != args.length) {
             //Not given 2 files on input
-            printUsage();
+            return printUsage();
         }
 
-        mFile1 = new File(args[argNo]);
-        mFile2 = new File(args[++argNo]);
+        mNames = new String[] {args[argNo], args[argNo + 1]};
+        mFile1 = resolve(mNames[0]);
+        mFile2 = resolve(mNames[1]);
+        return CONTINUE;
     }
 
     /**
-     * Outputs usage message to standard error.
+     * Resolves a file name given on the command line.
+     *
+     * @param name The file name
+     * @return The file, relative to the run's directory if one was given
      */
-    public static void printUsage() {
-        System.err.println("Usage: diffxml [OPTION]... XMLFILE1 XMLFILE2");
-        System.exit(2);
+    private File resolve(final String name) {
+
+        File f = new File(name);
+        if (mDir != null && !f.isAbsolute()) {
+            f = new File(mDir, name);
+        }
+        return f;
     }
 
     /**
-     * Outputs brief help message to standard out and exits.
+     * Outputs usage message to standard error.
+     *
+     * @return The exit status
      */
+    private int printUsage() {
+        mErr.println("Usage: diffxml [OPTION]... XMLFILE1 XMLFILE2");
+        return EXIT_ERROR;
+    }
 
-    public static void printHelpAndExit() {
-        System.out.print("\nUsage: diffxml [OPTION]... XMLFILE1 XMLFILE2\n\n " +
+    /**
+     * Outputs brief help message to standard out.
+     *
+     * @return The exit status
+     */
+    private int printHelp() {
+        PrintStream out = mOut.open(EXIT_SAME);
+        out.print("\nUsage: diffxml [OPTION]... XMLFILE1 XMLFILE2\n\n " +
                 "Find the differences between two XML files.\n\n" +
                 "--brief  -q  Report only if files differ, don't output the " +
                 "delta.\n" +
+                "--reverse  -R  Output a delta that can also be applied " +
+                "in reverse.\n" +
+                "--key ATTR  Match elements with the same value of ATTR, " +
+                "or only ELEMENT\n\telements if given as ELEMENT/@ATTR. " +
+                "May be repeated.\n" +
+                "--exclude PATTERN  Leave out elements named PATTERN, " +
+                "attributes if given as\n\t@ATTR, or paths such as " +
+                "/a/b or a/@c. May be repeated.\n" +
+                "--scope PATH  Only compare the elements at PATH, such as " +
+                "/a/b[2], reading\n\tnothing else of the files.\n" +
                 "--version  -V  Output version number of program.\n" +
                 "--help  -h  Output this help.\n");
 
-        System.out.print("\nThis product includes software developed by the " +
+        out.print("\nThis product includes software developed by the " +
                 "Indiana University Extreme! Lab " +
         "(http://www.extreme.indiana.edu/).\n\n");
 
-        System.exit(0);
+        return EXIT_SAME;
     }
 
     /**
      * Outputs the current version of diffxml to standard out.
+     *
+     * @return The exit status
      */
-    public static void printVersionAndExit() {
-        System.out.println("diffxml Version " + VERSION + "\n");
-        System.out.print("\nThis product includes software developed by the" +
+    private int printVersion() {
+        PrintStream out = mOut.open(EXIT_SAME);
+        out.println("diffxml Version " + VERSION + "\n");
+        out.print("\nThis product includes software developed by the" +
                 " Indiana University Extreme! Lab " +
         "(http://www.extreme.indiana.edu/).\n");
-        System.exit(0);
+        return EXIT_SAME;
     }
 
     /**
-     * Main method. Takes command line arguments, parses them and performs diff.
+     * Runs diffxml with the given arguments.
+     *
+     * Unlike main, doesn't exit the JVM, so can be called repeatedly, and
+     * concurrently, in one process. Options apply only to this run.
      *
-     * @param args Command line arguments. See printUsageAndExit() for details.
+     * @param args Command line arguments
+     * @param dir Directory relative file names are resolved against, or null
+     *            for the current directory
+     * @param out Where standard output goes
+     * @param err Where error output goes
+     * @return The exit status; 0 if the files are the same, 1 if they differ
+     *         and 2 on error
      */
-    public static void main(final String[] args) {
+    public static int run(final String[] args, final File dir,
+            final CommandOutput out, final PrintStream err) {
 
-        //Set options - instantiates _file1 and _file2
-        parseArgs(args);
+        return new DiffXML(dir, out, err).run(args);
+    }
+
+    /**
+     * Parses the arguments, performs the diff and outputs the result.
+     *
+     * @param args Command line arguments
+     * @return The exit status
+     */
+    private int run(final String[] args) {
+
+        //Set options - instantiates mFile1 and mFile2
+        int status = parseArgs(args);
+        if (status != CONTINUE) {
+            return status;
+        }
 
         //Check files
         if (!mFile1.exists()) {
-            System.err.println("Could not find file: "
+            mErr.println("Could not find file: "
                     + mFile1.getAbsolutePath());
-            System.exit(2);
+            return EXIT_ERROR;
         }
         if (!mFile2.exists()) {
-            System.err.println("Could not find file: "
+            mErr.println("Could not find file: "
                     + mFile2.getAbsolutePath());
-            System.exit(2);
+            return EXIT_ERROR;
         }
         
-        Diff diffInstance = DiffFactory.createDiff();
+        if (mOptions.isBrief()) {
+            return runBrief();
+        }
+
+        Diff diffInstance = DiffFactory.createDiff(mOptions);
         
         Document delta = null;
         try {
             delta = diffInstance.diff(mFile1, mFile2);
         } catch (DiffException e) {
-            System.err.println("An error occured:\n" + e.getMessage());
-            System.exit(2);
+            mErr.println("An error occured:\n" + e.getMessage());
+            return EXIT_ERROR;
         }
         
-        //Output XML if appropriate
+        //Output XML
 
         //Documents differ if there are any child nodes in the doc.
-        boolean differ = delta.getDocumentElement().hasChildNodes();
-
-        if (DiffFactory.isBrief()) {
-            //If in brief mode, don't output delta, only whether files differ
-            if (differ) {
-                System.out.println("XML documents " + mFile1 + " and "
-                        + mFile2 + " differ");
-            }
+        if (delta.getDocumentElement().hasChildNodes()) {
+            status = EXIT_DIFFER;
         } else {
-            try {
-                DOMOps.outputXMLIndented(delta, System.out);
-                System.out.println();
-            } catch (IOException e) {
-                System.err.println(e.getMessage());
-            }
+            status = EXIT_SAME;
+        }
+
+        PrintStream out = mOut.open(status);
+        try {
+            DOMOps.outputXMLIndented(delta, out);
+            out.println();
+        } catch (IOException e) {
+            mErr.println(e.getMessage());
+        }
+
+        return status;
+    }
+
+    /**
+     * Only reports whether the files differ.
+     *
+     * Compares the files as streams rather than creating a delta, stopping
+     * at the first difference.
+     *
+     * @return The exit status
+     */
+    private int runBrief() {
+
+        boolean differ;
+        try {
+            differ = new StreamComparator(mOptions).differ(mFile1, mFile2);
+        } catch (DiffException e) {
+            mErr.println("An error occured:\n" + e.getMessage());
+            return EXIT_ERROR;
         }
 
         if (differ) {
-            System.exit(1);
-        } else {
-            System.exit(0);
+            mOut.open(EXIT_DIFFER).println("XML documents " + mNames[0]
+                    + " and " + mNames[1] + " differ");
+            return EXIT_DIFFER;
         }
+        return EXIT_SAME;
+    }
+
+    /**
+     * Main method. Takes command line arguments, parses them and performs diff.
+     *
+     * @param args Command line arguments. See printUsage() for details.
+     */
+    public static void main(final String[] args) {
+
+        int status = run(args, null, CommandOutput.STDOUT, System.err);
+        System.out.flush();
+        System.exit(status);
     }
 }
@@ -0,0 +1,263 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * SAX filter removing excluded elements and attributes.
+ *
+ * Excluded elements are dropped with all their content, including 
+ * comments, so that nothing of them reaches the handlers.
+ *
+ * @author Adrian Mouat
+ */
+public final class ExclusionFilter extends LexicalFilter {
+
+    /** The exclusions to apply. **/
+    private final Exclusions mExclusions;
+
+    /** Qualified names of the open elements. **/
+    private final List<String> mQNames = new ArrayList<String>();
+
+    /** Local names of the open elements. **/
+    private final List<String> mLocalNames = new ArrayList<String>();
+
+    /** Depth within an excluded element, 0 if not in one. **/
+    private int mSkipDepth = 0;
+
+    /**
+     * Creates a filter reading from the given reader.
+     *
+     * @param parent The reader to filter
+     * @param exclusions The exclusions to apply
+     */
+    public ExclusionFilter(final XMLReader parent, 
+            final Exclusions exclusions) {
+
+        super(parent);
+        mExclusions = exclusions;
+    }
+
+    /**
+     * Parses a document, filtering its events.
+     *
+     * @param input The document
+     * @throws SAXException If the document can't be parsed
+     * @throws IOException If the document can't be read
+     */
+    @Override
+    public void parse(final InputSource input) 
+    throws SAXException, IOException {
+
+        mQNames.clear();
+        mLocalNames.clear();
+        mSkipDepth = 0;
+        super.parse(input);
+    }
+
+    /**
+     * Starts an element, unless it is excluded.
+     *
+     * @param uri The namespace URI
+     * @param localName The local name
+     * @param qName The qualified name
+     * @param atts The attributes
+     * @throws SAXException If a handler fails
+     */
+    @Override
+    public void startElement(final String uri, final String localName,
+            final String qName, final Attributes atts) throws SAXException {
+
+        if (mSkipDepth > 0) {
+            mSkipDepth++;
+            return;
+        }
+
+        mQNames.add(qName);
+        mLocalNames.add(localName);
+        if (mExclusions.isExcludedElement(mQNames, mLocalNames)) {
+            mSkipDepth = 1;
+            mQNames.remove(mQNames.size() - 1);
+            mLocalNames.remove(mLocalNames.size() - 1);
+            return;
+        }
+
+        AttributesImpl kept = null;
+        for (int i = atts.getLength() - 1; i >= 0; i--) {
+            if (mExclusions.isExcludedAttribute(mQNames, mLocalNames, 
+                    atts.getQName(i), atts.getLocalName(i))) {
+                if (kept == null) {
+                    kept = new AttributesImpl(atts);
+                }
+                kept.removeAttribute(i);
+            }
+        }
+        if (kept == null) {
+            super.startElement(uri, localName, qName, atts);
+        } else {
+            super.startElement(uri, localName, qName, kept);
+        }
+    }
+
+    /**
+     * Ends an element, unless it is excluded.
+     *
+     * @param uri The namespace URI
+     * @param localName The local name
+     * @param qName The qualified name
+     * @throws SAXException If a handler fails
+     */
+    @Override
+    public void endElement(final String uri, final String localName,
+            final String qName) throws SAXException {
+
+        if (mSkipDepth > 0) {
+            mSkipDepth--;
+            return;
+        }
+        mQNames.remove(mQNames.size() - 1);
+        mLocalNames.remove(mLocalNames.size() - 1);
+        super.endElement(uri, localName, qName);
+    }
+
+    /**
+     * Passes on text outside excluded elements.
+     *
+     * @param ch The characters
+     * @param start The start of the text
+     * @param length The length of the text
+     * @throws SAXException If a handler fails
+     */
+    @Override
+    public void characters(final char[] ch, final int start, 
+            final int length) throws SAXException {
+
+        if (mSkipDepth == 0) {
+            super.characters(ch, start, length);
+        }
+    }
+
+    /**
+     * Passes on whitespace outside excluded elements.
+     *
+     * @param ch The characters
+     * @param start The start of the whitespace
+     * @param length The length of the whitespace
+     * @throws SAXException If a handler fails
+     */
+    @Override
+    public void ignorableWhitespace(final char[] ch, final int start, 
+            final int length) throws SAXException {
+
+        if (mSkipDepth == 0) {
+            super.ignorableWhitespace(ch, start, length);
+        }
+    }
+
+    /**
+     * Passes on processing instructions outside excluded elements.
+     *
+     * @param target The target
+     * @param data The data
+     * @throws SAXException If a handler fails
+     */
+    @Override
+    public void processingInstruction(final String target, 
+            final String data) throws SAXException {
+
+        if (mSkipDepth == 0) {
+            super.processingInstruction(target, data);
+        }
+    }
+
+    /**
+     * Passes on the start of an entity outside excluded elements.
+     *
+     * @param name The entity name
+     * @throws SAXException If the handler fails
+     */
+    public void startEntity(final String name) throws SAXException {
+
+        if (mSkipDepth == 0) {
+            super.startEntity(name);
+        }
+    }
+
+    /**
+     * Passes on the end of an entity outside excluded elements.
+     *
+     * @param name The entity name
+     * @throws SAXException If the handler fails
+     */
+    public void endEntity(final String name) throws SAXException {
+
+        if (mSkipDepth == 0) {
+            super.endEntity(name);
+        }
+    }
+
+    /**
+     * Passes on the start of a CDATA section outside excluded elements.
+     *
+     * @throws SAXException If the handler fails
+     */
+    public void startCDATA() throws SAXException {
+
+        if (mSkipDepth == 0) {
+            super.startCDATA();
+        }
+    }
+
+    /**
+     * Passes on the end of a CDATA section outside excluded elements.
+     *
+     * @throws SAXException If the handler fails
+     */
+    public void endCDATA() throws SAXException {
+
+        if (mSkipDepth == 0) {
+            super.endCDATA();
+        }
+    }
+
+    /**
+     * Passes on a comment outside excluded elements.
+     *
+     * @param ch The characters
+     * @param start The start of the comment
+     * @param length The length of the comment
+     * @throws SAXException If the handler fails
+     */
+    public void comment(final char[] ch, final int start, final int length)
+    throws SAXException {
+
+        if (mSkipDepth == 0) {
+            super.comment(ch, start, length);
+        }
+    }
+}
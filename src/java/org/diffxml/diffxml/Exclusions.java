@@ -0,0 +1,224 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Patterns for content left out of a diff.
+ *
+ * Each pattern is one of:
+ * <ul>
+ * <li>an element name, such as timestamp, excluding those elements and 
+ * their content wherever they occur;</li>
+ * <li>an attribute name preceded by @, such as @generated-id, excluding
+ * the attribute on any element;</li>
+ * <li>a path of element names separated by /, optionally ending in an 
+ * attribute step, such as header/signature or item/@modified. A path 
+ * starting with / is matched from the document element, otherwise it
+ * matches elements at any depth. A step of * matches any element.</li>
+ * </ul>
+ * Names match either the qualified name or the local name.
+ *
+ * Element paths are given as lists of qualified and local names, from the
+ * document element down.
+ *
+ * @author Adrian Mouat
+ */
+public final class Exclusions {
+
+    /** The compiled patterns. **/
+    private final List<Pattern> mPatterns;
+
+    /**
+     * Creates a set of exclusions.
+     *
+     * @param patterns The compiled patterns
+     */
+    private Exclusions(final List<Pattern> patterns) {
+        mPatterns = patterns;
+    }
+
+    /**
+     * Compiles a list of exclusion patterns.
+     *
+     * @param patterns The patterns
+     * @return The exclusions
+     * @throws IllegalArgumentException If a pattern isn't valid
+     */
+    public static Exclusions compile(final List<String> patterns) {
+
+        List<Pattern> compiled = new ArrayList<Pattern>(patterns.size());
+        for (String p : patterns) {
+            compiled.add(new Pattern(p));
+        }
+        return new Exclusions(compiled);
+    }
+
+    /**
+     * Checks whether there are no patterns.
+     *
+     * @return True if nothing is excluded
+     */
+    public boolean isEmpty() {
+        return mPatterns.isEmpty();
+    }
+
+    /**
+     * Checks whether an element is excluded.
+     *
+     * @param qNames The qualified names of the path to the element, 
+     *        including the element itself
+     * @param localNames The local names of the path
+     * @return True if the element and its content are excluded
+     */
+    public boolean isExcludedElement(final List<String> qNames,
+            final List<String> localNames) {
+
+        for (Pattern p : mPatterns) {
+            if (p.mAttribute == null && p.matches(qNames, localNames)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an attribute is excluded.
+     *
+     * @param qNames The qualified names of the path to the element 
+     *        holding the attribute, including the element itself
+     * @param localNames The local names of the path
+     * @param qName The qualified name of the attribute
+     * @param localName The local name of the attribute
+     * @return True if the attribute is excluded
+     */
+    public boolean isExcludedAttribute(final List<String> qNames,
+            final List<String> localNames, final String qName, 
+            final String localName) {
+
+        for (Pattern p : mPatterns) {
+            if (p.mAttribute != null 
+                    && matchesStep(p.mAttribute, qName, localName)
+                    && p.matches(qNames, localNames)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a step of a pattern matches a name.
+     *
+     * @param step The step
+     * @param qName The qualified name
+     * @param localName The local name
+     * @return True if the step matches
+     */
+    private static boolean matchesStep(final String step, final String qName,
+            final String localName) {
+        return step.equals("*") || step.equals(qName) 
+            || step.equals(localName);
+    }
+
+    /**
+     * A compiled pattern.
+     */
+    private static final class Pattern {
+
+        /** Whether the path is matched from the document element. **/
+        private final boolean mAbsolute;
+
+        /** The element steps. **/
+        private final String[] mSteps;
+
+        /** The attribute step without the @, or null for elements. **/
+        private final String mAttribute;
+
+        /**
+         * Compiles a pattern.
+         *
+         * @param pattern The pattern
+         * @throws IllegalArgumentException If the pattern isn't valid
+         */
+        Pattern(final String pattern) {
+
+            String path = pattern;
+            if (path.startsWith("//")) {
+                path = path.substring(2);
+                mAbsolute = false;
+            } else if (path.startsWith("/")) {
+                path = path.substring(1);
+                mAbsolute = true;
+            } else {
+                mAbsolute = false;
+            }
+
+            String[] steps = path.split("/", -1);
+            String last = steps[steps.length - 1];
+            if (last.startsWith("@")) {
+                mAttribute = last.substring(1);
+                mSteps = new String[steps.length - 1];
+                System.arraycopy(steps, 0, mSteps, 0, mSteps.length);
+            } else {
+                mAttribute = null;
+                mSteps = steps;
+            }
+
+            if ((mAttribute != null && mAttribute.length() == 0)
+                    || (mAbsolute && mSteps.length == 0)) {
+                throw new IllegalArgumentException(
+                        "Invalid exclusion pattern: " + pattern);
+            }
+            for (String s : mSteps) {
+                if (s.length() == 0 || s.startsWith("@")) {
+                    throw new IllegalArgumentException(
+                            "Invalid exclusion pattern: " + pattern);
+                }
+            }
+        }
+
+        /**
+         * Checks whether the element steps match an element path.
+         *
+         * @param qNames The qualified names of the path
+         * @param localNames The local names of the path
+         * @return True if the steps match the end of the path, or all of 
+         *         it if the pattern is absolute
+         */
+        boolean matches(final List<String> qNames, 
+                final List<String> localNames) {
+
+            int size = qNames.size();
+            if (size < mSteps.length 
+                    || (mAbsolute && size != mSteps.length)) {
+                return false;
+            }
+            int offset = size - mSteps.length;
+            for (int i = 0; i < mSteps.length; i++) {
+                if (!matchesStep(mSteps[i], qNames.get(offset + i), 
+                        localNames.get(offset + i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
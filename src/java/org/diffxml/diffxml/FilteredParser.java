@@ -0,0 +1,389 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Parses documents into DOM, leaving out excluded content as it is read.
+ *
+ * The document is read with SAX through an ExclusionFilter, and built by
+ * a handler, so excluded elements are never created. The result is as 
+ * from ParserPool, except that entity references are always expanded 
+ * and the doctype has no entity or notation nodes.
+ *
+ * If the options have a scope, the document is read through a ScopeFilter
+ * as well, and holds only the scope element as its document element.
+ * Reading stops at the end of the scope element.
+ *
+ * @author Adrian Mouat
+ */
+public final class FilteredParser {
+
+    /** Namespace of xmlns attributes. **/
+    private static final String XMLNS_NS = "http://www.w3.org/2000/xmlns/";
+
+    /** Feature reporting xmlns attributes. **/
+    private static final String NAMESPACE_PREFIXES = 
+        "http://xml.org/sax/features/namespace-prefixes";
+
+    /** Feature stopping external DTDs being loaded. **/
+    private static final String LOAD_EXTERNAL_DTD = 
+        "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+
+    /** Property for the lexical handler. **/
+    private static final String LEXICAL_HANDLER = 
+        "http://xml.org/sax/properties/lexical-handler";
+
+    /** User data key for the path of the scope element. **/
+    private static final String SCOPE_PATH = "org.diffxml.scopePath";
+
+    /** Factory for SAX parsers. **/
+    private static final SAXParserFactory FACTORY = createFactory();
+
+    /**
+     * Private constructor.
+     */
+    private FilteredParser() {
+        //Shouldn't be instantiated
+    }
+
+    /**
+     * Creates the SAX parser factory.
+     *
+     * @return The factory
+     */
+    private static SAXParserFactory createFactory() {
+
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setValidating(false);
+        try {
+            factory.setFeature(NAMESPACE_PREFIXES, true);
+            factory.setFeature(LOAD_EXTERNAL_DTD, false);
+        } catch (SAXException e) {
+            //Should never happen, but probably won't matter
+            System.err.println("Failed to configure SAX parser");
+        } catch (ParserConfigurationException e) {
+            System.err.println("Failed to configure SAX parser");
+        }
+        return factory;
+    }
+
+    /**
+     * Parses a file, leaving out content excluded by the options.
+     *
+     * If the options have a scope, only the scope element is parsed. If it
+     * isn't found, the document is empty.
+     *
+     * @param f The file to parse
+     * @param opts The options holding the exclusions and scope
+     * @return The parsed document
+     * @throws ParserConfigurationException If a parser can't be created
+     * @throws SAXException If the file is not well formed
+     * @throws IOException If the file can't be read
+     */
+    public static Document parse(final File f, final DiffOptions opts)
+    throws ParserConfigurationException, SAXException, IOException {
+
+        XMLReader reader;
+        //The factory itself is not guaranteed thread safe
+        synchronized (FACTORY) {
+            reader = FACTORY.newSAXParser().getXMLReader();
+        }
+
+        Exclusions exclusions = Exclusions.compile(opts.getExclusions());
+        if (!exclusions.isEmpty()) {
+            reader = new ExclusionFilter(reader, exclusions);
+        }
+        ScopeFilter scope = null;
+        if (opts.getScope() != null) {
+            scope = new ScopeFilter(reader, Scope.compile(opts.getScope()));
+            reader = scope;
+        }
+
+        Document doc = ParserPool.getInstance().newDocument();
+        Builder builder = new Builder(doc);
+        reader.setContentHandler(builder);
+        reader.setErrorHandler(builder);
+        reader.setProperty(LEXICAL_HANDLER, builder);
+        reader.parse(new InputSource(f.toURI().toString()));
+        if (scope != null) {
+            doc.setUserData(SCOPE_PATH, scope.getPath(), null);
+        }
+        return doc;
+    }
+
+    /**
+     * Gets the path of the scope element in the file a document was 
+     * parsed from.
+     *
+     * @param doc A document returned by parse
+     * @return The DUL path of the scope element, or null if the document
+     *         wasn't parsed with a scope or the scope wasn't found
+     */
+    public static String getScopePath(final Document doc) {
+        return (String) doc.getUserData(SCOPE_PATH);
+    }
+
+    /**
+     * Builds a DOM document from SAX events.
+     */
+    private static final class Builder extends DefaultHandler 
+    implements LexicalHandler {
+
+        /** The document being built. **/
+        private final Document mDoc;
+
+        /** The node children are added to. **/
+        private Node mParent;
+
+        /** Text not yet added. **/
+        private final StringBuilder mText = new StringBuilder();
+
+        /** Whether the text is in a CDATA section. **/
+        private boolean mInCDATA = false;
+
+        /** Whether the events are in the DTD. **/
+        private boolean mInDTD = false;
+
+        /**
+         * Creates a builder adding to an empty document.
+         *
+         * @param doc The document
+         */
+        Builder(final Document doc) {
+            mDoc = doc;
+            mParent = doc;
+        }
+
+        /**
+         * Adds any collected text to the current parent.
+         */
+        private void flushText() {
+
+            if (mText.length() > 0 || mInCDATA) {
+                String text = mText.toString();
+                mText.setLength(0);
+                Node last = mParent.getLastChild();
+                if (mInCDATA) {
+                    mParent.appendChild(mDoc.createCDATASection(text));
+                } else if (last != null 
+                        && last.getNodeType() == Node.TEXT_NODE) {
+                    ((CharacterData) last).appendData(text);
+                } else {
+                    mParent.appendChild(mDoc.createTextNode(text));
+                }
+            }
+        }
+
+        /**
+         * Adds an element.
+         *
+         * @param uri The namespace URI
+         * @param localName The local name
+         * @param qName The qualified name
+         * @param atts The attributes
+         */
+        @Override
+        public void startElement(final String uri, final String localName,
+                final String qName, final Attributes atts) {
+
+            flushText();
+            Element e = mDoc.createElementNS(emptyToNull(uri), qName);
+            for (int i = 0; i < atts.getLength(); i++) {
+                String attName = atts.getQName(i);
+                String attUri = emptyToNull(atts.getURI(i));
+                if (attName.equals("xmlns") || attName.startsWith("xmlns:")) {
+                    attUri = XMLNS_NS;
+                }
+                e.setAttributeNS(attUri, attName, atts.getValue(i));
+            }
+            mParent.appendChild(e);
+            mParent = e;
+        }
+
+        /**
+         * Ends an element.
+         *
+         * @param uri The namespace URI
+         * @param localName The local name
+         * @param qName The qualified name
+         */
+        @Override
+        public void endElement(final String uri, final String localName,
+                final String qName) {
+
+            flushText();
+            mParent = mParent.getParentNode();
+        }
+
+        /**
+         * Collects text.
+         *
+         * @param ch The characters
+         * @param start The start of the text
+         * @param length The length of the text
+         */
+        @Override
+        public void characters(final char[] ch, final int start, 
+                final int length) {
+
+            //Text outside the document element isn't part of the DOM
+            if (mParent != mDoc) {
+                mText.append(ch, start, length);
+            }
+        }
+
+        /**
+         * Collects whitespace.
+         *
+         * @param ch The characters
+         * @param start The start of the whitespace
+         * @param length The length of the whitespace
+         */
+        @Override
+        public void ignorableWhitespace(final char[] ch, final int start, 
+                final int length) {
+            characters(ch, start, length);
+        }
+
+        /**
+         * Adds a processing instruction, unless it is in the DTD.
+         *
+         * @param target The target
+         * @param data The data
+         */
+        @Override
+        public void processingInstruction(final String target, 
+                final String data) {
+
+            if (!mInDTD) {
+                flushText();
+                mParent.appendChild(mDoc.createProcessingInstruction(
+                        target, data));
+            }
+        }
+
+        /**
+         * Adds the doctype.
+         *
+         * @param name The document element name
+         * @param publicId The public identifier, or null
+         * @param systemId The system identifier, or null
+         */
+        public void startDTD(final String name, final String publicId,
+                final String systemId) {
+
+            DocumentType doctype = mDoc.getImplementation()
+                .createDocumentType(name, publicId, systemId);
+            mDoc.appendChild(doctype);
+            mInDTD = true;
+        }
+
+        /**
+         * Ends the DTD.
+         */
+        public void endDTD() {
+            mInDTD = false;
+        }
+
+        /**
+         * Starts an entity, which is expanded.
+         *
+         * @param name The entity name
+         */
+        public void startEntity(final String name) {
+            //Content is added as if there were no entity
+        }
+
+        /**
+         * Ends an entity.
+         *
+         * @param name The entity name
+         */
+        public void endEntity(final String name) {
+            //Content is added as if there were no entity
+        }
+
+        /**
+         * Starts a CDATA section.
+         */
+        public void startCDATA() {
+            flushText();
+            mInCDATA = true;
+        }
+
+        /**
+         * Adds a CDATA section.
+         */
+        public void endCDATA() {
+            flushText();
+            mInCDATA = false;
+        }
+
+        /**
+         * Adds a comment, unless it is in the DTD.
+         *
+         * @param ch The characters
+         * @param start The start of the comment
+         * @param length The length of the comment
+         */
+        public void comment(final char[] ch, final int start, 
+                final int length) {
+
+            if (!mInDTD) {
+                flushText();
+                mParent.appendChild(mDoc.createComment(
+                        new String(ch, start, length)));
+            }
+        }
+
+        /**
+         * Converts the empty string to null.
+         *
+         * @param s The string
+         * @return The string, or null if empty
+         */
+        private static String emptyToNull(final String s) {
+
+            String ret = s;
+            if (ret != null && ret.length() == 0) {
+                ret = null;
+            }
+            return ret;
+        }
+    }
+}
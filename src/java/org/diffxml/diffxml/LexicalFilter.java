@@ -0,0 +1,207 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import java.io.IOException;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * SAX filter that passes on lexical events as well as content events.
+ *
+ * XMLFilterImpl passes the lexical handler property straight to its 
+ * parent, so comments and CDATA sections would bypass the filter. Here the
+ * filter registers itself as its parent's lexical handler, and passes the
+ * events on unchanged unless a subclass overrides them.
+ *
+ * @author Adrian Mouat
+ */
+public abstract class LexicalFilter extends XMLFilterImpl 
+implements LexicalHandler {
+
+    /** Property for the lexical handler. **/
+    private static final String LEXICAL_HANDLER = 
+        "http://xml.org/sax/properties/lexical-handler";
+
+    /** The lexical handler events are passed to, or null. **/
+    private LexicalHandler mLexicalHandler;
+
+    /**
+     * Creates a filter reading from the given reader.
+     *
+     * @param parent The reader to filter
+     */
+    protected LexicalFilter(final XMLReader parent) {
+        super(parent);
+    }
+
+    /**
+     * Sets a property, keeping the lexical handler for filtering.
+     *
+     * @param name The property name
+     * @param value The value
+     * @throws SAXNotRecognizedException If the parent doesn't recognise it
+     * @throws SAXNotSupportedException If the parent doesn't support it
+     */
+    @Override
+    public void setProperty(final String name, final Object value)
+    throws SAXNotRecognizedException, SAXNotSupportedException {
+
+        if (LEXICAL_HANDLER.equals(name)) {
+            mLexicalHandler = (LexicalHandler) value;
+        } else {
+            super.setProperty(name, value);
+        }
+    }
+
+    /**
+     * Gets a property.
+     *
+     * @param name The property name
+     * @return The value
+     * @throws SAXNotRecognizedException If the parent doesn't recognise it
+     * @throws SAXNotSupportedException If the parent doesn't support it
+     */
+    @Override
+    public Object getProperty(final String name)
+    throws SAXNotRecognizedException, SAXNotSupportedException {
+
+        if (LEXICAL_HANDLER.equals(name)) {
+            return mLexicalHandler;
+        }
+        return super.getProperty(name);
+    }
+
+    /**
+     * Parses a document, filtering its events.
+     *
+     * @param input The document
+     * @throws SAXException If the document can't be parsed
+     * @throws IOException If the document can't be read
+     */
+    @Override
+    public void parse(final InputSource input) 
+    throws SAXException, IOException {
+
+        if (mLexicalHandler != null) {
+            getParent().setProperty(LEXICAL_HANDLER, this);
+        }
+        super.parse(input);
+    }
+
+    /**
+     * Passes on the start of the DTD.
+     *
+     * @param name The document element name
+     * @param publicId The public identifier, or null
+     * @param systemId The system identifier, or null
+     * @throws SAXException If the handler fails
+     */
+    public void startDTD(final String name, final String publicId,
+            final String systemId) throws SAXException {
+
+        if (mLexicalHandler != null) {
+            mLexicalHandler.startDTD(name, publicId, systemId);
+        }
+    }
+
+    /**
+     * Passes on the end of the DTD.
+     *
+     * @throws SAXException If the handler fails
+     */
+    public void endDTD() throws SAXException {
+
+        if (mLexicalHandler != null) {
+            mLexicalHandler.endDTD();
+        }
+    }
+
+    /**
+     * Passes on the start of an entity.
+     *
+     * @param name The entity name
+     * @throws SAXException If the handler fails
+     */
+    public void startEntity(final String name) throws SAXException {
+
+        if (mLexicalHandler != null) {
+            mLexicalHandler.startEntity(name);
+        }
+    }
+
+    /**
+     * Passes on the end of an entity.
+     *
+     * @param name The entity name
+     * @throws SAXException If the handler fails
+     */
+    public void endEntity(final String name) throws SAXException {
+
+        if (mLexicalHandler != null) {
+            mLexicalHandler.endEntity(name);
+        }
+    }
+
+    /**
+     * Passes on the start of a CDATA section.
+     *
+     * @throws SAXException If the handler fails
+     */
+    public void startCDATA() throws SAXException {
+
+        if (mLexicalHandler != null) {
+            mLexicalHandler.startCDATA();
+        }
+    }
+
+    /**
+     * Passes on the end of a CDATA section.
+     *
+     * @throws SAXException If the handler fails
+     */
+    public void endCDATA() throws SAXException {
+
+        if (mLexicalHandler != null) {
+            mLexicalHandler.endCDATA();
+        }
+    }
+
+    /**
+     * Passes on a comment.
+     *
+     * @param ch The characters
+     * @param start The start of the comment
+     * @param length The length of the comment
+     * @throws SAXException If the handler fails
+     */
+    public void comment(final char[] ch, final int start, final int length)
+    throws SAXException {
+
+        if (mLexicalHandler != null) {
+            mLexicalHandler.comment(ch, start, length);
+        }
+    }
+}
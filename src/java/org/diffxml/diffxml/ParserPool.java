@@ -0,0 +1,233 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Thread-safe pool of configured DocumentBuilders.
+ *
+ * Creating a DocumentBuilderFactory involves a service lookup and the
+ * features set in DOMOps.initParser, which dominates the cost of parsing
+ * small documents. There is one pool per parser configuration; builders are
+ * reset before being handed out again.
+ *
+ * @author Adrian Mouat
+ */
+public final class ParserPool {
+
+    /**
+     * Maximum number of idle builders kept per pool.
+     */
+    private static final int MAX_IDLE = 32;
+
+    /**
+     * Pools keyed by whether entities are resolved, currently the only
+     * option affecting the parser.
+     */
+    private static final ConcurrentMap<Boolean, ParserPool> POOLS =
+        new ConcurrentHashMap<Boolean, ParserPool>();
+
+    /**
+     * Factory used to create new builders for this pool.
+     */
+    private final DocumentBuilderFactory mFactory;
+
+    /**
+     * Builders not currently in use. Used as a stack so the most recently
+     * used (and warmest) builder is handed out first.
+     */
+    private final Deque<DocumentBuilder> mIdle =
+        new ConcurrentLinkedDeque<DocumentBuilder>();
+
+    /**
+     * Number of builders in mIdle. Kept separately as deque size is O(n).
+     */
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+
+    /**
+     * Creates a pool for the given parser configuration.
+     *
+     * @param resolveEntities Whether entity references are expanded
+     */
+    private ParserPool(final boolean resolveEntities) {
+
+        mFactory = DocumentBuilderFactory.newInstance();
+        DOMOps.initParser(mFactory, resolveEntities);
+    }
+
+    /**
+     * Gets the pool for the current settings in DiffFactory.
+     *
+     * @return The parser pool
+     */
+    public static ParserPool getInstance() {
+        return getInstance(DiffFactory.isResolveEntities());
+    }
+
+    /**
+     * Gets the pool for the given parser configuration.
+     *
+     * @param resolveEntities Whether entity references are expanded
+     * @return The parser pool
+     */
+    public static ParserPool getInstance(final boolean resolveEntities) {
+
+        Boolean key = Boolean.valueOf(resolveEntities);
+        ParserPool pool = POOLS.get(key);
+        if (pool == null) {
+            POOLS.putIfAbsent(key, new ParserPool(resolveEntities));
+            pool = POOLS.get(key);
+        }
+
+        return pool;
+    }
+
+    /**
+     * Takes a builder from the pool, creating one if none are idle.
+     *
+     * The builder should be returned with release() when finished with.
+     *
+     * @return A configured DocumentBuilder
+     * @throws ParserConfigurationException If a builder can't be created
+     */
+    public DocumentBuilder acquire() throws ParserConfigurationException {
+
+        DocumentBuilder builder = mIdle.pollFirst();
+        if (builder == null) {
+            //The factory itself is not guaranteed thread safe
+            synchronized (mFactory) {
+                builder = mFactory.newDocumentBuilder();
+            }
+        } else {
+            mIdleCount.decrementAndGet();
+        }
+
+        return builder;
+    }
+
+    /**
+     * Returns a builder to the pool.
+     *
+     * The builder is reset so that error handlers etc. set by the caller do
+     * not leak to later users.
+     *
+     * @param builder The builder to return, may be null
+     */
+    public void release(final DocumentBuilder builder) {
+
+        if (builder != null && mIdleCount.incrementAndGet() <= MAX_IDLE) {
+            builder.reset();
+            mIdle.offerFirst(builder);
+        } else if (builder != null) {
+            mIdleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Parses the given file using a pooled builder.
+     *
+     * @param f The file to parse
+     * @return The parsed Document
+     * @throws ParserConfigurationException If a builder can't be created
+     * @throws SAXException If the file is not well formed
+     * @throws IOException If the file can't be read
+     */
+    public Document parse(final File f)
+    throws ParserConfigurationException, SAXException, IOException {
+
+        DocumentBuilder builder = acquire();
+        try {
+            return builder.parse(f);
+        } finally {
+            release(builder);
+        }
+    }
+
+    /**
+     * Parses the given stream using a pooled builder.
+     *
+     * @param is The stream to parse
+     * @return The parsed Document
+     * @throws ParserConfigurationException If a builder can't be created
+     * @throws SAXException If the stream is not well formed
+     * @throws IOException If the stream can't be read
+     */
+    public Document parse(final InputStream is)
+    throws ParserConfigurationException, SAXException, IOException {
+
+        DocumentBuilder builder = acquire();
+        try {
+            return builder.parse(is);
+        } finally {
+            release(builder);
+        }
+    }
+
+    /**
+     * Parses the given input source using a pooled builder.
+     *
+     * @param is The source to parse
+     * @return The parsed Document
+     * @throws ParserConfigurationException If a builder can't be created
+     * @throws SAXException If the source is not well formed
+     * @throws IOException If the source can't be read
+     */
+    public Document parse(final InputSource is)
+    throws ParserConfigurationException, SAXException, IOException {
+
+        DocumentBuilder builder = acquire();
+        try {
+            return builder.parse(is);
+        } finally {
+            release(builder);
+        }
+    }
+
+    /**
+     * Creates a new, empty Document.
+     *
+     * @return The new Document
+     * @throws ParserConfigurationException If a builder can't be created
+     */
+    public Document newDocument() throws ParserConfigurationException {
+
+        DocumentBuilder builder = acquire();
+        try {
+            return builder.newDocument();
+        } finally {
+            release(builder);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The path of the subtree a diff is limited to.
+ *
+ * A path is a series of element steps from the document element down, 
+ * such as /config/services. Each step is an element name, matching either
+ * the qualified name or the local name, or * for any element, optionally 
+ * followed by a position among the matching siblings, such as item[2]. 
+ * A step without a position selects the first matching element.
+ *
+ * @author Adrian Mouat
+ */
+public final class Scope {
+
+    /** The names of the steps. **/
+    private final String[] mNames;
+
+    /** The position of each step among matching siblings, from 1. **/
+    private final int[] mPositions;
+
+    /**
+     * Creates a scope.
+     *
+     * @param names The names of the steps
+     * @param positions The positions of the steps
+     */
+    private Scope(final String[] names, final int[] positions) {
+        mNames = names;
+        mPositions = positions;
+    }
+
+    /**
+     * Compiles a scope path.
+     *
+     * @param path The path
+     * @return The scope
+     * @throws IllegalArgumentException If the path isn't valid
+     */
+    public static Scope compile(final String path) {
+
+        if (path == null || !path.startsWith("/") || path.length() == 1) {
+            throw new IllegalArgumentException("Invalid scope " + path
+                    + ": must be a path from the document element");
+        }
+
+        String[] steps = path.substring(1).split("/", -1);
+        String[] names = new String[steps.length];
+        int[] positions = new int[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            String step = steps[i];
+            positions[i] = 1;
+            int open = step.indexOf('[');
+            if (open >= 0) {
+                if (!step.endsWith("]")) {
+                    throw new IllegalArgumentException("Invalid scope " 
+                            + path + ": bad position in " + step);
+                }
+                try {
+                    positions[i] = Integer.parseInt(
+                            step.substring(open + 1, step.length() - 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid scope " 
+                            + path + ": bad position in " + step, e);
+                }
+                if (positions[i] < 1) {
+                    throw new IllegalArgumentException("Invalid scope " 
+                            + path + ": positions start at 1");
+                }
+                step = step.substring(0, open);
+            }
+            if (step.length() == 0 || step.indexOf('@') >= 0) {
+                throw new IllegalArgumentException("Invalid scope " 
+                        + path + ": steps must be element names");
+            }
+            names[i] = step;
+        }
+        return new Scope(names, positions);
+    }
+
+    /**
+     * Gets the number of steps.
+     *
+     * @return The number of steps
+     */
+    public int getDepth() {
+        return mNames.length;
+    }
+
+    /**
+     * Checks whether an element matches the name of a step.
+     *
+     * @param step The step, from 0 for the document element
+     * @param qName The qualified name of the element
+     * @param localName The local name of the element
+     * @return True if the names match
+     */
+    public boolean matches(final int step, final String qName,
+            final String localName) {
+
+        String name = mNames[step];
+        return name.equals("*") || name.equals(qName) 
+            || name.equals(localName);
+    }
+
+    /**
+     * Gets the position of a step among the matching siblings.
+     *
+     * @param step The step, from 0 for the document element
+     * @return The position, from 1
+     */
+    public int getPosition(final int step) {
+        return mPositions[step];
+    }
+
+    /**
+     * Finds the root of the scope in a document.
+     *
+     * @param doc The document
+     * @return The scope element, or null if there is none
+     */
+    public Element find(final Document doc) {
+
+        Node parent = doc;
+        for (int i = 0; i < mNames.length; i++) {
+            Node found = null;
+            int count = 0;
+            for (Node n = parent.getFirstChild(); n != null && found == null;
+                    n = n.getNextSibling()) {
+                if (n.getNodeType() == Node.ELEMENT_NODE) {
+                    String local = n.getLocalName();
+                    if (local == null) {
+                        local = n.getNodeName();
+                    }
+                    if (matches(i, n.getNodeName(), local)
+                            && ++count == mPositions[i]) {
+                        found = n;
+                    }
+                }
+            }
+            if (found == null) {
+                return null;
+            }
+            parent = found;
+        }
+        return (Element) parent;
+    }
+}
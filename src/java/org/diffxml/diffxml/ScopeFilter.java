@@ -0,0 +1,422 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import java.io.IOException;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * SAX filter passing on only the subtree selected by a scope.
+ *
+ * Events outside the scope element are dropped, and parsing stops once the
+ * scope element ends, so the rest of the document is never read. While 
+ * looking for the scope, the filter counts the positions of the elements
+ * on its path in the same way as DUL paths, so the absolute path of the 
+ * scope element is known once it is found.
+ *
+ * @author Adrian Mouat
+ */
+public final class ScopeFilter extends LexicalFilter {
+
+    /** The scope to pass on. **/
+    private final Scope mScope;
+
+    /** Number of open elements outside the scope. **/
+    private int mDepth;
+
+    /** Number of steps of the scope matched by open elements. **/
+    private int mMatched;
+
+    /** Number of open elements inside the scope. **/
+    private int mScopeDepth;
+
+    /** Whether the events are in the DTD. **/
+    private boolean mInDTD;
+
+    /** Child nodes counted at each level of the path. **/
+    private final int[] mChildren;
+
+    /** Elements matching the step at each level of the path. **/
+    private final int[] mMatches;
+
+    /** Whether the last node counted at each level was text. **/
+    private final boolean[] mLastText;
+
+    /** DUL position of the element matching each step. **/
+    private final int[] mPositions;
+
+    /** The absolute path of the scope element, or null if not found. **/
+    private String mPath;
+
+    /**
+     * Creates a filter reading from the given reader.
+     *
+     * @param parent The reader to filter
+     * @param scope The scope to pass on
+     */
+    public ScopeFilter(final XMLReader parent, final Scope scope) {
+
+        super(parent);
+        mScope = scope;
+        mChildren = new int[scope.getDepth()];
+        mMatches = new int[scope.getDepth()];
+        mLastText = new boolean[scope.getDepth()];
+        mPositions = new int[scope.getDepth()];
+    }
+
+    /**
+     * Gets the path of the scope element found by the last parse.
+     *
+     * @return The DUL path of the scope element, or null if not found
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Parses a document, passing on the scope element.
+     *
+     * @param input The document
+     * @throws SAXException If the document can't be parsed
+     * @throws IOException If the document can't be read
+     */
+    @Override
+    public void parse(final InputSource input) 
+    throws SAXException, IOException {
+
+        mDepth = 0;
+        mMatched = 0;
+        mScopeDepth = 0;
+        mInDTD = false;
+        mPath = null;
+        mChildren[0] = 0;
+        mMatches[0] = 0;
+        mLastText[0] = false;
+        try {
+            super.parse(input);
+        } catch (EndOfScope e) {
+            //The rest of the document isn't needed
+        }
+    }
+
+    /**
+     * Checks whether nodes at the current depth are counted.
+     *
+     * @return True if the open elements all match the path
+     */
+    private boolean isCounting() {
+        return mScopeDepth == 0 && mPath == null && mDepth == mMatched;
+    }
+
+    /**
+     * Counts a node at the current depth.
+     *
+     * @param text Whether the node is text
+     */
+    private void count(final boolean text) {
+
+        if (!text || !mLastText[mDepth]) {
+            mChildren[mDepth]++;
+        }
+        mLastText[mDepth] = text;
+    }
+
+    /**
+     * Passes on an element in the scope, or finds the scope element.
+     *
+     * @param uri The namespace URI
+     * @param localName The local name
+     * @param qName The qualified name
+     * @param atts The attributes
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void startElement(final String uri, final String localName,
+            final String qName, final Attributes atts) throws SAXException {
+
+        if (mScopeDepth > 0) {
+            mScopeDepth++;
+            super.startElement(uri, localName, qName, atts);
+            return;
+        }
+
+        if (isCounting()) {
+            count(false);
+            if (mScope.matches(mDepth, qName, localName) 
+                    && ++mMatches[mDepth] == mScope.getPosition(mDepth)) {
+                mPositions[mDepth] = mChildren[mDepth];
+                mMatched++;
+                if (mMatched == mScope.getDepth()) {
+                    mPath = toPath();
+                    mScopeDepth = 1;
+                    super.startElement(uri, localName, qName, atts);
+                    return;
+                }
+                mChildren[mMatched] = 0;
+                mMatches[mMatched] = 0;
+                mLastText[mMatched] = false;
+            }
+        }
+        mDepth++;
+    }
+
+    /**
+     * Passes on the end of an element in the scope.
+     *
+     * @param uri The namespace URI
+     * @param localName The local name
+     * @param qName The qualified name
+     * @throws SAXException If the handler fails, or to stop parsing 
+     *         after the scope element
+     */
+    @Override
+    public void endElement(final String uri, final String localName,
+            final String qName) throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.endElement(uri, localName, qName);
+            mScopeDepth--;
+            if (mScopeDepth == 0) {
+                throw new EndOfScope();
+            }
+            return;
+        }
+
+        mDepth--;
+        if (mMatched > mDepth) {
+            mMatched = mDepth;
+        }
+    }
+
+    /**
+     * Passes on text in the scope.
+     *
+     * @param ch The characters
+     * @param start The start of the text
+     * @param length The length of the text
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void characters(final char[] ch, final int start, 
+            final int length) throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.characters(ch, start, length);
+        } else if (isCounting() && mDepth > 0 && length > 0) {
+            count(true);
+        }
+    }
+
+    /**
+     * Passes on whitespace in the scope.
+     *
+     * @param ch The characters
+     * @param start The start of the whitespace
+     * @param length The length of the whitespace
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void ignorableWhitespace(final char[] ch, final int start, 
+            final int length) throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.ignorableWhitespace(ch, start, length);
+        } else if (isCounting() && mDepth > 0 && length > 0) {
+            count(true);
+        }
+    }
+
+    /**
+     * Passes on a processing instruction in the scope.
+     *
+     * @param target The target
+     * @param data The data
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void processingInstruction(final String target, 
+            final String data) throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.processingInstruction(target, data);
+        } else if (isCounting() && !mInDTD) {
+            count(false);
+        }
+    }
+
+    /**
+     * Passes on a prefix mapping in the scope.
+     *
+     * @param prefix The prefix
+     * @param uri The namespace URI
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void startPrefixMapping(final String prefix, final String uri)
+    throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.startPrefixMapping(prefix, uri);
+        }
+    }
+
+    /**
+     * Passes on the end of a prefix mapping in the scope.
+     *
+     * @param prefix The prefix
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void endPrefixMapping(final String prefix) throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.endPrefixMapping(prefix);
+        }
+    }
+
+    /**
+     * Notes the start of the DTD, which isn't passed on.
+     *
+     * @param name The document element name
+     * @param publicId The public identifier, or null
+     * @param systemId The system identifier, or null
+     */
+    @Override
+    public void startDTD(final String name, final String publicId,
+            final String systemId) {
+        mInDTD = true;
+    }
+
+    /**
+     * Notes the end of the DTD.
+     */
+    @Override
+    public void endDTD() {
+        mInDTD = false;
+    }
+
+    /**
+     * Passes on the start of an entity in the scope.
+     *
+     * @param name The entity name
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void startEntity(final String name) throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.startEntity(name);
+        }
+    }
+
+    /**
+     * Passes on the end of an entity in the scope.
+     *
+     * @param name The entity name
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void endEntity(final String name) throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.endEntity(name);
+        }
+    }
+
+    /**
+     * Passes on the start of a CDATA section in the scope.
+     *
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void startCDATA() throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.startCDATA();
+        } else if (isCounting() && mDepth > 0) {
+            count(true);
+        }
+    }
+
+    /**
+     * Passes on the end of a CDATA section in the scope.
+     *
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void endCDATA() throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.endCDATA();
+        }
+    }
+
+    /**
+     * Passes on a comment in the scope.
+     *
+     * @param ch The characters
+     * @param start The start of the comment
+     * @param length The length of the comment
+     * @throws SAXException If the handler fails
+     */
+    @Override
+    public void comment(final char[] ch, final int start, final int length)
+    throws SAXException {
+
+        if (mScopeDepth > 0) {
+            super.comment(ch, start, length);
+        } else if (isCounting() && !mInDTD) {
+            count(false);
+        }
+    }
+
+    /**
+     * Creates the DUL path of the scope element.
+     *
+     * @return The path
+     */
+    private String toPath() {
+
+        StringBuilder path = new StringBuilder();
+        for (int pos : mPositions) {
+            path.append("/node()[").append(pos).append(']');
+        }
+        return path.toString();
+    }
+
+    /**
+     * Thrown to stop parsing after the scope element.
+     */
+    private static final class EndOfScope extends SAXException {
+
+        /** Serial version. **/
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates the exception.
+         */
+        EndOfScope() {
+            super("End of scope");
+        }
+    }
+}
@@ -0,0 +1,609 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Checks whether two XML files differ without building a delta.
+ *
+ * Used for brief mode. Reads both files side by side with StAX and stops
+ * at the first significant difference, so memory use doesn't depend on
+ * document size. Applies the same whitespace, comment, processing
+ * instruction, case, exclusion and scope options as the diff.
+ *
+ * With a scope, everything outside the scope element is skipped, and the
+ * scope elements are compared as if they were the document elements.
+ *
+ * Whitespace outside the document element and the doctype are not
+ * compared. Attribute order and namespace prefixes are not significant.
+ *
+ * @author Adrian Mouat
+ */
+public final class StreamComparator {
+
+    /** Token for the end of the document. **/
+    private static final int END = -1;
+
+    /** Non-standard property to stop StAX loading external DTDs. **/
+    private static final String IGNORE_EXTERNAL_DTD =
+        "http://java.sun.com/xml/stream/properties/ignore-external-dtd";
+
+    /** Non-standard property to report CDATA sections separately. **/
+    private static final String REPORT_CDATA =
+        "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    /** The options to compare with. **/
+    private final DiffOptions mOptions;
+
+    /** Factory for the stream readers. **/
+    private final XMLInputFactory mFactory;
+
+    /** Content left out of the comparison. **/
+    private final Exclusions mExclusions;
+
+    /** The subtree compared, or null for the whole document. **/
+    private final Scope mScope;
+
+    /**
+     * Creates a comparator using the given options.
+     *
+     * @param opts The options to compare with
+     */
+    public StreamComparator(final DiffOptions opts) {
+
+        mOptions = opts;
+        mExclusions = Exclusions.compile(opts.getExclusions());
+        if (opts.getScope() != null) {
+            mScope = Scope.compile(opts.getScope());
+        } else {
+            mScope = null;
+        }
+        mFactory = XMLInputFactory.newInstance();
+        mFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        mFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        mFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES,
+                Boolean.valueOf(opts.isResolveEntities()));
+        setOptionalProperty(IGNORE_EXTERNAL_DTD, Boolean.TRUE);
+        setOptionalProperty(REPORT_CDATA, Boolean.TRUE);
+    }
+
+    /**
+     * Sets a property the StAX implementation may not support.
+     *
+     * @param name The property name
+     * @param value The value
+     */
+    private void setOptionalProperty(final String name, final Object value) {
+
+        try {
+            mFactory.setProperty(name, value);
+        } catch (IllegalArgumentException e) {
+            //Not supported by this implementation
+        }
+    }
+
+    /**
+     * Checks whether two files differ.
+     *
+     * @param f1 The original file
+     * @param f2 The modified file
+     * @return True if there is a significant difference
+     * @throws DiffException If either file can't be read or parsed
+     */
+    public boolean differ(final File f1, final File f2) throws DiffException {
+
+        InputStream is1 = null;
+        InputStream is2 = null;
+        try {
+            is1 = new FileInputStream(f1);
+            is2 = new FileInputStream(f2);
+            return differ(open(is1, f1), open(is2, f2));
+        } catch (IOException e) {
+            throw new DiffException("Failed to read files", e);
+        } finally {
+            close(is1);
+            close(is2);
+        }
+    }
+
+    /**
+     * Creates a reader for a file.
+     *
+     * @param is The open file
+     * @param f The file, used for its location
+     * @return The reader
+     * @throws DiffException If the reader can't be created
+     */
+    private Side open(final InputStream is, final File f)
+    throws DiffException {
+
+        try {
+            return new Side(mFactory.createXMLStreamReader(
+                    f.toURI().toString(), is), f);
+        } catch (XMLStreamException e) {
+            throw new DiffException("Failed to parse file "
+                    + f.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Closes a stream, ignoring errors.
+     *
+     * @param is The stream to close, may be null
+     */
+    private static void close(final InputStream is) {
+
+        if (is != null) {
+            try {
+                is.close();
+            } catch (IOException e) {
+                //Nothing useful to do
+            }
+        }
+    }
+
+    /**
+     * Compares two documents token by token.
+     *
+     * @param s1 The original document
+     * @param s2 The modified document
+     * @return True if there is a significant difference
+     * @throws DiffException If either document can't be parsed
+     */
+    private boolean differ(final Side s1, final Side s2)
+    throws DiffException {
+
+        try {
+            while (true) {
+                Token t1 = s1.next();
+                Token t2 = s2.next();
+                if (!equal(t1, t2)) {
+                    return true;
+                }
+                if (t1.mType == END) {
+                    return false;
+                }
+            }
+        } finally {
+            s1.close();
+            s2.close();
+        }
+    }
+
+    /**
+     * Compares two tokens.
+     *
+     * @param a The first token
+     * @param b The second token
+     * @return True if the tokens are equivalent under the options
+     */
+    private boolean equal(final Token a, final Token b) {
+
+        if (a.mType != b.mType) {
+            return false;
+        }
+
+        boolean ret;
+        switch (a.mType) {
+            case XMLStreamConstants.START_ELEMENT:
+                ret = nullToEmpty(a.mNamespace).equals(
+                        nullToEmpty(b.mNamespace))
+                    && a.mName.equals(b.mName)
+                    && a.mAttributes.equals(b.mAttributes);
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                ret = mOptions.normalizeText(a.mText).equals(
+                        mOptions.normalizeText(b.mText));
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                ret = a.mName.equals(b.mName) && a.mText.equals(b.mText);
+                break;
+            case XMLStreamConstants.COMMENT:
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                ret = a.mText.equals(b.mText);
+                break;
+            default:
+                //END_ELEMENT and END, structure already checked
+                ret = true;
+        }
+        return ret;
+    }
+
+    /**
+     * Converts null to the empty string.
+     *
+     * @param s The string, may be null
+     * @return The string or ""
+     */
+    private static String nullToEmpty(final String s) {
+
+        String ret = s;
+        if (ret == null) {
+            ret = "";
+        }
+        return ret;
+    }
+
+    /**
+     * Gets a qualified name.
+     *
+     * @param prefix The prefix, may be null or empty
+     * @param localName The local name
+     * @return The qualified name
+     */
+    private static String getQName(final String prefix, 
+            final String localName) {
+
+        String qName = localName;
+        if (prefix != null && prefix.length() > 0) {
+            qName = prefix + ":" + localName;
+        }
+        return qName;
+    }
+
+    /**
+     * A significant item of a document, corresponding to a node in the diff.
+     */
+    private static final class Token {
+
+        /** The StAX event type, or END. **/
+        private final int mType;
+
+        /** Namespace URI of an element. **/
+        private String mNamespace;
+
+        /** Local name of an element or target of a processing instruction. **/
+        private String mName;
+
+        /** Attributes of an element, keyed by namespace and local name. **/
+        private Map<String, String> mAttributes;
+
+        /** Text, comment, processing instruction data or entity name. **/
+        private String mText;
+
+        /**
+         * Creates a token of the given type.
+         *
+         * @param type The StAX event type, or END
+         */
+        Token(final int type) {
+            mType = type;
+        }
+    }
+
+    /**
+     * One of the documents being compared.
+     *
+     * Turns StAX events into tokens, joining adjacent text and dropping
+     * ignored items.
+     */
+    private final class Side {
+
+        /** The underlying reader. **/
+        private final XMLStreamReader mReader;
+
+        /** The file being read. **/
+        private final File mFile;
+
+        /** Text collected since the last non-text event. **/
+        private final StringBuilder mText = new StringBuilder();
+
+        /** Type of the collected text, 0 if none. **/
+        private int mTextType = 0;
+
+        /** Token to return after the collected text. **/
+        private Token mPending;
+
+        /** Current element depth. **/
+        private int mDepth = 0;
+
+        /** Qualified names of the open elements. **/
+        private final List<String> mQNames = new ArrayList<String>();
+
+        /** Local names of the open elements. **/
+        private final List<String> mLocalNames = new ArrayList<String>();
+
+        /** Whether the scope element has been found, if there is a scope. **/
+        private boolean mInScope = false;
+
+        /** Whether the scope element has ended. **/
+        private boolean mDone = false;
+
+        /**
+         * Creates a side reading from the given reader.
+         *
+         * @param reader The reader
+         * @param f The file being read
+         */
+        Side(final XMLStreamReader reader, final File f) {
+            mReader = reader;
+            mFile = f;
+        }
+
+        /**
+         * Gets the next significant token.
+         *
+         * @return The next token, END at the end of the document
+         * @throws DiffException If the document can't be parsed
+         */
+        Token next() throws DiffException {
+
+            try {
+                if (mScope != null && !mInScope) {
+                    mInScope = true;
+                    findScope();
+                    return toToken(XMLStreamConstants.START_ELEMENT);
+                }
+                while (true) {
+                    if (mPending != null) {
+                        Token t = mPending;
+                        mPending = null;
+                        return t;
+                    }
+                    if (mDone) {
+                        return new Token(END);
+                    }
+                    if (!mReader.hasNext()) {
+                        Token t = flushText();
+                        if (t == null) {
+                            t = new Token(END);
+                        }
+                        return t;
+                    }
+
+                    int ev = mReader.next();
+                    if (ev == XMLStreamConstants.START_ELEMENT 
+                            && !enterElement()) {
+                        //As if the element weren't there, so text either
+                        //side is joined
+                        skipElement();
+                        continue;
+                    }
+                    if (ev == XMLStreamConstants.CHARACTERS
+                            || ev == XMLStreamConstants.SPACE
+                            || ev == XMLStreamConstants.CDATA) {
+
+                        //Text outside the root isn't part of the document
+                        if (mDepth > 0) {
+                            int type = XMLStreamConstants.CHARACTERS;
+                            if (ev == XMLStreamConstants.CDATA) {
+                                type = XMLStreamConstants.CDATA;
+                            }
+                            Token t = null;
+                            if (type != mTextType) {
+                                t = flushText();
+                            }
+                            mTextType = type;
+                            mText.append(mReader.getTextCharacters(),
+                                    mReader.getTextStart(),
+                                    mReader.getTextLength());
+                            if (t != null) {
+                                return t;
+                            }
+                        }
+                    } else {
+                        //Any other event, even an ignored one, ends the text
+                        Token t = toToken(ev);
+                        Token text = flushText();
+                        if (text != null) {
+                            mPending = t;
+                            return text;
+                        }
+                        if (t != null) {
+                            return t;
+                        }
+                    }
+                }
+            } catch (XMLStreamException e) {
+                throw new DiffException("Failed to parse file "
+                        + mFile.getAbsolutePath(), e);
+            }
+        }
+
+        /**
+         * Adds the current element to the path, unless it is excluded.
+         *
+         * @return False if the element is excluded
+         */
+        private boolean enterElement() {
+
+            mQNames.add(getQName(mReader.getPrefix(), 
+                    mReader.getLocalName()));
+            mLocalNames.add(mReader.getLocalName());
+            if (mExclusions.isExcludedElement(mQNames, mLocalNames)) {
+                mQNames.remove(mQNames.size() - 1);
+                mLocalNames.remove(mLocalNames.size() - 1);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Moves to the start of the scope element, leaving its ancestors 
+         * on the path.
+         *
+         * Elements off the path are skipped. Excluded elements are skipped
+         * without being counted, as the diff never sees them.
+         *
+         * @throws XMLStreamException If the document can't be parsed
+         * @throws DiffException If there is no scope element
+         */
+        private void findScope() throws XMLStreamException, DiffException {
+
+            int step = 0;
+            int[] matches = new int[mScope.getDepth()];
+            while (mReader.hasNext()) {
+                int ev = mReader.next();
+                if (ev == XMLStreamConstants.START_ELEMENT) {
+                    if (!enterElement()) {
+                        skipElement();
+                    } else if (mScope.matches(step, mQNames.get(step), 
+                                mLocalNames.get(step))
+                            && ++matches[step] == mScope.getPosition(step)) {
+                        if (step == mScope.getDepth() - 1) {
+                            return;
+                        }
+                        step++;
+                    } else {
+                        mQNames.remove(step);
+                        mLocalNames.remove(step);
+                        skipElement();
+                    }
+                } else if (ev == XMLStreamConstants.END_ELEMENT) {
+                    //Left an element on the path without finding the scope
+                    break;
+                }
+            }
+            throw new DiffException("Scope " + mOptions.getScope()
+                    + " not found in file " + mFile.getAbsolutePath());
+        }
+
+        /**
+         * Skips to the end of the current element.
+         *
+         * @throws XMLStreamException If the document can't be parsed
+         */
+        private void skipElement() throws XMLStreamException {
+
+            int depth = 1;
+            while (depth > 0) {
+                int ev = mReader.next();
+                if (ev == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                } else if (ev == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        }
+
+        /**
+         * Creates a token from the collected text.
+         *
+         * @return The token, or null if there is no text or it is ignored
+         */
+        private Token flushText() {
+
+            Token t = null;
+            if (mTextType != 0) {
+                String text = mText.toString();
+                if (!(mOptions.isIgnoreWhitespaceNodes()
+                        && mTextType == XMLStreamConstants.CHARACTERS
+                        && !new StringTokenizer(text).hasMoreTokens())) {
+                    t = new Token(mTextType);
+                    t.mText = text;
+                }
+                mText.setLength(0);
+                mTextType = 0;
+            }
+            return t;
+        }
+
+        /**
+         * Creates a token for a non-text event.
+         *
+         * @param ev The event type
+         * @return The token, or null if the event is ignored
+         */
+        private Token toToken(final int ev) {
+
+            Token t = null;
+            switch (ev) {
+                case XMLStreamConstants.START_ELEMENT:
+                    mDepth++;
+                    t = new Token(ev);
+                    t.mNamespace = mReader.getNamespaceURI();
+                    t.mName = mReader.getLocalName();
+                    t.mAttributes = new HashMap<String, String>();
+                    for (int i = 0; i < mReader.getAttributeCount(); i++) {
+                        if (mExclusions.isExcludedAttribute(mQNames, 
+                                mLocalNames, getQName(
+                                        mReader.getAttributePrefix(i), 
+                                        mReader.getAttributeLocalName(i)),
+                                mReader.getAttributeLocalName(i))) {
+                            continue;
+                        }
+                        t.mAttributes.put("{"
+                                + nullToEmpty(mReader.getAttributeNamespace(i))
+                                + "}" + mReader.getAttributeLocalName(i),
+                                mReader.getAttributeValue(i));
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    mDepth--;
+                    mQNames.remove(mQNames.size() - 1);
+                    mLocalNames.remove(mLocalNames.size() - 1);
+                    //Nothing after the scope element is compared
+                    mDone = mScope != null && mDepth == 0;
+                    t = new Token(ev);
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    if (!mOptions.isIgnoreComments()) {
+                        t = new Token(ev);
+                        t.mText = mReader.getText();
+                    }
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    if (!mOptions.isIgnoreProcessingInstructions()) {
+                        t = new Token(ev);
+                        t.mName = mReader.getPITarget();
+                        t.mText = nullToEmpty(mReader.getPIData());
+                    }
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    t = new Token(ev);
+                    t.mText = mReader.getLocalName();
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    t = new Token(END);
+                    break;
+                default:
+                    //Start of document, doctype etc. aren't compared
+                    break;
+            }
+            return t;
+        }
+
+        /**
+         * Closes the reader.
+         */
+        void close() {
+
+            try {
+                mReader.close();
+            } catch (XMLStreamException e) {
+                //Nothing useful to do
+            }
+        }
+    }
+}
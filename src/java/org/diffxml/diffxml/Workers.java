@@ -0,0 +1,160 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads used to run parts of diffs and requests concurrently.
+ *
+ * Uses virtual threads where the JVM provides them, so that tasks blocked
+ * on I/O don't hold a platform thread. On older JVMs falls back to pools
+ * of daemon platform threads. Looked up reflectively so diffxml still
+ * builds and runs on JVMs without virtual threads.
+ *
+ * @author Adrian Mouat
+ */
+public final class Workers {
+
+    /**
+     * Factory method for virtual thread executors, or null if unsupported.
+     */
+    private static final Method VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+    /**
+     * Executor for short helper tasks, such as parsing a second input.
+     */
+    private static final ExecutorService HELPERS = createHelpers();
+
+    /**
+     * Private constructor.
+     */
+    private Workers() {
+        //Shouldn't be instantiated
+    }
+
+    /**
+     * Finds Executors.newVirtualThreadPerTaskExecutor if available.
+     *
+     * @return The method or null
+     */
+    private static Method findVirtualExecutor() {
+
+        Method m = null;
+        try {
+            m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            //Not supported by this JVM
+        }
+        return m;
+    }
+
+    /**
+     * Creates the helper executor.
+     *
+     * @return A virtual thread executor, or a cached pool of daemon threads
+     */
+    private static ExecutorService createHelpers() {
+
+        ExecutorService helpers = newVirtualThreadExecutor();
+        if (helpers == null) {
+            helpers = Executors.newCachedThreadPool(
+                    new DaemonThreadFactory("diffxml-helper-"));
+        }
+        return helpers;
+    }
+
+    /**
+     * Whether the JVM supports virtual threads.
+     *
+     * @return True if virtual threads are used
+     */
+    public static boolean hasVirtualThreads() {
+        return VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task.
+     *
+     * @return The executor, or null if virtual threads aren't supported
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+
+        ExecutorService exec = null;
+        if (VIRTUAL_EXECUTOR != null) {
+            try {
+                exec = (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                //Treat as unsupported
+                exec = null;
+            }
+        }
+        return exec;
+    }
+
+    /**
+     * Gets the shared executor for helper tasks.
+     *
+     * Tasks must not wait on other helper tasks.
+     *
+     * @return The helper executor
+     */
+    public static ExecutorService getHelpers() {
+        return HELPERS;
+    }
+
+    /**
+     * Creates named daemon threads, so that idle helpers don't keep the JVM
+     * alive.
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        /** Prefix of thread names. **/
+        private final String mPrefix;
+
+        /** Number of the next thread. **/
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        /**
+         * Creates a factory naming threads with the given prefix.
+         *
+         * @param prefix The name prefix
+         */
+        DaemonThreadFactory(final String prefix) {
+            mPrefix = prefix;
+        }
+
+        /**
+         * Creates a daemon thread for the task.
+         *
+         * @param r The task
+         * @return The new thread
+         */
+        public Thread newThread(final Runnable r) {
+
+            Thread t = new Thread(r, mPrefix + mCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
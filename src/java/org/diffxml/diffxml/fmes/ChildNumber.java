@@ -55,6 +55,8 @@ public final class ChildNumber {
     /** The siblings of the node and the node itself. */
     private NodeList mSiblings;
     
+    /** The tree the node is in. */
+    private final WorkingTree mTree;
     
     /**
      * Default constructor.
@@ -63,16 +65,29 @@ public final class ChildNumber {
      *            Node to find the child numbers of
      */
     public ChildNumber(final Node n) {
+        this(n, new WorkingTree(false));
+    }
+
+    /**
+     * Creates the child numbers of a node as seen through a working tree.
+     * 
+     * @param n
+     *            Node to find the child numbers of
+     * @param tree
+     *            The tree the node is in
+     */
+    public ChildNumber(final Node n, final WorkingTree tree) {
         
         if (n == null) {
             throw new IllegalArgumentException("Node cannot be null");
         }
-        if (n.getParentNode() == null) {
+        if (tree.getParent(n) == null) {
             throw new IllegalArgumentException("Node must have parent");
         }
         
         mNode = n;
-        mSiblings = mNode.getParentNode().getChildNodes();
+        mTree = tree;
+        mSiblings = tree.getChildNodes(tree.getParent(n));
     }
 
     /**
@@ -174,7 +189,7 @@ public final class ChildNumber {
  
         // Handle non-coalescing of text nodes
         if ((i > 0 && nodesAreTextNodes(curr, mSiblings.item(i - 1))) 
-                || NodeOps.nodeIsEmptyText(curr)
+                || isEmptyText(curr)
                 || curr.getNodeType() == Node.DOCUMENT_TYPE_NODE) {
             inc = false;
         }
@@ -182,6 +197,17 @@ public final class ChildNumber {
         return inc;
     }
     
+    /**
+     * Check if node is an empty text node.
+     * 
+     * @param n The Node to test.
+     * @return True if it is a 0 sized text node
+     */
+    private boolean isEmptyText(final Node n) {
+        return (n.getNodeType() == Node.TEXT_NODE 
+            && mTree.getValue(n).length() == 0);
+    }
+
     /**
      * Determines whether the given Nodes are all text nodes or not.
      * 
@@ -231,7 +257,7 @@ public final class ChildNumber {
             if (NodeOps.checkIfSameNode(mSiblings.item(i), mNode)) {
                 break;
             }
-            if (NodeOps.isInOrder(mSiblings.item(i))) {
+            if (mTree.isInOrder(mSiblings.item(i))) {
                 mInOrderDOMChildNo++;
             }
         }
@@ -266,7 +292,7 @@ public final class ChildNumber {
         for (int i = (domIndex - 1); i >= 0; i--) {
             if (DOMOps.isText(mSiblings.item(i))) {
                 mXPathCharPos = mXPathCharPos 
-                    + mSiblings.item(i).getTextContent().length();
+                    + mTree.getValue(mSiblings.item(i)).length();
             } else {
                 break;
             }
@@ -315,21 +341,21 @@ public final class ChildNumber {
         
         for (domIndex = 0; domIndex < mSiblings.getLength(); domIndex++) {
             currNode = mSiblings.item(domIndex);
-            if (NodeOps.isInOrder(currNode)
+            if (mTree.isInOrder(currNode)
                     && !(nodesAreTextNodes(currNode, lastInOrderNode) 
-                        || NodeOps.nodeIsEmptyText(currNode))) {
+                        || isEmptyText(currNode))) {
                 childNo++;
             }
             if (NodeOps.checkIfSameNode(currNode, mNode)) {
                 break;
             }
-            if (NodeOps.isInOrder(currNode)) {
+            if (mTree.isInOrder(currNode)) {
                 lastInOrderNode = currNode;
             }
         }
    
         //Add 1 if the given node wasn't in order
-        if (currNode != null && !NodeOps.isInOrder(currNode)) {
+        if (currNode != null && !mTree.isInOrder(currNode)) {
             childNo++;
         }
    
@@ -348,11 +374,11 @@ public final class ChildNumber {
         mInOrderXPathCharPos = 1;
         for (int i = (domIndex - 1); i >= 0; i--) {
             if (DOMOps.isText(mSiblings.item(i))) {
-                if (NodeOps.isInOrder(mSiblings.item(i))) {
+                if (mTree.isInOrder(mSiblings.item(i))) {
                     mInOrderXPathCharPos = mInOrderXPathCharPos 
-                        + mSiblings.item(i).getTextContent().length();
+                        + mTree.getValue(mSiblings.item(i)).length();
                 }
-            } else if (NodeOps.isInOrder(mSiblings.item(i))) {
+            } else if (mTree.isInOrder(mSiblings.item(i))) {
                 break;
             }
         }
@@ -379,14 +405,14 @@ public final class ChildNumber {
             // *Always* use n to get the parent in case it is somewhere else in
             // the tree (in which case we don't need to remove it, but it's 
             // easier than checking
-            Node refNode = n.getNextSibling();
-            Node nPar = n.getParentNode();
-            nPar.removeChild(n);
+            Node refNode = mTree.getNextSibling(n);
+            Node nPar = mTree.getParent(n);
+            mTree.remove(n);
 
             //Invalidate cache
             mXPathChildNo = -1;
             ret = getXPath();
-            nPar.insertBefore(n, refNode);
+            mTree.insertBefore(nPar, n, refNode);
             mXPathChildNo = -1;
         }
         
@@ -414,13 +440,13 @@ public final class ChildNumber {
             // *Always* use n to get the parent in case it is somewhere else in
             // the tree (in which case we don't need to remove it, but it's 
             // easier than checking
-            Node refNode = n.getNextSibling();
-            Node nPar = n.getParentNode();
-            nPar.removeChild(n);
+            Node refNode = mTree.getNextSibling(n);
+            Node nPar = mTree.getParent(n);
+            mTree.remove(n);
             //Invalidate cache
             mDOMChildNo = -1;
             ret = getDOM();
-            nPar.insertBefore(n, refNode);
+            mTree.insertBefore(nPar, n, refNode);
             mDOMChildNo = -1;
         }
 
@@ -447,13 +473,13 @@ public final class ChildNumber {
             // *Always* use n to get the parent in case it is somewhere else in
             // the tree (in which case we don't need to remove it, but it's 
             // easier than checking
-            Node refNode = n.getNextSibling();
-            Node nPar = n.getParentNode();
-            nPar.removeChild(n);
+            Node refNode = mTree.getNextSibling(n);
+            Node nPar = mTree.getParent(n);
+            mTree.remove(n);
             //Invalidate cache
             mXPathCharPos = -1;
             ret = getXPathCharPos();
-            nPar.insertBefore(n, refNode);
+            mTree.insertBefore(nPar, n, refNode);
             mXPathCharPos = -1;
         }
         
@@ -19,11 +19,17 @@ limitations under the License.
 
 package org.diffxml.diffxml.fmes;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.io.IOException;
+import java.io.PrintStream;
 
+import org.diffxml.diffxml.Cancellation;
 import org.diffxml.diffxml.DOMOps;
 import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
 import org.diffxml.diffxml.fmes.delta.DULDelta;
 import org.diffxml.diffxml.fmes.delta.DeltaIF;
 import org.diffxml.diffxml.fmes.delta.DeltaInitialisationException;
@@ -65,22 +71,63 @@ public final class EditScript {
      * The EditScript.
      */
     private DeltaIF mDelta;
+
+    /**
+     * The original document as it is edited.
+     */
+    private final WorkingTree mTree;
+
+    /**
+     * Limits the work spent aligning children.
+     */
+    private final WorkBudget mBudget;
+
+    /**
+     * Roots of new subtrees, which are inserted in one operation.
+     */
+    private final Set<Node> mSubtrees = Collections.newSetFromMap(
+            new IdentityHashMap<Node, Boolean>());
     
     /**
      * Constructor for EditScript.
      * Used to create a list of modifications that will turn doc1 into doc2,
      * given a set of matching nodes.
      * 
+     * Unless the options say to preserve the original, doc1 is edited into
+     * doc2 as the edit script is created.
+     * 
      * @param doc1      the original document
      * @param doc2      the modified document
      * @param matchings the set of matching nodes
      */
     public EditScript(final Document doc1, final Document doc2,
             final NodePairs matchings) {
+        this(doc1, doc2, matchings, WorkBudget.UNLIMITED);
+    }
+
+    /**
+     * Constructor for EditScript with a limit on the work spent aligning
+     * children.
+     * 
+     * When the budget runs out, only the common prefix and suffix of each
+     * list of children are kept in place, and an element whose children 
+     * are out of order is deleted and inserted again rather than having 
+     * its children moved.
+     * 
+     * @param doc1      the original document
+     * @param doc2      the modified document
+     * @param matchings the set of matching nodes, which is changed if the
+     *                  budget runs out
+     * @param budget    the work budget
+     */
+    public EditScript(final Document doc1, final Document doc2,
+            final NodePairs matchings, final WorkBudget budget) {
         
         mDoc1 = doc1;
         mDoc2 = doc2;
         mMatchings = matchings;
+        mTree = new WorkingTree(DiffFactory.isPreserveOriginal());
+        mBudget = budget;
     }
     
     /**
@@ -96,7 +143,7 @@ public final class EditScript {
     public Document create() throws DocumentCreationException {
 
         try {
-            mDelta = new DULDelta();
+            mDelta = new DULDelta(mTree);
         } catch (DeltaInitialisationException e) {
             throw new DocumentCreationException("Failed to create edit script",
                     e);
@@ -110,32 +157,51 @@ public final class EditScript {
         //Special case for aligning children of root node
         alignChildren(mDoc1, mDoc2, mMatchings);
 
+        findNewSubtrees(mDoc2, mSubtrees);
+
         while (!fifo.isEmpty()) {
             
+            Cancellation.checkpoint();
             Node x = fifo.pop();
-            fifo.addChildrenOfNode(x);
 
             Node y = x.getParentNode();
             Node z = mMatchings.getPartner(y);
             Node w = mMatchings.getPartner(x);
 
+            if (mSubtrees.contains(x)) {
+                //Descendants are inserted and in order, so aren't visited
+                doInsertSubtree(x, z);
+                continue;
+            }
+
+            fifo.addChildrenOfNode(x);
+
             if (!mMatchings.isMatched(x)) {
                 w = doInsert(x, z);
             } else {
-                // TODO: Update should go here
                 // Special case for document element
                 if (NodeOps.checkIfSameNode(x, doc2docEl)
                         && !Match.compareElements(w, x)) {
                     w = doUpdate(w, x);
-                } else if (!mMatchings.getPartner(y).equals(
-                        w.getParentNode())) {
-                    doMove(w, x, z, mMatchings);
+                } else {
+                    // Other elements are only matched if names are equal
+                    if (x.getNodeType() == Node.ELEMENT_NODE
+                            && !Match.compareElements(w, x)) {
+                        doUpdateAttributes((Element) w, (Element) x);
+                    } else if (DOMOps.isText(x) && isTextChanged(w, x)) {
+                        doUpdateText(w, x);
+                    }
+                    if (!mMatchings.getPartner(y).equals(
+                            mTree.getParent(w))) {
+                        doMove(w, x, z, mMatchings);
+                    }
                 }
             }
 
             alignChildren(w, x, mMatchings);
         }
 
+        //The document node is always matched, so is never deleted
         deletePhase(mDoc1, mMatchings);
 
         // TODO: Assert following
@@ -178,11 +244,7 @@ public final class EditScript {
             }
             
             // Move all *w's* children
-            while (w.hasChildNodes()) {
-                newW.appendChild(w.getFirstChild());
-            }
-            
-            w.getParentNode().replaceChild(newW, w);
+            mTree.replace(w, newW);
             mMatchings.remove(w);
             mMatchings.add(newW, x);   
         }
@@ -190,6 +252,54 @@ public final class EditScript {
         return newW;
     }
     
+    /**
+     * Updates the attributes of an element to those of another element.
+     * 
+     * xmlns attributes are left alone, as in Match.compareElements.
+     * 
+     * @param w The element to be updated
+     * @param x The element to make it like
+     */
+    private void doUpdateAttributes(final Element w, final Element x) {
+
+        mDelta.updateAttributes(w, x);
+        mTree.setAttributes(w, x);
+        outputDebug();
+    }
+
+    /**
+     * Checks if the text of two matched text nodes differs.
+     * 
+     * Differences the options say to ignore are not counted.
+     * 
+     * @param w A text node in doc1
+     * @param x The partner of w
+     * @return True if w needs to be updated
+     */
+    private boolean isTextChanged(final Node w, final Node x) {
+
+        String wText = mTree.getValue(w);
+        String xText = x.getNodeValue();
+        if (wText.equals(xText)) {
+            return false;
+        }
+        DiffOptions opts = DiffFactory.getOptions();
+        return !opts.normalizeText(wText).equals(opts.normalizeText(xText));
+    }
+
+    /**
+     * Updates the text of a node in place to that of another.
+     * 
+     * @param w The text node to be updated
+     * @param x The text node to make it like
+     */
+    private void doUpdateText(final Node w, final Node x) {
+
+        mDelta.updateText(w, x);
+        mTree.setValue(w, x.getNodeValue());
+        outputDebug();
+    }
+
     /**
      * Inserts (the import of) node x as child of z according to the algorithm 
      * and updates the Edit Script.
@@ -212,7 +322,7 @@ public final class EditScript {
         }
 
         //Find the child number (k) to insert w as child of z 
-        FindPosition pos = new FindPosition(x, mMatchings);
+        FindPosition pos = new FindPosition(x, mMatchings, mTree);
 
         //Apply insert to doc1
         //The node we want to insert is the copy of x with attributes but no
@@ -220,14 +330,14 @@ public final class EditScript {
         Node w = NodeOps.copyNodeToDoc(mDoc1, x); 
 
         //Need to set in order as won't be revisited
-        NodeOps.setInOrder(w);
-        NodeOps.setInOrder(x);
+        mTree.setInOrder(w);
+        mTree.setInOrder(x);
 
         mDelta.insert(w, z, pos.getXPathInsertPosition(), 
                 pos.getCharInsertPosition());
 
         //Take match of parent (z), and insert
-        w = DOMOps.insertAsChild(pos.getDOMInsertPosition(), z, w);
+        mTree.insertAsChild(pos.getDOMInsertPosition(), z, w);
 
         outputDebug();
         //Add to matching set
@@ -236,6 +346,99 @@ public final class EditScript {
         return w;
     }
 
+    /**
+     * Finds the roots of the largest subtrees of doc2 with no matched nodes.
+     *
+     * Only elements with children are collected, as other nodes gain 
+     * nothing from being inserted as a subtree. Subtrees holding entity 
+     * references are left to be inserted node by node, as the references 
+     * can't be parsed without the original DTD.
+     *
+     * @param n     the root of the tree to search
+     * @param roots the set to add the subtree roots to
+     * @return      true if n and all its descendants are unmatched and could
+     *              be inserted as a subtree
+     */
+    private boolean findNewSubtrees(final Node n, final Set<Node> roots) {
+
+        boolean isNew = !mMatchings.isMatched(n)
+            && n.getNodeType() != Node.ENTITY_REFERENCE_NODE
+            && n.getNodeType() != Node.DOCUMENT_TYPE_NODE;
+
+        NodeList kids = n.getChildNodes();
+        boolean[] newKids = new boolean[kids.getLength()];
+        for (int i = 0; i < kids.getLength(); i++) {
+            //Banned nodes are skipped, as they would be by the fifo
+            if (!Fmes.isBanned(kids.item(i))) {
+                newKids[i] = findNewSubtrees(kids.item(i), roots);
+                isNew &= newKids[i];
+            }
+        }
+
+        if (!isNew) {
+            for (int i = 0; i < kids.getLength(); i++) {
+                Node kid = kids.item(i);
+                if (newKids[i] && kid.getNodeType() == Node.ELEMENT_NODE
+                        && kid.hasChildNodes()) {
+                    roots.add(kid);
+                }
+            }
+        }
+
+        return isNew;
+    }
+
+    /**
+     * Inserts (the import of) x and all its descendants as a child of z with
+     * a single operation, and updates the Edit Script.
+     *
+     * All nodes of the subtree must be unmatched.
+     *
+     * @param x          root of the new subtree
+     * @param z          partner of x's parent
+     */
+    private void doInsertSubtree(final Node x, final Node z) {
+
+        assert (x != null);
+        assert (z != null);
+
+        FindPosition pos = new FindPosition(x, mMatchings, mTree);
+
+        Node w = copySubtree(x);
+        mDelta.insertSubtree(w, z, pos.getXPathInsertPosition(), 
+                pos.getCharInsertPosition());
+
+        mTree.insertAsChild(pos.getDOMInsertPosition(), z, w);
+        outputDebug();
+    }
+
+    /**
+     * Copies a subtree of doc2 into doc1, matching and marking in order each
+     * copied node.
+     *
+     * Banned nodes are left out, as they would be if each node were inserted
+     * separately.
+     *
+     * @param x the root of the subtree to copy
+     * @return  the copy
+     */
+    private Node copySubtree(final Node x) {
+
+        Node w = NodeOps.copyNodeToDoc(mDoc1, x);
+        mTree.setInOrder(w);
+        mTree.setInOrder(x);
+        mMatchings.add(w, x);
+
+        for (Node kid = x.getFirstChild(); kid != null; 
+                kid = kid.getNextSibling()) {
+            if (!Fmes.isBanned(kid)) {
+                w.appendChild(copySubtree(kid));
+            }
+        }
+
+        return w;
+    }
+
     /**
      * Performs a move operation according to the algorithm and updates
      * the EditScript.
@@ -248,7 +451,7 @@ public final class EditScript {
     private void doMove(final Node w, final Node x, final Node z, 
             final NodePairs matchings) {
 
-        Node v = w.getParentNode();
+        Node v = mTree.getParent(w);
         Node y = x.getParentNode();
 
         //Apply move if parents not matched and not null
@@ -256,68 +459,79 @@ public final class EditScript {
         Node partnerY = matchings.getPartner(y);
         assert !NodeOps.checkIfSameNode(v, partnerY);
 
-        FindPosition pos = new FindPosition(x, matchings);
+        FindPosition pos = new FindPosition(x, matchings, mTree);
 
-        NodeOps.setInOrder(w);
-        NodeOps.setInOrder(x);
+        mTree.setInOrder(w);
+        mTree.setInOrder(x);
 
         mDelta.move(w, z, pos.getXPathInsertPosition(), 
                 pos.getCharInsertPosition());
 
         //Apply move to T1
-        DOMOps.insertAsChild(pos.getDOMInsertPosition(), z, w);
+        mTree.insertAsChild(pos.getDOMInsertPosition(), z, w);
+        mDelta.completeMove(w);
         outputDebug();
     }
 
     /**
      * Performs the deletePhase of the algorithm.
      *
+     * Only the root of each wholly unmatched subtree is deleted, as its
+     * descendants go with it. The caller must delete n if true is returned.
+     *
      * @param n          the current node
      * @param matchings  the set of matching nodes
+     * @return           true if n and all its descendants are unmatched
      */
-    private void deletePhase(final Node n, final NodePairs matchings) {
+    private boolean deletePhase(final Node n, final NodePairs matchings) {
         
         // Deletes nodes in Post-order traversal
-        NodeList kids = n.getChildNodes();
-        if (kids != null) {
-            // Note that we loop *backward* through kids
-            for (int i = (kids.getLength() - 1); i >= 0; i--) {
-                deletePhase(kids.item(i), matchings);
-            }
+        Cancellation.checkpoint();
+        NodeList kids = mTree.getChildNodes(n);
+        boolean[] deleteKids = new boolean[kids.getLength()];
+        boolean unmatched = !matchings.isMatched(n) 
+            && n.getNodeType() != Node.DOCUMENT_TYPE_NODE;
+
+        // Note that we loop *backward* through kids
+        for (int i = (kids.getLength() - 1); i >= 0; i--) {
+            deleteKids[i] = deletePhase(kids.item(i), matchings);
+            unmatched &= deleteKids[i];
         }
 
-        // If node isn't matched, delete it
-        if (!matchings.isMatched(n) 
-                && n.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
-            mDelta.delete(n);
-            n.getParentNode().removeChild(n);
-         
+        if (!unmatched) {
+            for (int i = (deleteKids.length - 1); i >= 0; i--) {
+                if (deleteKids[i]) {
+                    Node kid = kids.item(i);
+                    mDelta.delete(kid);
+                    mTree.remove(kid);
+                }
+            }
         }
+
+        return unmatched;
     }
 
     /**
      * Mark the children of a node out of order.
      *
-     * @param n the parent of the nodes to mark out of order
+     * @param kids the nodes to mark out of order
      */
-    private static void markChildrenOutOfOrder(final Node n) {
+    private void markChildrenOutOfOrder(final NodeList kids) {
 
-        NodeList kids = n.getChildNodes();
         for (int i = 0; i < kids.getLength(); i++) {
-            NodeOps.setOutOfOrder(kids.item(i));
+            mTree.setOutOfOrder(kids.item(i));
         }
     }
 
     /**
      * Mark the children of a node in order.
      *
-     * @param n the parent of the nodes to mark in order
+     * @param kids the nodes to mark in order
      */
-    private static void markChildrenInOrder(final Node n) {
+    private void markChildrenInOrder(final NodeList kids) {
 
-        NodeList kids = n.getChildNodes();
         for (int i = 0; i < kids.getLength(); i++) {
-            NodeOps.setInOrder(kids.item(i));
+            mTree.setInOrder(kids.item(i));
         }
     }
     
@@ -327,12 +541,12 @@ public final class EditScript {
      * @param seq  the Nodes to mark "inorder"
      * @param matchings the set of matching Nodes
      */
-    private static void setNodesInOrder(final List<Node> seq,
+    private void setNodesInOrder(final List<Node> seq,
             final NodePairs matchings) {
 
         for (Node node : seq) {
-            NodeOps.setInOrder(node);
-            NodeOps.setInOrder(matchings.getPartner(node));
+            mTree.setInOrder(node);
+            mTree.setInOrder(matchings.getPartner(node));
         }
     }
 
@@ -348,25 +562,103 @@ public final class EditScript {
     private void moveMisalignedNodes(final Node w, final Node[] wSeq, 
             final List<Node> stay, final NodePairs matchings) {
         
+        Set<Node> staySet = Collections.newSetFromMap(
+                new IdentityHashMap<Node, Boolean>());
+        staySet.addAll(stay);
+
         //Get Nodes that are not in LCS but are in wSeq (or xSeq)
         for (Node a : wSeq) {
-            if (!stay.contains(a)) {
+            if (!staySet.contains(a)) {
 
                 Node b = matchings.getPartner(a);
-                FindPosition pos = new FindPosition(b, matchings);
+                FindPosition pos = new FindPosition(b, matchings, mTree);
 
                 mDelta.move(a, w, pos.getXPathInsertPosition(),
                         pos.getCharInsertPosition());
 
-                DOMOps.insertAsChild(pos.getDOMInsertPosition(), w, a);
+                mTree.insertAsChild(pos.getDOMInsertPosition(), w, a);
+                mDelta.completeMove(a);
 
-                NodeOps.setInOrder(a);
-                NodeOps.setInOrder(b);
+                mTree.setInOrder(a);
+                mTree.setInOrder(b);
                 outputDebug();
             }
         }
     }
 
+    /**
+     * Replaces an element with a copy of its partner, instead of aligning 
+     * its children.
+     *
+     * The subtrees of both are unmatched, and the old element is deleted 
+     * before the copy is inserted. The partners of their descendants are 
+     * unmatched too, so are deleted or inserted in turn. This is safe as 
+     * the descendants of x haven't been visited yet.
+     *
+     * @param w the element to replace
+     * @param x its partner
+     * @param matchings the set of matching nodes
+     */
+    private void replaceSubtree(final Node w, final Node x, 
+            final NodePairs matchings) {
+
+        Node z = mTree.getParent(w);
+        unmatchOriginal(w, matchings);
+        unmatchNew(x, matchings);
+
+        mDelta.delete(w);
+        mTree.remove(w);
+        doInsertSubtree(x, z);
+    }
+
+    /**
+     * Checks whether a subtree of doc2 can be inserted in one operation.
+     *
+     * @param n the root of the subtree
+     * @return true if the subtree holds no entity references
+     */
+    private static boolean canInsertSubtree(final Node n) {
+
+        boolean ret = n.getNodeType() != Node.ENTITY_REFERENCE_NODE;
+        for (Node kid = n.getFirstChild(); kid != null && ret; 
+                kid = kid.getNextSibling()) {
+            ret = canInsertSubtree(kid);
+        }
+        return ret;
+    }
+
+    /**
+     * Removes the matchings of a subtree of doc1 as it has been edited.
+     *
+     * @param n The root of the subtree
+     * @param matchings The set of matching nodes
+     */
+    private void unmatchOriginal(final Node n, final NodePairs matchings) {
+
+        matchings.remove(n);
+        NodeList kids = mTree.getChildNodes(n);
+        for (int i = 0; i < kids.getLength(); i++) {
+            unmatchOriginal(kids.item(i), matchings);
+        }
+    }
+
+    /**
+     * Removes the matchings of a subtree of doc2, and forgets any new 
+     * subtrees in it.
+     *
+     * @param n The root of the subtree
+     * @param matchings The set of matching nodes
+     */
+    private void unmatchNew(final Node n, final NodePairs matchings) {
+
+        matchings.remove(n);
+        mSubtrees.remove(n);
+        for (Node kid = n.getFirstChild(); kid != null; 
+                kid = kid.getNextSibling()) {
+            unmatchNew(kid, matchings);
+        }
+    }
+
     /**
      * Aligns children of current node that are not in order.
      *
@@ -378,40 +670,57 @@ public final class EditScript {
     private void alignChildren(final Node w, final Node x,
             final NodePairs matchings) {
         
-        //Order of w and x is important
-        markChildrenOutOfOrder(w);
-        markChildrenOutOfOrder(x);
-
-        NodeList wKids = w.getChildNodes();
+        NodeList wKids = mTree.getChildNodes(w);
         NodeList xKids = x.getChildNodes();
 
+        //Order of w and x is important
+        markChildrenOutOfOrder(wKids);
+        markChildrenOutOfOrder(xKids);
+
         Node[] wSeq = NodeSequence.getSequence(wKids, xKids, matchings);
         Node[] xSeq = NodeSequence.getSequence(xKids, wKids, matchings);
 
-        List<Node> lcsSeq = NodeSequence.getLCS(wSeq, xSeq, matchings);
+        List<Node> lcsSeq = NodeSequence.getLCS(wSeq, xSeq, matchings, 
+                mBudget);
         setNodesInOrder(lcsSeq, matchings);
         
-        moveMisalignedNodes(w, wSeq, lcsSeq, matchings);
+        //Each move finds its position among the children of w. The document
+        //element isn't replaced, as there can only be one, and the paths of
+        //partitions and scopes are rebased from it.
+        long moveWork = (long) (wSeq.length - lcsSeq.size()) 
+            * wKids.getLength();
+        boolean replaceable = w.getNodeType() == Node.ELEMENT_NODE
+            && mTree.getParent(w).getNodeType() != Node.DOCUMENT_NODE;
+        if (replaceable && !mBudget.charge(moveWork) 
+                && canInsertSubtree(x)) {
+            replaceSubtree(w, x, matchings);
+        } else {
+            moveMisalignedNodes(w, wSeq, lcsSeq, matchings);
+        }
         
         //The following is missing from the algorithm, but is important
-        markChildrenInOrder(w);
-        markChildrenInOrder(x);
+        markChildrenInOrder(wKids);
+        markChildrenInOrder(xKids);
     }
 
     /**
      * Outputs debug information.
+     * 
+     * The edits aren't visible in the original document if it is preserved,
+     * so nothing is output.
      */
     private void outputDebug() {
 
-        if (DiffFactory.isDebug()) {
-            System.err.println("Result:");
+        if (DiffFactory.isDebug() && !mTree.isOverlay()) {
+            PrintStream err = DiffFactory.getDebugStream();
+            err.println("Result:");
             try {
-                DOMOps.outputXML(mDoc1, System.err);
+                DOMOps.outputXML(mDoc1, err);
             } catch (IOException e) {
-                System.err.println("Failed to print debug info");
+                err.println("Failed to print debug info");
             }
-            System.err.println();
-            System.err.println();
+            err.println();
+            err.println();
         }
     }
 }
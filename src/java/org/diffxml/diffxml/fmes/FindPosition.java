@@ -50,8 +50,20 @@ public class FindPosition {
      * @param matchings the set of matching nodes
      */
     public FindPosition(final Node x, final NodePairs matchings) {
+        this(x, matchings, new WorkingTree(false));
+    }
+
+    /**
+     * Finds the child number to insert a node as, in a working tree.
+     *
+     * @param x         the node with no partner
+     * @param matchings the set of matching nodes
+     * @param tree      the tree the partners of nodes are in
+     */
+    public FindPosition(final Node x, final NodePairs matchings,
+            final WorkingTree tree) {
 
-        Node v = getInOrderLeftSibling(x);
+        Node v = getInOrderLeftSibling(x, tree);
 
         if (v == null) {
             
@@ -69,7 +81,7 @@ public class FindPosition {
             Node u = matchings.getPartner(v);
             assert (u != null);
 
-            ChildNumber uChildNo = new ChildNumber(u);
+            ChildNumber uChildNo = new ChildNumber(u, tree);
             Node w = matchings.getPartner(x);
 
             //Need position after u
@@ -88,10 +100,10 @@ public class FindPosition {
             if (DOMOps.isText(u)) {
                 if (w != null) {
                     mCharInsertPosition = uChildNo.getXPathCharPosIgnoring(w)
-                        + u.getTextContent().length();
+                        + tree.getValue(u).length();
                 } else {
                     mCharInsertPosition = uChildNo.getXPathCharPos()
-                        + u.getTextContent().length();
+                        + tree.getValue(u).length();
                 }
             } else {
                 mCharInsertPosition = 1;
@@ -103,13 +115,18 @@ public class FindPosition {
     /**
      * Gets the rightmost left sibling of n marked "inorder".
      *
+     * Doctype nodes are never matched, so are skipped.
+     *
      * @param n Node to find "in order" left sibling of
+     * @param tree Holds the "inorder" marks
      * @return  Either the "in order" left sibling or null if none
      */
-    private static Node getInOrderLeftSibling(final Node n) {
+    private static Node getInOrderLeftSibling(final Node n, 
+            final WorkingTree tree) {
         
         Node curr = n.getPreviousSibling();
-        while (curr != null && !NodeOps.isInOrder(curr)) {
+        while (curr != null && (!tree.isInOrder(curr) 
+                || curr.getNodeType() == Node.DOCUMENT_TYPE_NODE)) {
             curr = curr.getPreviousSibling();
         }
 
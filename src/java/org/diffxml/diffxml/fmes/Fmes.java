@@ -20,20 +20,34 @@ limitations under the License.
 package org.diffxml.diffxml.fmes;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
+import org.diffxml.diffxml.CancelledException;
+import org.diffxml.diffxml.Cancellation;
 import org.diffxml.diffxml.DOMOps;
 import org.diffxml.diffxml.Diff;
 import org.diffxml.diffxml.DiffException;
 import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.FilteredParser;
+import org.diffxml.diffxml.ParserPool;
+import org.diffxml.diffxml.Scope;
+import org.diffxml.diffxml.Workers;
+import org.diffxml.diffxml.fmes.delta.DULDelta;
+import org.diffxml.dul.DULConstants;
 
+import java.util.List;
 import java.util.StringTokenizer;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 /**
@@ -47,6 +61,58 @@ import javax.xml.parsers.ParserConfigurationException;
  */
 public class Fmes implements Diff {
 
+    /**
+     * Milliseconds between checks for cancellation while waiting for a
+     * permit.
+     */
+    private static final long PERMIT_POLL = 50;
+
+    /**
+     * Limits the number of diffs matching and creating edit scripts at
+     * once, as these phases are CPU bound. Defaults to the number of cores.
+     */
+    private static volatile Semaphore sPermits = new Semaphore(
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Options for this diff, or null to use the defaults in DiffFactory.
+     */
+    private final DiffOptions mOptions;
+
+    /**
+     * Creates a diff engine using the default options in DiffFactory.
+     */
+    public Fmes() {
+        mOptions = null;
+    }
+
+    /**
+     * Creates a diff engine with its own options.
+     *
+     * The options are in effect on the calling thread while a diff runs.
+     *
+     * @param opts The options to use
+     */
+    public Fmes(final DiffOptions opts) {
+        mOptions = opts;
+    }
+
+    /**
+     * Sets the maximum number of diffs in the CPU bound phases at once.
+     *
+     * Diffs already running are not affected.
+     *
+     * @param max The maximum number of diffs, at least 1
+     */
+    public static void setMaxConcurrentDiffs(final int max) {
+
+        if (max < 1) {
+            throw new IllegalArgumentException(
+                    "Must allow at least one concurrent diff");
+        }
+        sPermits = new Semaphore(max);
+    }
+
     /**
      * Determines if the given node should be ignored.
      *
@@ -85,6 +151,8 @@ public class Fmes implements Diff {
     /**
      * Calls fmes diff on two files.
      *
+     * Stops with a CancelledException as the diff of two DOM documents.
+     *
      * @return       The delta
      * @param file1  The original file
      * @param file2  The modified file
@@ -93,44 +161,132 @@ public class Fmes implements Diff {
     public final Document diff(final File file1, final File file2) 
     throws DiffException {
         
+        if (mOptions == null) {
+            return diffFiles(file1, file2);
+        }
+
+        DiffOptions previous = DiffFactory.setCurrentOptions(mOptions);
+        try {
+            return diffFiles(file1, file2);
+        } finally {
+            DiffFactory.setCurrentOptions(previous);
+        }
+    }
+
+    /**
+     * Parses and differences two files using the current options.
+     *
+     * @return       The delta
+     * @param file1  The original file
+     * @param file2  The modified file
+     * @throws DiffException If something goes wrong during the diff
+     **/
+    private Document diffFiles(final File file1, final File file2) 
+    throws DiffException {
         
-        DocumentBuilderFactory fac = DocumentBuilderFactory.newInstance();
-        DOMOps.initParser(fac);
+        final ParserPool pool = ParserPool.getInstance();
+        final DiffOptions opts = DiffFactory.getOptions();
 
-        DocumentBuilder db = null;
-        Document doc1 = null;
-        Document doc2 = null;
+        //The helper runs with this diff's options, and a token that is 
+        //cancelled with the caller's or if this thread fails
+        final Cancellation token = new Cancellation(opts.getCancellation());
+        final DiffOptions helperOpts = new DiffOptions(opts);
+        helperOpts.setCancellation(token);
 
+        //Parse and prepare the second file on a helper while this thread 
+        //does the first
+        Future<Prepared> task2 = Workers.getHelpers().submit(
+                new Callable<Prepared>() {
+                    public Prepared call() throws DiffException {
+                        DiffOptions previous = 
+                            DiffFactory.setCurrentOptions(helperOpts);
+                        try {
+                            Document doc = parse(pool, file2, helperOpts);
+                            Cancellation.checkpoint();
+                            return new Prepared(doc);
+                        } finally {
+                            DiffFactory.setCurrentOptions(previous);
+                        }
+                    }
+                });
+
+        Prepared in1;
+        Prepared in2;
         try {
-            db = fac.newDocumentBuilder();
-            doc1 = db.parse(file1);
-        } catch (ParserConfigurationException e) {
-            throw new DiffException("Failed to set up XML parser", e);
-        } catch (IOException e) {
-            throw new DiffException("Failed to parse file "
-                    + file1.getAbsolutePath(), e);            
-        } catch (SAXException e) {
+            in1 = new Prepared(parse(pool, file1, opts));
+            in2 = task2.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancelledException("Interrupted while parsing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DiffException) {
+                throw (DiffException) e.getCause();
+            }
+            if (e.getCause() instanceof CancelledException) {
+                throw (CancelledException) e.getCause();
+            }
             throw new DiffException("Failed to parse file "
-                    + file1.getAbsolutePath(), e);                        
+                    + file2.getAbsolutePath(), e);
+        } finally {
+            //Don't leave the helper running if this thread failed
+            token.cancel();
+            task2.cancel(true);
         }
 
+        Document delta = diffDocuments(in1.mDoc, in2.mDoc, 
+                in1.mNodes, in2.mNodes);
+        if (opts.getScope() != null) {
+            rebase(delta, FilteredParser.getScopePath(in1.mDoc));
+        }
+        return delta;
+    }
+
+    /**
+     * Parses a file for differencing.
+     *
+     * Content excluded by the options is left out as the file is read. If
+     * the options have a scope, only the scope element is read.
+     *
+     * @param pool The parsers to use
+     * @param file The file to parse
+     * @param opts The options of the diff
+     * @return The parsed document
+     * @throws DiffException If the file can't be parsed, or doesn't have
+     *         the scope element
+     */
+    private static Document parse(final ParserPool pool, final File file,
+            final DiffOptions opts) throws DiffException {
+
         try {
-            doc2 = db.parse(file2);
+            if (opts.getScope() != null) {
+                Document doc = FilteredParser.parse(file, opts);
+                if (FilteredParser.getScopePath(doc) == null) {
+                    throw new DiffException("Scope " + opts.getScope()
+                            + " not found in file " + file.getAbsolutePath());
+                }
+                return doc;
+            }
+            if (!opts.getExclusions().isEmpty()) {
+                return FilteredParser.parse(file, opts);
+            }
+            return pool.parse(file);
+        } catch (ParserConfigurationException e) {
+            throw new DiffException("Failed to set up XML parser", e);
         } catch (IOException e) {
             throw new DiffException("Failed to parse file "
-                    + file2.getAbsolutePath(), e);            
+                    + file.getAbsolutePath(), e);            
         } catch (SAXException e) {
             throw new DiffException("Failed to parse file "
-                    + file2.getAbsolutePath(), e);                        
+                    + file.getAbsolutePath(), e);                        
         }
-
-        return diff(doc1, doc2);
     }
 
     /**
      * Differences two DOM documents and returns the delta.
      *
-     * The delta is in DUL format.
+     * The delta is in DUL format. The diff stops with a CancelledException
+     * if the thread is interrupted or the options' cancellation token is
+     * cancelled.
      *
      * @param doc1    The original document
      * @param doc2    The new document
@@ -143,15 +299,210 @@ public class Fmes implements Diff {
     public final Document diff(final Document doc1, final Document doc2) 
     throws DiffException  {
 
-        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        if (mOptions == null) {
+            return diffTrees(doc1, doc2);
+        }
+
+        DiffOptions previous = DiffFactory.setCurrentOptions(mOptions);
+        try {
+            return diffTrees(doc1, doc2);
+        } finally {
+            DiffFactory.setCurrentOptions(previous);
+        }
+    }
+
+    /**
+     * Differences two DOM documents, or their scope elements if there is a
+     * scope, using the current options.
+     *
+     * The scope elements are copied into documents of their own, so the 
+     * given documents aren't modified.
+     *
+     * @param doc1    The original document
+     * @param doc2    The new document
+     * @return        The delta
+     * @throws DiffException If something goes wrong during the diff
+     */
+    private Document diffTrees(final Document doc1, final Document doc2) 
+    throws DiffException  {
+
+        String path = DiffFactory.getScope();
+        if (path == null) {
+            return diffDocuments(doc1, doc2, null, null);
+        }
+
+        Scope scope = Scope.compile(path);
+        Element root1 = scope.find(doc1);
+        Element root2 = scope.find(doc2);
+        if (root1 == null || root2 == null) {
+            throw new DiffException("Scope " + path + " not found in the "
+                    + (root1 == null ? "original" : "new") + " document");
+        }
+
+        Document delta;
+        try {
+            ParserPool pool = ParserPool.getInstance();
+            Document copy1 = pool.newDocument();
+            copy1.appendChild(copy1.importNode(root1, true));
+            Document copy2 = pool.newDocument();
+            copy2.appendChild(copy2.importNode(root2, true));
+            delta = diffDocuments(copy1, copy2, null, null);
+        } catch (ParserConfigurationException e) {
+            throw new DiffException("Failed to create document", e);
+        }
+        rebase(delta, NodeOps.getXPath(root1));
+        return delta;
+    }
+
+    /**
+     * Rebases the operations of a delta of scope elements to the full 
+     * original document.
+     *
+     * @param delta The delta
+     * @param path The path of the original scope element
+     */
+    private static void rebase(final Document delta, final String path) {
+
+        for (Node op = delta.getDocumentElement().getFirstChild(); 
+                op != null; op = op.getNextSibling()) {
+            if (op.getNodeType() == Node.ELEMENT_NODE) {
+                DULDelta.rebase((Element) op, path);
+            }
+        }
+    }
+
+    /**
+     * Differences a prepared original document and a DOM document.
+     *
+     * The prepared document isn't modified, so can be used for many diffs,
+     * including concurrent ones. If there is a scope, only the scope 
+     * elements are compared, as for two DOM documents.
+     *
+     * @param original The prepared original document
+     * @param doc2     The new document
+     * @return         A document describing the changes
+     *                 required to make the original into doc2.
+     * @throws DiffException If something goes wrong during the diff
+     */
+    public final Document diff(final PreparedDocument original, 
+            final Document doc2) throws DiffException  {
+
+        PreparedDocument.Copy in1 = original.newCopy();
+        if (mOptions == null) {
+            return diffPrepared(in1, doc2);
+        }
+
+        DiffOptions previous = DiffFactory.setCurrentOptions(mOptions);
+        try {
+            return diffPrepared(in1, doc2);
+        } finally {
+            DiffFactory.setCurrentOptions(previous);
+        }
+    }
+
+    /**
+     * Differences a copy of a prepared document and a DOM document using 
+     * the current options.
+     *
+     * The prepared nodes can't be used for a scope, as only the nodes in 
+     * the scope elements are compared.
+     *
+     * @param in1  The copy of the prepared original document
+     * @param doc2 The new document
+     * @return     The delta
+     * @throws DiffException If something goes wrong during the diff
+     */
+    private Document diffPrepared(final PreparedDocument.Copy in1, 
+            final Document doc2) throws DiffException  {
+
+        if (DiffFactory.getScope() != null) {
+            return diffTrees(in1.getDocument(), doc2);
+        }
+        return diffDocuments(in1.getDocument(), doc2, in1.getNodes(), null);
+    }
+
+    /**
+     * Differences two DOM documents using the current options.
+     *
+     * The time limit runs from the start of this call. If the work or time
+     * limit is reached, the delta is marked as degraded.
+     *
+     * @param doc1    The original document
+     * @param doc2    The new document
+     * @param nodes1  The nodes of doc1 prepared for matching, or null
+     * @param nodes2  The nodes of doc2 prepared for matching, or null
+     * @return        The delta
+     * @throws DiffException If something goes wrong during the diff
+     */
+    private Document diffDocuments(final Document doc1, final Document doc2,
+            final List<NodeDepth> nodes1, final List<NodeDepth> nodes2) 
+    throws DiffException  {
+
+        WorkBudget budget = new WorkBudget(DiffFactory.getWorkLimit(), 
+                DiffFactory.getTimeLimit());
+        Semaphore permits = sPermits;
+        try {
+            //Wait in steps, so a cancelled token is seen while waiting
+            while (!permits.tryAcquire(PERMIT_POLL, TimeUnit.MILLISECONDS)) {
+                Cancellation.checkpoint();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancelledException("Interrupted waiting to run diff",
+                    e);
+        }
 
         Document delta = null;
         try {
-            delta = (new EditScript(doc1, doc2, matchings)).create();
+            if (DiffFactory.isPartitioned()) {
+                delta = PartitionedDiff.diff(doc1, doc2, budget);
+            } else {
+                List<NodeDepth> list1 = nodes1;
+                if (list1 == null) {
+                    list1 = Match.prepare(doc1);
+                }
+                List<NodeDepth> list2 = nodes2;
+                if (list2 == null) {
+                    list2 = Match.prepare(doc2);
+                }
+                NodePairs matchings = Match.easyMatch(doc1, doc2, 
+                        list1, list2, budget);
+                Match.matchChangedNodes(doc1, matchings);
+                delta = (new EditScript(doc1, doc2, matchings, budget))
+                    .create();
+            }
         } catch (DocumentCreationException e) {
             throw new DiffException("Failed to create Edit Script ", e); 
+        } finally {
+            permits.release();
         }
 
+        if (budget.isDegraded()) {
+            delta.getDocumentElement().setAttribute(DULConstants.DEGRADED, 
+                    DULConstants.TRUE);
+        }
         return delta;
     }
+
+    /**
+     * A parsed input, prepared for matching.
+     */
+    private static final class Prepared {
+
+        /** The parsed document. **/
+        private final Document mDoc;
+
+        /** The nodes of the document in matching order. **/
+        private final List<NodeDepth> mNodes;
+
+        /**
+         * Prepares the given document for matching.
+         *
+         * @param doc The parsed document
+         */
+        Prepared(final Document doc) {
+            mDoc = doc;
+            mNodes = Match.prepare(doc);
+        }
+    }
 }
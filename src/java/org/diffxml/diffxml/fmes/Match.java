@@ -19,17 +19,21 @@ limitations under the License.
 
 package org.diffxml.diffxml.fmes;
 
+import org.diffxml.diffxml.Cancellation;
 import org.diffxml.diffxml.DOMOps;
 import org.diffxml.diffxml.DiffFactory;
 
+import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
 
-import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import org.w3c.dom.traversal.NodeFilter;
@@ -76,48 +80,367 @@ public final class Match {
     public static NodePairs easyMatch(final Document doc1,
             final Document doc2) {
 
-        NodePairs matchSet = new NodePairs();
+        return easyMatch(doc1, doc2, prepare(doc1), prepare(doc2));
+    }
+
+    /**
+     * Performs fast match algorithm on documents already prepared with
+     * prepare().
+     * 
+     * Allows each document to be prepared as soon as it is parsed, possibly
+     * on another thread. The lists are consumed by the matching.
+     * 
+     * If key attributes are set in the options, elements with the same 
+     * key are matched first. If parallel matching is set, the nodes at 
+     * each depth are matched in parallel, with the same results.
+     * 
+     * @param doc1
+     *            The original document
+     * @param doc2
+     *            The modified document
+     * @param list1
+     *            The prepared nodes of doc1
+     * @param list2
+     *            The prepared nodes of doc2
+     * 
+     * @return NodeSet containing pairs of matching nodes.
+     */
+    public static NodePairs easyMatch(final Document doc1,
+            final Document doc2, final List<NodeDepth> list1,
+            final List<NodeDepth> list2) {
 
-        doc1.getDocumentElement().normalize();
-        doc2.getDocumentElement().normalize();
+        return easyMatch(doc1, doc2, list1, list2, WorkBudget.UNLIMITED);
+    }
 
-        List<NodeDepth> list1 = initialiseAndOrderNodes(doc1);
-        List<NodeDepth> list2 = initialiseAndOrderNodes(doc2);
-        
-        //Explicitly add document elements, doctype elements and root
+    /**
+     * Performs fast match algorithm on prepared documents within a work 
+     * budget.
+     * 
+     * Each comparison of two nodes is charged to the budget. If it runs 
+     * out, matching stops, and the nodes not yet matched are left to be 
+     * deleted and inserted.
+     * 
+     * @param doc1
+     *            The original document
+     * @param doc2
+     *            The modified document
+     * @param list1
+     *            The prepared nodes of doc1
+     * @param list2
+     *            The prepared nodes of doc2
+     * @param budget
+     *            The budget to charge comparisons to
+     * 
+     * @return NodeSet containing pairs of matching nodes.
+     */
+    public static NodePairs easyMatch(final Document doc1,
+            final Document doc2, final List<NodeDepth> list1,
+            final List<NodeDepth> list2, final WorkBudget budget) {
+
+        NodePairs matchSet = new NodePairs();
+
+        //Explicitly add document elements and root. Doctype nodes are 
+        //never matched, inserted or deleted, as they can't be edited 
+        //effectively with DOM nor can xpath select them.
         matchSet.add(doc1, doc2);
         matchSet.add(doc1.getDocumentElement(), doc2.getDocumentElement());
         
-        //Kill any doctype nodes - they can't be edited effectively with DOM
-        //nor can xpath select them
-        if (doc1.getDoctype() != null) {
-            doc1.removeChild(doc1.getDoctype());
+        List<String> keys = DiffFactory.getKeyAttributes();
+        if (!keys.isEmpty()) {
+            matchKeyedElements(keys, list1, list2, matchSet);
         }
-        if (doc2.getDoctype() != null) {
-            doc2.removeChild(doc2.getDoctype());
+
+        if (DiffFactory.isParallelMatching()) {
+            ParallelMatch.match(list1, list2, matchSet, budget);
+            outputDebug(matchSet, doc1);
+            return matchSet;
         }
-        
+
         // Proceed bottom up on List 1
         for (NodeDepth nd1 : list1) {
-            Node n1 = nd1.getNode();
-            
+            Cancellation.checkpoint();
+            int compared = 0;
             for (NodeDepth nd2 : list2) {                   
-                Node n2 = nd2.getNode();
-                
-                if (compareNodes(n1, n2)) {
-                    matchSet.add(n1, n2);
+                compared++;
+                if (compareNodes(nd1, nd2)) {
+                    matchSet.add(nd1.getNode(), nd2.getNode());
                     
                     //Don't want to consider it again
                     list2.remove(nd2);
                     break;
                 }
             }
+            if (!budget.charge(compared)) {
+                break;
+            }
         }
 
         outputDebug(matchSet, doc1);
         return matchSet;
     }
 
+    /**
+     * Matches elements by key attribute, and removes them from the lists.
+     * 
+     * Elements of doc2 are indexed by key, so each element of doc1 is 
+     * matched in constant time. Where keys aren't unique, elements are
+     * matched in list order.
+     * 
+     * @param keys The key attributes, as in DiffOptions.setKeyAttributes
+     * @param list1 The prepared nodes of doc1, matched nodes removed
+     * @param list2 The prepared nodes of doc2, matched nodes removed
+     * @param matchSet The pairs found so far, added to
+     */
+    private static void matchKeyedElements(final List<String> keys,
+            final List<NodeDepth> list1, final List<NodeDepth> list2,
+            final NodePairs matchSet) {
+
+        Map<String, Deque<Node>> index = new HashMap<String, Deque<Node>>();
+        for (NodeDepth nd2 : list2) {
+            String key = getElementKey(nd2.getNode(), keys);
+            if (key != null) {
+                Deque<Node> keyed = index.get(key);
+                if (keyed == null) {
+                    keyed = new ArrayDeque<Node>();
+                    index.put(key, keyed);
+                }
+                keyed.add(nd2.getNode());
+            }
+        }
+        if (index.isEmpty()) {
+            return;
+        }
+
+        for (NodeDepth nd1 : list1) {
+            Deque<Node> keyed = index.get(getElementKey(nd1.getNode(), keys));
+            if (keyed != null && !keyed.isEmpty()) {
+                matchSet.add(nd1.getNode(), keyed.poll());
+            }
+        }
+
+        removeMatched(list1, matchSet);
+        removeMatched(list2, matchSet);
+    }
+
+    /**
+     * Gets the key identifying an element.
+     * 
+     * @param n The node
+     * @param keys The key attributes, as in DiffOptions.setKeyAttributes
+     * @return The key, unique to the element's name and key attribute, or
+     *         null if n isn't an element or has no key attribute
+     */
+    private static String getElementKey(final Node n, 
+            final List<String> keys) {
+
+        if (n.getNodeType() != Node.ELEMENT_NODE) {
+            return null;
+        }
+
+        Element e = (Element) n;
+        for (int i = 0; i < keys.size(); i++) {
+            String attr = keys.get(i);
+            int sep = attr.indexOf("/@");
+            if (sep >= 0) {
+                if (!attr.substring(0, sep).equals(NodeOps.getLocalName(e))) {
+                    continue;
+                }
+                attr = attr.substring(sep + 2);
+            }
+            if (e.hasAttribute(attr)) {
+                return Integer.toString(i) + '\0' + getExpandedName(e) 
+                    + '\0' + e.getAttribute(attr);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes matched nodes from a list.
+     * 
+     * @param list The prepared nodes of a document
+     * @param matchSet The pairs found so far
+     */
+    private static void removeMatched(final List<NodeDepth> list,
+            final NodePairs matchSet) {
+
+        List<NodeDepth> unmatched = new ArrayList<NodeDepth>(list.size());
+        for (NodeDepth nd : list) {
+            if (!matchSet.isMatched(nd.getNode())) {
+                unmatched.add(nd);
+            }
+        }
+        list.clear();
+        list.addAll(unmatched);
+    }
+
+    /**
+     * Pairs unmatched nodes that differ only in their content, so that they
+     * can be updated rather than deleted and inserted.
+     * 
+     * A relaxed tier to be run after easyMatch. Elements with the same name
+     * but different attributes are paired, so that their children need not
+     * be moved to a new element. Text nodes whose surroundings match are 
+     * paired so that only the changed characters need be in the delta.
+     * 
+     * First, if a text similarity is set in the options, text nodes are 
+     * paired with similar text anywhere in the other document. Then, 
+     * bottom up, an element is paired with the parent of a partner of
+     * one of its children. Then, top down, remaining elements and text nodes
+     * are paired in order with nodes of the same name under the partner of 
+     * their parent.
+     * 
+     * @param doc1 The original document
+     * @param matchSet The pairs found by easyMatch, added to
+     */
+    public static void matchChangedNodes(final Document doc1,
+            final NodePairs matchSet) {
+
+        double similarity = DiffFactory.getTextSimilarity();
+        if (similarity > 0) {
+            SimilarTextMatch.match(doc1, matchSet.getPartner(doc1), 
+                    matchSet, similarity);
+        }
+
+        matchChangedParents(doc1.getDocumentElement(), matchSet);
+
+        Deque<Node> parents = new ArrayDeque<Node>();
+        parents.add(doc1.getDocumentElement());
+        while (!parents.isEmpty()) {
+            Node p1 = parents.poll();
+            Node p2 = matchSet.getPartner(p1);
+            if (p2 != null) {
+                matchChangedChildren(p1, p2, matchSet);
+            }
+            for (Node k = p1.getFirstChild(); k != null; 
+                    k = k.getNextSibling()) {
+                if (k.getNodeType() == Node.ELEMENT_NODE) {
+                    parents.add(k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pairs unmatched elements with the parent of a partner of one of their
+     * children, in post-order so that children are paired first.
+     * 
+     * @param a The root of the subtree to pair
+     * @param matchSet The pairs found so far, added to
+     */
+    private static void matchChangedParents(final Node a,
+            final NodePairs matchSet) {
+
+        for (Node k = a.getFirstChild(); k != null; k = k.getNextSibling()) {
+            if (k.getNodeType() == Node.ELEMENT_NODE) {
+                matchChangedParents(k, matchSet);
+            }
+        }
+
+        if (!matchSet.isMatched(a)) {
+            for (Node k = a.getFirstChild(); k != null; 
+                    k = k.getNextSibling()) {
+                Node partner = matchSet.getPartner(k);
+                if (partner != null && isUnmatchedNamesake(
+                        a, partner.getParentNode(), matchSet)) {
+                    matchSet.add(a, partner.getParentNode());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pairs the unmatched element and text children of two matched nodes in
+     * order, by name.
+     * 
+     * @param p1 The parent in the original document
+     * @param p2 The partner of p1
+     * @param matchSet The pairs found so far, added to
+     */
+    private static void matchChangedChildren(final Node p1, final Node p2,
+            final NodePairs matchSet) {
+
+        Map<String, Deque<Node>> unmatched = null;
+        for (Node a = p1.getFirstChild(); a != null; a = a.getNextSibling()) {
+            String key = getChangeKey(a);
+            if (key == null || matchSet.isMatched(a)) {
+                continue;
+            }
+
+            //Only gather p2's children if p1 has an unmatched node
+            if (unmatched == null) {
+                unmatched = new HashMap<String, Deque<Node>>();
+                for (Node b = p2.getFirstChild(); b != null; 
+                        b = b.getNextSibling()) {
+                    String bKey = getChangeKey(b);
+                    if (bKey != null && !matchSet.isMatched(b)) {
+                        Deque<Node> named = unmatched.get(bKey);
+                        if (named == null) {
+                            named = new ArrayDeque<Node>();
+                            unmatched.put(bKey, named);
+                        }
+                        named.add(b);
+                    }
+                }
+            }
+
+            Deque<Node> named = unmatched.get(key);
+            if (named != null && !named.isEmpty()) {
+                matchSet.add(a, named.poll());
+            }
+        }
+    }
+
+    /**
+     * Gets the key nodes must share to be paired by the relaxed tier.
+     * 
+     * @param n The node
+     * @return The expanded name of elements, the node name of text and CDATA
+     *         nodes, or null if the node can't be paired
+     */
+    private static String getChangeKey(final Node n) {
+
+        String key = null;
+        if (n.getNodeType() == Node.ELEMENT_NODE) {
+            key = getExpandedName(n);
+        } else if (DOMOps.isText(n) && !Fmes.isBanned(n)) {
+            key = n.getNodeName();
+        }
+        return key;
+    }
+
+    /**
+     * Checks if b is an unmatched element with the same name as a.
+     * 
+     * @param a An element
+     * @param b The node to check, may be null
+     * @param matchSet The pairs found so far
+     * @return True if b could be paired with a
+     */
+    private static boolean isUnmatchedNamesake(final Node a, final Node b,
+            final NodePairs matchSet) {
+
+        return b != null && b.getNodeType() == Node.ELEMENT_NODE
+            && !matchSet.isMatched(b)
+            && getExpandedName(a).equals(getExpandedName(b));
+    }
+
+    /**
+     * Gets the namespace and local name of a node as a single String.
+     * 
+     * @param n The node
+     * @return The expanded name of n
+     */
+    private static String getExpandedName(final Node n) {
+
+        String ns = n.getNamespaceURI();
+        if (ns == null) {
+            ns = "";
+        }
+        return ns + '\0' + NodeOps.getLocalName(n);
+    }
+
     /**
      * Outputs information on the matches for debug purposes.
      * 
@@ -128,125 +451,49 @@ public final class Match {
             final Document doc) {
         
         if (DiffFactory.isDebug()) {
+            PrintStream err = DiffFactory.getDebugStream();
             NodeIterator ni = ((DocumentTraversal) doc).createNodeIterator(
                     doc.getDocumentElement(), NodeFilter.SHOW_ALL, null, false);
  
             Node n;
             while ((n = ni.nextNode()) != null) {
-                System.err.print(DOMOps.getNodeAsString(n));
+                err.print(DOMOps.getNodeAsString(n));
                 if (matchSet.isMatched(n)) {
-                    System.err.println(" matches "
+                    err.println(" matches "
                             + DOMOps.getNodeAsString(matchSet.getPartner(n)));
                 } else {
-                    System.err.println(" unmatched");
+                    err.println(" unmatched");
                 }
             }
             
             ni.detach();
-            System.err.println();
+            err.println();
         }
     }
     
     /**
      * Compares two elements to determine whether they should be matched.
      * 
-     * xmlns attributes are ignored.
-     * 
-     * TODO: This method is critical in getting good results. Will need to be
-     * tweaked. In addition, it may be an idea to allow certain doc types to
-     * override it. Consider comparing position, matching of kids etc.
+     * Elements match when their element keys are equal, as in the fast
+     * match, so namespace, local name and non xmlns attributes must agree.
      * 
      * @param a
      *            First element
      * @param b
-     *            Potential match for b
+     *            Potential match for a
      * @return true if nodes match, false otherwise
      */
     public static boolean compareElements(final Node a, final Node b) {
 
-        boolean ret = false;
-        
-        if (equalsOrBothNullOrEmpty(a.getNamespaceURI(), b.getNamespaceURI())) {
-                
-            if (NodeOps.getLocalName(a).equals(NodeOps.getLocalName(b))) {
-
-                //Compare attributes
-
-                //Attributes are equal until we find one that doesn't match
-                ret = true;
-
-                NamedNodeMap aAttrs = a.getAttributes();
-                NamedNodeMap bAttrs = b.getAttributes();
-
-                int noAAttrs = 0;
-                if (aAttrs != null) {
-                    noAAttrs = aAttrs.getLength();
-                }
-       
-                int i = 0;
-                int numANonXMLNSAttrs = 0;
-                while (ret && (i < noAAttrs)) {
-                    // Check if attr exists in other tag if not xmlns
-                    Attr aItem = (Attr) aAttrs.item(i);
-                    if (!NodeOps.isNamespaceAttr(aItem)) {
-                        numANonXMLNSAttrs++;
-                        
-                        Attr bItem = (Attr) bAttrs.getNamedItemNS(
-                                aItem.getNamespaceURI(), 
-                                aItem.getLocalName()); 
-                        if (bItem == null || !bItem.getNodeValue().equals(
-                                aAttrs.item(i).getNodeValue())) {
-                            ret = false;
-                        } 
-                    }
-                    i++;
-                }
-                
-                //Finally we need to check there are no extra attributes in b
-                //that are not xmlns attributes
-                if (ret != false) {
-                    int noBAttrs = 0;
-                    int numBNonXMLNSAttrs = 0;
-                    if (bAttrs != null) {
-                        noBAttrs = bAttrs.getLength();
-                    }
-                    for (i = 0; i < noBAttrs; i++) {
-                        if (!NodeOps.isNamespaceAttr(bAttrs.item(i))) {
-                            numBNonXMLNSAttrs++;
-                        }
-                    }
-
-                    if (numBNonXMLNSAttrs != numANonXMLNSAttrs) {
-                        ret = false;
-                    }
-                }
-                
-            }
-        }
-        
-        return ret;
-    }
-
-    /**
-     * Helper method just checks if String are equal or both null or empty.
-     * 
-     * @param a String to compare to b
-     * @param b String to compare to a
-     * @return True if Strings equal or both are null or empty
-     */
-    private static boolean equalsOrBothNullOrEmpty(String a, String b) {
-        
-        if (a == null || a.trim() == "") {
-            return (b == null || b.trim() == "");
-        } 
-        
-        return a.equals(b);
+        return new NodeDepth(a, 0).getElementKey().equals(
+                new NodeDepth(b, 0).getElementKey());
     }
 
     /**
      * Compares two text nodes to determine if they should be matched.
      * 
-     * Takes into account whitespace options.
+     * Takes into account whitespace and case options, which have been 
+     * applied to the cached text keys.
      * 
      * @param a
      *            First node
@@ -255,45 +502,12 @@ public final class Match {
      * @return True if nodes match, false otherwise
      */
 
-    private static boolean compareTextNodes(final Node a, final Node b) {
-
-        String aString = a.getNodeValue();
-        String bString = b.getNodeValue();
-
-        if (DiffFactory.isIgnoreAllWhitespace()) {
-            // Remove whitespace from nodes before comparison
-            // TODO: Check nextToken doesn't skip first
-            StringTokenizer st = new StringTokenizer(aString);
-            StringBuffer stringBuf = new StringBuffer(aString.length());
-            
-            while (st.hasMoreTokens()) {
-                stringBuf.append(st.nextToken());
-            }
-            aString = stringBuf.toString();
-
-            st = new StringTokenizer(bString);
-            stringBuf = new StringBuffer(bString.length());         
-            while (st.hasMoreTokens()) {
-                stringBuf.append(st.nextToken());
-            }
-            bString = stringBuf.toString();
-            
-        } else if (DiffFactory.isIgnoreLeadingWhitespace()) {
-            // Ignore leading ws
-            // just call trim
-            aString = aString.trim();
-            bString = bString.trim();
-        }
+    private static boolean compareTextNodes(final NodeDepth a,
+            final NodeDepth b) {
 
-        // Check case optn
-        boolean ret;
-        if (DiffFactory.isIgnoreCase()) {
-            ret = (aString.equalsIgnoreCase(bString));
-        } else {
-            ret = (aString.equals(bString));
-        }
-        
-        return ret;
+        String aKey = a.getTextKey();
+        String bKey = b.getTextKey();
+        return aKey.hashCode() == bKey.hashCode() && aKey.equals(bKey);
     }
 
     /**
@@ -302,25 +516,30 @@ public final class Match {
      * TODO: Check if more comparisons are needed
      * TODO: Consider moving out to a separate class, implementing an interface
      * 
-     * @param a
+     * @param ad
      *            first node
-     * @param b
+     * @param bd
      *            potential match for a
      * @return true if nodes match, false otherwise
      */
-    private static boolean compareNodes(final Node a, final Node b) {
+    private static boolean compareNodes(final NodeDepth ad,
+            final NodeDepth bd) {
 
         boolean ret = false;
+        Node a = ad.getNode();
+        Node b = bd.getNode();
 
         if (a.getNodeType() == b.getNodeType()) { 
 
             switch (a.getNodeType()) {
                 case Node.ELEMENT_NODE :
-                    ret = compareElements(a, b);
+                    //Fingerprints reject almost all mismatches cheaply
+                    ret = (ad.getFingerprint() == bd.getFingerprint()
+                            && ad.getElementKey().equals(bd.getElementKey()));
                     break;
                 case Node.TEXT_NODE:
                 case Node.CDATA_SECTION_NODE:
-                    ret = compareTextNodes(a, b);
+                    ret = compareTextNodes(ad, bd);
                     break;
                 case Node.DOCUMENT_NODE :
                     //Always match document nodes
@@ -335,37 +554,123 @@ public final class Match {
     }
 
     /**
-     * Returns a list of Nodes sorted according to their depths.
+     * Prepares a document for matching.
      * 
-     * Does *NOT* include root or documentElement
+     * Normalizes the document and returns its nodes ordered by depth, 
+     * deepest first and in document order within each depth. Only depends
+     * on the given document, so the two documents can be prepared 
+     * concurrently.
      * 
-     * TreeSet is sorted in reverse order of depth according to
-     * NodeInfoComparator.
+     * Does *NOT* include root, documentElement or doctype. Element 
+     * fingerprints are computed here; text keys depend on the options so are
+     * computed during matching.
      * 
-     * @param doc The document to be initialised and ordered.
+     * @param doc The document to be prepared
      * @return A depth-ordered list of the nodes in the doc.
      */
-    private static List<NodeDepth> initialiseAndOrderNodes(
-            final Document doc) {
+    public static List<NodeDepth> prepare(final Document doc) {
+        return prepare(doc, null, null);
+    }
 
-        NodeIterator ni = ((DocumentTraversal) doc).createNodeIterator(
-                doc, NodeFilter.SHOW_ALL, null, false);
-
-        List<NodeDepth> depthSorted = new ArrayList<NodeDepth>();
-             
-        Node n;
-        while ((n = ni.nextNode()) != null) {
-            if (!(NodeOps.checkIfSameNode(doc, n) 
-                    || NodeOps.checkIfSameNode(doc.getDocumentElement(), n)
-                    || n.getNodeType() == Node.DOCUMENT_TYPE_NODE)) {
-                depthSorted.add(new NodeDepth(n));
+    /**
+     * Prepares a document for matching, optionally reusing the keys of an
+     * identical document.
+     * 
+     * @param doc The document to be prepared
+     * @param original The nodes of an already prepared, identical document 
+     *        in document order, or null. If given, doc is taken to be
+     *        normalized already and the element keys are copied.
+     * @param docOrder If not null, the nodes are also added to it in 
+     *        document order
+     * @return A depth-ordered list of the nodes in the doc.
+     */
+    static List<NodeDepth> prepare(final Document doc,
+            final Iterator<NodeDepth> original, 
+            final List<NodeDepth> docOrder) {
+
+        if (original == null && !DiffFactory.isPreserveOriginal()) {
+            doc.getDocumentElement().normalize();
+        }
+
+        //Bucket nodes by depth in one pass, rather than walking up from
+        //every node to find its depth and then sorting
+        List<List<NodeDepth>> byDepth = new ArrayList<List<NodeDepth>>();
+        int count = 0;
+        Element root = doc.getDocumentElement();
+        for (Node k = doc.getFirstChild(); k != null; k = k.getNextSibling()) {
+            if (k == root) {
+                count += addDescendants(root, 1, byDepth, original, docOrder);
+            } else if (k.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+                count += addNode(k, 1, byDepth, original, docOrder);
             }
         }
-        
-        ni.detach();
-        Collections.sort(depthSorted, new NodeDepthComparator());
+
+        List<NodeDepth> depthSorted = new ArrayList<NodeDepth>(count);
+        for (int d = byDepth.size() - 1; d >= 0; d--) {
+            depthSorted.addAll(byDepth.get(d));
+        }
         
         return depthSorted;
     }
-}
 
+    /**
+     * Adds a node and its descendants to the depth buckets.
+     * 
+     * @param n The node to add
+     * @param depth The depth of the node
+     * @param byDepth The buckets, indexed by depth
+     * @param original The nodes of an identical document, or null
+     * @param docOrder The nodes in document order, or null
+     * @return The number of nodes added
+     */
+    private static int addNode(final Node n, final int depth,
+            final List<List<NodeDepth>> byDepth,
+            final Iterator<NodeDepth> original, 
+            final List<NodeDepth> docOrder) {
+
+        while (byDepth.size() <= depth) {
+            byDepth.add(new ArrayList<NodeDepth>());
+        }
+        NodeDepth nd;
+        if (original != null) {
+            nd = new NodeDepth(n, original.next());
+        } else {
+            nd = new NodeDepth(n, depth);
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                //Compute now, as part of the parse task
+                nd.getFingerprint();
+            } else {
+                //Expands the value if the parser defers it, as the nodes
+                //may be read from several threads when matching
+                n.getNodeValue();
+            }
+        }
+        byDepth.get(depth).add(nd);
+        if (docOrder != null) {
+            docOrder.add(nd);
+        }
+        return 1 + addDescendants(n, depth, byDepth, original, docOrder);
+    }
+
+    /**
+     * Adds the descendants of a node to the depth buckets.
+     * 
+     * @param n The parent node
+     * @param depth The depth of the parent
+     * @param byDepth The buckets, indexed by depth
+     * @param original The nodes of an identical document, or null
+     * @param docOrder The nodes in document order, or null
+     * @return The number of nodes added
+     */
+    private static int addDescendants(final Node n, final int depth,
+            final List<List<NodeDepth>> byDepth,
+            final Iterator<NodeDepth> original, 
+            final List<NodeDepth> docOrder) {
+
+        int count = 0;
+        for (Node k = n.getFirstChild(); k != null; k = k.getNextSibling()) {
+            count += addNode(k, depth + 1, byDepth, original, docOrder);
+        }
+        return count;
+    }
+}
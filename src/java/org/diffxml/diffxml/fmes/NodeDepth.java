@@ -19,6 +19,12 @@ limitations under the License.
 
 package org.diffxml.diffxml.fmes;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.diffxml.diffxml.DiffFactory;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
 /**
@@ -38,6 +44,37 @@ public class NodeDepth {
      */
     private final Node mNode;
 
+    /**
+     * Normalized text of a text node, computed when first needed.
+     */
+    private String mTextKey;
+
+    /**
+     * Canonical form of an element's name, namespace and attributes,
+     * computed when first needed.
+     */
+    private String mElementKey;
+
+    /**
+     * 64-bit hash of mElementKey.
+     */
+    private long mFingerprint;
+
+    /**
+     * FNV-1a 64-bit offset basis.
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    /**
+     * FNV-1a 64-bit prime.
+     */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Separator used in element keys. Can't occur in XML names or values.
+     */
+    private static final char SEPARATOR = '\u0000';
+
     /**
      * Create a NodeDepth for the given node.
      *
@@ -51,7 +88,42 @@ public class NodeDepth {
         mNode = node;
         mDepth = calculateDepth(mNode);
     }
+
+    /**
+     * Create a NodeDepth for a node of known depth.
+     *
+     * @param node The node
+     * @param depth The depth of the node, the root Node being at depth 0
+     */
+    NodeDepth(final Node node, final int depth) {
+        
+        if (node == null) {
+            throw new NullPointerException("Node cannot be null");
+        }
+        mNode = node;
+        mDepth = depth;
+    }
     
+    /**
+     * Create a NodeDepth for a copy of an already prepared node.
+     *
+     * Takes the depth and element key of the original, which must have 
+     * been computed, rather than computing them again.
+     *
+     * @param node The copy
+     * @param original The prepared original
+     */
+    NodeDepth(final Node node, final NodeDepth original) {
+        
+        if (node == null) {
+            throw new NullPointerException("Node cannot be null");
+        }
+        mNode = node;
+        mDepth = original.mDepth;
+        mElementKey = original.mElementKey;
+        mFingerprint = original.mFingerprint;
+    }
+
     /**
      * Calculates the depth of a Node.
      * 
@@ -117,6 +189,110 @@ public class NodeDepth {
         return mDepth;
     }
 
+    /**
+     * Returns the text of a text or CDATA node normalized according to the
+     * current options.
+     *
+     * Computed once and cached, so should only be called while the options
+     * of a single diff are in effect.
+     *
+     * @return The normalized text
+     */
+    public final String getTextKey() {
+
+        if (mTextKey == null) {
+            mTextKey = DiffFactory.getOptions().normalizeText(
+                    mNode.getNodeValue());
+        }
+        return mTextKey;
+    }
+
+    /**
+     * Returns the canonical form of an element for matching.
+     *
+     * Holds the namespace, local name and the non xmlns attributes sorted
+     * by namespace and name. Two elements match, as in 
+     * Match.compareElements, exactly when their keys are equal.
+     *
+     * @return The element key
+     */
+    public final String getElementKey() {
+
+        if (mElementKey == null) {
+            computeElementKey();
+        }
+        return mElementKey;
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the element key.
+     *
+     * Elements with different fingerprints never match.
+     *
+     * @return The fingerprint
+     */
+    public final long getFingerprint() {
+
+        if (mElementKey == null) {
+            computeElementKey();
+        }
+        return mFingerprint;
+    }
+
+    /**
+     * Computes the element key and its fingerprint.
+     */
+    private void computeElementKey() {
+
+        NamedNodeMap attrs = mNode.getAttributes();
+        int numAttrs = 0;
+        if (attrs != null) {
+            numAttrs = attrs.getLength();
+        }
+
+        List<String> attrKeys = new ArrayList<String>(numAttrs);
+        for (int i = 0; i < numAttrs; i++) {
+            Node attr = attrs.item(i);
+            if (!NodeOps.isNamespaceAttr(attr)) {
+                attrKeys.add(nullToEmpty(attr.getNamespaceURI()) + SEPARATOR
+                        + NodeOps.getLocalName(attr) + SEPARATOR
+                        + attr.getNodeValue());
+            }
+        }
+        Collections.sort(attrKeys);
+
+        StringBuilder key = new StringBuilder();
+        key.append(nullToEmpty(mNode.getNamespaceURI())).append(SEPARATOR);
+        key.append(NodeOps.getLocalName(mNode));
+        for (String attrKey : attrKeys) {
+            key.append(SEPARATOR).append(attrKey);
+        }
+
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= FNV_PRIME;
+        }
+
+        mFingerprint = hash;
+        mElementKey = key.toString();
+    }
+
+    /**
+     * Converts null to the empty string.
+     *
+     * @param s The string, may be null
+     * @return The string or ""
+     */
+    private static String nullToEmpty(final String s) {
+
+        String ret = s;
+        if (ret == null) {
+            ret = "";
+        }
+        return ret;
+    }
+
     /**
      * Returns the underlying node.
      *
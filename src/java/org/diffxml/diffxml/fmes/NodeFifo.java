@@ -94,6 +94,9 @@ public class NodeFifo {
     /**
      * Adds the children of a node to the fifo.
      *
+     * Doctype nodes are left out, as they can't be edited effectively 
+     * with DOM nor selected by XPath.
+     *
      * TODO: Check use of isBanned()
      * 
      * @param x    the node whose children are to be added
@@ -104,7 +107,8 @@ public class NodeFifo {
 
         if (kids != null) {
             for (int i = 0; i < kids.getLength(); i++) {
-                if (Fmes.isBanned(kids.item(i))) {
+                if (Fmes.isBanned(kids.item(i)) || kids.item(i).getNodeType()
+                        == Node.DOCUMENT_TYPE_NODE) {
                     continue;
                 }
 
@@ -112,15 +112,26 @@ public final class NodeOps {
      * @return The XPath to the node as a String
      */
     public static String getXPath(final Node n) {
+        return getXPath(n, new WorkingTree(false));
+    }
+
+    /**
+     * Calculates an XPath that uniquely identifies the given node as seen
+     * through a working tree.
+     * 
+     * @param n The node to calculate the XPath for.
+     * @param tree The tree the node is in
+     * @return The XPath to the node as a String
+     */
+    public static String getXPath(final Node n, final WorkingTree tree) {
 
- 
         String xpath;
         
         if (n.getNodeType() == Node.ATTRIBUTE_NODE) {
             //Slightly special case for attributes as they are considered to
             //have no parent
             ((Attr) n).getOwnerElement();
-            xpath = getXPath(((Attr) n).getOwnerElement())
+            xpath = getXPath(((Attr) n).getOwnerElement(), tree)
                  + "/@" + n.getNodeName();
             
         } else if (n.getNodeType() == Node.DOCUMENT_NODE) {
@@ -131,16 +142,16 @@ public final class NodeOps {
             throw new IllegalArgumentException(
                     "DocumentType nodes cannot be identified with XPath");
             
-        } else if (n.getParentNode().getNodeType() == Node.DOCUMENT_NODE) {
+        } else if (tree.getParent(n).getNodeType() == Node.DOCUMENT_NODE) {
             
-            ChildNumber cn = new ChildNumber(n);
+            ChildNumber cn = new ChildNumber(n, tree);
             xpath = "/node()[" + cn.getXPath() + "]"; 
             
         } else {
 
-            ChildNumber cn = new ChildNumber(n);
+            ChildNumber cn = new ChildNumber(n, tree);
 
-            xpath = getXPath(n.getParentNode()) 
+            xpath = getXPath(tree.getParent(n), tree) 
                 + "/node()[" + cn.getXPath() + "]";
         }
         
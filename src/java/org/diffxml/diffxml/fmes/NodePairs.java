@@ -20,27 +20,32 @@ limitations under the License.
 package org.diffxml.diffxml.fmes;
 
 import org.w3c.dom.Node;
-import java.util.ArrayList;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
  * Class to hold pairs of nodes.
- * TODO: Test if any performance benefit from using UserData.
+ * 
+ * The pairs are kept to one side rather than marked on the nodes, so that
+ * the documents aren't modified.
  */
 public class NodePairs {
 
     /**
-     * Key for user data on whether the node is matched.
+     * Maps each node to its partner, both ways round. If a node is added
+     * more than once, the first partner is kept.
      */
-    private static final String MATCHED = "matched";
-    
+    private final Map<Node, Node> mPartners = 
+        new IdentityHashMap<Node, Node>();
+
     /**
-     * Internal list to store nodes.
+     * The number of nodes added, counting each time a node is added.
      */
-    private ArrayList<Node> mPairs = new ArrayList<Node>();
+    private int mSize = 0;
 
     /**
      * Adds a pair of nodes to the set.
-     * Sets UserData as matched.
      * 
      * @param x
      *            first node
@@ -53,50 +58,23 @@ public class NodePairs {
             throw new NullPointerException("Nodes cannot be null");
         }
         
-        mPairs.add(x);
-        mPairs.add(y);
-        setMatched(x, y);
-    }
-
-    /**
-     * Mark the node as being "matched".
-     *
-     * @param n the node to mark as "matched"
-     */
-    private static void setMatched(final Node n) {
-        n.setUserData(MATCHED, true, null);
+        if (!mPartners.containsKey(x)) {
+            mPartners.put(x, y);
+        }
+        if (!mPartners.containsKey(y)) {
+            mPartners.put(y, x);
+        }
+        mSize += 2;
     }
 
     /**
-     * Check if node is marked "matched".
+     * Check if node is matched.
      *
-     * Made static so that I can use a instance method later if it is faster or
-     * better.
-     * 
      * @param n node to check
-     * @return true if marked "matched", false otherwise
+     * @return true if matched, false otherwise
      */
     public final boolean isMatched(final Node n) {
-        
-        boolean ret;
-        Object data = n.getUserData(MATCHED);
-        if (data == null) {
-            ret = false;
-        } else {
-            ret = (Boolean) data;
-        }
-        return ret;
-    }
-    
-    /**
-     * Mark a pair of nodes as matched.
-     *
-     * @param nodeA  The unmatched partner of nodeB
-     * @param nodeB  The unmatched partner of nodeA
-     */
-    private static void setMatched(final Node nodeA, final Node nodeB) {
-        setMatched(nodeA);
-        setMatched(nodeB);
+        return mPartners.containsKey(n);
     }
     
     /**
@@ -108,20 +86,7 @@ public class NodePairs {
      * @return the partner of n.
      */
     public final Node getPartner(final Node n) {
-
-        Node ret = null;
-        int in = mPairs.indexOf(n);
-
-        if (in != -1) {
-
-            if ((in % 2) == 1) {
-                ret = mPairs.get(--in);
-            } else {
-                ret = mPairs.get(++in);
-            }
-        }
-
-        return ret;
+        return mPartners.get(n);
     }
 
     /**
@@ -132,7 +97,7 @@ public class NodePairs {
      * @return The number of nodes stored.
      */
     public final int size() {
-        return mPairs.size();
+        return mSize;
     }
 
     /**
@@ -142,12 +107,10 @@ public class NodePairs {
      */
     public final void remove(final Node n) {
         
-        Node nMatch = getPartner(n);
-        
-        nMatch.setUserData(MATCHED, null, null);
-        n.setUserData(MATCHED, null, null);
-        
-        mPairs.remove(getPartner(n));
-        mPairs.remove(n);
+        Node nMatch = mPartners.remove(n);
+        if (nMatch != null) {
+            mPartners.remove(nMatch);
+            mSize -= 2;
+        }
     }
 }
@@ -20,12 +20,12 @@ limitations under the License.
 package org.diffxml.diffxml.fmes;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
-import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.Cancellation;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -55,11 +55,15 @@ public final class NodeSequence {
         if (set1 != null && set2 != null) {
             List<Node> resultSet = new ArrayList<Node>(set1.getLength());
 
-            List<Node> set2list = Arrays.asList(
-                    DOMOps.getElementsOfNodeList(set2));
+            Set<Node> set2nodes = Collections.newSetFromMap(
+                    new IdentityHashMap<Node, Boolean>());
+            for (int i = 0; i < set2.getLength(); i++) {
+                set2nodes.add(set2.item(i));
+            }
 
             for (int i = 0; i < set1.getLength(); i++) {
-                if (set2list.contains(matchings.getPartner(set1.item(i)))) {
+                Node partner = matchings.getPartner(set1.item(i));
+                if (partner != null && set2nodes.contains(partner)) {
                     resultSet.add(set1.item(i));
                 }            
             }
@@ -75,6 +79,9 @@ public final class NodeSequence {
      * "Matched" Nodes are considered equal.
      * The returned nodes are from s1.
      * 
+     * The common prefix and suffix of the sequences are always part of the
+     * LCS found, so only the part between them is put in the table.
+     * 
      * TODO: Check for better algorithms
      * 
      * @param s1 First Node sequence 
@@ -84,13 +91,53 @@ public final class NodeSequence {
      */
     public static List<Node> getLCS(final Node[] s1, final Node[] s2, 
             final NodePairs matchings) {
+        return getLCS(s1, s2, matchings, WorkBudget.UNLIMITED);
+    }
+
+    /**
+     * Gets the Longest Common Subsequence for the given Node arrays, within
+     * a work budget.
+     * 
+     * Each cell of the table is a unit of work. If the table doesn't fit in
+     * the budget, only the common prefix and suffix are returned, which 
+     * are a common subsequence but not necessarily the longest.
+     * 
+     * @param s1 First Node sequence 
+     * @param s2 Second Node sequence
+     * @param matchings Set of matching Nodes
+     * @param budget The budget to charge the table to
+     * @return A list of Nodes representing a common subsequence
+     */
+    public static List<Node> getLCS(final Node[] s1, final Node[] s2, 
+            final NodePairs matchings, final WorkBudget budget) {
        
-        int[][] num = new int[s1.length + 1][s2.length + 1];
+        int prefix = 0;
+        int max = Math.min(s1.length, s2.length);
+        while (prefix < max && NodeOps.checkIfSameNode(
+                matchings.getPartner(s1[prefix]), s2[prefix])) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix && NodeOps.checkIfSameNode(
+                matchings.getPartner(s1[s1.length - suffix - 1]), 
+                s2[s2.length - suffix - 1])) {
+            suffix++;
+        }
 
-        for (int i = 1; i <= s1.length; i++) {
-            for (int j = 1; j <= s2.length; j++) {
+        int len1 = s1.length - prefix - suffix;
+        int len2 = s2.length - prefix - suffix;
+        if (!budget.charge((long) len1 * len2)) {
+            len1 = 0;
+            len2 = 0;
+        }
+        int[][] num = new int[len1 + 1][len2 + 1];
+
+        for (int i = 1; i <= len1; i++) {
+            Cancellation.checkpoint();
+            for (int j = 1; j <= len2; j++) {
                 if (NodeOps.checkIfSameNode(
-                        matchings.getPartner(s1[i - 1]), s2[j - 1])) {
+                        matchings.getPartner(s1[prefix + i - 1]), 
+                        s2[prefix + j - 1])) {
                     num[i][j] = 1 + num[i - 1][j - 1];
                 } else {
                     num[i][j] = Math.max(num[i - 1][j], num[i][j - 1]);
@@ -98,18 +145,22 @@ public final class NodeSequence {
             }
         }
 
-        //Length of LCS is num[s1.length][s2.length]);
+        //Length of LCS is prefix + num[len1][len2] + suffix
 
-        int s1position = s1.length; 
-        int s2position = s2.length;
+        int s1position = len1; 
+        int s2position = len2;
         
-        List<Node> result = new LinkedList<Node>();
+        List<Node> result = new ArrayList<Node>(
+                prefix + num[len1][len2] + suffix);
+        for (int i = s1.length - 1; i >= s1.length - suffix; i--) {
+            result.add(s1[i]);
+        }
 
         while (s1position != 0 && s2position != 0) {
             if (NodeOps.checkIfSameNode(
-                    matchings.getPartner(s1[s1position - 1]), 
-                    s2[s2position - 1])) {
-                result.add(s1[s1position - 1]);
+                    matchings.getPartner(s1[prefix + s1position - 1]), 
+                    s2[prefix + s2position - 1])) {
+                result.add(s1[prefix + s1position - 1]);
                 s1position--;
                 s2position--;
             } else if (num[s1position][s2position - 1]
@@ -119,6 +170,9 @@ public final class NodeSequence {
                 s1position--;
             }
         }
+        for (int i = prefix - 1; i >= 0; i--) {
+            result.add(s1[i]);
+        }
         
         //TODO: Check if required for our needs
         Collections.reverse(result);
@@ -0,0 +1,376 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml.fmes;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.diffxml.diffxml.Cancellation;
+import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
+import org.w3c.dom.Node;
+
+/**
+ * Runs the fast match of Match.easyMatch on a fork-join pool.
+ *
+ * Nodes of doc1 at the same depth are matched in parallel, a level at a 
+ * time, deepest first. Nodes match exactly when their match keys are 
+ * equal, so the candidates in doc2 for a node are those with its key, in
+ * the order easyMatch would try them.
+ *
+ * A node claims the first candidate not claimed by a node earlier in 
+ * list1, taking it from a later node if need be, which then carries on 
+ * looking from the next candidate. Each candidate therefore ends up with
+ * the partner easyMatch gives it, however the tasks are scheduled.
+ *
+ * @author Adrian Mouat
+ */
+final class ParallelMatch {
+
+    /** Number of nodes below which a task isn't split. **/
+    private static final int THRESHOLD = 512;
+
+    /** Separates the node type from the rest of a match key. **/
+    private static final char SEPARATOR = '\u0000';
+
+    /** Nodes of doc1, deepest first. **/
+    private final NodeDepth[] mNodes1;
+
+    /** Nodes of doc2, in the order candidates are tried. **/
+    private final NodeDepth[] mNodes2;
+
+    /** The candidates for each node of doc1, or null if it has none. **/
+    private final Candidates[] mCandidates;
+
+    /** 
+     * For each node of doc2, one more than the index in mNodes1 of the 
+     * node claiming it, or 0 if unclaimed. 
+     */
+    private final AtomicIntegerArray mClaims;
+
+    /** The options of the diff, for the pool's threads. **/
+    private final DiffOptions mOptions;
+
+    /**
+     * Creates a matcher for prepared documents.
+     *
+     * @param list1 The prepared nodes of doc1
+     * @param list2 The prepared nodes of doc2
+     */
+    private ParallelMatch(final List<NodeDepth> list1, 
+            final List<NodeDepth> list2) {
+
+        mNodes1 = list1.toArray(new NodeDepth[list1.size()]);
+        mNodes2 = list2.toArray(new NodeDepth[list2.size()]);
+        mCandidates = new Candidates[mNodes1.length];
+        mClaims = new AtomicIntegerArray(mNodes2.length);
+        mOptions = DiffFactory.getOptions();
+    }
+
+    /**
+     * Matches the nodes of two prepared documents.
+     *
+     * Gives the same pairs as the loop in Match.easyMatch. Each level 
+     * charges its nodes to the budget, and if it runs out the deeper levels
+     * already matched are kept and the rest left unmatched.
+     *
+     * @param list1 The prepared nodes of doc1
+     * @param list2 The prepared nodes of doc2
+     * @param matchSet The pairs found so far, added to
+     * @param budget The budget to charge the matching to
+     */
+    static void match(final List<NodeDepth> list1, 
+            final List<NodeDepth> list2, final NodePairs matchSet,
+            final WorkBudget budget) {
+        new ParallelMatch(list1, list2).match(matchSet, budget);
+    }
+
+    /**
+     * Runs the match.
+     *
+     * @param matchSet The pairs found so far, added to
+     * @param budget The budget to charge the matching to
+     */
+    private void match(final NodePairs matchSet, final WorkBudget budget) {
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        String[] keys2 = new String[mNodes2.length];
+        pool.invoke(new KeyTask(keys2, 0, keys2.length));
+
+        Map<String, Candidates> index = new HashMap<String, Candidates>();
+        for (int i = 0; i < keys2.length; i++) {
+            Candidates c = index.get(keys2[i]);
+            if (c == null) {
+                c = new Candidates();
+                index.put(keys2[i], c);
+            }
+            c.add(i);
+        }
+
+        int start = 0;
+        while (start < mNodes1.length) {
+            Cancellation.checkpoint();
+            int end = start + 1;
+            int depth = mNodes1[start].getDepth();
+            while (end < mNodes1.length && mNodes1[end].getDepth() == depth) {
+                end++;
+            }
+            if (!budget.charge(end - start)) {
+                break;
+            }
+            pool.invoke(new LevelTask(index, start, end));
+
+            //Let the next level skip candidates that are already claimed
+            for (int i = start; i < end; i++) {
+                if (mCandidates[i] != null) {
+                    mCandidates[i].skipClaimed(mClaims);
+                }
+            }
+            start = end;
+        }
+
+        int[] partners = new int[mNodes1.length];
+        for (int j = 0; j < mNodes2.length; j++) {
+            int claim = mClaims.get(j);
+            if (claim > 0) {
+                partners[claim - 1] = j + 1;
+            }
+        }
+        for (int i = 0; i < mNodes1.length; i++) {
+            if (partners[i] > 0) {
+                matchSet.add(mNodes1[i].getNode(), 
+                        mNodes2[partners[i] - 1].getNode());
+            }
+        }
+    }
+
+    /**
+     * Gets the key of a node, equal for nodes Match.compareNodes matches.
+     *
+     * @param nd The node
+     * @return The match key
+     */
+    private static String getMatchKey(final NodeDepth nd) {
+
+        Node n = nd.getNode();
+        String key;
+        switch (n.getNodeType()) {
+            case Node.ELEMENT_NODE :
+                key = nd.getElementKey();
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                key = nd.getTextKey();
+                break;
+            default :
+                key = n.getNodeValue();
+        }
+        return Integer.toString(n.getNodeType()) + SEPARATOR + key;
+    }
+
+    /**
+     * Claims a candidate for a node of doc1, and for any node it takes a 
+     * candidate from.
+     *
+     * @param node The index of the node in mNodes1
+     */
+    private void claim(final int node) {
+
+        int claimant = node;
+        Candidates c = mCandidates[node];
+        int next = c.mStart;
+        while (claimant >= 0) {
+            int displaced = -1;
+            while (displaced < 0 && next < c.mSize) {
+                int j = c.mNodes[next];
+                int current = mClaims.get(j);
+                if (current == 0 || current > claimant + 1) {
+                    if (mClaims.compareAndSet(j, current, claimant + 1)) {
+                        //Done, unless a later node had the candidate
+                        displaced = current - 1;
+                        next++;
+                        if (displaced < 0) {
+                            return;
+                        }
+                    }
+                } else {
+                    next++;
+                }
+            }
+            claimant = displaced;
+        }
+    }
+
+    /**
+     * The nodes of doc2 with the same match key.
+     */
+    private static final class Candidates {
+
+        /** Indexes in mNodes2 of the candidates, in order. **/
+        private int[] mNodes = new int[1];
+
+        /** Number of candidates. **/
+        private int mSize = 0;
+
+        /** Index of the first candidate that may be unclaimed. **/
+        private int mStart = 0;
+
+        /**
+         * Adds a candidate.
+         *
+         * @param j The index of the candidate in mNodes2
+         */
+        void add(final int j) {
+
+            if (mSize == mNodes.length) {
+                int[] grown = new int[mSize * 2];
+                System.arraycopy(mNodes, 0, grown, 0, mSize);
+                mNodes = grown;
+            }
+            mNodes[mSize++] = j;
+        }
+
+        /**
+         * Moves the start past claimed candidates. Must not be called while
+         * nodes are being claimed.
+         *
+         * @param claims The claims on the nodes of doc2
+         */
+        void skipClaimed(final AtomicIntegerArray claims) {
+
+            while (mStart < mSize && claims.get(mNodes[mStart]) != 0) {
+                mStart++;
+            }
+        }
+    }
+
+    /**
+     * Computes the match keys of a range of the nodes of doc2.
+     */
+    private final class KeyTask extends RecursiveAction {
+
+        /** Serial ID. **/
+        private static final long serialVersionUID = 1L;
+
+        /** The keys, set by the task. **/
+        private final String[] mKeys;
+
+        /** First index of the range. **/
+        private final int mFrom;
+
+        /** End of the range, exclusive. **/
+        private final int mTo;
+
+        /**
+         * Creates a task for a range of nodes.
+         *
+         * @param keys The keys, set by the task
+         * @param from First index of the range
+         * @param to End of the range, exclusive
+         */
+        KeyTask(final String[] keys, final int from, final int to) {
+            mKeys = keys;
+            mFrom = from;
+            mTo = to;
+        }
+
+        /**
+         * Computes the keys, splitting the range if it is large.
+         */
+        protected void compute() {
+
+            if (mTo - mFrom > THRESHOLD) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new KeyTask(mKeys, mFrom, mid), 
+                        new KeyTask(mKeys, mid, mTo));
+                return;
+            }
+
+            DiffOptions previous = DiffFactory.setCurrentOptions(mOptions);
+            try {
+                for (int j = mFrom; j < mTo; j++) {
+                    mKeys[j] = getMatchKey(mNodes2[j]);
+                }
+            } finally {
+                DiffFactory.setCurrentOptions(previous);
+            }
+        }
+    }
+
+    /**
+     * Matches a range of the nodes of doc1 at one depth.
+     */
+    private final class LevelTask extends RecursiveAction {
+
+        /** Serial ID. **/
+        private static final long serialVersionUID = 1L;
+
+        /** The candidates for each match key. **/
+        private final Map<String, Candidates> mIndex;
+
+        /** First index of the range. **/
+        private final int mFrom;
+
+        /** End of the range, exclusive. **/
+        private final int mTo;
+
+        /**
+         * Creates a task for a range of nodes.
+         *
+         * @param index The candidates for each match key, not modified
+         * @param from First index of the range
+         * @param to End of the range, exclusive
+         */
+        LevelTask(final Map<String, Candidates> index, final int from,
+                final int to) {
+            mIndex = index;
+            mFrom = from;
+            mTo = to;
+        }
+
+        /**
+         * Matches the nodes, splitting the range if it is large.
+         */
+        protected void compute() {
+
+            if (mTo - mFrom > THRESHOLD) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new LevelTask(mIndex, mFrom, mid), 
+                        new LevelTask(mIndex, mid, mTo));
+                return;
+            }
+
+            DiffOptions previous = DiffFactory.setCurrentOptions(mOptions);
+            try {
+                for (int i = mFrom; i < mTo; i++) {
+                    mCandidates[i] = mIndex.get(getMatchKey(mNodes1[i]));
+                    if (mCandidates[i] != null) {
+                        claim(i);
+                    }
+                }
+            } finally {
+                DiffFactory.setCurrentOptions(previous);
+            }
+        }
+    }
+}
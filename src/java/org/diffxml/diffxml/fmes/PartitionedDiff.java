@@ -0,0 +1,582 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml.fmes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.diffxml.diffxml.CancelledException;
+import org.diffxml.diffxml.Cancellation;
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.ParserPool;
+import org.diffxml.diffxml.fmes.delta.DULDelta;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Differences two documents by partitioning the children of their document
+ * elements.
+ *
+ * The children of the document elements are paired first: by key 
+ * attribute if one is set, then by identical content, then elements by 
+ * name in document order. Other children are left unpaired, and are 
+ * deleted or inserted whole.
+ *
+ * The paired children are then differenced independently in a fork-join
+ * pool, each as the document element of its own document. Meanwhile, the
+ * children themselves are put in order by differencing copies of the 
+ * documents with only the top levels of the paired children, which is the
+ * only sequential step. The operations of each partition are then added 
+ * after these, with their paths rebased under the position of the 
+ * partition.
+ *
+ * The documents aren't modified, but each partition is copied for its 
+ * diff.
+ *
+ * @author Adrian Mouat
+ */
+final class PartitionedDiff {
+
+    /** Pass pairing children by key attribute. **/
+    private static final int KEYED = 0;
+
+    /** Pass pairing children with identical content. **/
+    private static final int SAME = 1;
+
+    /** Pass pairing elements by name. **/
+    private static final int NAMED = 2;
+
+    /** Separates the parts of pairing keys. **/
+    private static final char SEPARATOR = '\u0000';
+
+    /** Multiplier for subtree hashes. **/
+    private static final long PRIME = 1099511628211L;
+
+    /** The original document. **/
+    private final Document mDoc1;
+
+    /** The modified document. **/
+    private final Document mDoc2;
+
+    /** The options in effect for the diff, with mCancellation. **/
+    private final DiffOptions mOptions;
+
+    /** 
+     * Cancels the partitions still running when the diff stops, as well as
+     * when the diff's own token is cancelled.
+     */
+    private final Cancellation mCancellation;
+
+    /** Limits the work of the partitions. **/
+    private final WorkBudget mBudget;
+
+    /** Maps children in doc2 to their partners in doc1. **/
+    private final Map<Node, Node> mPairs = new IdentityHashMap<Node, Node>();
+
+    /** The children in doc1 that have been paired. **/
+    private final Set<Node> mPaired = Collections.newSetFromMap(
+            new IdentityHashMap<Node, Boolean>());
+
+    /** The children in doc2 whose partner is identical. **/
+    private final Set<Node> mSame = Collections.newSetFromMap(
+            new IdentityHashMap<Node, Boolean>());
+
+    /**
+     * Creates a partitioned diff of two documents.
+     *
+     * @param doc1 The original document
+     * @param doc2 The modified document
+     * @param budget Limits the work of the partitions
+     */
+    private PartitionedDiff(final Document doc1, final Document doc2,
+            final WorkBudget budget) {
+
+        mDoc1 = doc1;
+        mDoc2 = doc2;
+        mCancellation = new Cancellation(DiffFactory.getCancellation());
+        mOptions = new DiffOptions(DiffFactory.getOptions());
+        mOptions.setCancellation(mCancellation);
+        mBudget = budget;
+    }
+
+    /**
+     * Differences two documents by partitioning the children of their 
+     * document elements.
+     *
+     * The budget is shared by the partitions. The top levels are always 
+     * aligned in full, as the positions of the partitions depend on them.
+     *
+     * @param doc1 The original document
+     * @param doc2 The modified document
+     * @param budget Limits the work of the partitions
+     * @return The delta
+     * @throws DocumentCreationException If a delta can't be created
+     */
+    static Document diff(final Document doc1, final Document doc2,
+            final WorkBudget budget) throws DocumentCreationException {
+        return new PartitionedDiff(doc1, doc2, budget).diff();
+    }
+
+    /**
+     * Runs the diff.
+     *
+     * @return The delta
+     * @throws DocumentCreationException If a delta can't be created
+     */
+    private Document diff() throws DocumentCreationException {
+
+        Element root1 = mDoc1.getDocumentElement();
+        Element root2 = mDoc2.getDocumentElement();
+        mPairs.put(root2, root1);
+        mPaired.add(root1);
+        pairChildren(mDoc1, mDoc2);
+        pairChildren(root1, root2);
+
+        //Start the partitions first, so they run while the top is aligned
+        List<Node> parts = new ArrayList<Node>();
+        List<Future<Document>> deltas = new ArrayList<Future<Document>>();
+        try {
+            for (Node k2 = root2.getFirstChild(); k2 != null; 
+                    k2 = k2.getNextSibling()) {
+                Node k1 = mPairs.get(k2);
+                if (k1 != null && k2.getNodeType() == Node.ELEMENT_NODE
+                        && !mSame.contains(k2)) {
+                    parts.add(k1);
+                    deltas.add(ForkJoinPool.commonPool().submit(
+                            new Partition(copy(k1, (Element) k2), 
+                                    copy(k2, null))));
+                }
+            }
+
+            Map<Node, Node> stubs = new IdentityHashMap<Node, Node>();
+            Document stub1 = createStub(mDoc1, stubs);
+            Document stub2 = createStub(mDoc2, stubs);
+            Document delta = alignTop(stub1, stub2, stubs);
+
+            Map<Node, Integer> positions = getPositions(
+                    stub1.getDocumentElement());
+            String rootPath = NodeOps.getXPath(stub1.getDocumentElement());
+            for (int i = 0; i < parts.size(); i++) {
+                String path = rootPath + "/node()[" 
+                    + positions.get(stubs.get(parts.get(i))) + "]";
+                addOperations(delta, deltas.get(i).get(), path);
+            }
+            return delta;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancelledException("Interrupted waiting for partitions",
+                    e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancelledException) {
+                throw (CancelledException) e.getCause();
+            }
+            if (e.getCause() instanceof DocumentCreationException) {
+                throw (DocumentCreationException) e.getCause();
+            }
+            throw new DocumentCreationException("Failed to diff partition",
+                    e);
+        } catch (ParserConfigurationException e) {
+            throw new DocumentCreationException("Failed to create document",
+                    e);
+        } finally {
+            //Pool threads aren't interrupted by cancel, so use the token
+            mCancellation.cancel();
+            for (Future<Document> f : deltas) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Pairs the children of two nodes.
+     *
+     * @param p1 The parent in doc1
+     * @param p2 The parent in doc2
+     */
+    private void pairChildren(final Node p1, final Node p2) {
+
+        String keyAttr = mOptions.getPartitionKey();
+        for (int pass = KEYED; pass <= NAMED; pass++) {
+            if (pass == KEYED && keyAttr == null) {
+                continue;
+            }
+
+            Map<String, Deque<Node>> index = 
+                new HashMap<String, Deque<Node>>();
+            for (Node k1 = p1.getFirstChild(); k1 != null; 
+                    k1 = k1.getNextSibling()) {
+                String key = getKey(k1, pass);
+                if (key != null && !mPaired.contains(k1)) {
+                    Deque<Node> candidates = index.get(key);
+                    if (candidates == null) {
+                        candidates = new ArrayDeque<Node>();
+                        index.put(key, candidates);
+                    }
+                    candidates.add(k1);
+                }
+            }
+
+            for (Node k2 = p2.getFirstChild(); k2 != null; 
+                    k2 = k2.getNextSibling()) {
+                String key = getKey(k2, pass);
+                if (key == null || mPairs.containsKey(k2)) {
+                    continue;
+                }
+                Node k1 = takeCandidate(index.get(key), k2, pass);
+                if (k1 != null) {
+                    mPairs.put(k2, k1);
+                    mPaired.add(k1);
+                    if ((pass == SAME) || (pass == KEYED 
+                            && k1.isEqualNode(k2))) {
+                        mSame.add(k2);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the first candidate that can be paired with a node.
+     *
+     * @param candidates The candidates with the same key, or null
+     * @param k2 The node in doc2
+     * @param pass The pairing pass
+     * @return The candidate, or null if none can be paired
+     */
+    private static Node takeCandidate(final Deque<Node> candidates,
+            final Node k2, final int pass) {
+
+        if (candidates == null) {
+            return null;
+        }
+        if (pass != SAME || k2.getNodeType() != Node.ELEMENT_NODE) {
+            return candidates.poll();
+        }
+
+        //Elements with identical content have the same key, but not 
+        //necessarily the other way round
+        for (Iterator<Node> it = candidates.iterator(); it.hasNext();) {
+            Node k1 = it.next();
+            if (k1.isEqualNode(k2)) {
+                it.remove();
+                return k1;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the key pairing a child in the given pass.
+     *
+     * @param n The child
+     * @param pass The pairing pass
+     * @return The key, or null if the child isn't paired in this pass
+     */
+    private String getKey(final Node n, final int pass) {
+
+        if (n.getNodeType() == Node.DOCUMENT_TYPE_NODE || Fmes.isBanned(n)) {
+            return null;
+        }
+
+        boolean isElement = (n.getNodeType() == Node.ELEMENT_NODE);
+        String key = null;
+        if (pass == KEYED && isElement) {
+            String attr = mOptions.getPartitionKey();
+            if (((Element) n).hasAttribute(attr)) {
+                key = getName(n) + SEPARATOR 
+                    + ((Element) n).getAttribute(attr);
+            }
+        } else if (pass == SAME && isElement) {
+            key = Long.toString(hash(n));
+        } else if (pass == SAME && DOMOps.isText(n)) {
+            key = Integer.toString(n.getNodeType()) + SEPARATOR
+                + mOptions.normalizeText(n.getNodeValue());
+        } else if (pass == SAME) {
+            key = Integer.toString(n.getNodeType()) + SEPARATOR 
+                + n.getNodeName() + SEPARATOR + n.getNodeValue();
+        } else if (pass == NAMED && isElement) {
+            key = getName(n);
+        }
+        return key;
+    }
+
+    /**
+     * Gets the namespace and local name of a node.
+     *
+     * @param n The node
+     * @return The name
+     */
+    private static String getName(final Node n) {
+
+        String ns = n.getNamespaceURI();
+        if (ns == null) {
+            ns = "";
+        }
+        return ns + SEPARATOR + NodeOps.getLocalName(n);
+    }
+
+    /**
+     * Hashes the content of a subtree.
+     *
+     * Subtrees that are equal by isEqualNode have the same hash, apart
+     * from differences in prefixes.
+     *
+     * @param n The root of the subtree
+     * @return The hash
+     */
+    private static long hash(final Node n) {
+
+        long h = n.getNodeType();
+        h = h * PRIME + hashString(n.getNamespaceURI());
+        h = h * PRIME + hashString(NodeOps.getLocalName(n));
+        h = h * PRIME + hashString(n.getNodeValue());
+
+        //Attributes are unordered, so their hashes are summed
+        NamedNodeMap attrs = n.getAttributes();
+        if (attrs != null) {
+            long sum = 0;
+            for (int i = 0; i < attrs.getLength(); i++) {
+                Node a = attrs.item(i);
+                sum += (hashString(a.getNamespaceURI()) * PRIME 
+                        + hashString(NodeOps.getLocalName(a))) * PRIME 
+                        + hashString(a.getNodeValue());
+            }
+            h = h * PRIME + sum;
+        }
+
+        for (Node k = n.getFirstChild(); k != null; k = k.getNextSibling()) {
+            h = h * PRIME + hash(k);
+        }
+        return h;
+    }
+
+    /**
+     * Hashes a string, which may be null.
+     *
+     * @param s The string
+     * @return The hash
+     */
+    private static long hashString(final String s) {
+
+        long h = 0;
+        if (s != null) {
+            h = s.hashCode() + 1;
+        }
+        return h;
+    }
+
+    /**
+     * Copies a paired child into a document of its own.
+     *
+     * @param n The child
+     * @param partner The partner of n in doc2 if n is in doc1, else null.
+     *        Its attributes are given to the copy, as they are updated 
+     *        with the top level.
+     * @return The new document
+     * @throws ParserConfigurationException If a document can't be created
+     */
+    private static Document copy(final Node n, final Element partner)
+    throws ParserConfigurationException {
+
+        Document doc = ParserPool.getInstance().newDocument();
+        Element copy = (Element) doc.importNode(n, true);
+        doc.appendChild(copy);
+        if (partner != null) {
+            new WorkingTree(false).setAttributes(copy, partner);
+        }
+        return doc;
+    }
+
+    /**
+     * Copies a document, leaving out the descendants of paired elements
+     * under the document element.
+     *
+     * @param doc The document to copy
+     * @param stubs Maps the original nodes to their copies, added to
+     * @return The copy
+     * @throws ParserConfigurationException If a document can't be created
+     */
+    private Document createStub(final Document doc, 
+            final Map<Node, Node> stubs) throws ParserConfigurationException {
+
+        Document stub = ParserPool.getInstance().newDocument();
+        stubs.put(doc, stub);
+        Element root = doc.getDocumentElement();
+        for (Node k = doc.getFirstChild(); k != null; k = k.getNextSibling()) {
+            if (k.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+                Node copy = stub.importNode(k, k != root);
+                stubs.put(k, copy);
+                stub.appendChild(copy);
+            }
+        }
+
+        Node rootCopy = stubs.get(root);
+        for (Node k = root.getFirstChild(); k != null; 
+                k = k.getNextSibling()) {
+            boolean paired = mPaired.contains(k) || mPairs.containsKey(k);
+            Node copy = stub.importNode(k, 
+                    !paired || k.getNodeType() != Node.ELEMENT_NODE);
+            stubs.put(k, copy);
+            rootCopy.appendChild(copy);
+        }
+        return stub;
+    }
+
+    /**
+     * Creates the edit script for the top levels of the documents.
+     *
+     * The stubs are edited in place, whatever the options, so that the
+     * positions of the partitions can be found afterwards.
+     *
+     * @param stub1 The stub of doc1
+     * @param stub2 The stub of doc2
+     * @param stubs Maps the original nodes to their stubs
+     * @return The edit script
+     * @throws DocumentCreationException If the edit script can't be made
+     */
+    private Document alignTop(final Document stub1, final Document stub2,
+            final Map<Node, Node> stubs) throws DocumentCreationException {
+
+        NodePairs matchings = new NodePairs();
+        matchings.add(stub1, stub2);
+        for (Map.Entry<Node, Node> pair : mPairs.entrySet()) {
+            matchings.add(stubs.get(pair.getValue()), 
+                    stubs.get(pair.getKey()));
+        }
+
+        DiffOptions opts = new DiffOptions(mOptions);
+        opts.setPreserveOriginal(false);
+        DiffOptions previous = DiffFactory.setCurrentOptions(opts);
+        try {
+            return new EditScript(stub1, stub2, matchings).create();
+        } finally {
+            DiffFactory.setCurrentOptions(previous);
+        }
+    }
+
+    /**
+     * Gets the XPath child numbers of all the children of a node.
+     *
+     * @param parent The node
+     * @return The child numbers of the children
+     */
+    private static Map<Node, Integer> getPositions(final Node parent) {
+
+        Map<Node, Integer> positions = new IdentityHashMap<Node, Integer>();
+        int childNo = 0;
+        Node prev = null;
+        for (Node k = parent.getFirstChild(); k != null; 
+                k = k.getNextSibling()) {
+            //As ChildNumber, adjacent text nodes count as one
+            boolean joined = (prev != null && DOMOps.isText(prev) 
+                    && DOMOps.isText(k));
+            if (!joined && !NodeOps.nodeIsEmptyText(k)
+                    && k.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+                childNo++;
+            }
+            positions.put(k, childNo);
+            prev = k;
+        }
+        return positions;
+    }
+
+    /**
+     * Adds the operations of a partition to the delta.
+     *
+     * @param delta The delta
+     * @param part The delta of the partition
+     * @param path The path of the partition in the document
+     */
+    private static void addOperations(final Document delta, 
+            final Document part, final String path) {
+
+        Element root = delta.getDocumentElement();
+        for (Node op = part.getDocumentElement().getFirstChild(); 
+                op != null; op = op.getNextSibling()) {
+            if (op.getNodeType() == Node.ELEMENT_NODE) {
+                Element copy = (Element) delta.importNode(op, true);
+                DULDelta.rebase(copy, path);
+                root.appendChild(copy);
+            }
+        }
+    }
+
+    /**
+     * Differences a pair of children as documents of their own.
+     */
+    private final class Partition implements Callable<Document> {
+
+        /** The child from doc1. **/
+        private final Document mPart1;
+
+        /** The child from doc2. **/
+        private final Document mPart2;
+
+        /**
+         * Creates the diff of a partition.
+         *
+         * @param part1 The child from doc1, as a document
+         * @param part2 The child from doc2, as a document
+         */
+        Partition(final Document part1, final Document part2) {
+            mPart1 = part1;
+            mPart2 = part2;
+        }
+
+        /**
+         * Differences the partition with the options of the whole diff.
+         *
+         * @return The delta of the partition
+         * @throws DocumentCreationException If the delta can't be created
+         */
+        public Document call() throws DocumentCreationException {
+
+            DiffOptions previous = DiffFactory.setCurrentOptions(mOptions);
+            try {
+                NodePairs matchings = Match.easyMatch(mPart1, mPart2, 
+                        Match.prepare(mPart1), Match.prepare(mPart2), 
+                        mBudget);
+                Match.matchChangedNodes(mPart1, matchings);
+                return new EditScript(mPart1, mPart2, matchings, 
+                        mBudget).create();
+            } finally {
+                DiffFactory.setCurrentOptions(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml.fmes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.w3c.dom.Document;
+
+/**
+ * An original document prepared once for differencing against many others.
+ *
+ * Holds the normalized document and the keys used to match its elements.
+ * Each diff works on its own copy, as the diff modifies the original, but
+ * the copy is prepared by reusing the keys rather than computing them 
+ * again.
+ *
+ * Immutable and thread safe, so diffs against the same prepared document 
+ * can run concurrently.
+ *
+ * @author Adrian Mouat
+ */
+public final class PreparedDocument {
+
+    /**
+     * The prepared document. Never modified or handed out, and only read
+     * while locked, as DOM implementations needn't be thread safe even
+     * for reading.
+     */
+    private final Document mDoc;
+
+    /**
+     * The prepared nodes of mDoc in document order.
+     */
+    private final List<NodeDepth> mNodes;
+
+    /**
+     * Prepares a copy of the given document.
+     *
+     * The document itself isn't modified or kept.
+     *
+     * @param doc The original document
+     */
+    public PreparedDocument(final Document doc) {
+
+        mDoc = (Document) doc.cloneNode(true);
+        List<NodeDepth> nodes = new ArrayList<NodeDepth>();
+        Match.prepare(mDoc, null, nodes);
+        mNodes = Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * Returns a new copy of the document, prepared for matching.
+     *
+     * @return The copy
+     */
+    Copy newCopy() {
+
+        Document doc;
+        synchronized (mDoc) {
+            doc = (Document) mDoc.cloneNode(true);
+        }
+        return new Copy(doc, Match.prepare(doc, mNodes.iterator(), null));
+    }
+
+    /**
+     * A copy of a prepared document for a single diff.
+     */
+    static final class Copy {
+
+        /** The copy of the document. **/
+        private final Document mCopyDoc;
+
+        /** The nodes of the copy in matching order. **/
+        private final List<NodeDepth> mCopyNodes;
+
+        /**
+         * Creates a copy.
+         *
+         * @param doc The copy of the document
+         * @param nodes The nodes of the copy in matching order
+         */
+        Copy(final Document doc, final List<NodeDepth> nodes) {
+            mCopyDoc = doc;
+            mCopyNodes = nodes;
+        }
+
+        /**
+         * Gets the copy of the document.
+         *
+         * @return The document
+         */
+        Document getDocument() {
+            return mCopyDoc;
+        }
+
+        /**
+         * Gets the nodes of the copy in matching order.
+         *
+         * @return The nodes
+         */
+        List<NodeDepth> getNodes() {
+            return mCopyNodes;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml.fmes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.DiffFactory;
+import org.w3c.dom.Node;
+
+/**
+ * Pairs text nodes with similar content.
+ *
+ * Similarity is the Jaccard index of the sets of q-grams of the normalized
+ * text. To avoid comparing every pair of text nodes, the unmatched text 
+ * nodes of doc2 are indexed by MinHash signature, split into bands (LSH).
+ * A text node of doc1 is only compared with nodes sharing a band of its 
+ * signature, which are likely to be similar.
+ *
+ * @author Adrian Mouat
+ */
+final class SimilarTextMatch {
+
+    /** Length of the q-grams. **/
+    private static final int Q = 3;
+
+    /** Number of bands in a signature. **/
+    private static final int BANDS = 16;
+
+    /** Number of hashes in each band. **/
+    private static final int ROWS = 2;
+
+    /** Most candidates compared with a text node. **/
+    private static final int MAX_CANDIDATES = 64;
+
+    /** Seeds of the MinHash functions. **/
+    private static final long[] SEEDS = createSeeds();
+
+    /** Text nodes of doc1 not yet matched, in document order. **/
+    private final List<Leaf> mLeaves1 = new ArrayList<Leaf>();
+
+    /** Text nodes of doc2 not yet matched, in document order. **/
+    private final List<Leaf> mLeaves2 = new ArrayList<Leaf>();
+
+    /**
+     * Private constructor.
+     */
+    private SimilarTextMatch() {
+        //Created by match
+    }
+
+    /**
+     * Pairs unmatched text nodes whose similarity is at least the 
+     * threshold.
+     *
+     * Each text node of doc1 is paired, in document order, with the most
+     * similar unpaired text node of the same type among its candidates.
+     *
+     * @param doc1 The original document
+     * @param doc2 The modified document
+     * @param matchSet The pairs found so far, added to
+     * @param threshold The least similarity of paired nodes, above 0
+     */
+    static void match(final Node doc1, final Node doc2, 
+            final NodePairs matchSet, final double threshold) {
+
+        SimilarTextMatch sim = new SimilarTextMatch();
+        addLeaves(doc1, matchSet, sim.mLeaves1);
+        addLeaves(doc2, matchSet, sim.mLeaves2);
+        if (!sim.mLeaves1.isEmpty() && !sim.mLeaves2.isEmpty()) {
+            sim.match(matchSet, threshold);
+        }
+    }
+
+    /**
+     * Pairs the leaves.
+     *
+     * @param matchSet The pairs found so far, added to
+     * @param threshold The least similarity of paired nodes
+     */
+    private void match(final NodePairs matchSet, final double threshold) {
+
+        Map<Long, List<Leaf>> index = new HashMap<Long, List<Leaf>>();
+        for (Leaf leaf : mLeaves2) {
+            for (int b = 0; b < BANDS; b++) {
+                Long band = Long.valueOf(leaf.getBand(b));
+                List<Leaf> bucket = index.get(band);
+                if (bucket == null) {
+                    bucket = new ArrayList<Leaf>(1);
+                    index.put(band, bucket);
+                }
+                bucket.add(leaf);
+            }
+        }
+
+        for (Leaf leaf : mLeaves1) {
+            Leaf best = null;
+            double bestSim = threshold;
+            int compared = 0;
+            for (int b = 0; b < BANDS && compared < MAX_CANDIDATES; b++) {
+                List<Leaf> bucket = index.get(Long.valueOf(leaf.getBand(b)));
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i = 0; i < bucket.size() 
+                        && compared < MAX_CANDIDATES; i++) {
+                    Leaf cand = bucket.get(i);
+                    if (cand.mPaired || cand.mLastCompared == leaf
+                            || cand.mType != leaf.mType) {
+                        continue;
+                    }
+                    cand.mLastCompared = leaf;
+                    compared++;
+                    double sim = leaf.similarity(cand);
+                    if (sim >= bestSim && (best == null || sim > bestSim)) {
+                        best = cand;
+                        bestSim = sim;
+                    }
+                }
+            }
+            if (best != null) {
+                best.mPaired = true;
+                matchSet.add(leaf.mNode, best.mNode);
+            }
+        }
+    }
+
+    /**
+     * Adds the unmatched text nodes under a node, in document order.
+     *
+     * @param n The node
+     * @param matchSet The pairs found so far
+     * @param leaves The list to add to
+     */
+    private static void addLeaves(final Node n, final NodePairs matchSet,
+            final List<Leaf> leaves) {
+
+        for (Node k = n.getFirstChild(); k != null; k = k.getNextSibling()) {
+            if (DOMOps.isText(k)) {
+                if (!matchSet.isMatched(k) && !Fmes.isBanned(k)) {
+                    String text = DiffFactory.getOptions().normalizeText(
+                            k.getNodeValue());
+                    if (text.length() > 0) {
+                        leaves.add(new Leaf(k, text));
+                    }
+                }
+            } else if (k.getNodeType() == Node.ELEMENT_NODE) {
+                addLeaves(k, matchSet, leaves);
+            }
+        }
+    }
+
+    /**
+     * Creates the seeds of the hash functions.
+     *
+     * @return The seeds, fixed so results are repeatable
+     */
+    private static long[] createSeeds() {
+
+        long[] seeds = new long[BANDS * ROWS];
+        long seed = 0x2545F4914F6CDD1DL;
+        for (int i = 0; i < seeds.length; i++) {
+            seed = mix(seed + i);
+            seeds[i] = seed;
+        }
+        return seeds;
+    }
+
+    /**
+     * Scrambles the bits of a value (the SplitMix64 finalizer).
+     *
+     * @param x The value
+     * @return The scrambled value
+     */
+    private static long mix(final long x) {
+
+        long z = x + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * A text node, with its q-grams and MinHash signature.
+     */
+    private static final class Leaf {
+
+        /** The text node. **/
+        private final Node mNode;
+
+        /** The node type, as only nodes of the same type are paired. **/
+        private final short mType;
+
+        /** The hashes of the q-grams, sorted and without duplicates. **/
+        private final int[] mGrams;
+
+        /** The least hash of the q-grams for each seed. **/
+        private final long[] mSignature = new long[BANDS * ROWS];
+
+        /** Whether the node has been paired. **/
+        private boolean mPaired = false;
+
+        /** The last node this was compared with. **/
+        private Leaf mLastCompared = null;
+
+        /**
+         * Creates the leaf for a text node.
+         *
+         * @param node The text node
+         * @param text The normalized text, not empty
+         */
+        Leaf(final Node node, final String text) {
+
+            mNode = node;
+            mType = node.getNodeType();
+
+            int count = Math.max(1, text.length() - Q + 1);
+            int[] grams = new int[count];
+            for (int i = 0; i < count; i++) {
+                int end = Math.min(text.length(), i + Q);
+                int h = 0;
+                for (int j = i; j < end; j++) {
+                    h = 31 * h + text.charAt(j);
+                }
+                grams[i] = h;
+            }
+            Arrays.sort(grams);
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || grams[i] != grams[i - 1]) {
+                    grams[size++] = grams[i];
+                }
+            }
+            mGrams = Arrays.copyOf(grams, size);
+
+            Arrays.fill(mSignature, Long.MAX_VALUE);
+            for (int g : mGrams) {
+                for (int s = 0; s < SEEDS.length; s++) {
+                    long h = mix(g ^ SEEDS[s]);
+                    if (h < mSignature[s]) {
+                        mSignature[s] = h;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the hash of a band of the signature.
+         *
+         * @param band The band
+         * @return The hash, which includes the band number
+         */
+        long getBand(final int band) {
+
+            long h = band;
+            for (int r = band * ROWS; r < (band + 1) * ROWS; r++) {
+                h = mix(h ^ mSignature[r]);
+            }
+            return h;
+        }
+
+        /**
+         * Computes the Jaccard index of the q-grams of two leaves.
+         *
+         * @param other The other leaf
+         * @return The similarity, from 0 to 1
+         */
+        double similarity(final Leaf other) {
+
+            int i = 0;
+            int j = 0;
+            int common = 0;
+            while (i < mGrams.length && j < other.mGrams.length) {
+                if (mGrams[i] < other.mGrams[j]) {
+                    i++;
+                } else if (mGrams[i] > other.mGrams[j]) {
+                    j++;
+                } else {
+                    common++;
+                    i++;
+                    j++;
+                }
+            }
+            return (double) common 
+                / (mGrams.length + other.mGrams.length - common);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml.fmes;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the work spent matching nodes and aligning their children.
+ *
+ * Work is counted in node comparisons while matching, in LCS table cells 
+ * and in the sibling positions scanned when moving nodes. Once a limit on
+ * work or on elapsed time is reached, matching stops and the edit script 
+ * uses coarser strategies, which still give a valid but longer delta, and
+ * the budget is marked as degraded.
+ *
+ * A budget may be shared by the threads of a partitioned diff.
+ *
+ * @author Adrian Mouat
+ */
+public final class WorkBudget {
+
+    /** A budget without limits. **/
+    public static final WorkBudget UNLIMITED = new WorkBudget(0, 0);
+
+    /** Maximum units of work, or 0 for no limit. **/
+    private final long mMaxWork;
+
+    /** Value of System.nanoTime() at the deadline. **/
+    private final long mDeadline;
+
+    /** Whether there is a deadline. **/
+    private final boolean mHasDeadline;
+
+    /** Units of work done so far. **/
+    private final AtomicLong mWork = new AtomicLong();
+
+    /** Whether a coarser strategy has been used. **/
+    private volatile boolean mDegraded = false;
+
+    /**
+     * Creates a budget starting now.
+     *
+     * @param maxWork Maximum units of work, or 0 for no limit
+     * @param timeLimit Milliseconds until the deadline, or 0 for no limit
+     */
+    public WorkBudget(final long maxWork, final long timeLimit) {
+
+        if (maxWork < 0 || timeLimit < 0) {
+            throw new IllegalArgumentException("Limits can't be negative");
+        }
+        mMaxWork = maxWork;
+        mHasDeadline = timeLimit > 0;
+        mDeadline = System.nanoTime() 
+            + TimeUnit.MILLISECONDS.toNanos(timeLimit);
+    }
+
+    /**
+     * Charges work to the budget, if it fits.
+     *
+     * If the work doesn't fit, nothing is charged and the budget is marked
+     * as degraded, as the caller is expected to do something cheaper.
+     *
+     * @param units The units of work
+     * @return True if the work can be done
+     */
+    public boolean charge(final long units) {
+
+        if (units == 0 || (mMaxWork == 0 && !mHasDeadline)) {
+            return true;
+        }
+
+        if (mHasDeadline && System.nanoTime() - mDeadline > 0) {
+            mDegraded = true;
+            return false;
+        }
+
+        if (mMaxWork > 0) {
+            long work;
+            do {
+                work = mWork.get();
+                if (units > mMaxWork - work) {
+                    mDegraded = true;
+                    return false;
+                }
+            } while (!mWork.compareAndSet(work, work + units));
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a coarser strategy was used because the budget ran 
+     * out.
+     *
+     * @return True if the delta was degraded
+     */
+    public boolean isDegraded() {
+        return mDegraded;
+    }
+}
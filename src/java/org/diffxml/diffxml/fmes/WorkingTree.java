@@ -0,0 +1,540 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml.fmes;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.diffxml.diffxml.DOMOps;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * The original document as it is edited into the new one while creating
+ * an edit script.
+ *
+ * By default the edits are made to the DOM itself. As an overlay, the DOM
+ * is only read and the edits are recorded to one side: the new parent of 
+ * each moved, inserted or deleted node, the children of each parent whose
+ * children changed and the new value of each updated text node. The
+ * "inorder" marks are also kept to one side, for both documents.
+ *
+ * All reads of the original document while creating the edit script must
+ * go through this class so that they see the edits.
+ *
+ * @author Adrian Mouat
+ */
+public final class WorkingTree {
+
+    /**
+     * The new parents of nodes, or null if edits are made to the DOM. 
+     * Removed nodes map to null.
+     */
+    private final Map<Node, Node> mParents;
+
+    /**
+     * The new children of nodes whose children changed.
+     */
+    private final Map<Node, List<Node>> mChildren;
+
+    /**
+     * The new values of updated nodes.
+     */
+    private final Map<Node, String> mValues;
+
+    /**
+     * The elements whose attributes updated elements now have.
+     */
+    private final Map<Node, Element> mAttributes;
+
+    /**
+     * The "inorder" marks of nodes in both documents.
+     */
+    private final Map<Node, Boolean> mInOrder;
+
+    /**
+     * Creates a working tree.
+     *
+     * @param overlay If true, edits are recorded to one side rather than
+     *                made to the DOM
+     */
+    public WorkingTree(final boolean overlay) {
+
+        if (overlay) {
+            mParents = new IdentityHashMap<Node, Node>();
+            mChildren = new IdentityHashMap<Node, List<Node>>();
+            mValues = new IdentityHashMap<Node, String>();
+            mAttributes = new IdentityHashMap<Node, Element>();
+            mInOrder = new IdentityHashMap<Node, Boolean>();
+        } else {
+            mParents = null;
+            mChildren = null;
+            mValues = null;
+            mAttributes = null;
+            mInOrder = null;
+        }
+    }
+
+    /**
+     * Returns whether the edits are recorded to one side.
+     *
+     * @return True if the DOM isn't modified
+     */
+    public boolean isOverlay() {
+        return mParents != null;
+    }
+
+    /**
+     * Gets the parent of a node.
+     *
+     * @param n The node
+     * @return The parent, or null if it has none
+     */
+    public Node getParent(final Node n) {
+
+        Node parent;
+        if (mParents != null && mParents.containsKey(n)) {
+            parent = mParents.get(n);
+        } else {
+            parent = n.getParentNode();
+        }
+        return parent;
+    }
+
+    /**
+     * Gets the children of a node.
+     *
+     * The list is live, as NodeLists from the DOM are.
+     *
+     * @param n The node
+     * @return The children of the node
+     */
+    public NodeList getChildNodes(final Node n) {
+
+        NodeList kids;
+        if (mChildren == null) {
+            kids = n.getChildNodes();
+        } else {
+            kids = new Children(n);
+        }
+        return kids;
+    }
+
+    /**
+     * Gets the previous sibling of a node.
+     *
+     * @param n The node
+     * @return The previous sibling, or null if it has none
+     */
+    public Node getPreviousSibling(final Node n) {
+
+        if (mChildren == null) {
+            return n.getPreviousSibling();
+        }
+
+        Node prev = null;
+        Node parent = getParent(n);
+        if (parent != null) {
+            List<Node> kids = mChildren.get(parent);
+            if (kids == null) {
+                prev = n.getPreviousSibling();
+            } else {
+                int i = indexOf(kids, n);
+                if (i > 0) {
+                    prev = kids.get(i - 1);
+                }
+            }
+        }
+        return prev;
+    }
+
+    /**
+     * Gets the next sibling of a node.
+     *
+     * @param n The node
+     * @return The next sibling, or null if it has none
+     */
+    public Node getNextSibling(final Node n) {
+
+        if (mChildren == null) {
+            return n.getNextSibling();
+        }
+
+        Node next = null;
+        Node parent = getParent(n);
+        if (parent != null) {
+            List<Node> kids = mChildren.get(parent);
+            if (kids == null) {
+                next = n.getNextSibling();
+            } else {
+                int i = indexOf(kids, n);
+                if (i + 1 < kids.size()) {
+                    next = kids.get(i + 1);
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Gets the value of a node.
+     *
+     * @param n The node
+     * @return The node value, as DOM getNodeValue
+     */
+    public String getValue(final Node n) {
+
+        String value;
+        if (mValues != null && mValues.containsKey(n)) {
+            value = mValues.get(n);
+        } else {
+            value = n.getNodeValue();
+        }
+        return value;
+    }
+
+    /**
+     * Sets the value of a node.
+     *
+     * @param n The node
+     * @param value The new value
+     */
+    public void setValue(final Node n, final String value) {
+
+        if (mValues == null) {
+            n.setNodeValue(value);
+        } else {
+            mValues.put(n, value);
+        }
+    }
+
+    /**
+     * Sets the attributes of an element to those of another element.
+     *
+     * xmlns attributes are left alone, as in Match.compareElements.
+     * For an overlay, the update is only recorded, for getSubtree.
+     *
+     * @param w The element to be updated
+     * @param x The element to make it like
+     */
+    public void setAttributes(final Element w, final Element x) {
+
+        if (isOverlay()) {
+            mAttributes.put(w, x);
+        } else {
+            copyAttributes(w, x);
+        }
+    }
+
+    /**
+     * Makes the attributes of one element those of another.
+     *
+     * @param w The element to be updated
+     * @param x The element to make it like
+     */
+    private static void copyAttributes(final Element w, final Element x) {
+
+        NamedNodeMap wAttrs = w.getAttributes();
+        for (int i = wAttrs.getLength() - 1; i >= 0; i--) {
+            Node wAttr = wAttrs.item(i);
+            if (!NodeOps.isNamespaceAttr(wAttr) && !x.hasAttributeNS(
+                    wAttr.getNamespaceURI(), wAttr.getLocalName())) {
+                w.removeAttributeNode((Attr) wAttr);
+            }
+        }
+
+        NamedNodeMap xAttrs = x.getAttributes();
+        for (int i = 0; i < xAttrs.getLength(); i++) {
+            Node xAttr = xAttrs.item(i);
+            if (!NodeOps.isNamespaceAttr(xAttr)) {
+                w.setAttributeNS(xAttr.getNamespaceURI(), 
+                        xAttr.getNodeName(), xAttr.getNodeValue());
+            }
+        }
+    }
+
+    /**
+     * Gets a node with its descendants as they are in the tree.
+     *
+     * For an overlay, this is a copy of the node and its descendants with
+     * the recorded edits made, so should only be used for small subtrees.
+     * Otherwise it is the node itself.
+     *
+     * @param n The node
+     * @return The node, or a copy of it
+     */
+    public Node getSubtree(final Node n) {
+
+        if (mChildren == null) {
+            return n;
+        }
+
+        //The children of entity references can't be edited
+        boolean isEntityRef = (n.getNodeType() == Node.ENTITY_REFERENCE_NODE);
+        Node copy = n.cloneNode(isEntityRef);
+        if (mValues.containsKey(n)) {
+            copy.setNodeValue(mValues.get(n));
+        }
+        if (mAttributes.containsKey(n)) {
+            copyAttributes((Element) copy, mAttributes.get(n));
+        }
+        if (!isEntityRef) {
+            NodeList kids = getChildNodes(n);
+            for (int i = 0; i < kids.getLength(); i++) {
+                copy.appendChild(getSubtree(kids.item(i)));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Inserts a node as the child of another, removing it from its current
+     * parent first.
+     *
+     * @param childNum The DOM position to insert the node at
+     * @param parent The new parent
+     * @param n The node to insert
+     */
+    public void insertAsChild(final int childNum, final Node parent,
+            final Node n) {
+
+        if (mChildren == null) {
+            DOMOps.insertAsChild(childNum, parent, n);
+            return;
+        }
+
+        remove(n);
+        List<Node> kids = getEditableChildren(parent);
+        kids.add(Math.min(childNum, kids.size()), n);
+        mParents.put(n, parent);
+    }
+
+    /**
+     * Inserts a node before a sibling, or as the last child.
+     *
+     * @param parent The new parent
+     * @param n The node to insert
+     * @param ref The node to insert before, or null
+     */
+    public void insertBefore(final Node parent, final Node n, 
+            final Node ref) {
+
+        if (mChildren == null) {
+            parent.insertBefore(n, ref);
+            return;
+        }
+
+        remove(n);
+        List<Node> kids = getEditableChildren(parent);
+        if (ref == null) {
+            kids.add(n);
+        } else {
+            kids.add(indexOf(kids, ref), n);
+        }
+        mParents.put(n, parent);
+    }
+
+    /**
+     * Removes a node from its parent.
+     *
+     * @param n The node to remove
+     */
+    public void remove(final Node n) {
+
+        Node parent = getParent(n);
+        if (parent == null) {
+            return;
+        }
+
+        if (mChildren == null) {
+            parent.removeChild(n);
+        } else {
+            List<Node> kids = getEditableChildren(parent);
+            kids.remove(indexOf(kids, n));
+            mParents.put(n, null);
+        }
+    }
+
+    /**
+     * Replaces a node with another, which takes over its children.
+     *
+     * @param old The node to replace
+     * @param replacement The new node, with no parent or children
+     */
+    public void replace(final Node old, final Node replacement) {
+
+        Node parent = getParent(old);
+        if (mChildren == null) {
+            while (old.hasChildNodes()) {
+                replacement.appendChild(old.getFirstChild());
+            }
+            parent.replaceChild(replacement, old);
+            return;
+        }
+
+        List<Node> kids = getEditableChildren(old);
+        for (Node kid : kids) {
+            mParents.put(kid, replacement);
+        }
+        mChildren.put(replacement, kids);
+        mChildren.put(old, new ArrayList<Node>());
+
+        insertBefore(parent, replacement, old);
+        remove(old);
+    }
+
+    /**
+     * Mark the node as being "inorder".
+     *
+     * @param n the node to mark as "inorder"
+     */
+    public void setInOrder(final Node n) {
+
+        if (mInOrder == null) {
+            NodeOps.setInOrder(n);
+        } else {
+            mInOrder.put(n, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Mark the node as not being "inorder".
+     *
+     * @param n the node to mark as not "inorder"
+     */
+    public void setOutOfOrder(final Node n) {
+
+        if (mInOrder == null) {
+            NodeOps.setOutOfOrder(n);
+        } else {
+            mInOrder.put(n, Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Check if node is marked "inorder".
+     *
+     * Note that nodes are inorder by default.
+     *
+     * @param n node to check
+     * @return false if marked out of order, true otherwise
+     */
+    public boolean isInOrder(final Node n) {
+
+        if (mInOrder == null) {
+            return NodeOps.isInOrder(n);
+        }
+        Boolean inOrder = mInOrder.get(n);
+        return inOrder == null || inOrder.booleanValue();
+    }
+
+    /**
+     * Gets the recorded children of a node, recording them first if they
+     * haven't changed yet.
+     *
+     * @param n The node
+     * @return The children, which can be edited
+     */
+    private List<Node> getEditableChildren(final Node n) {
+
+        List<Node> kids = mChildren.get(n);
+        if (kids == null) {
+            kids = new ArrayList<Node>();
+            for (Node k = n.getFirstChild(); k != null; 
+                    k = k.getNextSibling()) {
+                kids.add(k);
+            }
+            mChildren.put(n, kids);
+        }
+        return kids;
+    }
+
+    /**
+     * Finds a node in a list by identity.
+     *
+     * @param nodes The list to search
+     * @param n The node to find
+     * @return The index of the node, or -1 if it isn't in the list
+     */
+    private static int indexOf(final List<Node> nodes, final Node n) {
+
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i) == n) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Live list of the children of a node in an overlay.
+     */
+    private final class Children implements NodeList {
+
+        /** The parent node. **/
+        private final Node mParent;
+
+        /**
+         * Creates a list of the children of a node.
+         *
+         * @param parent The parent node
+         */
+        Children(final Node parent) {
+            mParent = parent;
+        }
+
+        /**
+         * Gets the child at the given index.
+         *
+         * @param index The index
+         * @return The child, or null if the index is out of range
+         */
+        public Node item(final int index) {
+
+            List<Node> kids = mChildren.get(mParent);
+            if (kids == null) {
+                return mParent.getChildNodes().item(index);
+            }
+            Node kid = null;
+            if (index >= 0 && index < kids.size()) {
+                kid = kids.get(index);
+            }
+            return kid;
+        }
+
+        /**
+         * Gets the number of children.
+         *
+         * @return The number of children
+         */
+        public int getLength() {
+
+            List<Node> kids = mChildren.get(mParent);
+            if (kids == null) {
+                return mParent.getChildNodes().getLength();
+            }
+            return kids.size();
+        }
+    }
+}
@@ -19,14 +19,17 @@ limitations under the License.
 
 package org.diffxml.diffxml.fmes.delta;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.PrintStream;
+
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.diffxml.diffxml.DiffFactory;
 import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.ParserPool;
 import org.diffxml.diffxml.fmes.ChildNumber;
 import org.diffxml.diffxml.fmes.NodeOps;
+import org.diffxml.diffxml.fmes.WorkingTree;
+import org.w3c.dom.Attr;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -41,19 +44,61 @@ import org.diffxml.dul.DULConstants;
  */
 public class DULDelta implements DeltaIF {
 
+    /**
+     * Path of the document element.
+     */
+    private static final String ROOT_PATH = "/node()[1]";
+
     /**
      * The EditScript we are creating.
      */
     private Document mEditScript;
+
+    /**
+     * Whether operations carry the data needed to reverse them.
+     */
+    private final boolean mReversible;
+
+    /**
+     * The last move operation, awaiting completeMove.
+     */
+    private Element mMove;
+
+    /**
+     * The parent of the node of the last move operation before the move.
+     */
+    private Node mMoveOldParent;
+
+    /**
+     * The original document as it is edited.
+     */
+    private final WorkingTree mTree;
     
     /**
      * Creates a new, blank EditScript.
      * 
+     * If reverse patches are set in DiffFactory, operations carry the data
+     * needed to apply the delta in reverse.
+     * 
      * @throws DeltaInitialisationException If the EditScript can't be 
      * initialised.
      */
     public DULDelta() throws DeltaInitialisationException {
+        this(new WorkingTree(false));
+    }
+
+    /**
+     * Creates a new, blank EditScript for edits to the given tree.
+     * 
+     * @param tree The original document as it is edited
+     * @throws DeltaInitialisationException If the EditScript can't be 
+     * initialised.
+     */
+    public DULDelta(final WorkingTree tree) 
+    throws DeltaInitialisationException {
         
+        mTree = tree;
+        mReversible = DiffFactory.isReversePatch();
         try {
             mEditScript = makeEmptyEditScript();
         } catch (ParserConfigurationException e) {
@@ -61,6 +106,33 @@ public class DULDelta implements DeltaIF {
         }
     }
     
+    /**
+     * Rebases the paths of an operation from a document holding only one 
+     * subtree to the full document.
+     * 
+     * Paths in the operation start with "/node()[1]" for the root of the
+     * subtree, which is replaced with the path of the subtree in the full 
+     * document.
+     * 
+     * @param op The operation to rebase
+     * @param root The path of the subtree in the full document
+     */
+    public static void rebase(final Element op, final String root) {
+
+        String[] attrs = {DULConstants.NODE, DULConstants.PARENT, 
+                DULConstants.NEW_NODE, DULConstants.OLD_PARENT};
+        for (String attr : attrs) {
+            String path = op.getAttribute(attr);
+            if (path.equals(ROOT_PATH) || path.startsWith(ROOT_PATH + "/")) {
+                op.setAttribute(attr, 
+                        root + path.substring(ROOT_PATH.length()));
+            } else if (path.length() > 0) {
+                throw new IllegalArgumentException(
+                        "Operation is outside the subtree: " + path);
+            }
+        }
+    }
+
     /**
      * Get the XML Document for the EditScript.
      * 
@@ -82,9 +154,7 @@ public class DULDelta implements DeltaIF {
    private static Document makeEmptyEditScript() 
    throws ParserConfigurationException {
 
-       DocumentBuilder builder = 
-           DocumentBuilderFactory.newInstance().newDocumentBuilder();
-       Document editScript = builder.newDocument();
+       Document editScript = ParserPool.getInstance().newDocument();
 
        Element docEl = editScript.createElementNS(
                DULConstants.DUL_NAMESPACE, DULConstants.DELTA);
@@ -150,47 +220,95 @@ public class DULDelta implements DeltaIF {
     public final void insert(final Node n, final String parent, 
             final int childno, final int charpos) {
 
+        Element ins = createInsert(n, parent, childno, charpos);
+
+        String value = n.getNodeValue();
+        if (value != null) {
+            Node txt = mEditScript.createTextNode(value);
+            ins.appendChild(txt);
+        }
+
+        mEditScript.getDocumentElement().appendChild(ins);
+
+        outputDebug(ins);
+        
+        // Add any attributes
+        if (n.getNodeType() == Node.ELEMENT_NODE) {
+            //TODO: Update for using element names instead of node()
+            addAttrsToDelta(n.getAttributes(), 
+                    parent + "/node()[" + childno + "]");
+        }
+    }
+
+    /**
+     * Creates an insert operation element, without any content.
+     * 
+     * @param n The node to insert
+     * @param parent The path to the node to be parent of n
+     * @param childno The child number of the parent node that n will become
+     * @param charpos The character position to insert at
+     * @return The insert operation
+     */
+    private Element createInsert(final Node n, final String parent, 
+            final int childno, final int charpos) {
+
         Element ins = mEditScript.createElement(DULConstants.INSERT);
         
         ins.setAttribute(DULConstants.PARENT, parent);
-        ins.setAttribute(DULConstants.NODETYPE, 
-                Integer.toString(n.getNodeType()));
+        addNodeType(ins, n);
 
         if (n.getNodeType() != Node.ATTRIBUTE_NODE) {
             ins.setAttribute(DULConstants.CHILDNO, Integer.toString(childno));
         }
+        
+        if (charpos > 1) {
+            ins.setAttribute(DULConstants.CHARPOS, Integer.toString(charpos));
+        }
+
+        return ins;
+    }
+
+    /**
+     * Adds the type and, where it has one, the name of a node to an 
+     * operation.
+     * 
+     * @param op The operation
+     * @param n The node the operation creates
+     */
+    private static void addNodeType(final Element op, final Node n) {
+
+        op.setAttribute(DULConstants.NODETYPE, 
+                Integer.toString(n.getNodeType()));
 
         if (n.getNodeType() == Node.ATTRIBUTE_NODE 
                 || n.getNodeType() == Node.ELEMENT_NODE 
                 || n.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE) {
             if (n.getLocalName() != null) {
-                ins.setAttribute(DULConstants.NAMESPACE, n.getNamespaceURI());
-                ins.setAttribute(DULConstants.NAME, n.getLocalName());
+                op.setAttribute(DULConstants.NAMESPACE, n.getNamespaceURI());
+                op.setAttribute(DULConstants.NAME, n.getLocalName());
             } else {
-                ins.setAttribute(DULConstants.NAME, n.getNodeName());
+                op.setAttribute(DULConstants.NAME, n.getNodeName());
             }
         }
-        
-        if (charpos > 1) {
-            ins.setAttribute(DULConstants.CHARPOS, Integer.toString(charpos));
-        }
-
-        String value = n.getNodeValue();
-        if (value != null) {
-            Node txt = mEditScript.createTextNode(value);
-            ins.appendChild(txt);
-        }
+    }
 
-        mEditScript.getDocumentElement().appendChild(ins);
+    /**
+     * Gets the XPath child number a node would be inserted as to put it 
+     * back where it is now, after it has been removed.
+     * 
+     * As with FindPosition, this is one after its left sibling.
+     * 
+     * @param n The node
+     * @return The child number to insert n as
+     */
+    private int getReinsertChildNo(final Node n) {
 
-        outputDebug(ins);
-        
-        // Add any attributes
-        if (n.getNodeType() == Node.ELEMENT_NODE) {
-            //TODO: Update for using element names instead of node()
-            addAttrsToDelta(n.getAttributes(), 
-                    parent + "/node()[" + childno + "]");
+        Node u = mTree.getPreviousSibling(n);
+        int childno = 1;
+        if (u != null) {
+            childno = new ChildNumber(u, mTree).getXPath() + 1;
         }
+        return childno;
     }
 
     /**
@@ -205,9 +323,35 @@ public class DULDelta implements DeltaIF {
     public final void insert(final Node n, final Node parent, 
             final int childno, final int charpos) {
 
-        insert(n, NodeOps.getXPath(parent), childno, charpos);
+        insert(n, NodeOps.getXPath(parent, mTree), childno, charpos);
     }
     
+    /**
+     * Appends a single insert operation for a node and all its descendants.
+     * 
+     * The subtree is serialised as the text content of the operation, so
+     * it must not contain entity references. Attributes of the subtree are
+     * part of the serialisation rather than separate operations.
+     * 
+     * @param n The root of the subtree to insert
+     * @param parent The Node to be parent of n
+     * @param childno The child number of the parent node that n will become
+     * @param charpos The character position to insert at
+     */
+    public final void insertSubtree(final Node n, final Node parent, 
+            final int childno, final int charpos) {
+
+        Element ins = createInsert(n, NodeOps.getXPath(parent, mTree), 
+                childno, charpos);
+        ins.setAttribute(DULConstants.SUBTREE, DULConstants.TRUE);
+        ins.appendChild(mEditScript.createTextNode(
+                DOMOps.getNodeAsStringDeep(n)));
+
+        mEditScript.getDocumentElement().appendChild(ins);
+
+        outputDebug(ins);
+    }
+
     /**
      * Adds a delete operation to the EditScript for the given Node.
      * 
@@ -216,11 +360,11 @@ public class DULDelta implements DeltaIF {
     public final void delete(final Node n) {
         
         Element del = mEditScript.createElement(DULConstants.DELETE);
-        del.setAttribute(DULConstants.NODE, NodeOps.getXPath(n));
+        del.setAttribute(DULConstants.NODE, NodeOps.getXPath(n, mTree));
         
         if (DOMOps.isText(n)) {
             
-            ChildNumber cn = new ChildNumber(n);
+            ChildNumber cn = new ChildNumber(n, mTree);
             int charpos = cn.getXPathCharPos();
             
             if (charpos >= 1) {
@@ -229,7 +373,11 @@ public class DULDelta implements DeltaIF {
             }
 
             del.setAttribute(DULConstants.LENGTH, 
-                    Integer.toString(n.getTextContent().length()));
+                    Integer.toString(mTree.getValue(n).length()));
+        }
+
+        if (mReversible) {
+            addDeletedNode(del, n);
         }
 
         mEditScript.getDocumentElement().appendChild(del);
@@ -237,6 +385,45 @@ public class DULDelta implements DeltaIF {
         outputDebug(del);
     }
 
+    /**
+     * Adds what is needed to insert a node back to its delete operation.
+     * 
+     * This is the same as the insert operation for the node, so elements 
+     * are serialised with their descendants as for insertSubtree. Entity 
+     * references in deleted elements can't be parsed back without the DTD.
+     * 
+     * @param del The delete operation
+     * @param n The node being deleted
+     */
+    private void addDeletedNode(final Element del, final Node n) {
+
+        addNodeType(del, n);
+        if (n.getNodeType() == Node.ATTRIBUTE_NODE) {
+            del.setAttribute(DULConstants.PARENT, 
+                    NodeOps.getXPath(((Attr) n).getOwnerElement(), mTree));
+            del.setTextContent(n.getNodeValue());
+            return;
+        }
+
+        del.setAttribute(DULConstants.PARENT, 
+                NodeOps.getXPath(mTree.getParent(n), mTree));
+        del.setAttribute(DULConstants.CHILDNO, 
+                Integer.toString(getReinsertChildNo(n)));
+
+        int charpos = new ChildNumber(n, mTree).getXPathCharPos();
+        if (charpos > 1) {
+            del.setAttribute(DULConstants.CHARPOS, Integer.toString(charpos));
+        }
+
+        if (n.getNodeType() == Node.ELEMENT_NODE) {
+            del.setAttribute(DULConstants.SUBTREE, DULConstants.TRUE);
+            del.setTextContent(
+                    DOMOps.getNodeAsStringDeep(mTree.getSubtree(n)));
+        } else {
+            del.setTextContent(n.getNodeValue());
+        }
+    }
+
     /**
      * Adds a Move operation to the EditScript. 
      * 
@@ -254,25 +441,58 @@ public class DULDelta implements DeltaIF {
         }
         
         Element mov = mEditScript.createElement(DULConstants.MOVE);
-        mov.setAttribute(DULConstants.NODE, NodeOps.getXPath(n));
+        mov.setAttribute(DULConstants.NODE, NodeOps.getXPath(n, mTree));
         
-        int ocharpos = new ChildNumber(n).getXPathCharPos();
+        int ocharpos = new ChildNumber(n, mTree).getXPathCharPos();
         mov.setAttribute(DULConstants.OLD_CHARPOS, Integer.toString(ocharpos));
         mov.setAttribute(DULConstants.NEW_CHARPOS, Integer.toString(ncharpos));
 
         if (DOMOps.isText(n)) {
             mov.setAttribute(DULConstants.LENGTH, 
-                    Integer.toString(n.getNodeValue().length()));
+                    Integer.toString(mTree.getValue(n).length()));
         }
 
-        mov.setAttribute(DULConstants.PARENT, NodeOps.getXPath(parent));
+        mov.setAttribute(DULConstants.PARENT, 
+                NodeOps.getXPath(parent, mTree));
         mov.setAttribute(DULConstants.CHILDNO, Integer.toString(childno));
 
+        if (mReversible) {
+            //The rest is added once the node has been moved
+            mov.setAttribute(DULConstants.OLD_CHILDNO, 
+                    Integer.toString(getReinsertChildNo(n)));
+            mMove = mov;
+            mMoveOldParent = mTree.getParent(n);
+        }
+
         mEditScript.getDocumentElement().appendChild(mov);
 
         outputDebug(mov);
     }
 
+    /**
+     * Adds the positions the node of the last move operation has been moved
+     * between, as they are after the move, if the delta is reversible.
+     * 
+     * @param n The node that has been moved
+     */
+    public final void completeMove(final Node n) {
+
+        if (mMove != null) {
+            mMove.setAttribute(DULConstants.NEW_NODE, 
+                    NodeOps.getXPath(n, mTree));
+            if (DOMOps.isText(n)) {
+                //new_charpos ignores the text's old position, this doesn't
+                mMove.setAttribute(DULConstants.NEW_NODE_CHARPOS, 
+                        Integer.toString(
+                            new ChildNumber(n, mTree).getXPathCharPos()));
+            }
+            mMove.setAttribute(DULConstants.OLD_PARENT, 
+                    NodeOps.getXPath(mMoveOldParent, mTree));
+            mMove = null;
+            mMoveOldParent = null;
+        }
+    }
+
     /**
      * Adds an update operation to the delta.
      * 
@@ -282,13 +502,28 @@ public class DULDelta implements DeltaIF {
     public final void update(final Node w, final Node x) {
         
         Element update = mEditScript.createElement(DULConstants.UPDATE);
-        update.setAttribute(DULConstants.NODE, NodeOps.getXPath(w));
+        update.setAttribute(DULConstants.NODE, NodeOps.getXPath(w, mTree));
         
         if (w.getNodeType() == Node.ELEMENT_NODE) {
             update.setTextContent(x.getNodeName());
+            if (x.getNamespaceURI() != null) {
+                update.setAttribute(DULConstants.NAMESPACE, 
+                        x.getNamespaceURI());
+            }
+            if (mReversible) {
+                update.setAttribute(DULConstants.OLD_NAME, w.getNodeName());
+                if (w.getNamespaceURI() != null) {
+                    update.setAttribute(DULConstants.OLD_NAMESPACE, 
+                            w.getNamespaceURI());
+                }
+            }
             updateAttributes((Element) w, (Element) x);
         } else {
             update.setTextContent(x.getNodeValue());
+            if (mReversible) {
+                update.setAttribute(DULConstants.OLD_VALUE, 
+                        mTree.getValue(w));
+            }
         } 
         
         mEditScript.getDocumentElement().appendChild(update);
@@ -296,6 +531,65 @@ public class DULDelta implements DeltaIF {
         outputDebug(update);
     }
     
+    /**
+     * Adds an update operation replacing the characters of text node w that
+     * differ from those of x.
+     * 
+     * The edit is found by trimming the common prefix and suffix of the two
+     * values, so is a single replacement of length characters at charpos.
+     * 
+     * @param w The text node to update
+     * @param x The text node to update it to
+     */
+    public final void updateText(final Node w, final Node x) {
+
+        String oldText = mTree.getValue(w);
+        String newText = x.getNodeValue();
+        int max = Math.min(oldText.length(), newText.length());
+
+        int prefix = 0;
+        while (prefix < max 
+                && oldText.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix 
+                && oldText.charAt(oldText.length() - suffix - 1) 
+                == newText.charAt(newText.length() - suffix - 1)) {
+            suffix++;
+        }
+
+        //Don't split surrogate pairs
+        if (prefix > 0 
+                && Character.isHighSurrogate(oldText.charAt(prefix - 1))) {
+            prefix--;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(
+                oldText.charAt(oldText.length() - suffix))) {
+            suffix--;
+        }
+
+        int charpos = Math.max(
+                new ChildNumber(w, mTree).getXPathCharPos(), 1);
+
+        Element update = mEditScript.createElement(DULConstants.UPDATE);
+        update.setAttribute(DULConstants.NODE, NodeOps.getXPath(w, mTree));
+        update.setAttribute(DULConstants.CHARPOS, 
+                Integer.toString(charpos + prefix));
+        update.setAttribute(DULConstants.LENGTH, 
+                Integer.toString(oldText.length() - prefix - suffix));
+        update.setTextContent(
+                newText.substring(prefix, newText.length() - suffix));
+        if (mReversible) {
+            update.setAttribute(DULConstants.OLD_VALUE, 
+                    oldText.substring(prefix, oldText.length() - suffix));
+        }
+
+        mEditScript.getDocumentElement().appendChild(update);
+
+        outputDebug(update);
+    }
+
     /**
      * Updates the attributes of element w to be the same as x's.
      * 
@@ -306,7 +600,7 @@ public class DULDelta implements DeltaIF {
      * @param w The Element to update the attributes of
      * @param x The element holding the correct attributes
      */
-    private void updateAttributes(final Element w, final Element x) {
+    public final void updateAttributes(final Element w, final Element x) {
     
         NamedNodeMap wAttrs = w.getAttributes();
         NamedNodeMap xAttrs = x.getAttributes();
@@ -335,7 +629,7 @@ public class DULDelta implements DeltaIF {
                 
                 if (wAttrs.getNamedItemNS(xAttr.getNamespaceURI(), 
                         xAttr.getLocalName()) == null) {
-                    insert(xAttr, NodeOps.getXPath(w), 0, 1);
+                    insert(xAttr, NodeOps.getXPath(w, mTree), 0, 1);
                 }
             }
         }
@@ -349,8 +643,9 @@ public class DULDelta implements DeltaIF {
     private void outputDebug(final Node n) {
 
         if (DiffFactory.isDebug()) {
-            System.err.print("Applying: ");
-            System.err.println(DOMOps.getNodeAsStringDeep(n));
+            PrintStream err = DiffFactory.getDebugStream();
+            err.print("Applying: ");
+            err.println(DOMOps.getNodeAsStringDeep(n));
         }
     }
 }
@@ -19,6 +19,7 @@ limitations under the License.
 package org.diffxml.diffxml.fmes.delta;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 /**
@@ -41,6 +42,15 @@ public interface DeltaIF {
      */
     void move(final Node n, final Node parent, final int childno, 
             final int ncharpos);
+
+    /**
+     * Completes the last Move operation once its node has been moved. 
+     * 
+     * Allows the delta to record where the node now is.
+     * 
+     * @param n The node that has been moved
+     */
+    void completeMove(final Node n);
     
     /**
      * Adds a delete operation to the EditScript for the given Node.
@@ -60,6 +70,18 @@ public interface DeltaIF {
     void insert(final Node n, final Node parent, final int childno,
             final int charpos);
 
+    /**
+     * Adds an insert operation for a node and all its descendants to the
+     * EditScript.
+     * 
+     * @param n The root of the subtree to insert
+     * @param parent The Node to be parent of n
+     * @param childno The child number of the parent node that n will become
+     * @param charpos The character position to insert at
+     */
+    void insertSubtree(final Node n, final Node parent, final int childno,
+            final int charpos);
+
     /**
      * Adds an update operation to the EditScript.
      * 
@@ -68,6 +90,24 @@ public interface DeltaIF {
      */
     void update(Node w, Node x);
 
+    /**
+     * Adds operations to the EditScript to make the attributes of element w 
+     * the same as those of x.
+     * 
+     * @param w The Element to update the attributes of
+     * @param x The element holding the correct attributes
+     */
+    void updateAttributes(Element w, Element x);
+
+    /**
+     * Adds an operation to the EditScript to make the text of w the same as
+     * that of x, by replacing only the characters that differ.
+     * 
+     * @param w The text node to be updated
+     * @param x The text node holding the correct text
+     */
+    void updateText(Node w, Node x);
+
     /**
      * Get the XML Document for the EditScript.
      * 
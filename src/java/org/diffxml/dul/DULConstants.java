@@ -86,6 +86,12 @@ public final class DULConstants {
 
     /** Update operation element. **/ 
     public static final String UPDATE = "update";
+
+    /** If an insert carries a whole serialised subtree. **/
+    public static final String SUBTREE = "subtree";
+    
+    /** If the delta was simplified to keep within a work budget. **/
+    public static final String DEGRADED = "degraded";
     
     /** If entities were resolved when creating the delta. **/
     public static final String RESOLVE_ENTITIES = "resolve_entities";
@@ -98,6 +104,27 @@ public final class DULConstants {
 
     /** Namespace attribute. **/
     public static final String NAMESPACE = "ns";
+
+    /** Child number a moved node had, for reverse patches. **/
+    public static final String OLD_CHILDNO = "old_childno";
+
+    /** Parent a moved node had, for reverse patches. **/
+    public static final String OLD_PARENT = "old_parent";
+
+    /** Path to a moved node after the move, for reverse patches. **/
+    public static final String NEW_NODE = "new_node";
+
+    /** Position of moved text after the move, for reverse patches. **/
+    public static final String NEW_NODE_CHARPOS = "new_node_charpos";
+
+    /** Name of an element before an update, for reverse patches. **/
+    public static final String OLD_NAME = "old_name";
+
+    /** Namespace of an element before an update, for reverse patches. **/
+    public static final String OLD_NAMESPACE = "old_ns";
+
+    /** Value replaced by an update, for reverse patches. **/
+    public static final String OLD_VALUE = "old_value";
     
     /** Namespace of DUL. **/
     public static final String DUL_NAMESPACE = "http://www.adrianmouat.com/dul";
@@ -0,0 +1,624 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.patchxml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.diffxml.diffxml.ParserPool;
+import org.diffxml.dul.DULConstants;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Composes DUL deltas, so that a chain of deltas can be applied in one go.
+ *
+ * The positions in a DUL operation refer to the document as left by the
+ * operations before it, so the operations of the second delta can follow
+ * those of the first unchanged. Where an operation acts on a node created,
+ * moved or updated by an earlier operation, and the operations in between
+ * are independent of the node, the two are folded together:
+ * 
+ * - An insert followed by a delete of the inserted node cancels, along
+ *   with any operations on the inserted node's descendants in between.
+ * - A move or insert followed by a move of the same node becomes a single
+ *   move or insert to the final position.
+ * - An insert or update followed by an update of the same value becomes a 
+ *   single operation with the final value.
+ * 
+ * Nodes are identified by comparing paths as written by diffxml, so 
+ * anything not provably the same node is left alone. Text nodes, whose 
+ * paths depend on the text around them, are never folded. For most deltas
+ * the result is therefore the concatenation of the two, with a few local
+ * folds; it saves applying the deltas one at a time, not operations.
+ * 
+ * @author Adrian Mouat
+ */
+public class DULCompose {
+
+    /** Start of the steps diffxml uses in paths to child nodes. **/
+    private static final String NODE_STEP = "node()[";
+
+    /**
+     * Composes two deltas.
+     *
+     * The deltas aren't modified.
+     *
+     * @param first  delta from document A to document B
+     * @param second delta from document B to document C
+     * @return a delta from document A to document C
+     * @throws PatchFormatException if either delta is malformed
+     */
+    public final Document compose(final Document first, final Document second)
+    throws PatchFormatException {
+
+        return compose(Arrays.asList(first, second));
+    }
+
+    /**
+     * Composes a chain of deltas, each from the result of the one before.
+     *
+     * The deltas aren't modified.
+     *
+     * @param deltas the deltas in the order they would be applied
+     * @return a delta equivalent to applying all the deltas in order
+     * @throws PatchFormatException if any delta is malformed
+     */
+    public final Document compose(final List<Document> deltas)
+    throws PatchFormatException {
+
+        if (deltas.isEmpty()) {
+            throw new IllegalArgumentException("No deltas to compose");
+        }
+
+        Document result;
+        try {
+            result = ParserPool.getInstance().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new PatchFormatException("Failed to create delta", e);
+        }
+
+        Element root = result.createElementNS(
+                DULConstants.DUL_NAMESPACE, DULConstants.DELTA);
+        result.appendChild(root);
+
+        List<Element> ops = new ArrayList<Element>();
+        boolean first = true;
+        for (Document delta : deltas) {
+            Element deltaRoot = delta.getDocumentElement();
+            if (!deltaRoot.getNodeName().equals(DULConstants.DELTA)) {
+                throw new PatchFormatException("All deltas must begin with a "
+                        + DULConstants.DELTA + " element.");
+            }
+            mergeRootAttributes(root, deltaRoot, first);
+            first = false;
+
+            for (Node n = deltaRoot.getFirstChild(); n != null; 
+                    n = n.getNextSibling()) {
+                if (n.getNodeType() == Node.ELEMENT_NODE) {
+                    addOperation(ops, (Element) result.importNode(n, true));
+                }
+            }
+        }
+
+        for (Element op : ops) {
+            root.appendChild(op);
+        }
+
+        return result;
+    }
+
+    /**
+     * Keeps the attributes of the composed delta's root that hold for all
+     * the deltas composed.
+     *
+     * Entities are left unresolved if they were in any of the deltas.
+     *
+     * @param root      the root of the composed delta
+     * @param deltaRoot the root of a delta being composed
+     * @param first     true if this is the first delta
+     */
+    private static void mergeRootAttributes(final Element root, 
+            final Element deltaRoot, final boolean first) {
+
+        if (first) {
+            NamedNodeMap attrs = deltaRoot.getAttributes();
+            for (int i = 0; i < attrs.getLength(); i++) {
+                Attr a = (Attr) attrs.item(i);
+                if (a.getNamespaceURI() == null) {
+                    root.setAttribute(a.getName(), a.getValue());
+                }
+            }
+            return;
+        }
+
+        NamedNodeMap attrs = root.getAttributes();
+        for (int i = attrs.getLength() - 1; i >= 0; i--) {
+            Attr a = (Attr) attrs.item(i);
+            if (!a.getValue().equals(deltaRoot.getAttribute(a.getName()))
+                    && !a.getName().equals(DULConstants.RESOLVE_ENTITIES)) {
+                root.removeAttribute(a.getName());
+            }
+        }
+        if (DULConstants.FALSE.equals(
+                deltaRoot.getAttribute(DULConstants.RESOLVE_ENTITIES))) {
+            root.setAttribute(DULConstants.RESOLVE_ENTITIES, 
+                    DULConstants.FALSE);
+        }
+    }
+
+    /**
+     * Adds an operation to the end of those composed so far, folding it 
+     * into the operations before it where possible.
+     *
+     * @param ops the operations composed so far
+     * @param op  the next operation
+     */
+    private static void addOperation(final List<Element> ops, 
+            final Element op) {
+
+        String opName = op.getNodeName();
+        if (opName.equals(DULConstants.DELETE) && cancelInsert(ops, op)) {
+            return;
+        } else if ((opName.equals(DULConstants.MOVE) 
+                || opName.equals(DULConstants.UPDATE)) && fold(ops, op)) {
+            return;
+        }
+
+        ops.add(op);
+    }
+
+    /**
+     * Folds a move or update into an earlier operation on the same node.
+     *
+     * Operations between the two must be unaffected by where the node is, 
+     * both before and after a move, so that it can be done early. Updates 
+     * of attributes need the attribute's element to stay where it is.
+     *
+     * @param ops the operations composed so far
+     * @param op  the move or update operation
+     * @return true if the operation was folded into an earlier one
+     */
+    private static boolean fold(final List<Element> ops, final Element op) {
+
+        boolean isMove = op.getNodeName().equals(DULConstants.MOVE);
+        String node = op.getAttribute(DULConstants.NODE);
+        List<String> paths = new ArrayList<String>();
+        int attr = node.lastIndexOf("/@");
+        if (attr > 0) {
+            paths.add(node.substring(0, attr));
+        } else {
+            paths.add(node);
+        }
+        if (isMove) {
+            paths.add(getChildPath(op.getAttribute(DULConstants.PARENT),
+                    op.getAttribute(DULConstants.CHILDNO)));
+        }
+
+        for (int i = ops.size() - 1; i >= 0; i--) {
+            Element prev = ops.get(i);
+            if (isMove && foldMove(prev, op)) {
+                return true;
+            } else if (!isMove && foldUpdate(prev, op)) {
+                return true;
+            }
+            for (String path : paths) {
+                if (getParentPath(path) == null 
+                        || !isIndependent(prev, path)) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the insert of the node a delete removes.
+     *
+     * Operations between the insert and the delete must either be within 
+     * the inserted node, in which case they are removed too, or be 
+     * unaffected by the node being there.
+     *
+     * @param ops the operations composed so far
+     * @param del the delete operation
+     * @return true if the delete cancelled an insert
+     */
+    private static boolean cancelInsert(final List<Element> ops, 
+            final Element del) {
+
+        String path = del.getAttribute(DULConstants.NODE);
+        if (del.hasAttribute(DULConstants.LENGTH) 
+                || getParentPath(path) == null) {
+            return false;
+        }
+
+        List<Element> within = new ArrayList<Element>();
+        for (int i = ops.size() - 1; i >= 0; i--) {
+            Element op = ops.get(i);
+            if (path.equals(getInsertedPath(op))) {
+                ops.remove(i);
+                ops.removeAll(within);
+                return true;
+            } else if (isWithin(op, path)) {
+                within.add(op);
+            } else if (!isIndependent(op, path)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tests if an operation neither affects nor is affected by the node at
+     * the given path.
+     *
+     * It mustn't refer to any node whose path depends on the node, or add
+     * or remove children of the node's parent or any of its ancestors.
+     *
+     * @param op   the operation
+     * @param path the path of the node
+     * @return true if the operation is independent of the node
+     */
+    private static boolean isIndependent(final Element op, 
+            final String path) {
+
+        String parent = getParentPath(path);
+        int index = getChildIndex(path);
+
+        String opName = op.getNodeName();
+        List<String> refs = new ArrayList<String>();
+        List<String> changed = new ArrayList<String>();
+
+        if (opName.equals(DULConstants.INSERT)) {
+            refs.add(op.getAttribute(DULConstants.PARENT));
+            if (!op.getAttribute(DULConstants.NODETYPE).equals(
+                    Short.toString(Node.ATTRIBUTE_NODE))) {
+                changed.add(op.getAttribute(DULConstants.PARENT));
+            }
+        } else if (opName.equals(DULConstants.DELETE)) {
+            String node = op.getAttribute(DULConstants.NODE);
+            refs.add(node);
+            if (!node.substring(node.lastIndexOf('/') + 1).startsWith("@")) {
+                changed.add(getParentPath(node));
+            }
+        } else if (opName.equals(DULConstants.MOVE)) {
+            String node = op.getAttribute(DULConstants.NODE);
+            refs.add(node);
+            refs.add(op.getAttribute(DULConstants.PARENT));
+            refs.add(op.getAttribute(DULConstants.NEW_NODE));
+            refs.add(op.getAttribute(DULConstants.OLD_PARENT));
+            changed.add(getParentPath(node));
+            changed.add(op.getAttribute(DULConstants.PARENT));
+        } else {
+            refs.add(op.getAttribute(DULConstants.NODE));
+        }
+
+        for (String ref : refs) {
+            if (isShifted(ref, parent, index)) {
+                return false;
+            }
+        }
+        for (String c : changed) {
+            if (c == null || c.equals(parent) 
+                    || parent.startsWith(c.endsWith("/") ? c : c + "/")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tests if an operation only changes the descendants or attributes of
+     * the node at the given path.
+     *
+     * @param op   the operation
+     * @param path the path of the node
+     * @return true if only nodes within the node are changed
+     */
+    private static boolean isWithin(final Element op, final String path) {
+
+        String opName = op.getNodeName();
+        String inside = path + "/";
+        boolean within;
+
+        if (opName.equals(DULConstants.INSERT)) {
+            String parent = op.getAttribute(DULConstants.PARENT);
+            within = parent.equals(path) || parent.startsWith(inside);
+        } else if (opName.equals(DULConstants.MOVE)) {
+            String parent = op.getAttribute(DULConstants.PARENT);
+            within = op.getAttribute(DULConstants.NODE).startsWith(inside)
+                && (parent.equals(path) || parent.startsWith(inside));
+        } else {
+            within = op.getAttribute(DULConstants.NODE).startsWith(inside);
+        }
+        return within;
+    }
+
+    /**
+     * Folds a move of the node an earlier operation inserted or moved 
+     * into that operation.
+     *
+     * The new parent must be unaffected by where the node was before, so
+     * it can be found the same way without the earlier operation, and the
+     * parent recorded for the reverse must be unaffected by either move.
+     *
+     * @param prev the earlier operation
+     * @param mov  the move operation
+     * @return true if the move was folded into prev
+     */
+    private static boolean foldMove(final Element prev, final Element mov) {
+
+        String path = mov.getAttribute(DULConstants.NODE);
+        String parent = mov.getAttribute(DULConstants.PARENT);
+
+        if (mov.hasAttribute(DULConstants.LENGTH)) {
+            return false;
+        }
+
+        if (prev.getNodeName().equals(DULConstants.INSERT)) {
+            if (!path.equals(getInsertedPath(prev))
+                    || isShifted(parent, getParentPath(path), 
+                            getChildIndex(path))) {
+                return false;
+            }
+            prev.setAttribute(DULConstants.PARENT, parent);
+            copyPosition(mov, DULConstants.NEW_CHARPOS, 
+                    prev, DULConstants.CHARPOS);
+            return true;
+        }
+
+        if (!prev.getNodeName().equals(DULConstants.MOVE)
+                || prev.hasAttribute(DULConstants.LENGTH)) {
+            return false;
+        }
+
+        String prevParent = prev.getAttribute(DULConstants.PARENT);
+        String oldPath = prev.getAttribute(DULConstants.NODE);
+        String oldParent = getParentPath(oldPath);
+        if (oldParent == null 
+                || !path.equals(getChildPath(prevParent, 
+                        prev.getAttribute(DULConstants.CHILDNO)))
+                || isShifted(parent, prevParent, getChildIndex(path)) 
+                || isShifted(parent, oldParent, getChildIndex(oldPath))) {
+            return false;
+        }
+
+        //The reverse finds the old parent after the node has moved
+        String revParent = prev.getAttribute(DULConstants.OLD_PARENT);
+        if (isShifted(revParent, prevParent, getChildIndex(path))
+                || isShifted(revParent, parent, getChildIndex(getChildPath(
+                        parent, mov.getAttribute(DULConstants.CHILDNO))))) {
+            return false;
+        }
+
+        prev.setAttribute(DULConstants.PARENT, parent);
+        prev.setAttribute(DULConstants.CHILDNO, 
+                mov.getAttribute(DULConstants.CHILDNO));
+        copyPosition(mov, DULConstants.NEW_CHARPOS, 
+                prev, DULConstants.NEW_CHARPOS);
+        if (mov.hasAttribute(DULConstants.NEW_NODE)) {
+            prev.setAttribute(DULConstants.NEW_NODE, 
+                    mov.getAttribute(DULConstants.NEW_NODE));
+        } else {
+            prev.removeAttribute(DULConstants.NEW_NODE);
+        }
+        return true;
+    }
+
+    /**
+     * Folds an update into an earlier operation if it created or updated
+     * the same value.
+     *
+     * @param prev   the earlier operation
+     * @param update the update operation
+     * @return true if the update was folded into prev
+     */
+    private static boolean foldUpdate(final Element prev, 
+            final Element update) {
+
+        String path = update.getAttribute(DULConstants.NODE);
+        if (update.hasAttribute(DULConstants.LENGTH)) {
+            return false;
+        }
+
+        if (prev.getNodeName().equals(DULConstants.UPDATE)) {
+            if (!path.equals(prev.getAttribute(DULConstants.NODE))
+                    || prev.hasAttribute(DULConstants.LENGTH)) {
+                return false;
+            }
+            if (update.hasAttribute(DULConstants.NAMESPACE)) {
+                prev.setAttribute(DULConstants.NAMESPACE, 
+                        update.getAttribute(DULConstants.NAMESPACE));
+            } else {
+                prev.removeAttribute(DULConstants.NAMESPACE);
+            }
+        } else if (prev.getNodeName().equals(DULConstants.INSERT)) {
+            //Element updates are renames, which inserts hold differently
+            String type = prev.getAttribute(DULConstants.NODETYPE);
+            if (!path.equals(getInsertedPath(prev))
+                    || type.equals(Short.toString(Node.ELEMENT_NODE))) {
+                return false;
+            }
+        } else {
+            return false;
+        }
+
+        prev.setTextContent(update.getTextContent());
+        return true;
+    }
+
+    /**
+     * Copies a character position between operations.
+     *
+     * The position defaults to 1 if not present.
+     *
+     * @param from     the operation to copy from
+     * @param fromName the attribute to copy
+     * @param to       the operation to copy to
+     * @param toName   the attribute to copy to
+     */
+    private static void copyPosition(final Element from, 
+            final String fromName, final Element to, final String toName) {
+
+        if (from.hasAttribute(fromName)) {
+            to.setAttribute(toName, from.getAttribute(fromName));
+        } else {
+            to.removeAttribute(toName);
+        }
+        if (to.getNodeName().equals(DULConstants.INSERT)) {
+            to.setAttribute(DULConstants.CHILDNO, 
+                    from.getAttribute(DULConstants.CHILDNO));
+        }
+    }
+
+    /**
+     * Tests if a path may change when a child is added or removed.
+     *
+     * Paths through earlier children are unchanged, unless they are text
+     * that the child joined or split.
+     *
+     * @param path   the path to test
+     * @param parent the path of the node whose children change
+     * @param index  the XPath child number of the child
+     * @return true if path may be changed
+     */
+    private static boolean isShifted(final String path, final String parent,
+            final int index) {
+
+        String inside = parent.endsWith("/") ? parent : parent + "/";
+        if (!path.startsWith(inside)) {
+            return false;
+        }
+
+        String step = path.substring(inside.length());
+        if (step.startsWith("@")) {
+            return false;
+        }
+        int end = step.indexOf(']');
+        if (!step.startsWith(NODE_STEP) || end < 0) {
+            return true;
+        }
+        try {
+            return Integer.parseInt(
+                    step.substring(NODE_STEP.length(), end)) >= index - 1;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Gets the XPath child number from the last step of a path.
+     *
+     * @param path a path to a child node, as accepted by getParentPath
+     * @return the child number
+     */
+    private static int getChildIndex(final String path) {
+
+        int start = path.lastIndexOf(NODE_STEP) + NODE_STEP.length();
+        try {
+            return Integer.parseInt(
+                    path.substring(start, path.length() - 1));
+        } catch (NumberFormatException e) {
+            //Treat as the first child, which shifts all the others
+            return 1;
+        }
+    }
+
+    /**
+     * Gets the path of the node an insert creates, if it isn't text.
+     *
+     * @param op the operation
+     * @return the path of the inserted node, or null if op isn't an insert
+     * of a node other than text
+     */
+    private static String getInsertedPath(final Element op) {
+
+        if (!op.getNodeName().equals(DULConstants.INSERT)) {
+            return null;
+        }
+
+        String parent = op.getAttribute(DULConstants.PARENT);
+        String type = op.getAttribute(DULConstants.NODETYPE);
+        String path = null;
+        if (type.equals(Short.toString(Node.ATTRIBUTE_NODE))) {
+            path = getAttributePath(parent, 
+                    op.getAttribute(DULConstants.NAME),
+                    op.getAttribute(DULConstants.NAMESPACE));
+        } else if (!type.equals(Short.toString(Node.TEXT_NODE)) 
+                && !type.equals(Short.toString(Node.CDATA_SECTION_NODE))) {
+            String childno = op.getAttribute(DULConstants.CHILDNO);
+            path = getChildPath(parent, 
+                    childno.length() == 0 ? "1" : childno);
+        }
+        return path;
+    }
+
+    /**
+     * Gets the path of the parent of the node at the given path.
+     *
+     * @param path a path to a child node
+     * @return the path of the parent, or null if it isn't a child path
+     */
+    private static String getParentPath(final String path) {
+
+        int i = path.lastIndexOf("/" + NODE_STEP);
+        if (i < 1 || !path.endsWith("]")) {
+            return null;
+        }
+        return path.substring(0, i);
+    }
+
+    /**
+     * Gets the path of a child node as written by diffxml.
+     *
+     * @param parent  the path of the parent
+     * @param childno the XPath child number
+     * @return the path of the child
+     */
+    static String getChildPath(final String parent, final String childno) {
+
+        String sep = parent.endsWith("/") ? "" : "/";
+        return parent + sep + NODE_STEP + childno + "]";
+    }
+
+    /**
+     * Gets the path of an attribute.
+     *
+     * @param parent the path of the element
+     * @param name   the local name of the attribute
+     * @param ns     the namespace of the attribute, may be empty or null
+     * @return the path of the attribute
+     */
+    static String getAttributePath(final String parent, final String name,
+            final String ns) {
+
+        String sep = parent.endsWith("/") ? "" : "/";
+        if (ns == null || ns.length() == 0) {
+            return parent + sep + "@" + name;
+        }
+        return parent + sep + "@*[local-name()='" + name 
+            + "' and namespace-uri()='" + ns + "']";
+    }
+}
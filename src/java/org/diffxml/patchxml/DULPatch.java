@@ -19,8 +19,12 @@ limitations under the License.
 package org.diffxml.patchxml;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
 
+import org.diffxml.diffxml.Cancellation;
 import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.ParserPool;
 import org.diffxml.dul.DULConstants;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -31,7 +35,10 @@ import org.w3c.dom.NodeList;
 import org.w3c.dom.traversal.DocumentTraversal;
 import org.w3c.dom.traversal.NodeFilter;
 import org.w3c.dom.traversal.NodeIterator;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathFactory;
 import javax.xml.xpath.XPathConstants;
@@ -39,8 +46,58 @@ import javax.xml.xpath.XPathExpressionException;
 
 public class DULPatch {
 
+    /** Namespace of xmlns attributes. **/
+    private static final String XMLNS_NS = "http://www.w3.org/2000/xmlns/";
+
     private XPath mXPath;
 
+    /**
+     * If true, the result of each operation is output to mErr.
+     */
+    private boolean mDebug = false;
+
+    /** Stream debug output is written to. **/
+    private PrintStream mErr = System.err;
+
+    /**
+     * Token checked before each operation, along with the thread's 
+     * interrupt status.
+     */
+    private Cancellation mCancellation = new Cancellation();
+
+    /**
+     * Sets whether the result of each operation is output, by default to 
+     * standard error.
+     *
+     * @param debug True to output debug information
+     */
+    public final void setDebug(final boolean debug) {
+        mDebug = debug;
+    }
+
+    /**
+     * Sets whether the result of each operation is output, and where to.
+     *
+     * @param debug True to output debug information
+     * @param err The stream to output debug information to
+     */
+    public final void setDebug(final boolean debug, final PrintStream err) {
+        mDebug = debug;
+        mErr = err;
+    }
+
+    /**
+     * Sets the token used to cancel patches in progress.
+     *
+     * A cancelled patch throws a CancelledException, leaving the document
+     * partly patched. Patches are also cancelled by interrupting the thread.
+     *
+     * @param token The token
+     */
+    public final void setCancellation(final Cancellation token) {
+        mCancellation = token;
+    }
+
     /**
      * Perform update operation.
      *
@@ -71,12 +128,79 @@ public class DULPatch {
             }
             updateNode.getParentNode().replaceChild(newNode, updateNode);
             
+        } else if (DOMOps.isText(updateNode) 
+                && opAttrs.getNamedItem(DULConstants.LENGTH) != null) {
+            updateText(updateNode, getCharPos(opAttrs), 
+                    getReplacedLength(opAttrs), op.getTextContent());
         } else {
             updateNode.setNodeValue(op.getTextContent());
         }
 
     }
 
+    /**
+     * Get value of length attribute of a text update.
+     *
+     * Unlike other operations, may be 0 for a pure insertion.
+     *
+     * @param attrs attributes of operation node
+     * @return the number of characters replaced
+     * @throws PatchFormatException If the length is malformed
+     */
+    private int getReplacedLength(final NamedNodeMap attrs)
+    throws PatchFormatException {
+
+        int val;
+        try {
+            val = Integer.valueOf(
+                    attrs.getNamedItem(DULConstants.LENGTH).getNodeValue());
+        } catch (NumberFormatException e) {
+            throw new PatchFormatException("Invalid length", e);
+        }
+        if (val < 0) {
+            throw new PatchFormatException("Invalid length");
+        }
+        return val;
+    }
+
+    /**
+     * Replaces characters of a text node in place.
+     *
+     * The text node may be followed by other text nodes that XPath treats as
+     * part of the same node, but the replaced characters must all be in one
+     * of them.
+     *
+     * @param textNode the first text node of the XPath text node
+     * @param charpos  the position of the first character to replace
+     * @param length   the number of characters to replace
+     * @param text     the replacement text
+     * @throws PatchFormatException if the characters aren't in the text
+     */
+    private void updateText(final Node textNode, final int charpos,
+            final int length, final String text) 
+    throws PatchFormatException {
+
+        Node n = textNode;
+        int cp = charpos;
+        while (DOMOps.isText(n) 
+                && cp - 1 + length > n.getNodeValue().length()) {
+            if (cp - 1 < n.getNodeValue().length()) {
+                throw new PatchFormatException(
+                        "Text update spans more than one node");
+            }
+            cp = cp - n.getNodeValue().length();
+            n = n.getNextSibling();
+        }
+
+        if (!DOMOps.isText(n)) {
+            throw new PatchFormatException("charpos past end of text");
+        }
+
+        String value = n.getNodeValue();
+        n.setNodeValue(value.substring(0, cp - 1) + text 
+                + value.substring(cp - 1 + length));
+    }
+
     /**
      * Get the parent node pointed to by the parent attribute.
      *
@@ -211,8 +335,11 @@ public class DULPatch {
         int domIndex = 0;
         int xPathIndex = 1;
         while ((xPathIndex < xpathcn) && (domIndex < siblings.getLength())) {
+            //Doctypes aren't XPath nodes
             if (!((prevNodeIsATextNode(siblings, domIndex))
-                    && (DOMOps.isText(siblings.item(domIndex))))) {
+                    && (DOMOps.isText(siblings.item(domIndex))))
+                    && siblings.item(domIndex).getNodeType() 
+                        != Node.DOCUMENT_TYPE_NODE) {
                 xPathIndex++;
             }
             domIndex++;
@@ -500,6 +627,99 @@ public class DULPatch {
         return domcn;
     }
 
+    /**
+     * Tests if an insert operation carries a whole subtree.
+     *
+     * @param opAttrs attributes of operation node
+     * @return true if the subtree attribute is true
+     */
+    private boolean isSubtree(final NamedNodeMap opAttrs) {
+
+        Node a = opAttrs.getNamedItem(DULConstants.SUBTREE);
+        return (a != null && a.getNodeValue().equals(DULConstants.TRUE));
+    }
+
+    /**
+     * Parses the serialised subtree of an insert operation.
+     *
+     * @param doc   the document the subtree will be inserted into
+     * @param value the serialised subtree
+     * @return the root of the subtree, owned by doc
+     * @throws PatchFormatException if the subtree can't be parsed
+     */
+    private Node parseSubtree(final Document doc, final String value)
+    throws PatchFormatException {
+
+        Document subtree;
+        try {
+            subtree = ParserPool.getInstance().parse(
+                    new InputSource(new StringReader(value)));
+        } catch (ParserConfigurationException e) {
+            throw new PatchFormatException("Failed to configure parser", e);
+        } catch (SAXException e) {
+            throw new PatchFormatException("Invalid subtree in insert", e);
+        } catch (IOException e) {
+            throw new PatchFormatException("Invalid subtree in insert", e);
+        }
+
+        return doc.importNode(subtree.getDocumentElement(), true);
+    }
+
+    /**
+     * Removes the namespace declarations of an inserted subtree that are
+     * already in scope.
+     *
+     * The subtree was serialised on its own, so it declares the namespaces
+     * that were in scope where they are first used. Declarations that 
+     * make no difference where the subtree was inserted are removed, so 
+     * the result is as in the new document.
+     *
+     * @param n the inserted node
+     */
+    private static void removeDeclarationsInScope(final Node n) {
+
+        Node parent = n.getParentNode();
+        if (n.getNodeType() != Node.ELEMENT_NODE 
+                || parent.getNodeType() != Node.ELEMENT_NODE) {
+            return;
+        }
+
+        NamedNodeMap attrs = n.getAttributes();
+        for (int i = attrs.getLength() - 1; i >= 0; i--) {
+            Node a = attrs.item(i);
+            if (isInScope(parent, a)) {
+                ((Element) n).removeAttributeNode((Attr) a);
+            }
+        }
+        for (Node k = n.getFirstChild(); k != null; k = k.getNextSibling()) {
+            removeDeclarationsInScope(k);
+        }
+    }
+
+    /**
+     * Tests if a namespace declaration is already in scope at a node.
+     *
+     * @param n    the node
+     * @param decl the attribute, which may not be a declaration
+     * @return true if the declaration makes no difference at n
+     */
+    private static boolean isInScope(final Node n, final Node decl) {
+
+        if (!XMLNS_NS.equals(decl.getNamespaceURI())) {
+            return false;
+        }
+
+        String prefix = null;
+        if (decl.getPrefix() != null) {
+            prefix = decl.getLocalName();
+        }
+        String uri = n.lookupNamespaceURI(prefix);
+        if (uri == null) {
+            uri = "";
+        }
+        return uri.equals(decl.getNodeValue());
+    }
+
     /**
      * Apply insert operation to document.
      *
@@ -543,9 +763,17 @@ public class DULPatch {
                 
             case Node.ELEMENT_NODE:
 
-                ins = doc.createElementNS(getNameSpaceFromAttr(opAttrs),
-                        getNameFromAttr(opAttrs));
-                insertNode(siblings, parentNode, domcn, charpos, ins, doc);
+                if (isSubtree(opAttrs)) {
+                    ins = parseSubtree(doc, getOpValue(op));
+                    insertNode(siblings, parentNode, domcn, charpos, ins, 
+                            doc);
+                    removeDeclarationsInScope(ins);
+                } else {
+                    ins = doc.createElementNS(getNameSpaceFromAttr(opAttrs),
+                            getNameFromAttr(opAttrs));
+                    insertNode(siblings, parentNode, domcn, charpos, ins, 
+                            doc);
+                }
                 break;
 
             case Node.COMMENT_NODE:
@@ -817,7 +1045,6 @@ public class DULPatch {
         Element parent = (Element) getNamedParent(doc, opAttrs);
 
         NodeList newSiblings = parent.getChildNodes();
-        int domcn = getDOMChildNo(opAttrs, moveNode.getNodeType(), newSiblings);
 
         //Get new charpos
         int newCharPos = getNewCharPos(opAttrs);
@@ -835,7 +1062,10 @@ public class DULPatch {
         } else {
             moveNode = moveNode.getParentNode().removeChild(moveNode);
         }
-        
+
+        //The child number is that of the position with the node removed, 
+        //which may have joined the text either side of it
+        int domcn = getDOMChildNo(opAttrs, moveNode.getNodeType(), newSiblings);
 
         //Perform insert
         insertNode(newSiblings, parent, domcn, newCharPos, moveNode, doc);
@@ -869,43 +1099,271 @@ public class DULPatch {
         op = ni.nextNode();
 
         while (op != null) {
-            //Normalize essential for deletes to work
-            doc.normalize();
-            String opName = op.getNodeName();
+            applyOperation(doc, op, op);
+            op = ni.nextNode();
+        }
+    }
 
-            try {
-                if (opName.equals(DULConstants.UPDATE)) {
-                    doUpdate(doc, op);
-                } else if (opName.equals(DULConstants.INSERT)) {
-                    doInsert(doc, op);
-                } else if (opName.equals(DULConstants.DELETE)) {
-                    doDelete(doc, op);
-                } else if (opName.equals(DULConstants.MOVE)) {
-                    doMove(doc, op);
-                } else {
-                    throw new PatchFormatException(
-                            "Invalid element: " + opName);
-                }
+    /**
+     * Apply DUL patch to XML document in reverse.
+     *
+     * The patch is applied to the document it was created against to get
+     * back the original. The delta must have been created as a reverse 
+     * patch, so that each operation holds what is needed to undo it; the 
+     * original document is not needed.
+     *
+     * @param doc   the XML document to be patched
+     * @param patch the DUL patch
+     * @throws PatchFormatException if the patch can't be reversed or there 
+     * is an error parsing it
+     */
+    public final void applyReverse(final Document doc, final Document patch) 
+        throws PatchFormatException {
 
-                if (PatchXML.debug) {
-                    try {
-                        System.err.print("At operation: ");
-                        System.err.println(DOMOps.getNodeAsStringDeep(op));
-                        System.err.println("Result: ");
-                        DOMOps.outputXML(doc, System.err);
-                        System.err.println();
-                        System.err.println();
-                    } catch (IOException e) {
-                        System.err.println("Failed to print debug output");
-                        System.exit(1);
-                    }
-                }
-            } catch (PatchFormatException e) {
+        mXPath = XPathFactory.newInstance().newXPath();
+
+        Element delta = patch.getDocumentElement();
+        if (!delta.getNodeName().equals(DULConstants.DELTA)) {
+            throw new PatchFormatException("All deltas must begin with a "
+                    + DULConstants.DELTA + " element.");
+        }
+        if (!DULConstants.TRUE.equals(
+                delta.getAttribute(DULConstants.REVERSE_PATCH))) {
+            throw new PatchFormatException(
+                    "Delta was not created as a reverse patch");
+        }
+
+        //Undo the operations last first
+        for (Node op = delta.getLastChild(); op != null; 
+                op = op.getPreviousSibling()) {
+            if (op.getNodeType() == Node.ELEMENT_NODE) {
+                applyOperation(doc, invert((Element) op), op);
+            }
+        }
+    }
+
+    /**
+     * Applies a single operation to the document.
+     *
+     * @param doc    the XML document to be patched
+     * @param op     the operation to apply
+     * @param source the operation in the patch, for error messages
+     * @throws PatchFormatException if there is an error parsing the op
+     */
+    private void applyOperation(final Document doc, final Node op, 
+            final Node source) throws PatchFormatException {
+
+        mCancellation.check();
+
+        //Normalize essential for deletes to work
+        doc.normalize();
+        String opName = op.getNodeName();
+
+        try {
+            if (opName.equals(DULConstants.UPDATE)) {
+                doUpdate(doc, op);
+            } else if (opName.equals(DULConstants.INSERT)) {
+                doInsert(doc, op);
+            } else if (opName.equals(DULConstants.DELETE)) {
+                doDelete(doc, op);
+            } else if (opName.equals(DULConstants.MOVE)) {
+                doMove(doc, op);
+            } else {
                 throw new PatchFormatException(
-                        "Error at operation:\n"
-                        + DOMOps.getNodeAsStringDeep(op), e);
+                        "Invalid element: " + opName);
             }
-            op = ni.nextNode();
+
+            if (mDebug) {
+                try {
+                    mErr.print("At operation: ");
+                    mErr.println(DOMOps.getNodeAsStringDeep(op));
+                    mErr.println("Result: ");
+                    DOMOps.outputXML(doc, mErr);
+                    mErr.println();
+                    mErr.println();
+                } catch (IOException e) {
+                    mErr.println("Failed to print debug output");
+                }
+            }
+        } catch (PatchFormatException e) {
+            throw new PatchFormatException(
+                    "Error at operation:\n"
+                    + DOMOps.getNodeAsStringDeep(source), e);
+        }
+    }
+
+    /**
+     * Creates the operation that undoes the given operation.
+     *
+     * @param op an operation from a reverse patch
+     * @return the inverse operation, not attached to any document
+     * @throws PatchFormatException if op doesn't hold the data to undo it
+     */
+    private Element invert(final Element op) throws PatchFormatException {
+
+        String opName = op.getNodeName();
+        Element inv;
+
+        try {
+            if (opName.equals(DULConstants.INSERT)) {
+                inv = createOp(op, DULConstants.DELETE);
+                invertInsert(op, inv);
+            } else if (opName.equals(DULConstants.DELETE)) {
+                inv = createOp(op, DULConstants.INSERT);
+                copyAttr(op, DULConstants.PARENT, inv, DULConstants.PARENT);
+                copyAttr(op, DULConstants.NODETYPE, 
+                        inv, DULConstants.NODETYPE);
+                copyAttr(op, DULConstants.CHILDNO, inv, DULConstants.CHILDNO);
+                copyAttr(op, DULConstants.CHARPOS, inv, DULConstants.CHARPOS);
+                copyAttr(op, DULConstants.NAME, inv, DULConstants.NAME);
+                copyAttr(op, DULConstants.NAMESPACE, 
+                        inv, DULConstants.NAMESPACE);
+                copyAttr(op, DULConstants.SUBTREE, inv, DULConstants.SUBTREE);
+                inv.setTextContent(getOpValue(op));
+            } else if (opName.equals(DULConstants.MOVE)) {
+                inv = createOp(op, DULConstants.MOVE);
+                copyAttr(op, DULConstants.NEW_NODE, inv, DULConstants.NODE);
+                copyAttr(op, DULConstants.OLD_PARENT, 
+                        inv, DULConstants.PARENT);
+                copyAttr(op, DULConstants.OLD_CHILDNO, 
+                        inv, DULConstants.CHILDNO);
+                copyAttr(op, DULConstants.NEW_CHARPOS, 
+                        inv, DULConstants.OLD_CHARPOS);
+                copyAttr(op, DULConstants.NEW_NODE_CHARPOS, 
+                        inv, DULConstants.OLD_CHARPOS);
+                copyAttr(op, DULConstants.OLD_CHARPOS, 
+                        inv, DULConstants.NEW_CHARPOS);
+                copyAttr(op, DULConstants.LENGTH, inv, DULConstants.LENGTH);
+            } else if (opName.equals(DULConstants.UPDATE)) {
+                inv = createOp(op, DULConstants.UPDATE);
+                invertUpdate(op, inv);
+            } else {
+                throw new PatchFormatException("Invalid element: " + opName);
+            }
+        } catch (PatchFormatException e) {
+            throw new PatchFormatException("Cannot reverse operation:\n"
+                    + DOMOps.getNodeAsStringDeep(op), e);
+        }
+
+        return inv;
+    }
+
+    /**
+     * Fills in the delete operation that undoes an insert.
+     *
+     * Inserts hold all that is needed to find the node they created.
+     *
+     * @param op  the insert operation
+     * @param inv the delete operation
+     * @throws PatchFormatException if the insert is malformed
+     */
+    private void invertInsert(final Element op, final Element inv) 
+    throws PatchFormatException {
+
+        NamedNodeMap opAttrs = op.getAttributes();
+        String parent = op.getAttribute(DULConstants.PARENT);
+        int nodeType = getNodeTypeFromAttr(opAttrs);
+
+        if (nodeType == Node.ATTRIBUTE_NODE) {
+            inv.setAttribute(DULConstants.NODE, DULCompose.getAttributePath(
+                    parent, getNameFromAttr(opAttrs), 
+                    getNameSpaceFromAttr(opAttrs)));
+            return;
+        }
+
+        int childno = 1;
+        if (opAttrs.getNamedItem(DULConstants.CHILDNO) != null) {
+            try {
+                childno = Integer.valueOf(
+                        op.getAttribute(DULConstants.CHILDNO));
+            } catch (NumberFormatException e) {
+                throw new PatchFormatException("Invalid childno", e);
+            }
+        }
+
+        if (nodeType == Node.TEXT_NODE 
+                || nodeType == Node.CDATA_SECTION_NODE) {
+            //Inserted text joins the text it was inserted after
+            int charpos = getCharPos(opAttrs);
+            if (charpos > 1) {
+                childno--;
+                inv.setAttribute(DULConstants.CHARPOS, 
+                        Integer.toString(charpos));
+            }
+            inv.setAttribute(DULConstants.LENGTH, 
+                    Integer.toString(getOpValue(op).length()));
+        }
+        inv.setAttribute(DULConstants.NODE, DULCompose.getChildPath(
+                parent, Integer.toString(childno)));
+    }
+
+    /**
+     * Fills in the update operation that undoes an update.
+     *
+     * @param op  the update operation
+     * @param inv the inverse update operation
+     * @throws PatchFormatException if the update doesn't hold the old value
+     */
+    private void invertUpdate(final Element op, final Element inv) 
+    throws PatchFormatException {
+
+        copyAttr(op, DULConstants.NODE, inv, DULConstants.NODE);
+
+        if (op.hasAttribute(DULConstants.OLD_NAME)) {
+            //Element rename
+            inv.setTextContent(op.getAttribute(DULConstants.OLD_NAME));
+            if (op.hasAttribute(DULConstants.OLD_NAMESPACE)) {
+                copyAttr(op, DULConstants.OLD_NAMESPACE, 
+                        inv, DULConstants.NAMESPACE);
+            }
+            return;
+        }
+
+        if (!op.hasAttribute(DULConstants.OLD_VALUE)) {
+            throw new PatchFormatException("No old value in update");
+        }
+        inv.setTextContent(op.getAttribute(DULConstants.OLD_VALUE));
+        if (op.hasAttribute(DULConstants.LENGTH)) {
+            //Replace the new characters with the old ones
+            copyAttr(op, DULConstants.CHARPOS, inv, DULConstants.CHARPOS);
+            inv.setAttribute(DULConstants.LENGTH, 
+                    Integer.toString(getOpValue(op).length()));
+        }
+    }
+
+    /**
+     * Creates an empty operation in the same document as another.
+     *
+     * @param op   the operation to take the document from
+     * @param name the name of the new operation
+     * @return the new operation
+     */
+    private static Element createOp(final Element op, final String name) {
+        return op.getOwnerDocument().createElementNS(
+                op.getNamespaceURI(), name);
+    }
+
+    /**
+     * Copies an attribute of one operation to another.
+     *
+     * Attributes other than node are optional, so are only copied if set.
+     *
+     * @param from     the operation to copy from
+     * @param fromName the name of the attribute in from
+     * @param to       the operation to copy to
+     * @param toName   the name of the attribute in to
+     * @throws PatchFormatException if the node attribute is missing
+     */
+    private static void copyAttr(final Element from, final String fromName,
+            final Element to, final String toName) 
+    throws PatchFormatException {
+
+        if (from.hasAttribute(fromName)) {
+            to.setAttribute(toName, from.getAttribute(fromName));
+        } else if (toName.equals(DULConstants.NODE) 
+                || toName.equals(DULConstants.PARENT)) {
+            throw new PatchFormatException(
+                    "No " + fromName + " attribute to reverse operation");
         }
     }
 
@@ -22,15 +22,17 @@ package org.diffxml.patchxml;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 
+import org.diffxml.diffxml.CommandOutput;
 import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.ParserPool;
 
 /**
  * Applies a DUL patch to an XML document.
@@ -38,15 +40,24 @@ import org.diffxml.diffxml.DOMOps;
 
 public final class PatchXML {
     
+    /** Exit status on success. **/
+    public static final int EXIT_OK = 0;
+
+    /** Exit status on error. **/
+    public static final int EXIT_ERROR = 2;
+
+    /** Returned by parseArgs if the patch should go ahead. **/
+    private static final int CONTINUE = -1;
+
     /** 
      * If true, extra debug data is output.
      */
-    public static boolean debug = false;
+    private boolean mDebug = false;
 
     /**
-     * If true, attempt to reverse the sense of the patch.
+     * If true, the patch is applied in reverse.
      */
-    private static boolean reverse = false;
+    private boolean mReverse = false;
 
     /**
      * Determines whether original file overwritten.
@@ -55,28 +66,48 @@ public final class PatchXML {
      * To change this set the boolean dryrun to false
      * You will then need to use -dry-run to avoid overwriting files
      */
-    private static boolean dryrun = true;
+    private boolean mDryrun = true;
+
+    /** Holds the document to be patched. **/
+    private File mDocFile;
+
+    /** Holds the DUL patch file. **/
+    private File mPatchFile;
 
-    /** Holds the name of the document to be patched. **/
-    private static String mDocFile;
+    /** Directory relative file names are resolved against, or null. **/
+    private final File mDir;
 
-    /** Holds the name of the DUL patch file. **/
-    private static String mPatchFile;
+    /** Where standard output goes. **/
+    private final CommandOutput mOut;
+
+    /** Where error output goes. **/
+    private final PrintStream mErr;
 
     /**
-     * Shouldn't be instantiated.
+     * Creates a run of patchxml.
+     *
+     * @param dir Directory relative file names are resolved against, or null
+     *            for the current directory
+     * @param out Where standard output goes
+     * @param err Where error output goes
      */
-    private PatchXML() {
-        //Intentionally empty
+    private PatchXML(final File dir, final CommandOutput out,
+            final PrintStream err) {
+
+        mDir = dir;
+        mOut = out;
+        mErr = err;
     }
+
     /**
      * Parse command line arguments.
      *
      * Sets up file variables and options.
      *
      * @param args array of command line arguments
+     * @return CONTINUE, or the exit status if the program should stop
      */
-    public static void parseArgs(final String[] args) {
+    private int parseArgs(final String[] args) {
         
         int i = 0;
         char flag;
@@ -95,17 +126,15 @@ public final class PatchXML {
 
             //"wordy" arguments
             if (arg.equals("-version")) {
-                printVersion();
+                return printVersion();
             } else if (arg.equals("-help")) {
-                printHelp();
+                return printHelp();
             } else if (arg.equals("-dry-run")) {
-                dryrun = true;
-                /*
+                mDryrun = true;
             } else if (arg.equals("-reverse")) {
-                reverse = true;
-                */
+                mReverse = true;
             } else if (arg.equals("-debug")) {
-                debug = true;
+                mDebug = true;
             } else {
 
                 //(series of) flag arguments                
@@ -113,98 +142,116 @@ public final class PatchXML {
                     flag = arg.charAt(j);
                     switch (flag) {
                         case 'V':
-                            printVersion();
-                            break;
+                            return printVersion();
                         case 'h':
-                            printHelp();
-                            break;
+                            return printHelp();
                         case 'd':
-                            dryrun = true;
+                            mDryrun = true;
                             break;
                         case 'D':
-                            debug = true;
+                            mDebug = true;
                             break;
-                            /*
                         case 'R':
-                            reverse = true;
+                            mReverse = true;
                             break;
-                            */
                         default:
-                            System.err.println("PatchXML: illegal option "
+                            mErr.println("PatchXML: illegal option "
                                     + flag);
-                            System.exit(2);
-                            break;
+                            return EXIT_ERROR;
                     }
                 }
             }
         }
         
         if ((i + 2) != args.length) {
-            printUsage();
+            return printUsage();
         }
 
-        mDocFile = args[i];
-        mPatchFile = args[++i];
+        mDocFile = resolve(args[i]);
+        mPatchFile = resolve(args[++i]);
+        return CONTINUE;
+    }
+
+    /**
+     * Resolves a file name given on the command line.
+     *
+     * @param name The file name
+     * @return The file, relative to the run's directory if one was given
+     */
+    private File resolve(final String name) {
+
+        File f = new File(name);
+        if (mDir != null && !f.isAbsolute()) {
+            f = new File(mDir, name);
         }
+        return f;
+    }
 
     /**
-     * Output usage and exit.
+     * Output usage.
+     *
+     * @return The exit status
      */
-    private static void printUsage() {
-        System.err.println("Usage: patch [OPTION]... [ORIGFILE [PATCHFILE]]");
-        System.exit(2);
+    private int printUsage() {
+        mErr.println("Usage: patch [OPTION]... [ORIGFILE [PATCHFILE]]");
+        return EXIT_ERROR;
     }
 
     /**
-     * Output help and exit.
+     * Output help.
+     *
+     * @return The exit status
      */
-    private static void printHelp() {
-        System.out.print("\nUsage: patch [OPTION]... [ORIGFILE [PATCHFILE]]\n");
-        System.out.print(
+    private int printHelp() {
+        PrintStream out = mOut.open(EXIT_OK);
+        out.print("\nUsage: patch [OPTION]... [ORIGFILE [PATCHFILE]]\n");
+        out.print(
                 "\nApply a diffxml file to one of the original XML files.\n");
-        System.out.print(
+        out.print(
                 "\n --version  -V  Output version number of program.");
-        System.out.print(
+        out.print(
                 "\n --help     -h  Print summary of options and exit.");
-        System.out.print(
+        out.print(
                 "\n --dry-run  -d  Print results of applying the changes ");
-        System.out.print("without modifying any files.");
-        /*
-        System.out.print(
-                "\n --reverse  -R  Assume that the delta file was created ");
-        System.out.print("with the old and new files swapped.");
-        
-        System.out.print("\n\tAttempt to reverse sense of change before ");
-        System.out.print("applying it, e.g. inserts become deletes.\n\n");
-        */
-        System.out.print("\n\n");
-        printSoftware();
-        System.exit(0);
+        out.print("without modifying any files.");
+        out.print(
+                "\n --reverse  -R  Apply the delta in reverse, turning the ");
+        out.print("new file back into the original.");
+        out.print("\n\tThe delta must have been created with ");
+        out.print("diffxml --reverse.");
+        out.print("\n\n");
+        printSoftware(out);
+        return EXIT_OK;
     }
 
     /**
      * Output details of other software used in diffxml and patchxml.
+     *
+     * @param out The stream to write to
      */
-    private static void printSoftware() {
+    private static void printSoftware(final PrintStream out) {
      
-        System.out.print(
+        out.print(
                 "\nThis product includes software developed by the ");
-        System.out.print("Indiana University Extreme! Lab ");
-        System.out.print("(http://www.extreme.indiana.edu/).\n");
-        System.out.print(
+        out.print("Indiana University Extreme! Lab ");
+        out.print("(http://www.extreme.indiana.edu/).\n");
+        out.print(
                 "\nThis product includes software developed by the ");
-        System.out.print(
+        out.print(
                 "Apache Software Foundation (http://www.apache.org/).\n\n");
     }
 
     /**
-     * Output version and exit.
+     * Output version.
+     *
+     * @return The exit status
      */
-    private static void printVersion() {
+    private int printVersion() {
         
-        System.out.println("patchxml Version 0.96 BETA");
-        printSoftware();
-        System.exit(0);
+        PrintStream out = mOut.open(EXIT_OK);
+        out.println("patchxml Version 0.96 BETA");
+        printSoftware(out);
+        return EXIT_OK;
     }
 
 
@@ -215,18 +262,16 @@ public final class PatchXML {
     *
     * @return True only if both files are found.
     */
-    protected static boolean checkFilesExistAndWarn() {
+    private boolean checkFilesExistAndWarn() {
 
         boolean ret = true;
-        File docFile = new File(mDocFile);
-        File patchFile = new File(mPatchFile);
 
-        if (!docFile.exists()) {
-            System.err.println("Could not find file: " + mDocFile);
+        if (!mDocFile.exists()) {
+            mErr.println("Could not find file: " + mDocFile);
             ret = false;
         }
-        if (!patchFile.exists()) {
-            System.err.println("Could not find file: " + mPatchFile);
+        if (!mPatchFile.exists()) {
+            mErr.println("Could not find file: " + mPatchFile);
             ret = false;
         }
         return ret;
@@ -236,93 +281,140 @@ public final class PatchXML {
      * Output the patched document to stdout.
      *
      * @param doc the patched document
+     * @return The exit status
      */
-    private static void outputDoc(final Document doc) {
+    private int outputDoc(final Document doc) {
 
         try {
  
-            if (dryrun) {
-                DOMOps.outputXML(doc, System.out);
+            if (mDryrun) {
+                PrintStream out = mOut.open(EXIT_OK);
+                DOMOps.outputXML(doc, out);
+                out.println();
             } else {
-                DOMOps.outputXML(doc, new FileOutputStream(mDocFile));
+                OutputStream os = new FileOutputStream(mDocFile);
+                try {
+                    DOMOps.outputXML(doc, os);
+                } finally {
+                    os.close();
+                }
             }
         } catch (IOException e) {
-            System.err.println("Failed to output new document: " + e);
-            System.exit(2);
+            mErr.println("Failed to output new document: " + e);
+            return EXIT_ERROR;
         }
+        return EXIT_OK;
+    }
+
+    /**
+     * Parses the given file, reporting any errors.
+     *
+     * @param pool The parsers to use
+     * @param f The file to parse
+     * @return The document, or null if it could not be parsed
+     */
+    private Document parse(final ParserPool pool, final File f) {
+
+        Document doc = null;
+        try {
+            doc = pool.parse(f);
+        } catch (ParserConfigurationException e) {
+            mErr.println("Failed to configure parser: " + e.getMessage());
+        } catch (SAXException e) {
+            mErr.println("Failed to parse document: " + e.getMessage());
+        } catch (IOException e) {
+            mErr.println("Failed to parse document: " + e.getMessage());
+        }
+        return doc;
+    }
+
+    /**
+     * Runs patchxml with the given arguments.
+     *
+     * Unlike main, doesn't exit the JVM, so can be called repeatedly in one
+     * process.
+     *
+     * @param args Command line arguments
+     * @param dir Directory relative file names are resolved against, or null
+     *            for the current directory
+     * @param out Where standard output goes
+     * @param err Where error output goes
+     * @return The exit status; 0 on success and 2 on error
+     */
+    public static int run(final String[] args, final File dir,
+            final CommandOutput out, final PrintStream err) {
+
+        return new PatchXML(dir, out, err).run(args);
     }
 
     /**
      * Attempt to patch given document with given patch file.
      *
-     * TODO: Refactor
      * @param args command line arguments
+     * @return The exit status
      */
-    public static void main(final String[] args) {
+    private int run(final String[] args) {
 
-        //Set options - instantiates _docFile and _patchFile
-        parseArgs(args);
+        //Set options - instantiates mDocFile and mPatchFile
+        int status = parseArgs(args);
+        if (status != CONTINUE) {
+            return status;
+        }
 
         if (!checkFilesExistAndWarn()) {
-            System.exit(2);
+            return EXIT_ERROR;
         }
 
-        DocumentBuilderFactory fac = DocumentBuilderFactory.newInstance();
-        DOMOps.initParser(fac);
-
-        DocumentBuilder parser = null;
-        try {
-            parser = fac.newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            System.err.println("Failed to configure parser: " + e.getMessage());
-            System.exit(2);
-        }
+        ParserPool pool = ParserPool.getInstance();
         
-        Document doc = null;
-        try {
-            doc = parser.parse(mDocFile);
-        } catch (SAXException e) {
-            System.err.println("Failed to parse document: " + e.getMessage());
-            System.exit(2);
-        } catch (IOException e) {
-            System.err.println("Failed to parse document: " + e.getMessage());
-            System.exit(2);
+        Document doc = parse(pool, mDocFile);
+        if (doc == null) {
+            return EXIT_ERROR;
         }
-
-        Document patch = null;
-        try {
-            patch = parser.parse(mPatchFile);
-        } catch (SAXException e) {
-            System.err.println("Failed to parse document: " + e.getMessage());
-            System.exit(2);
-        } catch (IOException e) {
-            System.err.println("Failed to parse document: " + e.getMessage());
-            System.exit(2);
+        Document patch = parse(pool, mPatchFile);
+        if (patch == null) {
+            return EXIT_ERROR;
         }
 
         doc.normalize();
         patch.normalize();
 
-        if (debug) {
+        if (mDebug) {
             try {
-                System.err.println("Applying patch to: ");
-                DOMOps.outputXML(doc, System.err);
-                System.err.println();
+                mErr.println("Applying patch to: ");
+                DOMOps.outputXML(doc, mErr);
+                mErr.println();
             } catch (IOException e) {
-                System.err.println("Failed to print debug output");
+                mErr.println("Failed to print debug output");
             }
         }
 
         DULPatch patcher = new DULPatch();
+        patcher.setDebug(mDebug, mErr);
         try {
-            patcher.apply(doc, patch);
+            if (mReverse) {
+                patcher.applyReverse(doc, patch);
+            } else {
+                patcher.apply(doc, patch);
+            }
         } catch (PatchFormatException e) {
-            System.err.println("Failed to parse Patch:"); 
-            e.printStackTrace();
-            System.exit(2);
+            mErr.println("Failed to parse Patch:"); 
+            e.printStackTrace(mErr);
+            return EXIT_ERROR;
         }
 
-        outputDoc(doc);
-        System.out.println();
+        return outputDoc(doc);
+    }
+
+    /**
+     * Attempt to patch given document with given patch file.
+     *
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+
+        int status = run(args, null, CommandOutput.STDOUT, System.err);
+        System.out.flush();
+        System.exit(status);
     }
 }
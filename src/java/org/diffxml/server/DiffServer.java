@@ -0,0 +1,627 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.diffxml.diffxml.CommandOutput;
+import org.diffxml.diffxml.DiffXML;
+import org.diffxml.diffxml.Workers;
+import org.diffxml.patchxml.PatchXML;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs diffxml and patchxml in a long running JVM, avoiding the start up
+ * and warm up costs of a new JVM per call.
+ *
+ * Listens for HTTP on the loopback interface only. Requests are POSTed to
+ * /diff or /patch with a body of NUL terminated strings: the working
+ * directory followed by the command line arguments. The content type must
+ * be application/octet-stream, which a web page can't send cross-origin 
+ * without the browser asking first, and the Host must be a loopback name
+ * or address, so a page can't reach the server through DNS rebinding 
+ * either. The response carries
+ * the exit status in the X-Diffxml-Exit header and standard output as the
+ * body, which is streamed as it is written. Error output is returned
+ * percent-encoded in the X-Diffxml-Error header if the run fails before
+ * writing any output, otherwise it is logged by the server.
+ *
+ * Each request runs on its own virtual thread where the JVM supports them,
+ * so slow clients don't tie up platform threads, with the CPU bound phases
+ * of diffs limited by Fmes. On older JVMs requests run on a bounded pool.
+ * Either way, once threads plus queue requests are in flight further
+ * requests are refused with a 503.
+ *
+ * @author Adrian Mouat
+ */
+public final class DiffServer {
+
+    /** Default port. **/
+    public static final int DEFAULT_PORT = 8765;
+
+    /** Default maximum number of queued requests. **/
+    public static final int DEFAULT_QUEUE = 64;
+
+    /** Header holding the exit status. **/
+    public static final String EXIT_HEADER = "X-Diffxml-Exit";
+
+    /** Header holding error output. **/
+    public static final String ERROR_HEADER = "X-Diffxml-Error";
+
+    /** Content type requests must have. **/
+    public static final String CONTENT_TYPE = "application/octet-stream";
+
+    /** HTTP status for a successfully run command, whatever its exit. **/
+    private static final int HTTP_OK = 200;
+
+    /** HTTP status for a request from an unexpected host. **/
+    private static final int HTTP_FORBIDDEN = 403;
+
+    /** HTTP status for a bad request. **/
+    private static final int HTTP_BAD_METHOD = 405;
+
+    /** HTTP status for a request body of the wrong type. **/
+    private static final int HTTP_BAD_TYPE = 415;
+
+    /** HTTP status when too busy to accept a request. **/
+    private static final int HTTP_UNAVAILABLE = 503;
+
+    /** The commands that can be run. **/
+    private enum Command { DIFF, PATCH }
+
+    /** The HTTP server. **/
+    private final HttpServer mServer;
+
+    /**
+     * Runs the requests. A virtual thread per request where supported,
+     * otherwise a bounded pool of platform threads.
+     */
+    private final ExecutorService mWorkers;
+
+    /**
+     * Limits requests in flight when using virtual threads, null otherwise.
+     */
+    private final Semaphore mAdmission;
+
+    /**
+     * Creates a server on the loopback interface.
+     *
+     * @param port The port to listen on, or 0 for any free port
+     * @param threads Maximum number of requests run at once on platform
+     *                threads
+     * @param queue Maximum number of requests waiting to run
+     * @throws IOException If the server socket can't be created
+     */
+    public DiffServer(final int port, final int threads, final int queue)
+    throws IOException {
+
+        if (threads < 1 || queue < 0) {
+            throw new IllegalArgumentException(
+                    "Need at least one thread and a non-negative queue");
+        }
+
+        ExecutorService virtual = Workers.newVirtualThreadExecutor();
+        if (virtual == null) {
+            BlockingQueue<Runnable> waiting;
+            if (queue == 0) {
+                waiting = new SynchronousQueue<Runnable>();
+            } else {
+                waiting = new ArrayBlockingQueue<Runnable>(queue);
+            }
+            mWorkers = new ThreadPoolExecutor(threads, threads, 0L,
+                    TimeUnit.MILLISECONDS, waiting);
+            mAdmission = null;
+        } else {
+            //CPU use is bounded in Fmes, so just limit requests in flight
+            mWorkers = virtual;
+            mAdmission = new Semaphore(threads + queue);
+        }
+        mServer = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        mServer.createContext("/diff", new CommandHandler(Command.DIFF));
+        mServer.createContext("/patch", new CommandHandler(Command.PATCH));
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        mServer.start();
+    }
+
+    /**
+     * Stops accepting requests and waits up to the given time for running
+     * requests to finish.
+     *
+     * @param delay Maximum time to wait in seconds
+     */
+    public void stop(final int delay) {
+
+        mServer.stop(0);
+        mWorkers.shutdown();
+        try {
+            mWorkers.awaitTermination(delay, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the port the server is listening on.
+     *
+     * @return The port number
+     */
+    public int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    /**
+     * Percent-encodes text so it can be put in a header.
+     *
+     * Printable ASCII other than '%' and '\' is left as is.
+     *
+     * @param text The text to encode
+     * @return The encoded text
+     */
+    static String encodeHeader(final String text) {
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            if (c >= ' ' && c < 0x7F && c != '%' && c != '\\') {
+                sb.append((char) c);
+            } else {
+                sb.append('%');
+                sb.append(Character.toUpperCase(Character.forDigit(c >> 4, 16)));
+                sb.append(Character.toUpperCase(
+                        Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Checks whether a Host header names the loopback interface.
+     *
+     * Only literal names and addresses are accepted. Resolving the name 
+     * would let a rebound DNS name through.
+     *
+     * @param host The Host header, may be null
+     * @return True if the host is localhost or a loopback address
+     */
+    static boolean isLoopbackHost(final String host) {
+
+        if (host == null) {
+            return false;
+        }
+        String name = host.trim().toLowerCase(Locale.ROOT);
+        if (name.startsWith("[")) {
+            int end = name.indexOf(']');
+            return end > 0 && name.substring(1, end).equals("::1")
+                && isPortSuffix(name.substring(end + 1));
+        }
+        int colon = name.indexOf(':');
+        if (colon >= 0) {
+            if (!isPortSuffix(name.substring(colon))) {
+                return false;
+            }
+            name = name.substring(0, colon);
+        }
+        if (name.equals("localhost")) {
+            return true;
+        }
+
+        String[] parts = name.split("\\.", -1);
+        if (parts.length != 4 || !parts[0].equals("127")) {
+            return false;
+        }
+        for (String part : parts) {
+            if (part.length() > 3 || !isDigits(part)
+                    || Integer.parseInt(part) > 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether text is empty or a port suffix, such as :8765.
+     *
+     * @param text The text after the host name
+     * @return True if the text is empty or a colon and digits
+     */
+    private static boolean isPortSuffix(final String text) {
+
+        if (text.length() == 0) {
+            return true;
+        }
+        return text.charAt(0) == ':' && isDigits(text.substring(1));
+    }
+
+    /**
+     * Checks whether text is a non-empty string of ASCII digits.
+     *
+     * @param text The text
+     * @return True if the text is all digits
+     */
+    private static boolean isDigits(final String text) {
+
+        if (text.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a Content-Type header is the one requests must have.
+     *
+     * @param type The Content-Type header, may be null
+     * @return True if the type is CONTENT_TYPE, with or without parameters
+     */
+    static boolean isRequestType(final String type) {
+
+        if (type == null) {
+            return false;
+        }
+        String mime = type;
+        int semi = mime.indexOf(';');
+        if (semi >= 0) {
+            mime = mime.substring(0, semi);
+        }
+        return mime.trim().equalsIgnoreCase(CONTENT_TYPE);
+    }
+
+    /**
+     * Splits a request body into NUL terminated strings.
+     *
+     * @param body The request body
+     * @return The strings
+     */
+    static List<String> splitFields(final byte[] body) {
+
+        List<String> fields = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i < body.length; i++) {
+            if (body[i] == 0) {
+                fields.add(new String(body, start, i - start,
+                        StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        if (start < body.length) {
+            fields.add(new String(body, start, body.length - start,
+                    StandardCharsets.UTF_8));
+        }
+        return fields;
+    }
+
+    /**
+     * Accepts requests for a command and passes them to the workers.
+     */
+    private final class CommandHandler implements HttpHandler {
+
+        /** The command run by this handler. **/
+        private final Command mCommand;
+
+        /**
+         * Creates a handler for the given command.
+         *
+         * @param command The command to run
+         */
+        CommandHandler(final Command command) {
+            mCommand = command;
+        }
+
+        /**
+         * Queues the request. Runs on the server's dispatch thread, so does
+         * no more than needed to hand over or refuse the request.
+         *
+         * @param exchange The request
+         * @throws IOException If the request can't be refused
+         */
+        public void handle(final HttpExchange exchange) throws IOException {
+
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                refuse(exchange, HTTP_BAD_METHOD, "Requests must be POSTed");
+                return;
+            }
+
+            if (!isLoopbackHost(exchange.getRequestHeaders().getFirst(
+                    "Host"))) {
+                refuse(exchange, HTTP_FORBIDDEN, 
+                        "Requests must be addressed to the loopback host");
+                return;
+            }
+
+            if (!isRequestType(exchange.getRequestHeaders().getFirst(
+                    "Content-Type"))) {
+                refuse(exchange, HTTP_BAD_TYPE, 
+                        "Requests must have content type " + CONTENT_TYPE);
+                return;
+            }
+
+            if (mAdmission != null && !mAdmission.tryAcquire()) {
+                refuse(exchange, HTTP_UNAVAILABLE, "Server busy");
+                return;
+            }
+
+            try {
+                mWorkers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            runCommand(mCommand, exchange);
+                        } finally {
+                            if (mAdmission != null) {
+                                mAdmission.release();
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if (mAdmission != null) {
+                    mAdmission.release();
+                }
+                refuse(exchange, HTTP_UNAVAILABLE, "Server busy");
+            }
+        }
+    }
+
+    /**
+     * Refuses a request.
+     *
+     * @param exchange The request
+     * @param code The HTTP status code
+     * @param message The error message for the client
+     * @throws IOException If the response can't be sent
+     */
+    private static void refuse(final HttpExchange exchange, final int code,
+            final String message) throws IOException {
+
+        exchange.getResponseHeaders().set(EXIT_HEADER,
+                Integer.toString(DiffXML.EXIT_ERROR));
+        exchange.getResponseHeaders().set(ERROR_HEADER,
+                encodeHeader("diffxml server: " + message + "\n"));
+        exchange.sendResponseHeaders(code, -1);
+        exchange.close();
+    }
+
+    /**
+     * Runs a command and sends the response. Runs on a worker thread.
+     *
+     * @param command The command to run
+     * @param exchange The request
+     */
+    private static void runCommand(final Command command,
+            final HttpExchange exchange) {
+
+        ResponseOutput out = new ResponseOutput(exchange);
+        ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+        PrintStream err = new PrintStream(errBytes, true,
+                StandardCharsets.UTF_8);
+        try {
+            List<String> fields;
+            InputStream in = exchange.getRequestBody();
+            try {
+                fields = splitFields(in.readAllBytes());
+            } finally {
+                in.close();
+            }
+
+            int status;
+            if (fields.isEmpty()) {
+                err.println("diffxml server: missing working directory");
+                status = DiffXML.EXIT_ERROR;
+            } else {
+                File dir = new File(fields.get(0));
+                String[] args = fields.subList(1, fields.size()).toArray(
+                        new String[0]);
+                if (command == Command.DIFF) {
+                    status = DiffXML.run(args, dir, out, err);
+                } else {
+                    status = PatchXML.run(args, dir, out, err);
+                }
+            }
+            out.finish(status, errBytes.toString(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("diffxml server: failed to handle request: "
+                    + e.getMessage());
+        } catch (UncheckedIOException e) {
+            System.err.println("diffxml server: failed to send response: "
+                    + e.getMessage());
+        } catch (RuntimeException e) {
+            //Report unexpected failures to the client if still possible
+            e.printStackTrace(err);
+            try {
+                out.finish(DiffXML.EXIT_ERROR,
+                        errBytes.toString(StandardCharsets.UTF_8));
+            } catch (IOException e2) {
+                System.err.println("diffxml server: failed to send response: "
+                        + e2.getMessage());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Standard output of a command, sent as the response body.
+     *
+     * Headers are sent when the command opens its output, which it does
+     * once the exit status is known.
+     */
+    private static final class ResponseOutput implements CommandOutput {
+
+        /** The request being answered. **/
+        private final HttpExchange mExchange;
+
+        /** The body stream, or null if not yet opened. **/
+        private PrintStream mStream;
+
+        /**
+         * Creates output for the given request.
+         *
+         * @param exchange The request
+         */
+        ResponseOutput(final HttpExchange exchange) {
+            mExchange = exchange;
+        }
+
+        /**
+         * Sends the headers and opens the body.
+         *
+         * @param status The exit status
+         * @return The body stream
+         */
+        public PrintStream open(final int status) {
+
+            if (mStream == null) {
+                mExchange.getResponseHeaders().set(EXIT_HEADER,
+                        Integer.toString(status));
+                try {
+                    mExchange.sendResponseHeaders(HTTP_OK, 0);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                OutputStream os = mExchange.getResponseBody();
+                mStream = new PrintStream(os, false, StandardCharsets.UTF_8);
+            }
+            return mStream;
+        }
+
+        /**
+         * Completes the response.
+         *
+         * @param status The exit status
+         * @param errors Error output of the command
+         * @throws IOException If the response can't be sent
+         */
+        void finish(final int status, final String errors)
+        throws IOException {
+
+            if (mStream == null) {
+                mExchange.getResponseHeaders().set(EXIT_HEADER,
+                        Integer.toString(status));
+                if (errors.length() > 0) {
+                    mExchange.getResponseHeaders().set(ERROR_HEADER,
+                            encodeHeader(errors));
+                }
+                mExchange.sendResponseHeaders(HTTP_OK, -1);
+            } else {
+                mStream.close();
+                if (mStream.checkError()) {
+                    throw new IOException("Failed to write response body");
+                }
+                if (errors.length() > 0) {
+                    System.err.print(errors);
+                }
+            }
+        }
+    }
+
+    /**
+     * Outputs usage message to standard error.
+     */
+    private static void printUsage() {
+        System.err.println("Usage: diffxml-server [--port PORT] "
+                + "[--threads N] [--queue N]");
+    }
+
+    /**
+     * Starts a server and runs until killed.
+     *
+     * @param args Command line arguments. See printUsage() for details.
+     */
+    public static void main(final String[] args) {
+
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queue = DEFAULT_QUEUE;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.startsWith("--")) {
+                    arg = arg.substring(1);
+                }
+                if ((arg.equals("-port") || arg.equals("-p"))
+                        && i + 1 < args.length) {
+                    port = Integer.parseInt(args[++i]);
+                } else if ((arg.equals("-threads") || arg.equals("-t"))
+                        && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-queue") && i + 1 < args.length) {
+                    queue = Integer.parseInt(args[++i]);
+                } else {
+                    printUsage();
+                    System.exit(DiffXML.EXIT_ERROR);
+                }
+            }
+        } catch (NumberFormatException e) {
+            printUsage();
+            System.exit(DiffXML.EXIT_ERROR);
+        }
+
+        final DiffServer server;
+        try {
+            server = new DiffServer(port, threads, queue);
+        } catch (IOException e) {
+            System.err.println("Failed to start server: " + e.getMessage());
+            System.exit(DiffXML.EXIT_ERROR);
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                server.stop(1);
+            }
+        });
+        server.start();
+        System.err.println("diffxml server listening on "
+                + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + server.getPort());
+    }
+}
@@ -0,0 +1,429 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.DiffException;
+import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.ParserPool;
+import org.diffxml.diffxml.fmes.Fmes;
+import org.diffxml.patchxml.DULPatch;
+import org.diffxml.patchxml.PatchFormatException;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Stores the versions of a document as a chain of DUL deltas.
+ *
+ * Every K versions, starting with the first, the whole document is stored
+ * as a snapshot; the versions in between are stored as the delta from the 
+ * version before. Any version can then be rebuilt from the snapshot before
+ * it by applying at most K - 1 deltas. Recently rebuilt versions are kept
+ * in a least recently used cache, and rebuilding starts from the nearest
+ * cached version where that is later than the snapshot.
+ *
+ * Each version is a file in the store's directory, written through a
+ * temporary file so a failed write never leaves a partial version.
+ *
+ * Instances are thread safe, but only one instance should use a directory
+ * at a time.
+ *
+ * @author Adrian Mouat
+ */
+public final class VersionStore {
+
+    /** Default number of versions between snapshots. **/
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 16;
+
+    /** Default number of rebuilt versions kept in memory. **/
+    public static final int DEFAULT_CACHE_SIZE = 8;
+
+    /** Prefix of version file names. **/
+    private static final String PREFIX = "v";
+
+    /** Suffix of snapshot files. **/
+    private static final String SNAPSHOT_SUFFIX = ".xml";
+
+    /** Suffix of delta files. **/
+    private static final String DELTA_SUFFIX = ".dul";
+
+    /** Suffix of files being written. **/
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Directory holding the versions. **/
+    private final Path mDir;
+
+    /** Number of versions between snapshots. **/
+    private final int mInterval;
+
+    /** Options for differencing versions. **/
+    private final DiffOptions mOptions;
+
+    /** Versions stored as snapshots. **/
+    private final BitSet mSnapshots = new BitSet();
+
+    /** Rebuilt versions, least recently used first. Never modified. **/
+    private final Map<Integer, Document> mCache;
+
+    /** Number of versions stored. **/
+    private int mCount;
+
+    /**
+     * Opens the store in the given directory with default settings.
+     *
+     * @param dir The directory, created if it doesn't exist
+     * @throws StoreException If the directory can't be read
+     */
+    public VersionStore(final File dir) throws StoreException {
+        this(dir, DEFAULT_SNAPSHOT_INTERVAL, DEFAULT_CACHE_SIZE, 
+                DiffFactory.copyDefaults());
+    }
+
+    /**
+     * Opens the store in the given directory.
+     *
+     * The snapshot interval only affects versions added from now on.
+     *
+     * @param dir The directory, created if it doesn't exist
+     * @param interval Number of versions between snapshots, at least 1
+     * @param cacheSize Number of rebuilt versions kept in memory
+     * @param opts Options for differencing versions
+     * @throws StoreException If the directory can't be read
+     */
+    public VersionStore(final File dir, final int interval, 
+            final int cacheSize, final DiffOptions opts) 
+    throws StoreException {
+
+        if (interval < 1) {
+            throw new IllegalArgumentException(
+                    "Snapshot interval must be at least 1");
+        }
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException(
+                    "Cache size must not be negative");
+        }
+
+        mDir = dir.toPath();
+        mInterval = interval;
+        mOptions = new DiffOptions(opts);
+        mCache = new LinkedHashMap<Integer, Document>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<Integer, Document> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        open();
+    }
+
+    /**
+     * Finds the versions already in the directory.
+     *
+     * @throws StoreException If the directory can't be read or versions 
+     * are missing
+     */
+    private void open() throws StoreException {
+
+        BitSet deltas = new BitSet();
+        try {
+            Files.createDirectories(mDir);
+            DirectoryStream<Path> files = Files.newDirectoryStream(mDir);
+            try {
+                for (Path f : files) {
+                    String name = f.getFileName().toString();
+                    if (name.endsWith(SNAPSHOT_SUFFIX)) {
+                        mSnapshots.set(getVersion(name, SNAPSHOT_SUFFIX));
+                    } else if (name.endsWith(DELTA_SUFFIX)) {
+                        deltas.set(getVersion(name, DELTA_SUFFIX));
+                    }
+                }
+            } finally {
+                files.close();
+            }
+        } catch (IOException e) {
+            throw new StoreException("Failed to read store " + mDir, e);
+        }
+
+        mCount = Math.max(mSnapshots.length(), deltas.length());
+        for (int v = 0; v < mCount; v++) {
+            if (mSnapshots.get(v) == deltas.get(v) 
+                    || (v == 0 && !mSnapshots.get(v))) {
+                throw new StoreException("Store " + mDir 
+                        + " is missing or has conflicting files for version "
+                        + v);
+            }
+        }
+    }
+
+    /**
+     * Gets the version a file holds from its name.
+     *
+     * @param name The file name
+     * @param suffix The suffix of the file name
+     * @return The version
+     * @throws StoreException If the name isn't that of a version
+     */
+    private static int getVersion(final String name, final String suffix)
+    throws StoreException {
+
+        try {
+            if (name.startsWith(PREFIX)) {
+                return Integer.parseInt(name.substring(
+                        PREFIX.length(), name.length() - suffix.length()));
+            }
+        } catch (NumberFormatException e) {
+            throw new StoreException("Unexpected file in store: " + name, e);
+        }
+        throw new StoreException("Unexpected file in store: " + name);
+    }
+
+    /**
+     * Gets the number of versions stored.
+     *
+     * @return The number of versions
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Adds the next version of the document.
+     *
+     * The document isn't modified.
+     *
+     * @param doc The new version
+     * @return The number of the new version, starting from 0
+     * @throws StoreException If the version can't be stored
+     */
+    public synchronized int add(final Document doc) throws StoreException {
+
+        int version = mCount;
+        try {
+            if (version % mInterval == 0) {
+                byte[] data = serialize(doc);
+                write(getFile(version, SNAPSHOT_SUFFIX), data);
+                mSnapshots.set(version);
+                mCache.put(version, parse(data));
+            } else {
+                //The diff modifies the original, so use a copy
+                Document prev = rebuild(version - 1);
+                Document delta = new Fmes(mOptions).diff(
+                        (Document) prev.cloneNode(true), doc);
+                byte[] data = serialize(delta);
+
+                //Cache the version as it will be rebuilt, which may differ
+                //in ways the diff ignores, so later deltas apply to it
+                Document next = (Document) prev.cloneNode(true);
+                new DULPatch().apply(next, parse(data));
+                write(getFile(version, DELTA_SUFFIX), data);
+                mCache.put(version, next);
+            }
+        } catch (IOException e) {
+            throw new StoreException("Failed to store version " + version, e);
+        } catch (DiffException e) {
+            throw new StoreException("Failed to diff version " + version, e);
+        } catch (PatchFormatException e) {
+            throw new StoreException("Failed to patch version " + version, e);
+        }
+
+        mCount++;
+        return version;
+    }
+
+    /**
+     * Gets a version of the document.
+     *
+     * @param version The version number
+     * @return The document, which the caller may modify
+     * @throws StoreException If the version can't be rebuilt
+     */
+    public synchronized Document get(final int version) 
+    throws StoreException {
+
+        if (version < 0 || version >= mCount) {
+            throw new IllegalArgumentException("No version " + version);
+        }
+
+        try {
+            return (Document) rebuild(version).cloneNode(true);
+        } catch (IOException e) {
+            throw new StoreException("Failed to read version " + version, e);
+        } catch (PatchFormatException e) {
+            throw new StoreException("Failed to patch version " + version, e);
+        }
+    }
+
+    /**
+     * Rebuilds a version from the nearest cached version or snapshot before
+     * it, and caches it.
+     *
+     * @param version The version number
+     * @return The document, which must not be modified
+     * @throws IOException If a version file can't be read
+     * @throws PatchFormatException If a delta can't be applied
+     */
+    private Document rebuild(final int version) 
+    throws IOException, PatchFormatException {
+
+        Document doc = mCache.get(version);
+        if (doc != null) {
+            return doc;
+        }
+
+        int base = version;
+        while (doc == null) {
+            Document cached = mCache.get(base);
+            if (cached != null) {
+                doc = (Document) cached.cloneNode(true);
+            } else if (mSnapshots.get(base)) {
+                doc = parse(read(getFile(base, SNAPSHOT_SUFFIX)));
+            } else {
+                base--;
+            }
+        }
+
+        for (int v = base + 1; v <= version; v++) {
+            new DULPatch().apply(doc, parse(read(getFile(v, DELTA_SUFFIX))));
+        }
+
+        mCache.put(version, doc);
+        return doc;
+    }
+
+    /**
+     * Gets the file holding a version.
+     *
+     * Names are padded so they sort in version order.
+     *
+     * @param version The version number
+     * @param suffix The suffix for the type of file
+     * @return The path of the file
+     */
+    private Path getFile(final int version, final String suffix) {
+        return mDir.resolve(String.format("%s%08d%s", PREFIX, version, suffix));
+    }
+
+    /**
+     * Serialises a document.
+     *
+     * @param doc The document
+     * @return The document as UTF-8
+     * @throws IOException If the document can't be serialised
+     */
+    private static byte[] serialize(final Document doc) throws IOException {
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DOMOps.outputXML(doc, os);
+        return os.toByteArray();
+    }
+
+    /**
+     * Parses a stored document.
+     *
+     * @param data The document as stored
+     * @return The document
+     * @throws IOException If the document can't be parsed
+     */
+    private Document parse(final byte[] data) throws IOException {
+
+        try {
+            return ParserPool.getInstance(mOptions.isResolveEntities()).parse(
+                    new ByteArrayInputStream(data));
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Failed to set up XML parser", e);
+        } catch (SAXException e) {
+            throw new IOException("Stored document is corrupt", e);
+        }
+    }
+
+    /**
+     * Writes a file, replacing it only once fully written.
+     *
+     * @param file The file
+     * @param data The contents
+     * @throws IOException If the file can't be written
+     */
+    private static void write(final Path file, final byte[] data) 
+    throws IOException {
+
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        FileChannel ch = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, 
+                StandardOpenOption.WRITE);
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(true);
+        } finally {
+            ch.close();
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a whole file.
+     *
+     * @param file The file
+     * @return The contents
+     * @throws IOException If the file can't be read
+     */
+    private static byte[] read(final Path file) throws IOException {
+
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf) < 0) {
+                    throw new IOException("File truncated: " + file);
+                }
+            }
+            return buf.array();
+        } finally {
+            ch.close();
+        }
+    }
+}
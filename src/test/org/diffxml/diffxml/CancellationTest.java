@@ -0,0 +1,170 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.diffxml.diffxml.fmes.Fmes;
+import org.diffxml.diffxml.fmes.Match;
+import org.diffxml.diffxml.fmes.NodeSequence;
+import org.diffxml.diffxml.fmes.NodePairs;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Test cancelling diffs.
+ * 
+ * @author Adrian Mouat
+ */
+public class CancellationTest {
+
+    /**
+     * Test a token is cancelled with its parent but not the other way.
+     */
+    @Test
+    public final void testParent() {
+
+        Cancellation parent = new Cancellation();
+        Cancellation child = new Cancellation(parent);
+        child.cancel();
+        assertTrue(child.isCancelled());
+        assertFalse(parent.isCancelled());
+
+        child = new Cancellation(parent);
+        assertFalse(child.isCancelled());
+        parent.cancel();
+        assertTrue(child.isCancelled());
+    }
+
+    /**
+     * Test a diff with a cancelled token stops, partitioned or not, and
+     * when diffing files.
+     * 
+     * @throws DiffException If the diff fails
+     */
+    @Test
+    public final void testCancelledDiff() throws DiffException {
+
+        Cancellation token = new Cancellation();
+        token.cancel();
+        DiffOptions opts = DiffFactory.copyDefaults();
+        opts.setCancellation(token);
+
+        for (int i = 0; i < 2; i++) {
+            opts.setPartitioned(i == 1);
+            try {
+                new Fmes(opts).diff(
+                        TestDocHelper.createDocument("<a><b/><c/></a>"),
+                        TestDocHelper.createDocument("<a><c/><d/></a>"));
+                fail("Expected CancelledException");
+            } catch (CancelledException e) {
+                assertFalse(Thread.interrupted());
+            }
+        }
+
+        //Including while the new file is parsed on a helper
+        opts.setPartitioned(false);
+        try {
+            new Fmes(opts).diff(new File("test1a.xml"), 
+                    new File("test2a.xml"));
+            fail("Expected CancelledException");
+        } catch (CancelledException e) {
+            assertFalse(Thread.interrupted());
+        }
+
+        opts.setCancellation(null);
+        new Fmes(opts).diff(TestDocHelper.createDocument("<a><b/><c/></a>"),
+                TestDocHelper.createDocument("<a><c/><d/></a>"));
+    }
+
+    /**
+     * Test the LCS stops if the thread is interrupted, leaving the 
+     * interrupt status set.
+     */
+    @Test
+    public final void testInterruptedLCS() {
+
+        Document doc1 = TestDocHelper.createDocument("<a><b/><c/></a>");
+        Document doc2 = TestDocHelper.createDocument("<a><c/><b/></a>");
+        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        Node[] s1 = {doc1.getDocumentElement().getFirstChild(),
+                doc1.getDocumentElement().getLastChild()};
+        Node[] s2 = {doc2.getDocumentElement().getFirstChild(),
+                doc2.getDocumentElement().getLastChild()};
+
+        Thread.currentThread().interrupt();
+        try {
+            NodeSequence.getLCS(s1, s2, matchings);
+            fail("Expected CancelledException");
+        } catch (CancelledException e) {
+            assertTrue(Thread.interrupted());
+        }
+        NodeSequence.getLCS(s1, s2, matchings);
+    }
+
+    /**
+     * Test an interrupted diff stops with a CancelledException, leaving 
+     * the interrupt status set, whether it is partitioned or of files.
+     * 
+     * @throws Exception If the diff fails
+     */
+    @Test
+    public final void testInterruptedDiff() throws Exception {
+
+        DiffOptions opts = DiffFactory.copyDefaults();
+        File f = File.createTempFile("cancel", ".xml");
+        try {
+            Writer w = new OutputStreamWriter(new FileOutputStream(f), 
+                    "UTF-8");
+            try {
+                w.write("<a><b/></a>");
+            } finally {
+                w.close();
+            }
+
+            for (int i = 0; i < 3; i++) {
+                opts.setPartitioned(i == 1);
+                Thread.currentThread().interrupt();
+                try {
+                    if (i < 2) {
+                        new Fmes(opts).diff(
+                                TestDocHelper.createDocument("<a><b/></a>"),
+                                TestDocHelper.createDocument("<a><c/></a>"));
+                    } else {
+                        new Fmes(opts).diff(f, f);
+                    }
+                    fail("Expected CancelledException");
+                } catch (CancelledException e) {
+                    assertTrue(Thread.interrupted());
+                }
+            }
+        } finally {
+            Thread.interrupted();
+            f.delete();
+        }
+    }
+}
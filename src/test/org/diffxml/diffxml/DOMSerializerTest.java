@@ -0,0 +1,148 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Tests for the DOM serializer.
+ *
+ * @author Adrian Mouat
+ */
+public class DOMSerializerTest {
+
+    /**
+     * Test markup characters are escaped in text and attributes.
+     */
+    @Test
+    public final void testEscaping() {
+
+        Document doc = TestDocHelper.createDocument("<a/>");
+        Element a = doc.getDocumentElement();
+        a.setAttribute("x", "<\"&\"\t\n>");
+        a.appendChild(doc.createTextNode("1 < 2 & \"3\" > 0\n"));
+        a.appendChild(doc.createCDATASection("x]]>y"));
+
+        assertEquals("<a x=\"&lt;&quot;&amp;&quot;&#9;&#10;&gt;\">"
+                + "1 &lt; 2 &amp; \"3\" &gt; 0\n"
+                + "<![CDATA[x]]]]><![CDATA[>y]]></a>",
+                DOMOps.getNodeAsStringDeep(a));
+    }
+
+    /**
+     * Test namespaces are declared where not already in scope.
+     */
+    @Test
+    public final void testNamespaceFixup() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<a xmlns='urn:a'><b/></a>");
+        Element b = (Element) doc.getDocumentElement().getFirstChild();
+        b.appendChild(doc.createElementNS("urn:c", "p:c"));
+        b.setAttributeNS("urn:d", "q:at", "v");
+
+        assertEquals("<a xmlns=\"urn:a\"><b xmlns:q=\"urn:d\" q:at=\"v\">"
+                + "<p:c xmlns:p=\"urn:c\"/></b></a>",
+                DOMOps.getNodeAsStringDeep(doc.getDocumentElement()));
+        assertEquals("<b xmlns=\"urn:a\" xmlns:q=\"urn:d\" q:at=\"v\">"
+                + "<p:c xmlns:p=\"urn:c\"/></b>",
+                DOMOps.getNodeAsStringDeep(b));
+    }
+
+    /**
+     * Test only element content is indented.
+     */
+    @Test
+    public final void testIndent() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<a><b>text</b><c><d/></c></a>");
+        DOMSerializer ser = new DOMSerializer();
+        ser.setIndent(true);
+        StringWriter sw = new StringWriter();
+        try {
+            ser.serialize(doc, sw);
+        } catch (IOException e) {
+            fail("Caught exception: " + e.getMessage());
+        }
+
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\" "
+                + "standalone=\"no\"?>\n"
+                + "<a>\n    <b>text</b>\n    <c>\n        <d/>\n    </c>\n"
+                + "</a>\n", sw.toString());
+    }
+
+    /**
+     * Test characters outside the BMP survive the buffer boundary when
+     * encoding to a stream.
+     */
+    @Test
+    public final void testSurrogatesOverBuffer() {
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("\uD835\uDD04");
+        }
+        Document doc = TestDocHelper.createDocument("<a/>");
+        doc.getDocumentElement().appendChild(
+                doc.createTextNode(text.toString()));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            DOMOps.outputXML(doc.getDocumentElement(), os);
+            assertEquals("<a>" + text + "</a>", os.toString("UTF-8"));
+        } catch (IOException e) {
+            fail("Caught exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Test namespaced attributes without a prefix are given one.
+     */
+    @Test
+    public final void testUnprefixedAttributes() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<a xmlns:p='urn:q' xmlns:ns0='urn:x'><b/></a>");
+        Element b = (Element) doc.getDocumentElement().getFirstChild();
+        b.setAttributeNS("urn:p", "k", "v");
+        b.setAttributeNS("urn:q", "m", "w");
+        b.setAttribute("n", "x");
+
+        assertEquals("<a xmlns:ns0=\"urn:x\" xmlns:p=\"urn:q\">"
+                + "<b xmlns:ns1=\"urn:p\" ns1:k=\"v\" p:m=\"w\" n=\"x\"/>"
+                + "</a>", DOMOps.getNodeAsStringDeep(doc.getDocumentElement()));
+
+        Document copy = TestDocHelper.createDocument(
+                DOMOps.getNodeAsStringDeep(b));
+        assertEquals("v", copy.getDocumentElement().getAttributeNS(
+                "urn:p", "k"));
+        assertEquals("w", copy.getDocumentElement().getAttributeNS(
+                "urn:q", "m"));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests for diff options.
+ *
+ * @author Adrian Mouat
+ */
+public class DiffOptionsTest {
+
+    /**
+     * Test whitespace options are applied when normalizing text.
+     */
+    @Test
+    public final void testNormalizeWhitespace() {
+
+        DiffOptions opts = new DiffOptions();
+        assertEquals(" a b\n", opts.normalizeText(" a b\n"));
+
+        opts.setIgnoreLeadingWhitespace(true);
+        assertEquals("a b", opts.normalizeText(" a b\n"));
+
+        opts.setIgnoreAllWhitespace(true);
+        assertEquals("ab", opts.normalizeText(" a\tb\n"));
+    }
+
+    /**
+     * Test case folded keys are equal exactly when equalsIgnoreCase is.
+     */
+    @Test
+    public final void testNormalizeCase() {
+
+        DiffOptions opts = new DiffOptions();
+        opts.setIgnoreCase(true);
+
+        //Includes characters with unusual case mappings
+        String chars = "aAzZ\u00df\u00c0\u00e0\u0130\u0131iI\u212aKk"
+            + "\u03a3\u03c3\u03c2\u01c5\u01c4\u01c6";
+        for (int i = 0; i < chars.length(); i++) {
+            for (int j = 0; j < chars.length(); j++) {
+                String a = chars.substring(i, i + 1);
+                String b = chars.substring(j, j + 1);
+                assertEquals(a + " " + b, a.equalsIgnoreCase(b),
+                        opts.normalizeText(a).equals(opts.normalizeText(b)));
+            }
+        }
+    }
+}
@@ -21,12 +21,23 @@ package org.diffxml.diffxml;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -92,4 +103,160 @@ public class DiffXMLTest {
             //Expected flow
         }
     }
+
+    /**
+     * Test run reports status and output without exiting, and that options
+     * set on one run don't leak to the next.
+     */
+    @Test
+    public final void testRun() {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int[] opened = {-1};
+        CommandOutput cmdOut = new CommandOutput() {
+            public PrintStream open(final int status) {
+                opened[0] = status;
+                return new PrintStream(out, true);
+            }
+        };
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        int status = DiffXML.run(new String[] {"-q", "test1a.xml",
+                "test2a.xml"}, new File("."), cmdOut, new PrintStream(err));
+        assertEquals(DiffXML.EXIT_DIFFER, status);
+        assertEquals(DiffXML.EXIT_DIFFER, opened[0]);
+        assertEquals("XML documents test1a.xml and test2a.xml differ\n",
+                out.toString());
+        assertEquals(false, DiffFactory.isBrief());
+
+        out.reset();
+        status = DiffXML.run(new String[] {"test1a.xml", "test1a.xml"},
+                null, cmdOut, new PrintStream(err));
+        assertEquals(DiffXML.EXIT_SAME, status);
+        assertEquals(0, err.size());
+
+        status = DiffXML.run(new String[] {"test1a.xml"}, null, cmdOut,
+                new PrintStream(err));
+        assertEquals(DiffXML.EXIT_ERROR, status);
+        assertEquals("Usage: diffxml [OPTION]... XMLFILE1 XMLFILE2\n",
+                err.toString());
+    }
+
+    /**
+     * Test debug output goes to the run's error stream.
+     */
+    @Test
+    public final void testDebugStream() {
+
+        CommandOutput cmdOut = new CommandOutput() {
+            public PrintStream open(final int status) {
+                return new PrintStream(new ByteArrayOutputStream(), true);
+            }
+        };
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = DiffXML.run(new String[] {"--debug", "test1a.xml",
+                "test2a.xml"}, null, cmdOut, new PrintStream(err, true));
+
+        assertEquals(DiffXML.EXIT_DIFFER, status);
+        String debug = err.toString();
+        assertTrue(debug.contains(" matches "));
+        assertTrue(debug.contains("Applying: "));
+        assertFalse(DiffFactory.isDebug());
+    }
+
+    /**
+     * Test brief mode agrees with the full diff when there is a scope.
+     *
+     * @throws IOException If the test files can't be written
+     */
+    @Test
+    public final void testBriefScope() throws IOException {
+
+        File f1 = File.createTempFile("scope", ".xml");
+        f1.deleteOnExit();
+        File f2 = File.createTempFile("scope", ".xml");
+        f2.deleteOnExit();
+        write(f1, "<r><a>1</a><b>x</b></r>");
+        write(f2, "<r><a>2</a><b>x</b></r>");
+
+        CommandOutput cmdOut = new CommandOutput() {
+            public PrintStream open(final int status) {
+                return new PrintStream(new ByteArrayOutputStream(), true);
+            }
+        };
+        PrintStream err = new PrintStream(new ByteArrayOutputStream());
+        String[] scopes = {"/r/b", "/r/a"};
+        int[] expected = {DiffXML.EXIT_SAME, DiffXML.EXIT_DIFFER};
+        for (int i = 0; i < scopes.length; i++) {
+            int full = DiffXML.run(new String[] {"--scope", scopes[i], 
+                    f1.getPath(), f2.getPath()}, null, cmdOut, err);
+            int brief = DiffXML.run(new String[] {"-q", "--scope", 
+                    scopes[i], f1.getPath(), f2.getPath()}, null, cmdOut, 
+                    err);
+            assertEquals(expected[i], full);
+            assertEquals(full, brief);
+        }
+    }
+
+    /**
+     * Writes a string to a file.
+     *
+     * @param f The file
+     * @param xml The contents
+     * @throws IOException If the file can't be written
+     */
+    private static void write(final File f, final String xml) 
+    throws IOException {
+
+        OutputStream os = new FileOutputStream(f);
+        try {
+            os.write(xml.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Test diffs with their own options give the same result when run
+     * concurrently as when run alone.
+     *
+     * @throws Exception If a diff fails
+     */
+    @Test
+    public final void testConcurrentDiffs() throws Exception {
+
+        final File f1 = new File("suite/1A.xml");
+        final File f2 = new File("suite/1B.xml");
+        final DiffOptions plain = new DiffOptions();
+        final DiffOptions ignoring = new DiffOptions();
+        ignoring.setIgnoreAllWhitespace(true);
+        ignoring.setIgnoreCase(true);
+
+        final String expPlain = DOMOps.getNodeAsStringDeep(
+                DiffFactory.createDiff(plain).diff(f1, f2));
+        final String expIgnoring = DOMOps.getNodeAsStringDeep(
+                DiffFactory.createDiff(ignoring).diff(f1, f2));
+
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 16; i++) {
+                final boolean ignore = (i % 2 == 0);
+                results.add(exec.submit(new Callable<Boolean>() {
+                    public Boolean call() throws DiffException {
+                        DiffOptions opts = ignore ? ignoring : plain;
+                        String delta = DOMOps.getNodeAsStringDeep(
+                                DiffFactory.createDiff(opts).diff(f1, f2));
+                        return delta.equals(ignore ? expIgnoring : expPlain);
+                    }
+                }));
+            }
+            for (Future<Boolean> f : results) {
+                assertEquals(Boolean.TRUE, f.get());
+            }
+        } finally {
+            exec.shutdown();
+        }
+        assertEquals(false, DiffFactory.isIgnoreCase());
+    }
 }
@@ -0,0 +1,237 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.diffxml.diffxml.fmes.Fmes;
+import org.diffxml.diffxml.fmes.NodeOps;
+import org.diffxml.diffxml.fmes.PreparedDocument;
+import org.diffxml.patchxml.DULPatch;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Tests parsing with exclusions and scopes.
+ *
+ * @author Adrian Mouat
+ */
+public class FilteredParserTest {
+
+    /**
+     * Writes XML to a temporary file.
+     *
+     * @param xml The XML
+     * @return The file
+     * @throws IOException If the file can't be written
+     */
+    private static File write(final String xml) throws IOException {
+
+        File f = File.createTempFile("filtered", ".xml");
+        f.deleteOnExit();
+        OutputStream os = new FileOutputStream(f);
+        try {
+            os.write(xml.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        return f;
+    }
+
+    /**
+     * Parses XML with the given exclusions.
+     *
+     * @param xml The XML
+     * @param exclusions The exclusion patterns
+     * @return The document element as a string
+     * @throws Exception If the XML can't be parsed
+     */
+    private static String parse(final String xml, final String... exclusions)
+    throws Exception {
+
+        DiffOptions opts = new DiffOptions();
+        opts.setExclusions(Arrays.asList(exclusions));
+        Document doc = FilteredParser.parse(write(xml), opts);
+        return DOMOps.getNodeAsStringDeep(doc.getDocumentElement());
+    }
+
+    /**
+     * Test documents are parsed as by ParserPool when nothing is excluded.
+     *
+     * @throws Exception If a file can't be parsed
+     */
+    @Test
+    public final void testSameAsParserPool() throws Exception {
+
+        DiffOptions opts = new DiffOptions();
+        opts.setExclusions(Collections.singletonList("no-such-element"));
+        for (String name : new File("suite").list()) {
+            if (!name.endsWith(".xml")) {
+                continue;
+            }
+            File f = new File("suite", name);
+            Document exp = ParserPool.getInstance().parse(f);
+            Document doc = FilteredParser.parse(f, opts);
+            assertEquals(name, DOMOps.getNodeAsStringDeep(exp), 
+                    DOMOps.getNodeAsStringDeep(doc));
+        }
+    }
+
+    /**
+     * Test elements, attributes and paths are excluded.
+     *
+     * @throws Exception If the XML can't be parsed
+     */
+    @Test
+    public final void testExclusions() throws Exception {
+
+        String xml = "<a x='1' y='2'>t<stamp>s<!--c--><b/></stamp>u"
+            + "<b y='3'><c/><![CDATA[d]]></b><d><b><c/></b></d></a>";
+        assertEquals(parse(xml, "no-such-element"), parse(xml));
+
+        assertEquals("<a x=\"1\" y=\"2\">tu<b y=\"3\"><c/><![CDATA[d]]></b>"
+                + "<d><b><c/></b></d></a>", parse(xml, "stamp"));
+        assertEquals("<a x=\"1\">t<stamp>s<!--c--><b/></stamp>u"
+                + "<b><c/><![CDATA[d]]></b><d><b><c/></b></d></a>", 
+                parse(xml, "@y"));
+        assertEquals("<a x=\"1\" y=\"2\">t<stamp>s<!--c--><b/></stamp>u"
+                + "<b y=\"3\"><![CDATA[d]]></b><d><b><c/></b></d></a>", 
+                parse(xml, "/a/b/c"));
+        assertEquals("<a y=\"2\">t<stamp>s<!--c--></stamp>u<b y=\"3\">"
+                + "<c/><![CDATA[d]]></b><d/></a>", 
+                parse(xml, "/a/*/b", "a/@x"));
+    }
+
+    /**
+     * Test diffs leave out excluded content.
+     *
+     * @throws Exception If the diff fails
+     */
+    @Test
+    public final void testDiff() throws Exception {
+
+        File f1 = write("<a><stamp>1</stamp><b id='1' gen='x'/></a>");
+        File f2 = write("<a><b id='1' gen='y'/><stamp>2</stamp></a>");
+        DiffOptions opts = new DiffOptions();
+        assertEquals(true, new Fmes(opts).diff(f1, f2).getDocumentElement()
+                .hasChildNodes());
+
+        opts.setExclusions(Arrays.asList("stamp", "b/@gen"));
+        assertFalse(new Fmes(opts).diff(f1, f2).getDocumentElement()
+                .hasChildNodes());
+    }
+
+    /**
+     * Test only the scope element is parsed, and its path is found.
+     *
+     * @throws Exception If the XML can't be parsed
+     */
+    @Test
+    public final void testScope() throws Exception {
+
+        String xml = "<!DOCTYPE a [<!-- d -->]><!--c--><?p?><a>\n "
+            + "<b>1</b>t<![CDATA[x]]><!--c--><?p?><c/> <b>2<c/>"
+            + "<c><d/></c>s<c><e/></c></b><b/></a>";
+        File f = write(xml);
+        Document full = ParserPool.getInstance().parse(f);
+        String[] scopes = {"/a", "/a/b", "/*/b[2]", "/a/c", "/a/b[2]/c[2]",
+                "/a/b[3]"};
+        for (String scope : scopes) {
+            DiffOptions opts = new DiffOptions();
+            opts.setScope(scope);
+            Document doc = FilteredParser.parse(f, opts);
+            Node exp = Scope.compile(scope).find(full);
+            assertEquals(scope, DOMOps.getNodeAsStringDeep(exp),
+                    DOMOps.getNodeAsStringDeep(doc.getDocumentElement()));
+            assertEquals(scope, NodeOps.getXPath(exp), 
+                    FilteredParser.getScopePath(doc));
+        }
+
+        DiffOptions opts = new DiffOptions();
+        opts.setScope("/a/b[4]");
+        Document doc = FilteredParser.parse(f, opts);
+        assertNull(FilteredParser.getScopePath(doc));
+        assertNull(doc.getDocumentElement());
+
+        try {
+            opts.setScope("a/b");
+            fail("Relative scope accepted");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+
+    /**
+     * Test scoped deltas apply to the full original document.
+     *
+     * @throws Exception If the diff fails
+     */
+    @Test
+    public final void testScopedDiff() throws Exception {
+
+        File f1 = write("<r><!--x--><h><v>1</v></h>\n<s><i n='1'/>"
+                + "<i n='2'>a</i><i n='3'/></s><s/></r>");
+        File f2 = write("<r><h><v>2</v></h><s><i n='2'>b</i><i n='1'/>"
+                + "<j/></s></r>");
+        DiffOptions opts = new DiffOptions();
+        opts.setScope("/r/s");
+
+        Document delta = new Fmes(opts).diff(f1, f2);
+        Document doc1 = ParserPool.getInstance().parse(f1);
+        new DULPatch().apply(doc1, delta);
+        assertEquals("<r><!--x--><h><v>1</v></h>\n<s><i n=\"2\">b</i>"
+                + "<i n=\"1\"/><j/></s><s/></r>", 
+                DOMOps.getNodeAsStringDeep(doc1.getDocumentElement()));
+
+        Document doc2 = ParserPool.getInstance().parse(f2);
+        doc1 = ParserPool.getInstance().parse(f1);
+        delta = new Fmes(opts).diff(doc1, doc2);
+        new DULPatch().apply(doc1, delta);
+        assertEquals("<r><!--x--><h><v>1</v></h>\n<s><i n=\"2\">b</i>"
+                + "<i n=\"1\"/><j/></s><s/></r>", 
+                DOMOps.getNodeAsStringDeep(doc1.getDocumentElement()));
+
+        doc1 = ParserPool.getInstance().parse(f1);
+        delta = new Fmes(opts).diff(new PreparedDocument(doc1), 
+                ParserPool.getInstance().parse(f2));
+        new DULPatch().apply(doc1, delta);
+        assertEquals("<r><!--x--><h><v>1</v></h>\n<s><i n=\"2\">b</i>"
+                + "<i n=\"1\"/><j/></s><s/></r>", 
+                DOMOps.getNodeAsStringDeep(doc1.getDocumentElement()));
+
+        opts.setScope("/r/t");
+        try {
+            new Fmes(opts).diff(f1, f2);
+            fail("Missing scope not reported");
+        } catch (DiffException e) {
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Tests for the pool of DocumentBuilders.
+ *
+ * @author Adrian Mouat
+ */
+public class ParserPoolTest {
+
+    /**
+     * Test pools are shared per configuration.
+     */
+    @Test
+    public final void testPoolPerConfiguration() {
+
+        assertSame(ParserPool.getInstance(true), ParserPool.getInstance(true));
+        assertNotSame(ParserPool.getInstance(true),
+                ParserPool.getInstance(false));
+    }
+
+    /**
+     * Test released builders are reused and still correctly configured.
+     */
+    @Test
+    public final void testReuse() {
+
+        ParserPool pool = ParserPool.getInstance(true);
+        try {
+            DocumentBuilder db = pool.acquire();
+            assertTrue(db.isNamespaceAware());
+            pool.release(db);
+            assertSame(db, pool.acquire());
+            pool.release(db);
+
+            Document doc = pool.parse(new ByteArrayInputStream(
+                    "<a xmlns='http://example.com'><b/></a>".getBytes("utf-8")));
+            assertEquals("http://example.com",
+                    doc.getDocumentElement().getNamespaceURI());
+        } catch (Exception e) {
+            fail("Caught exception: " + e.getMessage());
+        }
+    }
+}
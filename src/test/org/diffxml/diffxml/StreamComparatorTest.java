@@ -0,0 +1,208 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for the streaming comparison used in brief mode.
+ *
+ * @author Adrian Mouat
+ */
+public class StreamComparatorTest {
+
+    /**
+     * Writes XML to a temporary file.
+     *
+     * @param xml The XML
+     * @return The file
+     * @throws IOException If the file can't be written
+     */
+    private static File write(final String xml) throws IOException {
+
+        File f = File.createTempFile("streamcomp", ".xml");
+        f.deleteOnExit();
+        OutputStream os = new FileOutputStream(f);
+        try {
+            os.write(xml.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        return f;
+    }
+
+    /**
+     * Compares two documents.
+     *
+     * @param opts Options to use
+     * @param a The first document
+     * @param b The second document
+     * @return True if they differ
+     */
+    private static boolean differ(final DiffOptions opts, final String a,
+            final String b) {
+
+        try {
+            return new StreamComparator(opts).differ(write(a), write(b));
+        } catch (IOException e) {
+            fail("Caught exception: " + e.getMessage());
+        } catch (DiffException e) {
+            fail("Caught exception: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Test attribute order, prefixes and prolog whitespace don't matter.
+     */
+    @Test
+    public final void testInsignificant() {
+
+        DiffOptions opts = new DiffOptions();
+        assertFalse(differ(opts, "<a x='1' y='2'><b/></a>",
+                "\n<a y='2'  x='1'><b></b></a>\n"));
+        assertFalse(differ(opts, "<p:a xmlns:p='urn:x'/>",
+                "<q:a xmlns:q='urn:x'/>"));
+        assertFalse(differ(opts, "<a>x&amp;y</a>",
+                "<a>x&#38;y</a>"));
+    }
+
+    /**
+     * Test differences are found.
+     */
+    @Test
+    public final void testDifferences() {
+
+        DiffOptions opts = new DiffOptions();
+        assertTrue(differ(opts, "<a x='1'/>", "<a x='2'/>"));
+        assertTrue(differ(opts, "<a x='1'/>", "<a x='1' y='1'/>"));
+        assertTrue(differ(opts, "<a><b/></a>", "<a><b/><b/></a>"));
+        assertTrue(differ(opts, "<a>text</a>", "<a><![CDATA[text]]></a>"));
+        assertTrue(differ(opts, "<a><!--c--></a>", "<a/>"));
+        assertTrue(differ(opts, "<a>x<!--c-->y</a>", "<a>xy</a>"));
+        assertTrue(differ(opts, "<a> <b/></a>", "<a><b/></a>"));
+        assertTrue(differ(opts, "<a>Text</a>", "<a>text</a>"));
+    }
+
+    /**
+     * Test ignore options are applied.
+     */
+    @Test
+    public final void testOptions() {
+
+        DiffOptions opts = new DiffOptions();
+        opts.setIgnoreComments(true);
+        opts.setIgnoreWhitespaceNodes(true);
+        opts.setIgnoreCase(true);
+        assertFalse(differ(opts, "<a><!--c--></a>", "<a/>"));
+        assertFalse(differ(opts, "<a> <b/>\n</a>", "<a><b/></a>"));
+        assertFalse(differ(opts, "<a>Text</a>", "<a>tEXT</a>"));
+        //Comment still separates text nodes
+        assertTrue(differ(opts, "<a>x<!--c-->y</a>", "<a>xy</a>"));
+
+        opts = new DiffOptions();
+        opts.setIgnoreAllWhitespace(true);
+        assertFalse(differ(opts, "<a>a b\n</a>", "<a>ab</a>"));
+        opts = new DiffOptions();
+        opts.setIgnoreLeadingWhitespace(true);
+        assertFalse(differ(opts, "<a> ab </a>", "<a>ab</a>"));
+        assertTrue(differ(opts, "<a>a b</a>", "<a>ab</a>"));
+    }
+
+    /**
+     * Test malformed input is reported.
+     */
+    @Test
+    public final void testMalformed() {
+
+        try {
+            new StreamComparator(new DiffOptions()).differ(
+                    write("<a>"), write("<a/>"));
+            fail("Expected exception for malformed document");
+        } catch (IOException e) {
+            fail("Caught exception: " + e.getMessage());
+        } catch (DiffException e) {
+            //Expected flow
+        }
+    }
+
+    /**
+     * Test excluded content is left out of the comparison.
+     */
+    @Test
+    public final void testExclusions() {
+
+        DiffOptions opts = new DiffOptions();
+        opts.setExclusions(Arrays.asList("stamp", "@gen", "/a/b/c"));
+        assertFalse(differ(opts, 
+                "<a gen='1'>x<stamp>1<!--c--></stamp>y<b><c/></b></a>",
+                "<a gen='2'>xy<b><c>new</c></b></a>"));
+        assertTrue(differ(opts, "<a><b><d><c/></d></b></a>", 
+                "<a><b><d/></b></a>"));
+        assertTrue(differ(new DiffOptions(), "<a gen='1'/>", "<a gen='2'/>"));
+    }
+
+    /**
+     * Test only the scope elements are compared.
+     */
+    @Test
+    public final void testScope() {
+
+        DiffOptions opts = new DiffOptions();
+        opts.setScope("/r/b");
+        assertFalse(differ(opts, "<r><a>1</a><b>x</b></r>",
+                "<r><a>2</a><b>x</b></r>"));
+        assertTrue(differ(opts, "<r><b>x</b></r>", "<r><b>y</b></r>"));
+        assertFalse(differ(opts, "<r><b>x</b>1</r>", "<r>2<b>x</b><b/></r>"));
+
+        opts.setScope("/r/b[2]");
+        assertFalse(differ(opts, "<r><b/><a/><b>x</b></r>",
+                "<r><b>y</b><b>x</b></r>"));
+        assertTrue(differ(opts, "<r><b/><b>x</b></r>",
+                "<r><b>x</b><b/></r>"));
+
+        //Excluded elements aren't counted
+        opts.setExclusions(Arrays.asList("/r/b/c"));
+        opts.setScope("/r/b/*");
+        assertFalse(differ(opts, "<r><b><c/><d>x</d></b></r>",
+                "<r><b><d>x</d></b></r>"));
+
+        opts = new DiffOptions();
+        opts.setScope("/r/c");
+        try {
+            new StreamComparator(opts).differ(write("<r><b/></r>"), 
+                    write("<r><c/></r>"));
+            fail("Expected exception for missing scope");
+        } catch (IOException e) {
+            fail("Caught exception: " + e.getMessage());
+        } catch (DiffException e) {
+            assertTrue(e.getMessage().startsWith("Scope /r/c not found"));
+        }
+    }
+}
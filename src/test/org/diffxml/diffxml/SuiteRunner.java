@@ -103,6 +103,43 @@ public class SuiteRunner {
         assertFalse(delta.getDocumentElement().hasChildNodes());
     }
 
+    /**
+     * Compares the two given files with a reverse patch, applies it in 
+     * reverse to the second file and checks it is the same as the first.
+     * 
+     * @param fA first file to compare 
+     * @param fB second file to compare
+     */
+    public final void runReverseTest(final File fA, final File fB) {
+
+        DiffOptions opts = DiffFactory.copyDefaults();
+        opts.setReversePatch(true);
+
+        Document delta = null;
+        try {
+            delta = new Fmes(opts).diff(
+                    DOMOps.getDocument(fA), DOMOps.getDocument(fB));
+        } catch (DiffException e) {
+            fail("Diff threw exception: " + e.getMessage());
+        }
+
+        Document dB = DOMOps.getDocument(fB);
+        try {
+            new DULPatch().applyReverse(dB, delta);
+        } catch (PatchFormatException e) {
+            fail("Reverse patch of " + fB.getName() + " failed: " 
+                    + e.getMessage());
+        }
+
+        try {
+            delta = new Fmes().diff(DOMOps.getDocument(fA), dB);
+        } catch (DiffException e) {
+            fail("Diff threw exception: " + e.getMessage());
+        }
+
+        assertFalse(fB.getName(), delta.getDocumentElement().hasChildNodes());
+    }
+
     /**
      * Run all the tests in the suite directory.
      */
@@ -124,6 +161,20 @@ public class SuiteRunner {
             runFMESTest(fA, fB);
         }
     }
+
+    /**
+     * Run all the tests in the suite directory in reverse.
+     */
+    @Test
+    public final void runSuiteReverse() {
+
+        File suiteDir = new File(SUITE_DIR);
+        for (File fA : suiteDir.listFiles(new FilesEndAFilter())) {
+
+            File fB = new File(fA.getAbsolutePath().replace("A.xml", "B.xml"));
+            runReverseTest(fA, fB);
+        }
+    }
     
 }
 
@@ -19,12 +19,21 @@ limitations under the License.
 package org.diffxml.diffxml.fmes;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
 import org.diffxml.diffxml.TestDocHelper;
+import org.diffxml.dul.DULConstants;
+import org.diffxml.patchxml.DULPatch;
+import org.diffxml.patchxml.PatchFormatException;
 import org.junit.Test;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
@@ -434,4 +443,272 @@ public class EditScriptTest {
                 attrs.getNamedItem("old_charpos").getNodeValue());
 
     }
+
+    /**
+     * Test a new subtree is inserted with a single operation.
+     */
+    @Test
+    public final void testSubtreeInsert() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a xmlns:n=\"http://example.com\"><b/></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a xmlns:n=\"http://example.com\"><b/>"
+                + "<n:c x=\"1\"><d>text</d><!-- c --><e/></n:c></a>");
+        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        EditScript es = new EditScript(doc1, doc2, matchings);
+        Document res = null;
+        try {
+            res = es.create();
+        } catch (DocumentCreationException e) {
+            fail("Caught Exception");
+        }
+
+        assertEquals(1, res.getFirstChild().getChildNodes().getLength());
+        Node insert = res.getFirstChild().getFirstChild();
+        assertEquals("insert", insert.getNodeName());
+        NamedNodeMap attrs = insert.getAttributes();
+        assertEquals("true", attrs.getNamedItem("subtree").getNodeValue());
+        assertEquals("2", attrs.getNamedItem("childno").getNodeValue());
+        assertEquals("/node()[1]", 
+                attrs.getNamedItem("parent").getNodeValue());
+
+        //The patched subtree should be the same as the original
+        Document patched = TestDocHelper.createDocument(
+                "<a xmlns:n=\"http://example.com\"><b/></a>");
+        try {
+            (new DULPatch()).apply(patched, res);
+        } catch (PatchFormatException e) {
+            fail("Caught Exception " + e);
+        }
+        assertEquals(DOMOps.getNodeAsStringDeep(
+                    doc2.getDocumentElement().getLastChild()), 
+                DOMOps.getNodeAsStringDeep(
+                    patched.getDocumentElement().getLastChild()));
+    }
+
+    /**
+     * Test a removed subtree is deleted with a single operation.
+     */
+    @Test
+    public final void testSubtreeDelete() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><b/><c x=\"1\"><d>text</d><e/></c><f/></a>");
+        Document doc2 = TestDocHelper.createDocument("<a><b/><f/></a>");
+        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        EditScript es = new EditScript(doc1, doc2, matchings);
+        Document res = null;
+        try {
+            res = es.create();
+        } catch (DocumentCreationException e) {
+            fail("Caught Exception");
+        }
+
+        assertEquals(1, res.getFirstChild().getChildNodes().getLength());
+        Node delete = res.getFirstChild().getFirstChild();
+        assertEquals("delete", delete.getNodeName());
+        assertEquals("/node()[1]/node()[2]", 
+                delete.getAttributes().getNamedItem("node").getNodeValue());
+        assertEquals(2, doc1.getDocumentElement().getChildNodes().getLength());
+    }
+
+    /**
+     * Test changed attributes are updated rather than the element replaced.
+     */
+    @Test
+    public final void testAttributeUpdate() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><b t=\"1\" u=\"1\"><c/><d/></b></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><b t=\"2\" v=\"1\"><c/><d/></b></a>");
+        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        Match.matchChangedNodes(doc1, matchings);
+        EditScript es = new EditScript(doc1, doc2, matchings);
+        Document res = null;
+        try {
+            res = es.create();
+        } catch (DocumentCreationException e) {
+            fail("Caught Exception");
+        }
+
+        assertEquals(3, res.getFirstChild().getChildNodes().getLength());
+        Node update = res.getFirstChild().getFirstChild();
+        assertEquals("update", update.getNodeName());
+        assertEquals("/node()[1]/node()[1]/@t", 
+                update.getAttributes().getNamedItem("node").getNodeValue());
+        assertEquals("2", update.getTextContent());
+
+        Node delete = update.getNextSibling();
+        assertEquals("delete", delete.getNodeName());
+        assertEquals("/node()[1]/node()[1]/@u", 
+                delete.getAttributes().getNamedItem("node").getNodeValue());
+
+        Node insert = delete.getNextSibling();
+        assertEquals("insert", insert.getNodeName());
+        assertEquals("v", 
+                insert.getAttributes().getNamedItem("name").getNodeValue());
+
+        Element b = (Element) doc1.getDocumentElement().getFirstChild();
+        assertEquals("2", b.getAttribute("t"));
+        assertFalse(b.hasAttribute("u"));
+        assertEquals("1", b.getAttribute("v"));
+    }
+
+    /**
+     * Test changed text is updated in place.
+     */
+    @Test
+    public final void testTextUpdate() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><b/>The quick brown fox<c/></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><b/>The slow brown fox<c/></a>");
+        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        Match.matchChangedNodes(doc1, matchings);
+        EditScript es = new EditScript(doc1, doc2, matchings);
+        Document res = null;
+        try {
+            res = es.create();
+        } catch (DocumentCreationException e) {
+            fail("Caught Exception");
+        }
+
+        assertEquals(1, res.getFirstChild().getChildNodes().getLength());
+        Node update = res.getFirstChild().getFirstChild();
+        assertEquals("update", update.getNodeName());
+        NamedNodeMap attrs = update.getAttributes();
+        assertEquals("/node()[1]/node()[2]", 
+                attrs.getNamedItem("node").getNodeValue());
+        assertEquals("5", attrs.getNamedItem("charpos").getNodeValue());
+        assertEquals("5", attrs.getNamedItem("length").getNodeValue());
+        assertEquals("slow", update.getTextContent());
+        assertEquals("The slow brown fox", 
+                doc1.getDocumentElement().getChildNodes().item(1
+                        ).getNodeValue());
+    }
+
+    /**
+     * Creates the edit script between two documents.
+     * 
+     * @param doc1 The original document
+     * @param doc2 The new document
+     * @return The edit script
+     * @throws DocumentCreationException If the edit script can't be made
+     */
+    private static Document createEditScript(final Document doc1,
+            final Document doc2) throws DocumentCreationException {
+
+        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        Match.matchChangedNodes(doc1, matchings);
+        return new EditScript(doc1, doc2, matchings).create();
+    }
+
+    /**
+     * Test preserving the original gives the same edit script without
+     * modifying either document.
+     * 
+     * @throws DocumentCreationException If the edit script can't be made
+     */
+    @Test
+    public final void testPreserveOriginal() 
+    throws DocumentCreationException {
+
+        String xml1 = "<a><b>one</b><c x='1'><d/>two</c><e>three</e></a>";
+        String xml2 = "<z><c x='2'>twelve<d/></c><f/><b>one</b>"
+            + "<g><h/></g></z>";
+
+        Document doc1 = TestDocHelper.createDocument(xml1);
+        Document doc2 = TestDocHelper.createDocument(xml2);
+        String before1 = DOMOps.getNodeAsStringDeep(doc1);
+        String before2 = DOMOps.getNodeAsStringDeep(doc2);
+
+        DiffOptions opts = DiffFactory.copyDefaults();
+        opts.setPreserveOriginal(true);
+        opts.setReversePatch(true);
+        DiffOptions previous = DiffFactory.setCurrentOptions(opts);
+        String res;
+        try {
+            res = DOMOps.getNodeAsStringDeep(createEditScript(doc1, doc2));
+        } finally {
+            DiffFactory.setCurrentOptions(previous);
+        }
+
+        assertEquals(before1, DOMOps.getNodeAsStringDeep(doc1));
+        assertEquals(before2, DOMOps.getNodeAsStringDeep(doc2));
+
+        opts.setPreserveOriginal(false);
+        previous = DiffFactory.setCurrentOptions(opts);
+        String exp;
+        try {
+            exp = DOMOps.getNodeAsStringDeep(createEditScript(
+                    TestDocHelper.createDocument(xml1), 
+                    TestDocHelper.createDocument(xml2)));
+        } finally {
+            DiffFactory.setCurrentOptions(previous);
+        }
+        assertEquals(exp, res);
+    }
+
+    /**
+     * Test an edit script over its work budget replaces misaligned elements
+     * rather than moving their children, and still patches correctly.
+     * 
+     * @throws Exception If the diff or patch fails
+     */
+    @Test
+    public final void testWorkBudget() throws Exception {
+
+        String xml1 = "<a><b><c/><d/><e/><f/></b></a>";
+        String xml2 = "<a><b><f/><d/><e/><c/></b></a>";
+
+        Document doc1 = TestDocHelper.createDocument(xml1);
+        Document doc2 = TestDocHelper.createDocument(xml2);
+        NodePairs matchings = Match.easyMatch(doc1, doc2);
+        WorkBudget budget = new WorkBudget(1, 0);
+        Document delta = new EditScript(doc1, doc2, matchings, 
+                budget).create();
+
+        assertTrue(budget.isDegraded());
+        assertEquals(0, delta.getElementsByTagName("move").getLength());
+        assertEquals(1, delta.getElementsByTagName("delete").getLength());
+        assertEquals(1, delta.getElementsByTagName("insert").getLength());
+        assertEquals(DOMOps.getNodeAsStringDeep(doc2), 
+                DOMOps.getNodeAsStringDeep(doc1));
+
+        doc1 = TestDocHelper.createDocument(xml1);
+        new DULPatch().apply(doc1, delta);
+        assertEquals(DOMOps.getNodeAsStringDeep(doc2), 
+                DOMOps.getNodeAsStringDeep(doc1));
+
+        budget = new WorkBudget(0, 0);
+        doc1 = TestDocHelper.createDocument(xml1);
+        matchings = Match.easyMatch(doc1, doc2);
+        delta = new EditScript(doc1, doc2, matchings, budget).create();
+        assertFalse(budget.isDegraded());
+        assertEquals(2, delta.getElementsByTagName("move").getLength());
+    }
+
+    /**
+     * Test only deltas made over the limits are marked as degraded.
+     * 
+     * @throws Exception If the diff fails
+     */
+    @Test
+    public final void testDegradedDelta() throws Exception {
+
+        String xml1 = "<a><b><c/><d/><e/></b></a>";
+        String xml2 = "<a><b><e/><d/><c/></b></a>";
+
+        DiffOptions opts = DiffFactory.copyDefaults();
+        Document delta = new Fmes(opts).diff(
+                TestDocHelper.createDocument(xml1),
+                TestDocHelper.createDocument(xml2));
+        assertFalse(delta.getDocumentElement().hasAttribute(
+                DULConstants.DEGRADED));
+
+        opts.setWorkLimit(1);
+        delta = new Fmes(opts).diff(TestDocHelper.createDocument(xml1),
+                TestDocHelper.createDocument(xml2));
+        assertEquals("true", delta.getDocumentElement().getAttribute(
+                DULConstants.DEGRADED));
+    }
 }
@@ -20,7 +20,15 @@ package org.diffxml.diffxml.fmes;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
 import org.diffxml.diffxml.TestDocHelper;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -407,4 +415,258 @@ public class MatchTest {
         Node aB = aDocEl.getFirstChild();
         assertEquals(bDocEl.getFirstChild(), matches.getPartner(aB));
     }
+
+    /**
+     * Test nodes are prepared deepest first, in document order within each
+     * depth, excluding the root element.
+     */
+    @Test
+    public final void testPrepareOrder() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<a><b><c/>t</b><d><e><f/></e></d></a>");
+        List<NodeDepth> nodes = Match.prepare(doc);
+
+        StringBuilder order = new StringBuilder();
+        for (NodeDepth nd : nodes) {
+            order.append(nd.getNode().getNodeName()).append(nd.getDepth());
+        }
+        assertEquals("f4c3#text3e3b2d2", order.toString());
+    }
+
+    /**
+     * Test the relaxed tier pairs elements differing only in attributes.
+     */
+    @Test
+    public final void testMatchChangedElements() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><b t=\"1\"><c/></b><d x=\"1\"/><e/></a>"); 
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><b t=\"2\"><c/></b><d x=\"2\"/><f/></a>");
+        
+        NodePairs matches = Match.easyMatch(doc1, doc2);
+        Node b1 = doc1.getDocumentElement().getFirstChild();
+        assertNull(matches.getPartner(b1));
+
+        Match.matchChangedNodes(doc1, matches);
+        Node b2 = doc2.getDocumentElement().getFirstChild();
+        assertEquals(b2, matches.getPartner(b1));
+        
+        Node d1 = b1.getNextSibling();
+        Node d2 = b2.getNextSibling();
+        assertEquals(d2, matches.getPartner(d1));
+
+        //Different names are never paired
+        assertNull(matches.getPartner(d1.getNextSibling()));
+    }
+
+    /**
+     * Test the relaxed tier pairs changed text under matched parents.
+     */
+    @Test
+    public final void testMatchChangedText() {
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><b>old</b><![CDATA[c1]]></a>"); 
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><b>new</b>c2</a>");
+        
+        NodePairs matches = Match.easyMatch(doc1, doc2);
+        Match.matchChangedNodes(doc1, matches);
+
+        Node b1 = doc1.getDocumentElement().getFirstChild();
+        Node b2 = doc2.getDocumentElement().getFirstChild();
+        assertEquals(b2.getFirstChild(), 
+                matches.getPartner(b1.getFirstChild()));
+
+        //CDATA is only paired with CDATA
+        assertNull(matches.getPartner(b1.getNextSibling()));
+    }
+
+    /**
+     * Creates a document with many repeated nodes.
+     *
+     * @param seed Seed for the random content
+     * @return The document
+     */
+    private static Document createRepetitiveDocument(final long seed) {
+
+        Random random = new Random(seed);
+        StringBuilder xml = new StringBuilder("<root>");
+        for (int i = 0; i < 3000; i++) {
+            int t = random.nextInt(4);
+            if (t == 0) {
+                xml.append("t").append(random.nextInt(5));
+            } else if (t == 1) {
+                xml.append("<!--c").append(random.nextInt(3)).append("-->");
+            } else {
+                xml.append("<e a='").append(random.nextInt(3)).append("'>");
+                xml.append("<f>").append(random.nextInt(4)).append("</f>");
+                xml.append("</e>");
+            }
+        }
+        return TestDocHelper.createDocument(xml.append("</root>").toString());
+    }
+
+    /**
+     * Test parallel matching gives the same matches as sequential.
+     */
+    @Test
+    public final void testParallelMatching() {
+
+        Document doc1 = createRepetitiveDocument(1);
+        Document doc2 = createRepetitiveDocument(2);
+        NodePairs sequential = Match.easyMatch(doc1, doc2);
+
+        DiffOptions opts = DiffFactory.copyDefaults();
+        opts.setParallelMatching(true);
+        DiffOptions previous = DiffFactory.setCurrentOptions(opts);
+        NodePairs parallel;
+        try {
+            parallel = Match.easyMatch(doc1, doc2);
+        } finally {
+            DiffFactory.setCurrentOptions(previous);
+        }
+
+        assertEquals(sequential.size(), parallel.size());
+        for (NodeDepth nd : Match.prepare(doc1)) {
+            assertSame(sequential.getPartner(nd.getNode()), 
+                    parallel.getPartner(nd.getNode()));
+        }
+    }
+
+    /**
+     * Test matching stops when the work budget runs out, sequentially and
+     * in parallel.
+     */
+    @Test
+    public final void testMatchBudget() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><b><c/><d/><e/><f/></b></a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a><b><f/><e/><d/><c/></b></a>");
+        Node b = doc1.getDocumentElement().getFirstChild();
+        NodePairs all = Match.easyMatch(doc1, doc2);
+        assertEquals(14, all.size());
+
+        WorkBudget budget = new WorkBudget(3, 0);
+        NodePairs matches = Match.easyMatch(doc1, doc2, Match.prepare(doc1),
+                Match.prepare(doc2), budget);
+        assertTrue(budget.isDegraded());
+        assertTrue(matches.size() < all.size());
+        assertNull(matches.getPartner(b));
+
+        DiffOptions opts = DiffFactory.copyDefaults();
+        opts.setParallelMatching(true);
+        DiffOptions previous = DiffFactory.setCurrentOptions(opts);
+        try {
+            budget = new WorkBudget(3, 0);
+            matches = Match.easyMatch(doc1, doc2, Match.prepare(doc1),
+                    Match.prepare(doc2), budget);
+        } finally {
+            DiffFactory.setCurrentOptions(previous);
+        }
+        assertTrue(budget.isDegraded());
+        assertTrue(matches.size() < all.size());
+        assertNull(matches.getPartner(b));
+    }
+
+    /**
+     * Runs easyMatch with the given key attributes.
+     *
+     * @param keys The key attributes
+     * @param doc1 The original document
+     * @param doc2 The modified document
+     * @return The matches
+     */
+    private static NodePairs keyedMatch(final List<String> keys,
+            final Document doc1, final Document doc2) {
+
+        DiffOptions opts = DiffFactory.copyDefaults();
+        opts.setKeyAttributes(keys);
+        DiffOptions previous = DiffFactory.setCurrentOptions(opts);
+        try {
+            return Match.easyMatch(doc1, doc2);
+        } finally {
+            DiffFactory.setCurrentOptions(previous);
+        }
+    }
+
+    /**
+     * Test elements are matched by key attribute despite other changes.
+     */
+    @Test
+    public final void testKeyAttributes() {
+
+        Document doc1 = TestDocHelper.createDocument("<root>"
+                + "<item id='1' price='5'><name>A</name></item>"
+                + "<item id='2' price='6'><name>B</name></item>"
+                + "<part sku='3' id='4'/><other sku='3'/></root>");
+        Document doc2 = TestDocHelper.createDocument("<root>"
+                + "<item id='2' price='7'><name>B</name></item>"
+                + "<item id='1' price='5' new='x'><name>A</name></item>"
+                + "<part sku='3' id='5'/><other sku='3' a='b'/></root>");
+
+        Node root1 = doc1.getDocumentElement();
+        Node root2 = doc2.getDocumentElement();
+        NodePairs matches = keyedMatch(
+                Arrays.asList("part/@sku", "id"), doc1, doc2);
+        assertSame(root2.getChildNodes().item(1), 
+                matches.getPartner(root1.getChildNodes().item(0)));
+        assertSame(root2.getChildNodes().item(0), 
+                matches.getPartner(root1.getChildNodes().item(1)));
+        assertSame(root2.getChildNodes().item(2), 
+                matches.getPartner(root1.getChildNodes().item(2)));
+        assertNull(matches.getPartner(root1.getChildNodes().item(3)));
+
+        //Children are still matched by the general pass
+        assertSame(root2.getFirstChild().getFirstChild().getFirstChild(), 
+                matches.getPartner(root1.getChildNodes().item(1)
+                        .getFirstChild().getFirstChild()));
+
+        matches = keyedMatch(Arrays.asList("other"), doc1, doc2);
+        assertNull(matches.getPartner(root1.getFirstChild()));
+    }
+
+    /**
+     * Test text nodes are paired with similar text when a threshold is set.
+     */
+    @Test
+    public final void testTextSimilarity() {
+
+        String xml1 = "<a><b>the quick brown fox jumps over the dog</b>"
+            + "<c>nothing alike</c></a>";
+        String xml2 = "<a><c>something else</c>"
+            + "<d>the quick brown fox jumped over the dog</d></a>";
+
+        Document doc1 = TestDocHelper.createDocument(xml1);
+        Document doc2 = TestDocHelper.createDocument(xml2);
+        NodePairs matches = Match.easyMatch(doc1, doc2);
+        Match.matchChangedNodes(doc1, matches);
+        Node text1 = doc1.getDocumentElement().getFirstChild().getFirstChild();
+        Node text2 = doc2.getDocumentElement().getLastChild().getFirstChild();
+        assertNull(matches.getPartner(text1));
+
+        DiffOptions opts = DiffFactory.copyDefaults();
+        opts.setTextSimilarity(0.6);
+        DiffOptions previous = DiffFactory.setCurrentOptions(opts);
+        try {
+            matches = Match.easyMatch(doc1, doc2);
+            Match.matchChangedNodes(doc1, matches);
+            assertSame(text2, matches.getPartner(text1));
+
+            //Dissimilar text is only paired in place by name
+            Node other = doc1.getDocumentElement().getLastChild();
+            assertSame(doc2.getDocumentElement().getFirstChild()
+                    .getFirstChild(), 
+                    matches.getPartner(other.getFirstChild()));
+
+            opts.setTextSimilarity(0.95);
+            matches = Match.easyMatch(doc1, doc2);
+            Match.matchChangedNodes(doc1, matches);
+            assertNull(matches.getPartner(text1));
+        } finally {
+            DiffFactory.setCurrentOptions(previous);
+        }
+    }
 }
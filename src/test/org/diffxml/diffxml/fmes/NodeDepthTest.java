@@ -103,4 +103,35 @@ public class NodeDepthTest {
     public void testNull() {
         NodeDepth nullTest = new NodeDepth(null);
     }
+
+    /**
+     * Test element keys, and Match.compareElements which uses them, ignore
+     * attribute order, prefixes and xmlns attributes only.
+     */
+    @Test
+    public final void testElementKey() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<r xmlns:p='urn:p' xmlns:q='urn:p'>"
+                + "<a x='1' y='2'/><a y='2' x='1'/><a x='1'/>"
+                + "<a x='1' y='2' xmlns='urn:d'/><a p:x='1' y='2'/>"
+                + "<a q:x='1' y='2'/><b x='1' y='2'/><a x='2' y='1'/>"
+                + "<a x='1' y='2' xmlns:z='urn:z'/></r>");
+
+        //Elements in the same group are the same element
+        int[] groups = {0, 0, 1, 2, 3, 3, 4, 5, 0};
+        Node[] els = org.diffxml.diffxml.DOMOps.getElementsOfNodeList(
+                doc.getDocumentElement().getChildNodes());
+        for (int i = 0; i < els.length; i++) {
+            for (int j = 0; j < els.length; j++) {
+                NodeDepth ad = new NodeDepth(els[i]);
+                NodeDepth bd = new NodeDepth(els[j]);
+                boolean keysEqual = ad.getFingerprint() == bd.getFingerprint()
+                    && ad.getElementKey().equals(bd.getElementKey());
+                assertEquals(groups[i] == groups[j], keysEqual);
+                assertEquals(keysEqual, 
+                        Match.compareElements(els[i], els[j]));
+            }
+        }
+    }
 }
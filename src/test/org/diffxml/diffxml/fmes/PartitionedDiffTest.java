@@ -0,0 +1,161 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml.fmes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.DiffOptions;
+import org.diffxml.diffxml.ParserPool;
+import org.diffxml.diffxml.TestDocHelper;
+import org.diffxml.patchxml.DULPatch;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Test partitioned diffs.
+ */
+public class PartitionedDiffTest {
+
+    /**
+     * Creates options for a partitioned diff.
+     *
+     * @return The options
+     */
+    private static DiffOptions partitioned() {
+
+        DiffOptions opts = DiffFactory.copyDefaults();
+        opts.setPartitioned(true);
+        return opts;
+    }
+
+    /**
+     * Checks a partitioned delta turns doc1 into doc2.
+     *
+     * @param opts The options for the diff
+     * @param xml1 The original document
+     * @param xml2 The modified document
+     * @return The delta
+     * @throws Exception If a diff or patch fails
+     */
+    private static Document checkDelta(final DiffOptions opts, 
+            final String xml1, final String xml2) throws Exception {
+
+        Document doc1 = TestDocHelper.createDocument(xml1);
+        Document doc2 = TestDocHelper.createDocument(xml2);
+        Document delta = new Fmes(opts).diff(doc1, doc2);
+        assertEquals(DOMOps.getNodeAsStringDeep(
+                TestDocHelper.createDocument(xml1)), 
+                DOMOps.getNodeAsStringDeep(doc1));
+
+        new DULPatch().apply(doc1, delta);
+        assertEquals(DOMOps.getNodeAsStringDeep(doc2), 
+                DOMOps.getNodeAsStringDeep(doc1));
+        return delta;
+    }
+
+    /**
+     * Test partitioned deltas patch each pair in the suite correctly and
+     * leave the inputs unmodified.
+     *
+     * @throws Exception If a diff or patch fails
+     */
+    @Test
+    public final void testSuite() throws Exception {
+
+        ParserPool pool = ParserPool.getInstance();
+        String[] names = new File("suite").list();
+        for (String a : names) {
+            if (!a.endsWith("A.xml")) {
+                continue;
+            }
+            String b = a.substring(0, a.length() - 5) + "B.xml";
+            Document doc1 = pool.parse(new File("suite", a));
+            Document doc2 = pool.parse(new File("suite", b));
+            String before = DOMOps.getNodeAsStringDeep(doc1);
+            Document delta = new Fmes(partitioned()).diff(doc1, doc2);
+            assertEquals(a, before, DOMOps.getNodeAsStringDeep(doc1));
+
+            new DULPatch().apply(doc1, delta);
+            Document check = new Fmes().diff(doc1, doc2);
+            assertFalse(a, check.getDocumentElement().hasChildNodes());
+        }
+    }
+
+    /**
+     * Test children are moved, inserted, deleted and changed.
+     *
+     * @throws Exception If a diff or patch fails
+     */
+    @Test
+    public final void testChildren() throws Exception {
+
+        checkDelta(partitioned(),
+                "<a x='1'><b><c/>text</b><d>d1</d>t<e/><f><g/></f></a>",
+                "<a x='2'><f><g y='1'/></f>t<b>text<c/></b><h/><d>d2</d></a>");
+        checkDelta(partitioned(),
+                "<a><b/><b><c/></b><b>x</b></a>", 
+                "<a><b>y</b><b/><b><c/><c/></b></a>");
+        checkDelta(partitioned(), "<a><b/></a>", "<a>text</a>");
+    }
+
+    /**
+     * Test children are paired by key attribute.
+     *
+     * @throws Exception If a diff or patch fails
+     */
+    @Test
+    public final void testPartitionKey() throws Exception {
+
+        DiffOptions opts = partitioned();
+        opts.setPartitionKey("id");
+        Document delta = checkDelta(opts, 
+                "<a><b id='1'><c>one</c></b><b id='2'><c>two</c></b></a>", 
+                "<a><b id='2'><c>2</c></b><b id='1'><c>one</c></b></a>");
+
+        //Pairing by name would update both children instead of one
+        assertEquals(2, delta.getDocumentElement().getChildNodes()
+                .getLength());
+    }
+
+    /**
+     * Test a reverse partitioned delta can be undone.
+     *
+     * @throws Exception If a diff or patch fails
+     */
+    @Test
+    public final void testReverse() throws Exception {
+
+        DiffOptions opts = partitioned();
+        opts.setReversePatch(true);
+        String xml1 = "<a><b><c>1</c></b><d/>x<e><f/></e></a>";
+        String xml2 = "<a><e><f g='h'/></e><b><c>2</c></b>y</a>";
+        Document delta = checkDelta(opts, xml1, xml2);
+
+        Document doc2 = TestDocHelper.createDocument(xml2);
+        new DULPatch().applyReverse(doc2, delta);
+        assertEquals(DOMOps.getNodeAsStringDeep(
+                TestDocHelper.createDocument(xml1)), 
+                DOMOps.getNodeAsStringDeep(doc2));
+    }
+}
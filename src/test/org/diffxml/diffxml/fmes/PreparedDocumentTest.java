@@ -0,0 +1,134 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml.fmes;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.ParserPool;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Test diffs against a PreparedDocument.
+ */
+public class PreparedDocumentTest {
+
+    /**
+     * Parses a file from the test suite.
+     *
+     * @param name The name of the file
+     * @return The document
+     * @throws Exception If the file can't be parsed
+     */
+    private static Document parse(final String name) throws Exception {
+        return ParserPool.getInstance().parse(new File("suite", name));
+    }
+
+    /**
+     * Test a prepared diff gives the same delta as a plain diff for each
+     * pair in the suite, and leaves the prepared document usable.
+     *
+     * @throws Exception If a diff fails
+     */
+    @Test
+    public final void testSameAsPlainDiff() throws Exception {
+
+        String[] names = new File("suite").list();
+        int pairs = 0;
+        for (String a : names) {
+            if (!a.endsWith("A.xml")) {
+                continue;
+            }
+            String b = a.substring(0, a.length() - 5) + "B.xml";
+            PreparedDocument original = new PreparedDocument(parse(a));
+
+            String exp = DOMOps.getNodeAsStringDeep(
+                    new Fmes().diff(parse(a), parse(b)));
+            assertEquals(a, exp, DOMOps.getNodeAsStringDeep(
+                    new Fmes().diff(original, parse(b))));
+            assertEquals(a, exp, DOMOps.getNodeAsStringDeep(
+                    new Fmes().diff(original, parse(b))));
+            pairs++;
+        }
+        assertEquals(22, pairs);
+    }
+
+    /**
+     * Test the document given to a PreparedDocument isn't modified.
+     *
+     * @throws Exception If a diff fails
+     */
+    @Test
+    public final void testInputNotModified() throws Exception {
+
+        Document doc1 = parse("moveA.xml");
+        String before = DOMOps.getNodeAsStringDeep(doc1);
+        PreparedDocument original = new PreparedDocument(doc1);
+        new Fmes().diff(original, parse("moveB.xml"));
+        assertEquals(before, DOMOps.getNodeAsStringDeep(doc1));
+    }
+
+    /**
+     * Test concurrent diffs against one prepared document give the same
+     * results as when run alone.
+     *
+     * @throws Exception If a diff fails
+     */
+    @Test
+    public final void testConcurrentDiffs() throws Exception {
+
+        final PreparedDocument original = 
+            new PreparedDocument(parse("1A.xml"));
+        final String[] targets = {"1B.xml", "1A.xml", "eB.xml"};
+        final String[] exp = new String[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            exp[i] = DOMOps.getNodeAsStringDeep(
+                    new Fmes().diff(parse("1A.xml"), parse(targets[i])));
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 24; i++) {
+                final int t = i % targets.length;
+                results.add(exec.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        String delta = DOMOps.getNodeAsStringDeep(
+                                new Fmes().diff(original, parse(targets[t])));
+                        return delta.equals(exp[t]);
+                    }
+                }));
+            }
+            for (Future<Boolean> f : results) {
+                assertEquals(Boolean.TRUE, f.get());
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+}
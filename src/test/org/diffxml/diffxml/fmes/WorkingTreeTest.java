@@ -0,0 +1,133 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.diffxml.fmes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.diffxml.diffxml.DOMOps;
+import org.diffxml.diffxml.TestDocHelper;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Test WorkingTree as an overlay.
+ */
+public class WorkingTreeTest {
+
+    /**
+     * Test moves, removals and updates are seen through the overlay but
+     * don't change the DOM.
+     */
+    @Test
+    public final void testOverlayEdits() {
+
+        Document doc = TestDocHelper.createDocument(
+                "<a><b/>text<c><d/></c></a>");
+        String before = DOMOps.getNodeAsStringDeep(doc);
+        Node a = doc.getDocumentElement();
+        Node b = a.getFirstChild();
+        Node text = b.getNextSibling();
+        Node c = text.getNextSibling();
+        Node d = c.getFirstChild();
+
+        WorkingTree tree = new WorkingTree(true);
+        NodeList aKids = tree.getChildNodes(a);
+        tree.insertAsChild(0, a, d);
+        tree.remove(b);
+        tree.setValue(text, "new");
+
+        assertEquals(3, aKids.getLength());
+        assertEquals(d, aKids.item(0));
+        assertEquals(text, aKids.item(1));
+        assertEquals(c, aKids.item(2));
+        assertNull(aKids.item(3));
+        assertEquals(a, tree.getParent(d));
+        assertNull(tree.getParent(b));
+        assertEquals(0, tree.getChildNodes(c).getLength());
+        assertEquals(d, tree.getPreviousSibling(text));
+        assertEquals(c, tree.getNextSibling(text));
+        assertEquals("new", tree.getValue(text));
+        assertEquals("/node()[1]/node()[2]", NodeOps.getXPath(text, tree));
+        assertEquals(1, new ChildNumber(c, tree).getDOMIgnoring(d));
+        assertEquals("<c/>", 
+                DOMOps.getNodeAsStringDeep(tree.getSubtree(c)));
+
+        assertEquals(before, DOMOps.getNodeAsStringDeep(doc));
+    }
+
+    /**
+     * Test a replaced node's children are given to its replacement.
+     */
+    @Test
+    public final void testOverlayReplace() {
+
+        Document doc = TestDocHelper.createDocument("<a><b/><c/></a>");
+        Node a = doc.getDocumentElement();
+        Node z = doc.createElement("z");
+
+        WorkingTree tree = new WorkingTree(true);
+        tree.replace(a, z);
+
+        assertEquals(z, tree.getChildNodes(doc).item(0));
+        assertEquals(2, tree.getChildNodes(z).getLength());
+        assertEquals(z, tree.getParent(a.getFirstChild()));
+        assertEquals(0, tree.getChildNodes(a).getLength());
+        assertEquals(a, doc.getDocumentElement());
+    }
+
+    /**
+     * Test "inorder" marks are kept out of the DOM.
+     */
+    @Test
+    public final void testOverlayInOrder() {
+
+        Document doc = TestDocHelper.createDocument("<a><b/></a>");
+        Node b = doc.getDocumentElement().getFirstChild();
+
+        WorkingTree tree = new WorkingTree(true);
+        tree.setOutOfOrder(b);
+        assertEquals(false, tree.isInOrder(b));
+        assertEquals(true, NodeOps.isInOrder(b));
+        tree.setInOrder(b);
+        assertEquals(true, tree.isInOrder(b));
+    }
+
+    /**
+     * Test updated attributes are seen in subtrees from the overlay.
+     */
+    @Test
+    public final void testOverlayAttributes() {
+
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><b x='1' y='2'/></a>");
+        Document doc2 = TestDocHelper.createDocument("<b x='3' z='4'/>");
+        Element b = (Element) doc1.getDocumentElement().getFirstChild();
+
+        WorkingTree tree = new WorkingTree(true);
+        tree.setAttributes(b, doc2.getDocumentElement());
+
+        assertEquals("<b x=\"3\" z=\"4\"/>", 
+                DOMOps.getNodeAsStringDeep(tree.getSubtree(b)));
+        assertEquals("1", b.getAttribute("x"));
+    }
+}
@@ -404,4 +404,31 @@ public class DULDeltaTest {
         }
         
     }
+
+    /**
+     * Test a text update only holds the changed characters.
+     */
+    @Test
+    public final void testUpdateText() {
+        
+        Document doc1 = TestDocHelper.createDocument(
+                "<a>The quick brown fox</a>");
+        Document doc2 = TestDocHelper.createDocument(
+                "<a>The slow brown fox</a>");
+        mDelta.updateText(doc1.getDocumentElement().getFirstChild(), 
+                doc2.getDocumentElement().getFirstChild());
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        
+        try {
+            DOMOps.outputXML(mDelta.getDocument(), os);
+            String out = new String(os.toByteArray(), ENCODING);
+            assertTrue(out.contains(
+                    "><update charpos=\"5\" length=\"5\" "
+                    + "node=\"/node()[1]/node()[1]\">slow</update></delta>"));
+        } catch (UnsupportedEncodingException e) {
+            fail("Caught exception: " + e.getMessage());
+        } catch (IOException e) {
+            fail("Caught exception: " + e.getMessage());
+        }
+    }
 }
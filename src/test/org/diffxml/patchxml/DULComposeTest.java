@@ -0,0 +1,232 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.patchxml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.diffxml.diffxml.TestDocHelper;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Class to test composing DUL deltas.
+ * 
+ * @author Adrian Mouat
+ *
+ */
+public class DULComposeTest {
+
+    /**
+     * Composes two deltas, checking the result by applying it.
+     *
+     * @param doc    the document to apply the composed delta to
+     * @param first  the first delta
+     * @param second the second delta
+     * @return the composed delta
+     */
+    private static Document composeAndApply(final Document doc, 
+            final String first, final String second) {
+
+        Document composed = null;
+        try {
+            composed = (new DULCompose()).compose(
+                    TestDocHelper.createDocument(first), 
+                    TestDocHelper.createDocument(second));
+            (new DULPatch()).apply(doc, composed);
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+        return composed;
+    }
+
+    /**
+     * Test operations on unrelated nodes are kept in order.
+     */
+    @Test
+    public final void testUnrelatedOperations() {
+        
+        Document doc1 = TestDocHelper.createDocument("<a><b/><c/></a>");
+        Document composed = composeAndApply(doc1, 
+                "<delta><delete node=\"/node()[1]/node()[1]\"/></delta>",
+                "<delta><insert parent=\"/node()[1]\" nodetype=\"1\" "
+                + "childno=\"1\" name=\"d\"/></delta>");
+
+        assertEquals(2, 
+                composed.getDocumentElement().getChildNodes().getLength());
+        Node a = doc1.getDocumentElement();
+        assertEquals("d", a.getFirstChild().getNodeName());
+        assertEquals("c", a.getLastChild().getNodeName());
+    }
+
+    /**
+     * Test a delete cancels the insert of the same node, along with the
+     * changes to it in between.
+     */
+    @Test
+    public final void testInsertThenDelete() {
+        
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><b>text</b><c/></a>");
+        Document composed = composeAndApply(doc1, 
+                "<delta>"
+                + "<insert parent=\"/node()[1]\" nodetype=\"1\" "
+                + "childno=\"3\" name=\"d\"/>"
+                + "<insert parent=\"/node()[1]/node()[3]\" nodetype=\"2\" "
+                + "name=\"x\">1</insert>"
+                + "<update node=\"/node()[1]/node()[1]/node()[1]\">new"
+                + "</update>"
+                + "</delta>",
+                "<delta><delete node=\"/node()[1]/node()[3]\"/></delta>");
+
+        Element delta = composed.getDocumentElement();
+        assertEquals(1, delta.getChildNodes().getLength());
+        assertEquals("update", delta.getFirstChild().getNodeName());
+        Node a = doc1.getDocumentElement();
+        assertEquals(2, a.getChildNodes().getLength());
+        assertEquals("new", a.getFirstChild().getTextContent());
+    }
+
+    /**
+     * Test an insert isn't cancelled by a delete of a node that may have
+     * taken its place.
+     */
+    @Test
+    public final void testInsertThenDeleteOther() {
+        
+        Document doc1 = TestDocHelper.createDocument("<a><b/><c/></a>");
+        Document composed = composeAndApply(doc1, 
+                "<delta>"
+                + "<insert parent=\"/node()[1]\" nodetype=\"1\" "
+                + "childno=\"2\" name=\"d\"/>"
+                + "<delete node=\"/node()[1]/node()[1]\"/>"
+                + "</delta>",
+                "<delta><delete node=\"/node()[1]/node()[1]\"/></delta>");
+
+        assertEquals(3, 
+                composed.getDocumentElement().getChildNodes().getLength());
+        Node a = doc1.getDocumentElement();
+        assertEquals(1, a.getChildNodes().getLength());
+        assertEquals("c", a.getFirstChild().getNodeName());
+    }
+
+    /**
+     * Test moves of the same node collapse into one.
+     */
+    @Test
+    public final void testChainedMoves() {
+        
+        Document doc1 = TestDocHelper.createDocument(
+                "<r><a><b/></a><c/><d/></r>");
+        Document composed = composeAndApply(doc1, 
+                "<delta><move node=\"/node()[1]/node()[1]/node()[1]\" "
+                + "parent=\"/node()[1]/node()[2]\" childno=\"1\"/></delta>",
+                "<delta><move node=\"/node()[1]/node()[2]/node()[1]\" "
+                + "parent=\"/node()[1]/node()[3]\" childno=\"1\"/></delta>");
+
+        Element delta = composed.getDocumentElement();
+        assertEquals(1, delta.getChildNodes().getLength());
+        Element mov = (Element) delta.getFirstChild();
+        assertEquals("/node()[1]/node()[1]/node()[1]", 
+                mov.getAttribute("node"));
+        assertEquals("/node()[1]/node()[3]", mov.getAttribute("parent"));
+
+        Node d = doc1.getDocumentElement().getLastChild();
+        assertEquals("b", d.getFirstChild().getNodeName());
+        assertFalse(doc1.getDocumentElement().getFirstChild().hasChildNodes());
+    }
+
+    /**
+     * Test moves and updates fold into earlier operations on the same 
+     * node past operations on other nodes.
+     */
+    @Test
+    public final void testFoldPastOtherOperations() {
+        
+        Document doc1 = TestDocHelper.createDocument(
+                "<r><d>t</d><e/><a><b/></a><c/></r>");
+        Document composed = composeAndApply(doc1, 
+                "<delta><move node=\"/node()[1]/node()[3]/node()[1]\" "
+                + "parent=\"/node()[1]/node()[2]\" childno=\"1\"/>"
+                + "<insert parent=\"/node()[1]/node()[3]\" nodetype=\"2\" "
+                + "name=\"x\">1</insert>"
+                + "<update node=\"/node()[1]/node()[1]/node()[1]\">u"
+                + "</update></delta>",
+                "<delta><move node=\"/node()[1]/node()[2]/node()[1]\" "
+                + "parent=\"/node()[1]/node()[4]\" childno=\"1\"/>"
+                + "<update node=\"/node()[1]/node()[3]/@x\">2</update>"
+                + "</delta>");
+
+        assertEquals(3, 
+                composed.getDocumentElement().getChildNodes().getLength());
+        NodeList children = doc1.getDocumentElement().getChildNodes();
+        assertEquals("u", children.item(0).getTextContent());
+        assertFalse(children.item(1).hasChildNodes());
+        assertFalse(children.item(2).hasChildNodes());
+        assertEquals("2", ((Element) children.item(2)).getAttribute("x"));
+        assertEquals("b", children.item(3).getFirstChild().getNodeName());
+    }
+
+    /**
+     * Test an update of a new attribute is folded into its insert.
+     */
+    @Test
+    public final void testInsertThenUpdate() {
+        
+        Document doc1 = TestDocHelper.createDocument("<a/>");
+        Document composed = composeAndApply(doc1, 
+                "<delta><insert parent=\"/node()[1]\" nodetype=\"2\" "
+                + "name=\"x\">1</insert></delta>",
+                "<delta><update node=\"/node()[1]/@x\">2</update></delta>");
+
+        assertEquals(1, 
+                composed.getDocumentElement().getChildNodes().getLength());
+        assertEquals("2", doc1.getDocumentElement().getAttribute("x"));
+    }
+
+    /**
+     * Test the composed delta is only reversible if both deltas are.
+     */
+    @Test
+    public final void testReversePatchAttribute() {
+        
+        try {
+            Document composed = (new DULCompose()).compose(
+                    TestDocHelper.createDocument(
+                            "<delta reverse_patch=\"true\"/>"), 
+                    TestDocHelper.createDocument(
+                            "<delta reverse_patch=\"true\"/>"));
+            assertTrue(composed.getDocumentElement().hasAttribute(
+                    "reverse_patch"));
+            composed = (new DULCompose()).compose(
+                    TestDocHelper.createDocument(
+                            "<delta reverse_patch=\"true\"/>"), 
+                    TestDocHelper.createDocument("<delta/>"));
+            assertFalse(composed.getDocumentElement().hasAttribute(
+                    "reverse_patch"));
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+    }
+}
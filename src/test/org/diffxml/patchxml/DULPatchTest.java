@@ -24,7 +24,13 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.diffxml.diffxml.CancelledException;
+import org.diffxml.diffxml.Cancellation;
 import org.diffxml.diffxml.TestDocHelper;
+import org.diffxml.diffxml.fmes.Fmes;
 import org.junit.Test;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -916,4 +922,254 @@ public class DULPatchTest {
         }
     }
     
+    /**
+     * Insert a serialised subtree.
+     */
+    @Test
+    public final void testInsertSubtree() {
+        
+        Document doc1 = TestDocHelper.createDocument("<a><b/></a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta>"
+                + "<insert parent=\"/a\" nodetype=\"1\" childno=\"2\" "
+                + "name=\"c\" subtree=\"true\">"
+                + "&lt;n:c xmlns:n=\"http://example.com\" x=\"1\"&gt;"
+                + "&lt;d&gt;text&lt;/d&gt;&lt;/n:c&gt;</insert>"
+                + "</delta>");
+
+        try {
+            (new DULPatch()).apply(doc1, patch);
+            Element c = (Element) doc1.getDocumentElement().getLastChild();
+            assertEquals("http://example.com", c.getNamespaceURI());
+            assertEquals("c", c.getLocalName());
+            assertEquals("1", c.getAttribute("x"));
+            assertEquals("d", c.getFirstChild().getNodeName());
+            assertEquals("text", c.getFirstChild().getTextContent());
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * Test a subtree that isn't well formed is rejected.
+     */
+    @Test
+    public final void testInsertInvalidSubtree() {
+        
+        Document doc1 = TestDocHelper.createDocument("<a><b/></a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta>"
+                + "<insert parent=\"/a\" nodetype=\"1\" childno=\"2\" "
+                + "name=\"c\" subtree=\"true\">&lt;c&gt;</insert>"
+                + "</delta>");
+
+        try {
+            (new DULPatch()).apply(doc1, patch);
+            fail("Expected PatchFormatException");
+        } catch (PatchFormatException e) {
+            assertEquals(1, doc1.getDocumentElement().getChildNodes(
+                    ).getLength());
+        }
+    }
+
+    /**
+     * Replace characters of a text node in place.
+     */
+    @Test
+    public final void testUpdateText() {
+        
+        Document doc1 = TestDocHelper.createDocument(
+                "<a>The quick brown fox<b/></a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta>"
+                + "<update node=\"/a/node()[1]\" charpos=\"5\" "
+                + "length=\"5\">slow</update>"
+                + "<update node=\"/a/node()[1]\" charpos=\"19\" "
+                + "length=\"0\">es</update>"
+                + "</delta>");
+
+        try {
+            (new DULPatch()).apply(doc1, patch);
+            assertEquals("The slow brown foxes", 
+                    doc1.getDocumentElement().getFirstChild().getNodeValue());
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+    }
+
+    /**
+     * Test a text update past the end of the text is rejected.
+     */
+    @Test
+    public final void testUpdateTextPastEnd() {
+        
+        Document doc1 = TestDocHelper.createDocument("<a>text<b/></a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta>"
+                + "<update node=\"/a/node()[1]\" charpos=\"4\" "
+                + "length=\"3\">x</update>"
+                + "</delta>");
+
+        try {
+            (new DULPatch()).apply(doc1, patch);
+            fail("Expected PatchFormatException");
+        } catch (PatchFormatException e) {
+            assertEquals("text", 
+                    doc1.getDocumentElement().getFirstChild().getNodeValue());
+        }
+    }
+
+    /**
+     * Test applying a reverse patch in reverse.
+     */
+    @Test
+    public final void testApplyReverse() {
+        
+        Document doc1 = TestDocHelper.createDocument(
+                "<a><c/><b x=\"2\">new text</b></a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta reverse_patch=\"true\">"
+                + "<delete node=\"/a/node()[1]\" parent=\"/a\" "
+                + "childno=\"1\" nodetype=\"1\" name=\"d\" "
+                + "subtree=\"true\">&lt;d&gt;&lt;e/&gt;&lt;/d&gt;</delete>"
+                + "<insert parent=\"/a\" childno=\"1\" nodetype=\"1\" "
+                + "name=\"c\"/>"
+                + "<update node=\"/a/node()[2]/@x\" old_value=\"1\">2"
+                + "</update>"
+                + "<update node=\"/a/node()[2]/node()[1]\" charpos=\"1\" "
+                + "length=\"3\" old_value=\"old\">new</update>"
+                + "</delta>");
+
+        try {
+            (new DULPatch()).applyReverse(doc1, patch);
+        } catch (PatchFormatException e) {
+            fail("Caught exception " + e);
+        }
+
+        Node a = doc1.getDocumentElement();
+        assertEquals(2, a.getChildNodes().getLength());
+        assertEquals("d", a.getFirstChild().getNodeName());
+        assertEquals("e", a.getFirstChild().getFirstChild().getNodeName());
+        Element b = (Element) a.getLastChild();
+        assertEquals("1", b.getAttribute("x"));
+        assertEquals("old text", b.getTextContent());
+    }
+
+    /**
+     * Test a delta without reverse data can't be applied in reverse.
+     */
+    @Test
+    public final void testApplyReverseWithoutData() {
+        
+        Document doc1 = TestDocHelper.createDocument("<a><b/></a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta reverse_patch=\"true\">"
+                + "<delete node=\"/a/node()[1]\"/>"
+                + "</delta>");
+
+        try {
+            (new DULPatch()).applyReverse(doc1, patch);
+            fail("Expected PatchFormatException");
+        } catch (PatchFormatException e) {
+            assertEquals(1, doc1.getDocumentElement().getChildNodes(
+                    ).getLength());
+        }
+
+        patch.getDocumentElement().removeAttribute("reverse_patch");
+        try {
+            (new DULPatch()).applyReverse(doc1, patch);
+            fail("Expected PatchFormatException");
+        } catch (PatchFormatException e) {
+            assertEquals(1, doc1.getDocumentElement().getChildNodes(
+                    ).getLength());
+        }
+    }
+
+    /**
+     * Test a patch stops before the next operation once cancelled or 
+     * interrupted.
+     * 
+     * @throws PatchFormatException If the patch is malformed
+     */
+    @Test
+    public final void testCancelledPatch() throws PatchFormatException {
+
+        Document doc1 = TestDocHelper.createDocument("<a><b/></a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta><delete node=\"/a/node()[1]\"/></delta>");
+
+        DULPatch patcher = new DULPatch();
+        Cancellation token = new Cancellation();
+        patcher.setCancellation(token);
+        token.cancel();
+        try {
+            patcher.apply(doc1, patch);
+            fail("Expected CancelledException");
+        } catch (CancelledException e) {
+            assertEquals(1, doc1.getDocumentElement().getChildNodes(
+                    ).getLength());
+        }
+
+        Thread.currentThread().interrupt();
+        try {
+            (new DULPatch()).apply(doc1, patch);
+            fail("Expected CancelledException");
+        } catch (CancelledException e) {
+            assertTrue(Thread.interrupted());
+        }
+
+        (new DULPatch()).apply(doc1, patch);
+        assertNull(doc1.getDocumentElement().getFirstChild());
+    }
+
+    /**
+     * Test debug output goes to the stream given.
+     * 
+     * @throws Exception If the patch fails
+     */
+    @Test
+    public final void testDebugStream() throws Exception {
+
+        Document doc1 = TestDocHelper.createDocument("<a><b/></a>");
+        Document patch = TestDocHelper.createDocument(
+                "<delta><delete node=\"/a/node()[1]\"/></delta>");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DULPatch patcher = new DULPatch();
+        patcher.setDebug(true, new PrintStream(bytes, true, "UTF-8"));
+        patcher.apply(doc1, patch);
+
+        String debug = bytes.toString("UTF-8");
+        assertTrue(debug.startsWith("At operation: "));
+        assertTrue(debug.contains("<a/>"));
+    }
+
+    /**
+     * Test namespaces declared by the parent aren't added to an inserted
+     * subtree, but other declarations are kept.
+     * 
+     * @throws Exception If the diff or patch fails
+     */
+    @Test
+    public final void testInsertNamespacedSubtree() throws Exception {
+
+        String xml1 = "<r xmlns='urn:n1' xmlns:p='urn:x'><a/></r>";
+        String[] xml2 = {
+            "<r xmlns='urn:n1' xmlns:p='urn:x'><a/><b><c p:k='1'/></b></r>",
+            "<r xmlns='urn:n1' xmlns:p='urn:x'><a/>"
+                + "<b xmlns:p='urn:y'><c p:k='1'/></b></r>"};
+
+        for (String xml : xml2) {
+            Document doc1 = TestDocHelper.createDocument(xml1);
+            Document doc2 = TestDocHelper.createDocument(xml);
+            Document delta = new Fmes().diff(doc1, doc2);
+            assertEquals(1, delta.getDocumentElement().getChildNodes(
+                    ).getLength());
+
+            doc1 = TestDocHelper.createDocument(xml1);
+            (new DULPatch()).apply(doc1, delta);
+            assertTrue(doc2.getDocumentElement().isEqualNode(
+                    doc1.getDocumentElement()));
+        }
+    }
 }
@@ -0,0 +1,245 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the diff server.
+ *
+ * @author Adrian Mouat
+ */
+public class DiffServerTest {
+
+    /** Server under test. **/
+    private static DiffServer mServer;
+
+    /**
+     * Starts the server on a free port.
+     *
+     * @throws IOException If the server can't be started
+     */
+    @BeforeClass
+    public static void startServer() throws IOException {
+
+        mServer = new DiffServer(0, 2, 4);
+        mServer.start();
+    }
+
+    /**
+     * Stops the server.
+     */
+    @AfterClass
+    public static void stopServer() {
+        mServer.stop(0);
+    }
+
+    /**
+     * Posts a request to the server.
+     *
+     * @param path The command path
+     * @param fields The working directory and arguments
+     * @return The connection, with response available
+     * @throws IOException If the request fails
+     */
+    private static HttpURLConnection post(final String path,
+            final String... fields) throws IOException {
+        return postAs(DiffServer.CONTENT_TYPE, path, fields);
+    }
+
+    /**
+     * Posts a request with the given content type to the server.
+     *
+     * @param type The content type, or null for the default
+     * @param path The command path
+     * @param fields The working directory and arguments
+     * @return The connection, with response available
+     * @throws IOException If the request fails
+     */
+    private static HttpURLConnection postAs(final String type, 
+            final String path, final String... fields) throws IOException {
+
+        URL url = new URL("http", InetAddress.getLoopbackAddress()
+                .getHostAddress(), mServer.getPort(), path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        if (type != null) {
+            conn.setRequestProperty("Content-Type", type);
+        }
+        OutputStream os = conn.getOutputStream();
+        for (String f : fields) {
+            os.write(f.getBytes(StandardCharsets.UTF_8));
+            os.write(0);
+        }
+        os.close();
+        return conn;
+    }
+
+    /**
+     * Reads the body of a response.
+     *
+     * @param conn The connection
+     * @return The body as a string
+     * @throws IOException If the body can't be read
+     */
+    private static String readBody(final HttpURLConnection conn)
+    throws IOException {
+
+        InputStream is = conn.getInputStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        is.transferTo(bytes);
+        is.close();
+        return bytes.toString("UTF-8");
+    }
+
+    /**
+     * Test a diff returns the delta and exit status.
+     *
+     * @throws IOException On failure to contact the server
+     */
+    @Test
+    public final void testDiff() throws IOException {
+
+        String cwd = System.getProperty("user.dir");
+        HttpURLConnection conn = post("/diff", cwd, "test1a.xml",
+                "test2a.xml");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("1", conn.getHeaderField(DiffServer.EXIT_HEADER));
+        assertTrue(readBody(conn).contains("<delta"));
+
+        conn = post("/diff", cwd, "-q", "test1a.xml", "test1a.xml");
+        assertEquals("0", conn.getHeaderField(DiffServer.EXIT_HEADER));
+        assertEquals("", readBody(conn));
+        assertNull(conn.getHeaderField(DiffServer.ERROR_HEADER));
+    }
+
+    /**
+     * Test errors are returned in the header.
+     *
+     * @throws IOException On failure to contact the server
+     */
+    @Test
+    public final void testError() throws IOException {
+
+        HttpURLConnection conn = post("/patch",
+                System.getProperty("user.dir"), "test1a.xml");
+        assertEquals("2", conn.getHeaderField(DiffServer.EXIT_HEADER));
+        assertEquals("Usage: patch [OPTION]... [ORIGFILE [PATCHFILE]]%0A",
+                conn.getHeaderField(DiffServer.ERROR_HEADER));
+    }
+
+    /**
+     * Test requests a web page could send are refused.
+     *
+     * @throws IOException On failure to contact the server
+     */
+    @Test
+    public final void testRefused() throws IOException {
+
+        String cwd = System.getProperty("user.dir");
+        HttpURLConnection conn = postAs(null, "/diff", cwd, "test1a.xml",
+                "test2a.xml");
+        assertEquals(415, conn.getResponseCode());
+        assertEquals("2", conn.getHeaderField(DiffServer.EXIT_HEADER));
+
+        conn = postAs("text/plain", "/diff", cwd, "test1a.xml",
+                "test2a.xml");
+        assertEquals(415, conn.getResponseCode());
+
+        //A rebound DNS name reaches the server with its own Host
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), 
+                mServer.getPort());
+        try {
+            OutputStream os = socket.getOutputStream();
+            os.write(("POST /diff HTTP/1.1\r\n"
+                    + "Host: attacker.example:" + mServer.getPort() + "\r\n"
+                    + "Content-Type: " + DiffServer.CONTENT_TYPE + "\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(
+                            StandardCharsets.US_ASCII));
+            os.flush();
+            InputStream is = socket.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            is.transferTo(bytes);
+            assertTrue(bytes.toString("US-ASCII").startsWith(
+                    "HTTP/1.1 403 "));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Test the Host and Content-Type checks.
+     */
+    @Test
+    public final void testRequestChecks() {
+
+        assertTrue(DiffServer.isLoopbackHost("localhost"));
+        assertTrue(DiffServer.isLoopbackHost("LocalHost:8765"));
+        assertTrue(DiffServer.isLoopbackHost("127.0.0.1:8765"));
+        assertTrue(DiffServer.isLoopbackHost("127.1.2.3"));
+        assertTrue(DiffServer.isLoopbackHost("[::1]:8765"));
+        assertFalse(DiffServer.isLoopbackHost(null));
+        assertFalse(DiffServer.isLoopbackHost("example.com"));
+        assertFalse(DiffServer.isLoopbackHost("localhost.example.com"));
+        assertFalse(DiffServer.isLoopbackHost("127.0.0.1.example.com"));
+        assertFalse(DiffServer.isLoopbackHost("127.0.0.1:"));
+        assertFalse(DiffServer.isLoopbackHost("10.0.0.1:8765"));
+        assertFalse(DiffServer.isLoopbackHost("[::2]"));
+
+        assertTrue(DiffServer.isRequestType("application/octet-stream"));
+        assertTrue(DiffServer.isRequestType(
+                "Application/Octet-Stream; charset=binary"));
+        assertFalse(DiffServer.isRequestType(null));
+        assertFalse(DiffServer.isRequestType("text/plain"));
+        assertFalse(DiffServer.isRequestType(
+                "application/x-www-form-urlencoded"));
+    }
+
+    /**
+     * Test header encoding and request splitting.
+     */
+    @Test
+    public final void testEncoding() {
+
+        assertEquals("a b%25%5C%0A%C3%A9",
+                DiffServer.encodeHeader("a b%\\\n\u00e9"));
+        assertEquals(Arrays.asList("/tmp", "", "x"), DiffServer.splitFields(
+                "/tmp\0\0x\0".getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+diffxml and patchxml - diff and patch for XML files
+
+Copyright 2013 Adrian Mouat
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.diffxml.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.diffxml.diffxml.DiffException;
+import org.diffxml.diffxml.DiffFactory;
+import org.diffxml.diffxml.TestDocHelper;
+import org.diffxml.diffxml.fmes.Fmes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Test class for VersionStore.
+ * 
+ * @author Adrian Mouat
+ *
+ */
+public class VersionStoreTest {
+
+    /** Number of versions added by the tests. **/
+    private static final int VERSIONS = 8;
+
+    /** Directory of the store under test. **/
+    private File mDir;
+
+    /**
+     * Creates an empty directory for the store.
+     * 
+     * @throws Exception If the directory can't be created
+     */
+    @Before
+    public final void setUp() throws Exception {
+        mDir = File.createTempFile("versionstore", "");
+        assertTrue(mDir.delete());
+    }
+
+    /**
+     * Removes the store's directory.
+     */
+    @After
+    public final void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * Creates a version of the test document.
+     * 
+     * @param i The version number
+     * @return The document
+     */
+    private static Document makeVersion(final int i) {
+
+        StringBuilder xml = new StringBuilder("<doc>");
+        for (int j = 0; j <= i; j++) {
+            xml.append("<para n=\"" + (i - j) + "\">Text " + j + "</para>");
+        }
+        xml.append("</doc>");
+        return TestDocHelper.createDocument(xml.toString());
+    }
+
+    /**
+     * Adds the test versions to a store.
+     * 
+     * @param store The store
+     * @throws StoreException If a version can't be stored
+     */
+    private static void addVersions(final VersionStore store) 
+    throws StoreException {
+
+        for (int i = 0; i < VERSIONS; i++) {
+            assertEquals(i, store.add(makeVersion(i)));
+        }
+    }
+
+    /**
+     * Checks a document has no differences from a version.
+     * 
+     * @param i The version number
+     * @param doc The document
+     * @throws DiffException If the diff fails
+     */
+    private static void assertVersion(final int i, final Document doc) 
+    throws DiffException {
+
+        Document delta = new Fmes().diff(makeVersion(i), doc);
+        assertFalse("Version " + i, 
+                delta.getDocumentElement().hasChildNodes());
+    }
+
+    /**
+     * Test every version can be got back, with snapshots where expected.
+     * 
+     * @throws Exception If the store fails
+     */
+    @Test
+    public final void testAddAndGet() throws Exception {
+
+        VersionStore store = new VersionStore(mDir, 3, 2, 
+                DiffFactory.copyDefaults());
+        addVersions(store);
+        assertEquals(VERSIONS, store.size());
+
+        for (int i = VERSIONS - 1; i >= 0; i--) {
+            assertVersion(i, store.get(i));
+        }
+
+        assertTrue(new File(mDir, "v00000000.xml").exists());
+        assertTrue(new File(mDir, "v00000002.dul").exists());
+        assertTrue(new File(mDir, "v00000003.xml").exists());
+        assertTrue(new File(mDir, "v00000006.xml").exists());
+        assertFalse(new File(mDir, "v00000007.xml").exists());
+    }
+
+    /**
+     * Test the returned documents can be modified without affecting the
+     * store.
+     * 
+     * @throws Exception If the store fails
+     */
+    @Test
+    public final void testModifyReturned() throws Exception {
+
+        VersionStore store = new VersionStore(mDir, 3, 2, 
+                DiffFactory.copyDefaults());
+        addVersions(store);
+
+        Document doc = store.get(4);
+        doc.getDocumentElement().removeChild(
+                doc.getDocumentElement().getFirstChild());
+        assertVersion(4, store.get(4));
+        assertVersion(5, store.get(5));
+    }
+
+    /**
+     * Test a store can be reopened and added to.
+     * 
+     * @throws Exception If the store fails
+     */
+    @Test
+    public final void testReopen() throws Exception {
+
+        addVersions(new VersionStore(mDir, 3, 0, 
+                DiffFactory.copyDefaults()));
+
+        VersionStore store = new VersionStore(mDir);
+        assertEquals(VERSIONS, store.size());
+        assertVersion(5, store.get(5));
+        assertEquals(VERSIONS, store.add(makeVersion(VERSIONS)));
+        assertVersion(VERSIONS, store.get(VERSIONS));
+        assertVersion(1, store.get(1));
+    }
+
+    /**
+     * Test a store with a missing version can't be opened.
+     * 
+     * @throws Exception If the store fails
+     */
+    @Test
+    public final void testMissingVersion() throws Exception {
+
+        addVersions(new VersionStore(mDir, 3, 0, 
+                DiffFactory.copyDefaults()));
+        assertTrue(new File(mDir, "v00000004.dul").delete());
+
+        try {
+            new VersionStore(mDir);
+            fail("Expected StoreException");
+        } catch (StoreException e) {
+            assertTrue(e.getMessage().contains("version 4"));
+        }
+    }
+}